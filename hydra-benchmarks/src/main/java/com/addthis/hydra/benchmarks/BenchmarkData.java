@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.benchmarks;
+
+import java.util.Random;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleFactory;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+
+/**
+ * Reproducible inputs for the benchmarks. Every generator is driven
+ * by an explicit seed so that runs on different commits see the same
+ * keys in the same order.
+ * <p/>
+ * Keys are drawn from a skewed distribution so that a small number
+ * of keys are hot, which is closer to production traffic than a
+ * uniform distribution and exercises the page cache in the same way.
+ */
+public final class BenchmarkData {
+
+    private static final char[] ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Returns {@code count} keys in [0, range). A {@code skew} of 1
+     * is uniform and larger values concentrate the keys near zero.
+     */
+    public static int[] keys(long seed, int count, int range, double skew) {
+        Random random = new Random(seed);
+        int[] keys = new int[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = Math.min(range - 1, (int) (range * Math.pow(random.nextDouble(), skew)));
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the names of {@code count} tree nodes drawn from
+     * {@code cardinality} distinct names.
+     */
+    public static String[] names(long seed, int count, int cardinality, double skew) {
+        int[] keys = keys(seed, count, cardinality, skew);
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = name(keys[i]);
+        }
+        return names;
+    }
+
+    /**
+     * Returns {@code count} values of {@code size} bytes. The values
+     * use a small alphabet so that pages compress about as well
+     * as pages of encoded tree nodes.
+     */
+    public static byte[][] values(long seed, int count, int size) {
+        Random random = new Random(seed);
+        byte[][] values = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            byte[] value = new byte[size];
+            for (int j = 0; j < size; j++) {
+                value[j] = (byte) ALPHABET[random.nextInt(ALPHABET.length)];
+            }
+            values[i] = value;
+        }
+        return values;
+    }
+
+    /**
+     * Returns {@code count} bundles with the fields {@code a}, {@code b}
+     * and {@code c}. Field {@code a} has {@code cardinality} values and
+     * {@code b} and {@code c} have {@code cardinality} values for each
+     * value of {@code a}.
+     */
+    public static Bundle[] bundles(BundleFactory factory, long seed, int count, int cardinality) {
+        Random random = new Random(seed);
+        Bundle[] bundles = new Bundle[count];
+        for (int i = 0; i < count; i++) {
+            Bundle bundle = factory.createBundle();
+            BundleFormat format = bundle.getFormat();
+            bundle.setValue(format.getField("a"), ValueFactory.create(name(skewed(random, cardinality))));
+            bundle.setValue(format.getField("b"), ValueFactory.create(name(skewed(random, cardinality))));
+            bundle.setValue(format.getField("c"), ValueFactory.create(name(random.nextInt(cardinality))));
+            bundles[i] = bundle;
+        }
+        return bundles;
+    }
+
+    private static int skewed(Random random, int range) {
+        return Math.min(range - 1, (int) (range * Math.pow(random.nextDouble(), 2)));
+    }
+
+    private static String name(int key) {
+        return "n" + Integer.toString(key, 36);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.benchmarks;
+
+import java.text.SimpleDateFormat;
+
+import java.util.Date;
+
+import com.addthis.basis.util.Parameter;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the standard JMH command line options.
+ * Unless the options say otherwise the results are written as JSON to
+ * {@code jmh-<label>.json} where the label is {@code hydra.benchmark.label}
+ * or the current time. Use the commit id as the label to compare runs
+ * between commits.
+ * <p/>
+ * usage: java -jar benchmarks.jar [jmh options] [benchmark regexp]
+ */
+public class BenchmarkMain {
+
+    private static final String label = Parameter.value("hydra.benchmark.label",
+            new SimpleDateFormat("yyMMdd-HHmmss").format(new Date()));
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.shouldHelp() || options.shouldList() || options.shouldListProfilers()) {
+            Main.main(args);
+            return;
+        }
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+        if (!options.getResultFormat().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON);
+        }
+        if (!options.getResult().hasValue()) {
+            builder.result("jmh-" + label + ".json");
+        }
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+import java.io.File;
+
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.Files;
+
+import com.addthis.hydra.benchmarks.BenchmarkData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link ConcurrentTree#getOrCreateNode(ConcurrentTreeNode, String, DataTreeNodeInitializer)}
+ * from several threads into two levels of the tree. The number of
+ * threads can be changed with the {@code -t} option of the runner.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ConcurrentTreeBenchmark {
+
+    /**
+     * Number of distinct children of the root and of each of those children.
+     */
+    @Param({"1000", "100000"})
+    int cardinality;
+
+    /**
+     * 1 is {@link com.addthis.hydra.store.kv.ConcurrentByteStoreBDB}
+     * and 2 is {@link com.addthis.hydra.store.kv.ConcurrentByteStoreMapped}.
+     * 1 requires a jar built with {@code -P bdbje}.
+     */
+    @Param({"2"})
+    int kvStoreType;
+
+    @Param({"0"})
+    long seed;
+
+    private static final int SAMPLES = 1 << 20;
+
+    private File dir;
+    private ConcurrentTree tree;
+    private ConcurrentTreeNode root;
+    private String[] names;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        int next;
+
+        int next() {
+            return (next++) & (SAMPLES - 1);
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDir();
+        tree = new ConcurrentTree.Builder(dir, false).kvStoreType(kvStoreType).build();
+        root = tree.getRootNode();
+        names = BenchmarkData.names(seed, SAMPLES, cardinality, 2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        tree.close();
+        Files.deleteDir(dir);
+    }
+
+    @Benchmark
+    public ConcurrentTreeNode getOrCreateNode(Cursor cursor) {
+        ConcurrentTreeNode parent = tree.getOrCreateNode(root, names[cursor.next()], null);
+        ConcurrentTreeNode child = tree.getOrCreateNode(parent, names[cursor.next()], null);
+        parent.release();
+        child.release();
+        return child;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.skiplist;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.Files;
+
+import com.addthis.hydra.benchmarks.BenchmarkData;
+import com.addthis.hydra.store.kv.ConcurrentByteStoreMapped;
+import com.addthis.hydra.store.kv.PageCompressor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of a single full page, which is the work
+ * done for every page that is evicted from or loaded into the cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PageBenchmark {
+
+    @Param({"50", "200"})
+    int maxPageSize;
+
+    /**
+     * Page compression, see {@link PageCompressor}.
+     * 0 is none, 1 is deflate, 3 is lzf and 4 is snappy.
+     */
+    @Param({"0", "1", "3", "4"})
+    int gztype;
+
+    @Param({"100"})
+    int valueSize;
+
+    @Param({"0"})
+    long seed;
+
+    private File dir;
+    private SkipListCache<Integer, byte[]> cache;
+    private Page<Integer, byte[]> page;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDir();
+        // the cache supplies the key coder and compressor of the page
+        cache = new SkipListCache.Builder<>(new BenchmarkKeyCoder(),
+                new ConcurrentByteStoreMapped(dir, "db", false), maxPageSize, 1)
+                .compressor(new PageCompressor(gztype, Page.gzlevel, null, null, false)).build();
+        byte[][] values = BenchmarkData.values(seed, maxPageSize, valueSize);
+        ArrayList<Integer> keys = new ArrayList<>(maxPageSize);
+        ArrayList<byte[]> pageValues = new ArrayList<>(maxPageSize);
+        RawValueList rawValues = new RawValueList(maxPageSize);
+        for (int i = 0; i < maxPageSize; i++) {
+            keys.add(i * 7);
+            pageValues.add(values[i]);
+            rawValues.add(null);
+        }
+        page = Page.generateSiblingPage(cache, 0, maxPageSize * 7, maxPageSize, keys, pageValues, rawValues);
+        encoded = page.encode(false);
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.close();
+        Files.deleteDir(dir);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return page.encode(false);
+    }
+
+    @Benchmark
+    public Page<Integer, byte[]> decode() {
+        Page<Integer, byte[]> decoded = Page.generateEmptyPage(cache, 0);
+        decoded.decode(encoded);
+        return decoded;
+    }
+}
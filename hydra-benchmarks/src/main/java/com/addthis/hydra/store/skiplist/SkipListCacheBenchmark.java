@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.skiplist;
+
+import java.io.File;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.ClosableIterator;
+import com.addthis.basis.util.Files;
+
+import com.addthis.hydra.benchmarks.BenchmarkData;
+import com.addthis.hydra.store.kv.ConcurrentByteStoreBDB;
+import com.addthis.hydra.store.kv.ConcurrentByteStoreMapped;
+import com.addthis.hydra.store.kv.ExternalPagedStore.ByteStore;
+import com.addthis.hydra.store.kv.PageCompressor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Get, put and range scans against a {@link SkipListCache} that holds
+ * fewer pages than the store so that lookups also measure eviction,
+ * page encoding and page decoding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class SkipListCacheBenchmark {
+
+    @Param({"50", "200"})
+    int maxPageSize;
+
+    /**
+     * Page compression, see {@link PageCompressor}.
+     * 0 is none, 1 is deflate, 3 is lzf and 4 is snappy.
+     */
+    @Param({"0", "1", "4"})
+    int gztype;
+
+    /**
+     * 1 is {@link ConcurrentByteStoreBDB} and 2 is {@link ConcurrentByteStoreMapped}.
+     * 1 requires a jar built with {@code -P bdbje}.
+     */
+    @Param({"2"})
+    int kvStoreType;
+
+    @Param({"1000"})
+    int maxPages;
+
+    @Param({"1000000"})
+    int keyRange;
+
+    @Param({"100"})
+    int valueSize;
+
+    @Param({"0"})
+    long seed;
+
+    private static final int SAMPLES = 1 << 20;
+
+    private static final int RANGE_LENGTH = 100;
+
+    private File dir;
+    private SkipListCache<Integer, byte[]> cache;
+    private int[] keys;
+    private byte[][] values;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        int next;
+
+        int next() {
+            return (next++) & (SAMPLES - 1);
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDir();
+        ByteStore store;
+        switch (kvStoreType) {
+            case 1:
+                store = new ConcurrentByteStoreBDB(dir, "db", false);
+                break;
+            case 2:
+                store = new ConcurrentByteStoreMapped(dir, "db", false);
+                break;
+            default:
+                throw new IllegalStateException("Illegal value " + kvStoreType + " for kvStoreType");
+        }
+        cache = new SkipListCache.Builder<>(new BenchmarkKeyCoder(), store, maxPageSize, maxPages)
+                .compressor(new PageCompressor(gztype, Page.gzlevel, null, null, false)).build();
+        keys = BenchmarkData.keys(seed, SAMPLES, keyRange, 2);
+        values = BenchmarkData.values(seed, 1024, valueSize);
+        // populate every other key so that half of the random lookups miss
+        for (int key = 0; key < keyRange; key += 2) {
+            cache.put(key, values[key & 1023]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.close();
+        Files.deleteDir(dir);
+    }
+
+    @Benchmark
+    public byte[] get(Cursor cursor) {
+        return cache.get(keys[cursor.next()]);
+    }
+
+    @Benchmark
+    public byte[] put(Cursor cursor) {
+        int i = cursor.next();
+        return cache.put(keys[i], values[i & 1023]);
+    }
+
+    @Benchmark
+    public void range(Cursor cursor, Blackhole blackhole) {
+        Iterator<Map.Entry<Integer, byte[]>> iterator = cache.range(keys[cursor.next()], true);
+        for (int i = 0; i < RANGE_LENGTH && iterator.hasNext(); i++) {
+            blackhole.consume(iterator.next());
+        }
+        ((ClosableIterator<Map.Entry<Integer, byte[]>>) iterator).close();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.output.tree;
+
+import java.io.File;
+
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.Files;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.codec.CodecJSON;
+import com.addthis.hydra.benchmarks.BenchmarkData;
+import com.addthis.hydra.task.run.TaskRunConfig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end ingestion of a synthetic bundle stream by a {@link TreeMapper}
+ * into a new tree, including closing the tree. Each measurement builds
+ * a tree from scratch in a temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class TreeMapperBenchmark {
+
+    /**
+     * Three levels of value nodes below a constant node.
+     * The last level has a counting data attachment.
+     */
+    private static final String CONFIG = "{" +
+            "\"treeType\":1, \"enableHttp\":false, \"enableQuery\":false, \"enableJmx\":false," +
+            "\"root\":{\"path\":\"ROOT\"}," +
+            "\"paths\":{\"ROOT\":[" +
+            "{\"type\":\"const\", \"value\":\"root\"}," +
+            "{\"type\":\"value\", \"key\":\"a\"}," +
+            "{\"type\":\"value\", \"key\":\"b\", \"data\":{\"uniq\":{\"type\":\"count\", \"key\":\"c\"}}}" +
+            "]}}";
+
+    @Param({"100000"})
+    int bundles;
+
+    /**
+     * Number of distinct values of each field.
+     */
+    @Param({"1000"})
+    int cardinality;
+
+    @Param({"0"})
+    long seed;
+
+    private File dir;
+    private TreeMapper mapper;
+    private Bundle[] input;
+
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        dir = Files.createTempDir();
+        mapper = CodecJSON.decodeString(new TreeMapper(), CONFIG);
+        mapper.open(new TaskRunConfig(0, 1, null, dir.getPath()));
+        input = BenchmarkData.bundles(mapper, seed, bundles, cardinality);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        Files.deleteDir(dir);
+    }
+
+    @Benchmark
+    public void ingest() {
+        for (Bundle bundle : input) {
+            mapper.send(bundle);
+        }
+        mapper.sendComplete();
+    }
+}
@@ -33,6 +33,7 @@ import com.addthis.bundle.table.DataTableFactory;
 import com.addthis.hydra.data.query.op.OpChangePoints;
 import com.addthis.hydra.data.query.op.OpCompare;
 import com.addthis.hydra.data.query.op.OpContains;
+import com.addthis.hydra.data.query.op.OpCountMinSketch;
 import com.addthis.hydra.data.query.op.OpDateFormat;
 import com.addthis.hydra.data.query.op.OpDePivot;
 import com.addthis.hydra.data.query.op.OpDiff;
@@ -64,6 +65,7 @@ import com.addthis.hydra.data.query.op.OpSeen;
 import com.addthis.hydra.data.query.op.OpSkip;
 import com.addthis.hydra.data.query.op.OpSleep;
 import com.addthis.hydra.data.query.op.OpString;
+import com.addthis.hydra.data.query.op.OpTDigest;
 import com.addthis.hydra.data.query.op.OpTitle;
 import com.addthis.hydra.data.query.op.OpTranspose;
 
@@ -101,6 +103,7 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
         AVG("avg"),
         BLOOM("bloom"),
         CHANGEPOINTS("changepoints"),
+        CMS("cms"),
         COMPARE("compare"),
         CONTAINS("contains"),
         COUNT("count"),
@@ -142,6 +145,7 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
         SORT("sort"),
         STRING("str"),
         SUM("sum"),
+        TDIGEST("tdigest"),
         TOP("top"),
         TITLE("title"),
         TRANSPOSE(new String[]{"trans", "t"});
@@ -228,6 +232,9 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
                     case CHANGEPOINTS:
                         appendOp(new OpChangePoints(this, args, queryStatusObserver));
                         break;
+                    case CMS:
+                        appendOp(new OpCountMinSketch(args, queryStatusObserver));
+                        break;
                     case COMPARE:
                         appendOp(new OpCompare(args));
                         break;
@@ -343,6 +350,9 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
                     case SUM:
                         appendOp(new OpRoll.SumOpRoll(args));
                         break;
+                    case TDIGEST:
+                        appendOp(new OpTDigest(args, queryStatusObserver));
+                        break;
                     case TITLE:
                         appendOp(new OpTitle(args));
                         break;
@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.op;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.util.BundleColumnBinder;
+import com.addthis.bundle.util.ValueUtil;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.hydra.data.query.AbstractRowOp;
+import com.addthis.hydra.data.query.QueryStatusObserver;
+import com.addthis.hydra.data.tree.prop.DataCountMinSketch;
+
+import com.clearspring.analytics.stream.frequency.CountMinSketch;
+
+/**
+ * <p>This query operation <span class="hydra-summary">estimates counts from merged count-min sketches</span>.
+ * <p/>
+ * <p>The syntax for the operation is cms=[sketch column],[key column],[top]. The sketch column
+ * holds the sketches of the {@link DataCountMinSketch count.min.sketch} attachment. The key
+ * column is optional and holds the keys whose counts are estimated. Without a key column the
+ * keys are those of the "est(x)" values of the attachment. The sketches are merged as rows
+ * arrive, so memory is bounded by the size of the sketches and the number of distinct keys
+ * and not by the number of rows. Each sketch must appear in one row only or its counts are
+ * added more than once. The result of this operation is a table with two columns. Column 0
+ * has the keys and column 1 has the estimated counts of the merged sketch, ordered from the
+ * largest count. If top is greater than zero then only the top keys are returned. Without
+ * any keys the result is a single row and column with the total of the merged sketch.</p>
+ *
+ * <p>Example:</p>
+ * <pre>
+ * /service/+:+hits$+idcount=est(foo)
+ *
+ * cms=2
+ * </pre>
+ *
+ * @user-reference
+ * @hydra-name cms
+ */
+public class OpCountMinSketch extends AbstractRowOp {
+
+    /**
+     * number of sketches that are merged at once
+     */
+    private static final int BATCH = 32;
+
+    private final int sketchColumn;
+    private final int keyColumn;
+    private final int top;
+    private final QueryStatusObserver queryStatusObserver;
+
+    private final List<CountMinSketch> pending = new ArrayList<>(BATCH + 1);
+    private final Set<String> keys = new LinkedHashSet<>();
+    private BundleColumnBinder binder;
+    private Bundle rowFactory;
+
+    /**
+     * usage: sketch column, key column, top
+     * <p/>
+     * sketch column defines the column source for the sketches
+     * key column defines the column source for the keys or -1 for none
+     * top limits the number of keys returned if greater than zero
+     *
+     * @param args
+     */
+    public OpCountMinSketch(String args, QueryStatusObserver queryStatusObserver) {
+        this.queryStatusObserver = queryStatusObserver;
+        int v[] = csvToInts(args);
+        if (v.length < 1) {
+            throw new RuntimeException("missing required column");
+        }
+        sketchColumn = v[0];
+        keyColumn = v.length > 1 ? v[1] : -1;
+        top = v.length > 2 ? v[2] : 0;
+    }
+
+    @Override
+    public Bundle rowOp(Bundle row) {
+        if (binder == null) {
+            binder = getSourceColumnBinder(row);
+            rowFactory = row.createBundle();
+        }
+        ValueObject value = binder.getColumn(row, sketchColumn);
+        if (value instanceof DataCountMinSketch.CMSValue) {
+            DataCountMinSketch.CMSValue cms = (DataCountMinSketch.CMSValue) value;
+            if (keyColumn < 0 && cms.getItem() != null) {
+                keys.add(cms.getItem());
+            }
+            pending.add(cms.getSketch());
+            if (pending.size() > BATCH) {
+                CountMinSketch merged = merge();
+                pending.clear();
+                pending.add(merged);
+            }
+        }
+        if (keyColumn >= 0) {
+            String key = ValueUtil.asNativeString(binder.getColumn(row, keyColumn));
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        return null;
+    }
+
+    private CountMinSketch merge() {
+        try {
+            return CountMinSketch.merge(pending.toArray(new CountMinSketch[pending.size()]));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void sendComplete() {
+        if (!pending.isEmpty()) {
+            CountMinSketch merged = merge();
+            if (keys.isEmpty()) {
+                Bundle row = rowFactory.createBundle();
+                binder.appendColumn(row, ValueFactory.create(merged.size()));
+                getNext().send(row);
+            } else {
+                List<Map.Entry<String, Long>> estimates = new ArrayList<>(keys.size());
+                for (String key : keys) {
+                    estimates.add(new AbstractMap.SimpleImmutableEntry<>(key, merged.estimateCount(key)));
+                }
+                Collections.sort(estimates, new Comparator<Map.Entry<String, Long>>() {
+                    @Override
+                    public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                        return Long.compare(b.getValue(), a.getValue());
+                    }
+                });
+                int limit = top > 0 ? Math.min(top, estimates.size()) : estimates.size();
+                for (int i = 0; i < limit; i++) {
+                    if (queryStatusObserver.queryCompleted || queryStatusObserver.queryCancelled) {
+                        break;
+                    }
+                    Bundle row = rowFactory.createBundle();
+                    binder.appendColumn(row, ValueFactory.create(estimates.get(i).getKey()));
+                    binder.appendColumn(row, ValueFactory.create(estimates.get(i).getValue()));
+                    getNext().send(row);
+                }
+            }
+        }
+        super.sendComplete();
+    }
+}
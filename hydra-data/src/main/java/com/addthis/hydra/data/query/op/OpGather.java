@@ -67,6 +67,7 @@ import org.apache.commons.lang3.ArrayUtils;
  * <li>s - generate sum values for this column</li>
  * <li>j - append all values for this column using "," as a separator</li>
  * <li>p - packs repeating values (not sure this does anything)</li>
+ * <li>c - merge the sketches of this column and generate the estimate of the merged sketch</li>
  * </ul>
  * <p/>
  * <p>Key columns are specified using the "k" parameter. If two or more columns are
@@ -89,6 +90,17 @@ import org.apache.commons.lang3.ArrayUtils;
  * A 9
  * B 2
  * </pre>
+ * <p/>
+ * <p>Estimates of sketches on different tasks can not be summed. The "c" parameter
+ * expects the sketches returned by the {@link com.addthis.hydra.data.tree.prop.DataCounting count},
+ * {@link com.addthis.hydra.data.tree.prop.DataTDigest tdigest} or
+ * {@link com.addthis.hydra.data.tree.prop.DataCountMinSketch count.min.sketch} attachments,
+ * for example with "$+ips=sketch", and merges them before estimating. Values seen by more
+ * than one task or more than one row are then counted once and quantiles are those of
+ * all the values.</p>
+ * <pre>
+ * gather=kc
+ * </pre>
  *
  * @user-reference
  * @hydra-name gather
@@ -96,7 +108,7 @@ import org.apache.commons.lang3.ArrayUtils;
 public class OpGather extends AbstractQueryOp {
 
     private enum MergeOp {
-        KEY, SUM, AVG, MIN, MAX, PACK, LAST, DIFF, JOIN
+        KEY, SUM, AVG, MIN, MAX, PACK, LAST, DIFF, JOIN, SKETCH
     }
 
     public static ValueNumber num(ValueObject o) {
@@ -104,6 +116,17 @@ public class OpGather extends AbstractQueryOp {
         return num != null ? num : ZERO;
     }
 
+    /**
+     * Custom values such as sketches are returned as is
+     * so that their sum merges them.
+     */
+    private static ValueNumber sketch(ValueObject o) {
+        if (o.getObjectType() == ValueObject.TYPE.CUSTOM && o instanceof ValueNumber) {
+            return (ValueNumber) o;
+        }
+        return num(o);
+    }
+
     private Map<String, MergedRow> resultTable = new HashMap<>();
     private final ListBundleFormat format = new ListBundleFormat();
     private final BundleMapConf<MergeOp> conf[];
@@ -158,6 +181,10 @@ public class OpGather extends AbstractQueryOp {
                 case 'a':
                     op = MergeOp.AVG;
                     break;
+                // merge sketches
+                case 'c':
+                    op = MergeOp.SKETCH;
+                    break;
                 // diff/subtract value
                 case 'd':
                     op = MergeOp.DIFF;
@@ -381,6 +408,9 @@ public class OpGather extends AbstractQueryOp {
                     case JOIN:
                         mergedRow[i] = ValueFactory.create(mergedRow[i].toString().concat(",").concat(lval.toString()));
                         break;
+                    case SKETCH:
+                        mergedRow[i] = sketch(mergedRow[i]).sum(sketch(lval));
+                        break;
                 }
             }
             merged++;
@@ -412,6 +442,9 @@ public class OpGather extends AbstractQueryOp {
                     case JOIN:
                         nl.setValue(mc.getTo(), lval);
                         break;
+                    case SKETCH:
+                        nl.setValue(mc.getTo(), lval != null ? sketch(lval).asSimple() : null);
+                        break;
                 }
             }
             if (mergeCount) {
@@ -19,19 +19,27 @@ import com.addthis.bundle.table.DataTableFactory;
 import com.addthis.bundle.util.BundleColumnBinder;
 import com.addthis.bundle.util.ValueUtil;
 import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueObject;
 import com.addthis.hydra.data.query.AbstractTableOp;
 import com.addthis.hydra.data.query.QueryStatusObserver;
+import com.addthis.hydra.data.tree.prop.DataPercentileHistogram;
 import com.addthis.hydra.data.util.KeyPercentileDistribution;
+import com.addthis.hydra.data.util.LogLinearHistogram;
 
 import com.yammer.metrics.stats.Snapshot;
 
 /**
  * <p>This query operation <span class="hydra-summary">calculates the percentile distribution of a column</span>.
  * <p/>
- * <p>The syntax for the operation is distribution=[column number],[sample size]. The sample
+ * <p>The syntax for the operation is distribution=[column number],[sample size],[precision]. The sample
  * size is optional and the default sample size is 1028. The result of this operation is a table
  * with two columns. Column 0 has percentile distributions and column 1 has the counts for
  * those percentile distributions.</p>
+ * <p>A sample size of 0 counts every value in a log-linear histogram instead of a sample,
+ * with percentiles within 2^-precision of the true values. The precision is optional and
+ * the default is 5. If the column holds percentiles of the
+ * {@link DataPercentileHistogram percentiles} attachment then their histograms are merged
+ * and the sample size is ignored.</p>
  *
  * @user-reference
  * @hydra-name distribution
@@ -40,12 +48,14 @@ public class OpPercentileDistribution extends AbstractTableOp {
 
     private final int sampleSize;
     private final int column;
+    private final int precision;
 
     /**
      * usage: column, sampleSize
      * <p/>
      * column defines the column source for the percentile value
      * sampleSize determines the size of the sample set to use when calculating percentiles
+     * precision is the precision of the histogram when sampleSize is zero
      *
      * @param tableFactory
      * @param args
@@ -58,12 +68,17 @@ public class OpPercentileDistribution extends AbstractTableOp {
         }
         column = v[0];
         sampleSize = v.length > 1 ? v[1] : 1028;
+        precision = v.length > 2 ? v[2] : 5;
     }
 
     @Override
     public DataTable tableOp(DataTable result) {
-        KeyPercentileDistribution histo = new KeyPercentileDistribution().setSampleSize(sampleSize).init();
         BundleColumnBinder binder = getSourceColumnBinder(result);
+        if (sampleSize == 0 || (result.size() > 0 &&
+                                binder.getColumn(result.get(0), column) instanceof DataPercentileHistogram.HistogramValue)) {
+            return histogramOp(result, binder);
+        }
+        KeyPercentileDistribution histo = new KeyPercentileDistribution().setSampleSize(sampleSize).init();
         // build histogram
         for (Bundle row : result) {
             long ev = ValueUtil.asNumberOrParse(binder.getColumn(row, column)).asLong().getLong();
@@ -82,6 +97,26 @@ public class OpPercentileDistribution extends AbstractTableOp {
         return resultTable;
     }
 
+    private DataTable histogramOp(DataTable result, BundleColumnBinder binder) {
+        LogLinearHistogram histogram = new LogLinearHistogram(precision);
+        for (Bundle row : result) {
+            ValueObject value = binder.getColumn(row, column);
+            if (value instanceof DataPercentileHistogram.HistogramValue) {
+                histogram.merge(((DataPercentileHistogram.HistogramValue) value).getHistogram());
+            } else {
+                histogram.record(ValueUtil.asNumberOrParse(value).asLong().getLong());
+            }
+        }
+        DataTable resultTable = createTable(6);
+        bindColumn(binder, resultTable, ".5", histogram.getQuantile(.5));
+        bindColumn(binder, resultTable, ".75", histogram.getQuantile(.75));
+        bindColumn(binder, resultTable, ".95", histogram.getQuantile(.95));
+        bindColumn(binder, resultTable, ".98", histogram.getQuantile(.98));
+        bindColumn(binder, resultTable, ".99", histogram.getQuantile(.99));
+        bindColumn(binder, resultTable, ".999", histogram.getQuantile(.999));
+        return resultTable;
+    }
+
     private void bindColumn(BundleColumnBinder binder, DataTable resultTable, String column, double value) {
         Bundle bundle = resultTable.createBundle();
         binder.appendColumn(bundle, ValueFactory.create(column));
@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.op;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.util.BundleColumnBinder;
+import com.addthis.bundle.util.ValueUtil;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueNumber;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.hydra.data.query.AbstractRowOp;
+import com.addthis.hydra.data.query.QueryStatusObserver;
+import com.addthis.hydra.data.tree.prop.DataTDigest;
+
+import com.clearspring.analytics.stream.quantile.TDigest;
+
+/**
+ * <p>This query operation <span class="hydra-summary">calculates quantiles of merged t-digests</span>.
+ * <p/>
+ * <p>The syntax for the operation is tdigest=[column number],[compression]. The column holds
+ * the digests of the {@link DataTDigest tdigest} attachment or numbers, which are added to
+ * a digest. The compression is optional and the default is 100. The digests are merged
+ * as rows arrive, so memory is bounded by the size of the digests and not by the number
+ * of rows. The result of this operation is a table with two columns. Column 0 has the
+ * quantiles and column 1 has the values of the merged digest at those quantiles.</p>
+ *
+ * @user-reference
+ * @hydra-name tdigest
+ */
+public class OpTDigest extends AbstractRowOp {
+
+    /**
+     * number of digests that are merged at once
+     */
+    private static final int BATCH = 32;
+
+    private static final double[] QUANTILES = {.5, .75, .95, .98, .99, .999};
+
+    private final int column;
+    private final int compression;
+    private final QueryStatusObserver queryStatusObserver;
+
+    private final List<TDigest> pending = new ArrayList<>(BATCH + 1);
+    private TDigest values;
+    private BundleColumnBinder binder;
+    private Bundle rowFactory;
+
+    /**
+     * usage: column, compression
+     * <p/>
+     * column defines the column source for the digests
+     * compression is the compression of the merged digest
+     *
+     * @param args
+     */
+    public OpTDigest(String args, QueryStatusObserver queryStatusObserver) {
+        this.queryStatusObserver = queryStatusObserver;
+        int v[] = csvToInts(args);
+        if (v.length < 1) {
+            throw new RuntimeException("missing required column");
+        }
+        column = v[0];
+        compression = v.length > 1 ? v[1] : 100;
+    }
+
+    @Override
+    public Bundle rowOp(Bundle row) {
+        if (binder == null) {
+            binder = getSourceColumnBinder(row);
+            rowFactory = row.createBundle();
+        }
+        ValueObject value = binder.getColumn(row, column);
+        if (value instanceof DataTDigest.TDigestValue) {
+            pending.add(((DataTDigest.TDigestValue) value).getDigest());
+            if (pending.size() > BATCH) {
+                TDigest merged = TDigest.merge(compression, pending);
+                pending.clear();
+                pending.add(merged);
+            }
+        } else if (value != null) {
+            ValueNumber num = ValueUtil.asNumberOrParseDouble(value);
+            if (num != null) {
+                if (values == null) {
+                    values = new TDigest(compression);
+                }
+                values.add(num.asDouble().getDouble());
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void sendComplete() {
+        if (values != null) {
+            pending.add(values);
+        }
+        if (!pending.isEmpty()) {
+            TDigest merged = TDigest.merge(compression, pending);
+            for (double quantile : QUANTILES) {
+                if (queryStatusObserver.queryCompleted || queryStatusObserver.queryCancelled) {
+                    break;
+                }
+                Bundle row = rowFactory.createBundle();
+                binder.appendColumn(row, ValueFactory.create(quantile));
+                binder.appendColumn(row, ValueFactory.create(merged.quantile(quantile)));
+                getNext().send(row);
+            }
+        }
+        super.sendComplete();
+    }
+}
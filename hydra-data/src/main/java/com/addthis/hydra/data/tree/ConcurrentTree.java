@@ -22,8 +22,11 @@ import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
@@ -47,8 +50,10 @@ import com.addthis.hydra.store.db.DBKey;
 import com.addthis.hydra.store.db.IPageDB;
 import com.addthis.hydra.store.db.IPageDB.Range;
 import com.addthis.hydra.store.db.PageDB;
+import com.addthis.hydra.store.db.ShardedPageDB;
 import com.addthis.hydra.store.kv.PagedKeyValueStore;
 import com.addthis.hydra.store.skiplist.SkipListCache;
+import com.addthis.hydra.store.util.EvictionPolicy;
 import com.addthis.hydra.store.util.MeterFileLogger;
 import com.addthis.hydra.store.util.MeterFileLogger.MeterDataSource;
 import com.addthis.hydra.store.util.NamedThreadFactory;
@@ -82,6 +87,42 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
 
     static final boolean trashDebug = Parameter.boolValue("hydra.tree.trash.debug", false);
 
+    // eviction policy of the node cache, either "lru" or "tinylfu"
+    @Configuration.Parameter
+    static String defaultCachePolicy = Parameter.value("hydra.tree.cache.policy", EvictionPolicy.LRU);
+
+    // store the fixed fields of new trees in columns in front of the data attachments
+    @Configuration.Parameter
+    static boolean defaultColumnar = Parameter.boolValue("hydra.tree.columnar", false);
+
+    // number of threads that write evicted nodes to the backing store, or zero to write on eviction
+    @Configuration.Parameter
+    static int defaultWriteBehindThreads = Parameter.intValue("hydra.tree.writebehind.threads", 0);
+
+    // maximum number of evicted nodes waiting to be written before evictions block
+    @Configuration.Parameter
+    static int writeBehindMaxPending = Parameter.intValue("hydra.tree.writebehind.max", 10000);
+
+    // maximum number of evicted nodes taken from the queue by a write behind thread at once
+    @Configuration.Parameter
+    static int writeBehindBatchSize = Parameter.intValue("hydra.tree.writebehind.batch", 100);
+
+    // number of independent page databases that store the nodes of new trees, or zero for one database
+    @Configuration.Parameter
+    static int defaultShards = Parameter.intValue("hydra.tree.shards", 0);
+
+    // milliseconds between checkpoints of the tree, or zero to only write checkpoints on request
+    @Configuration.Parameter
+    static int defaultCheckpointInterval = Parameter.intValue("hydra.tree.checkpoint.interval", 0);
+
+    // number of complete checkpoints that are kept
+    @Configuration.Parameter
+    static int checkpointRetain = Parameter.intValue("hydra.tree.checkpoint.retain", 2);
+
+    // milliseconds that an older checkpoint is kept for readers after the next checkpoint is complete
+    @Configuration.Parameter
+    static long checkpointGrace = Parameter.longValue("hydra.tree.checkpoint.grace", 60000);
+
     private static final AtomicInteger scopeGenerator = new AtomicInteger();
 
     private final String scope = "ConcurrentTree" + Integer.toString(scopeGenerator.getAndIncrement());
@@ -106,7 +147,11 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
     private final AtomicDouble cacheHitRate = new AtomicDouble(0.0);
     private final boolean meterLoggerEnabled = true;
     private final MediatedEvictionConcurrentHashMap<CacheKey, ConcurrentTreeNode> cache;
+    private final EvictionPolicy cachePolicy;
     private final ScheduledExecutorService deletionThreadPool;
+    private final TreeWriteBehind writeBehind;
+    private final ScheduledExecutorService checkpointThread;
+    private final Object checkpointLock = new Object();
 
     @GuardedBy("treeTrashNode")
     private Range<DBKey, ConcurrentTreeNode> trashIterator;
@@ -131,6 +176,36 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
                 }
             });
 
+    @SuppressWarnings("unused")
+    final Gauge<Integer> writeBehindPending = Metrics.newGauge(SkipListCache.class,
+            "writeBehindPending", scope,
+            new Gauge<Integer>() {
+                @Override
+                public Integer value() {
+                    return writeBehind == null ? -1 : writeBehind.getPendingCount();
+                }
+            });
+
+    @SuppressWarnings("unused")
+    final Gauge<String> nodeCachePolicy = Metrics.newGauge(SkipListCache.class,
+            "nodeCachePolicy", scope,
+            new Gauge<String>() {
+                @Override
+                public String value() {
+                    return cachePolicy == null ? "" : cachePolicy.name();
+                }
+            });
+
+    @SuppressWarnings("unused")
+    final Gauge<Double> nodeCacheHitRate = Metrics.newGauge(SkipListCache.class,
+            "nodeCacheHitRate", scope,
+            new Gauge<Double>() {
+                @Override
+                public Double value() {
+                    return cachePolicy == null ? 0.0 : cachePolicy.hitRate();
+                }
+            });
+
 
     /**
      * convert meter enums to sensible short names for reporting
@@ -155,6 +230,9 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
         protected int cleanQSize = TreeCommonParameters.cleanQMax;
         protected int maxCache = TreeCommonParameters.maxCacheSize;
         protected int maxPageSize = TreeCommonParameters.maxPageSize;
+        protected int writeBehindThreads = defaultWriteBehindThreads;
+        protected int shards = defaultShards;
+        protected int checkpointInterval = defaultCheckpointInterval;
 
         public Builder(File root, boolean readonly) {
             this.root = root;
@@ -186,16 +264,39 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
             return this;
         }
 
+        public Builder writeBehindThreads(int val) {
+            writeBehindThreads = val;
+            return this;
+        }
+
+        /**
+         * Partition the nodes of a new tree across this many page databases
+         * by the node db of their parent. Existing trees keep their layout.
+         */
+        public Builder shards(int val) {
+            shards = val;
+            return this;
+        }
+
+        /**
+         * Write a checkpoint of the tree every {@code val} milliseconds.
+         */
+        public Builder checkpointInterval(int val) {
+            checkpointInterval = val;
+            return this;
+        }
+
         public ConcurrentTree build() throws Exception {
-            return new ConcurrentTree(root, readonly,
-                    numDeletionThreads, kvStoreType, cleanQSize, maxCache, maxPageSize);
+            return new ConcurrentTree(root, readonly, numDeletionThreads, kvStoreType,
+                    cleanQSize, maxCache, maxPageSize, writeBehindThreads, shards, checkpointInterval);
         }
 
     }
 
     private ConcurrentTree(File root, boolean readonly,
             int numDeletionThreads, int kvStoreType,
-            int cleanQSize, int maxCacheSize, int maxPageSize) throws Exception {
+            int cleanQSize, int maxCacheSize, int maxPageSize, int writeBehindThreads,
+            int shards, int checkpointInterval) throws Exception {
         //Only attempt mkdirs if we are not readonly. Theoretically should not be needed, but guarding here
         // prevent logic leak created by transient file detection issues. Regardless, while in readonly, we should
         // certainly not be attempting to create directories.
@@ -218,12 +319,25 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
         } else {
             logger = null;
         }
-        source = new PageDB.Builder<>(root, ConcurrentTreeNode.class, maxPageSize, maxCacheSize)
-                .readonly(readonly).kvStoreType(kvStoreType).build();
+        // a tree that already has an unsharded database keeps it
+        if (ShardedPageDB.shardCount(root) > 0 || (shards > 0 && !new File(root, "db.type").exists())) {
+            source = new ShardedPageDB<>(root, ConcurrentTreeNode.class, maxPageSize, maxCacheSize,
+                    kvStoreType, readonly, defaultColumnar, shards);
+        } else {
+            source = new PageDB.Builder<>(root, ConcurrentTreeNode.class, maxPageSize, maxCacheSize)
+                    .readonly(readonly).kvStoreType(kvStoreType).columnar(defaultColumnar).build();
+        }
         source.setCacheMem(TreeCommonParameters.maxCacheMem);
         source.setPageMem(TreeCommonParameters.maxPageMem);
         source.setMemSampleInterval(TreeCommonParameters.memSample);
+        if (!readonly && writeBehindThreads > 0) {
+            writeBehind = new TreeWriteBehind(source, scope, writeBehindThreads,
+                    writeBehindMaxPending, writeBehindBatchSize);
+        } else {
+            writeBehind = null;
+        }
         // create cache
+        cachePolicy = EvictionPolicy.create(defaultCachePolicy, cleanQSize);
         cache = new MediatedEvictionConcurrentHashMap.
                 Builder<CacheKey, ConcurrentTreeNode>().
                 mediator(new CacheMediator()).
@@ -246,6 +360,7 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
             }
             treeTrashNode = null;
             deletionThreadPool = null;
+            checkpointThread = null;
         } else {
             treeRootNode = (ConcurrentTreeNode) dummyRoot.getOrCreateEditableNode("root");
             treeTrashNode = (ConcurrentTreeNode) dummyRoot.getOrCreateEditableNode("trash");
@@ -259,6 +374,23 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
                         deletionThreadSleepMillis,
                         TimeUnit.MILLISECONDS);
             }
+
+            if (checkpointInterval > 0) {
+                checkpointThread = Executors.newSingleThreadScheduledExecutor(
+                        new NamedThreadFactory(scope + "-checkpoint-", true));
+                checkpointThread.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            checkpoint();
+                        } catch (Exception ex) {
+                            log.warn("Uncaught exception in concurrent tree checkpoint thread", ex);
+                        }
+                    }
+                }, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+            } else {
+                checkpointThread = null;
+            }
         }
 
         long openTime = System.currentTimeMillis() - start;
@@ -271,18 +403,26 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
     public ConcurrentTree(File root, boolean readonly) throws Exception {
         this(root, readonly, defaultNumDeletionThreads,
                 defaultKeyValueStoreType, TreeCommonParameters.cleanQMax,
-                TreeCommonParameters.maxCacheSize, TreeCommonParameters.maxPageSize);
+                TreeCommonParameters.maxCacheSize, TreeCommonParameters.maxPageSize,
+                defaultWriteBehindThreads, defaultShards, defaultCheckpointInterval);
     }
 
     private class CacheMediator implements EvictionMediator<CacheKey, ConcurrentTreeNode> {
 
         @Override
         public boolean onEviction(CacheKey key, ConcurrentTreeNode value) {
+            if (!value.isDeleted() && !cachePolicy.confirmEviction(key)) {
+                return false;
+            }
             boolean evict = value.trySetEviction();
             if (evict) {
                 try {
                     if (!value.isDeleted() && value.isChanged()) {
-                        source.put(key.dbkey(), value);
+                        if (writeBehind != null) {
+                            writeBehind.add(key.dbkey(), value);
+                        } else {
+                            source.put(key.dbkey(), value);
+                        }
                     }
                 } finally {
                     value.evictionComplete();
@@ -342,10 +482,15 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
                     cache.remove(key, node);
                 } else if (setLease(node, lease)) {
                     reportCacheHit();
+                    cachePolicy.recordAccess(key);
                     return node; // (1)
                 }
             } else {// (2)
+                if (writeBehind != null && writeBehind.reclaim(dbkey, key, cache)) {
+                    continue;
+                }
                 reportCacheMiss();
+                cachePolicy.recordMiss(key);
                 node = source.get(dbkey);
 
                 if (node == null) {
@@ -384,10 +529,15 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
                     cache.remove(key, node);
                 } else if (setLease(node, true)) {
                     reportCacheHit();
+                    cachePolicy.recordAccess(key);
                     return node;
                 }
             } else {
+                if (writeBehind != null && writeBehind.reclaim(dbkey, key, cache)) {
+                    continue;
+                }
                 reportCacheMiss();
+                cachePolicy.recordMiss(key);
                 node = source.get(dbkey);
 
                 if (node != null) {
@@ -468,7 +618,7 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
         assert (!node.isAlias());
         int nodeDB = treeTrashNode.nodeDB();
         int next = treeTrashNode.incrementNodeCount();
-        DBKey key = new DBKey(nodeDB, Raw.get(Bytes.toBytes(next)));
+        DBKey key = new DBKey(nodeDB, Bytes.toBytes(next));
         source.put(key, node);
         if (log.isTraceEnabled()) log.trace("[trash.mark] " + next + " --> " + treeTrashNode);
     }
@@ -534,10 +684,31 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
                 source.put(node.dbkey, node);
             }
         }
+        if (writeBehind != null) {
+            writeBehind.flush();
+        }
         log.debug("[sync] end nextdb={}", nextDBID);
         Files.write(idFile, Bytes.toBytes(nextDBID.toString()), false);
     }
 
+    /**
+     * Write the changed nodes and pages and then a checkpoint of the
+     * tree that can be opened with {@link ReadTree#openCheckpoint(File)}.
+     * Updates that run concurrently with the checkpoint may or may not
+     * be included. See {@link TreeCheckpoint}.
+     *
+     * @return directory of the checkpoint
+     */
+    public File checkpoint() throws IOException {
+        if (isReadOnly()) {
+            throw new IllegalStateException("cannot checkpoint a readonly tree");
+        }
+        synchronized (checkpointLock) {
+            sync();
+            return TreeCheckpoint.write(root, source, new File[]{idFile}, checkpointRetain, checkpointGrace);
+        }
+    }
+
     @Override
     public int getDBCount() {
         return nextDBID.get();
@@ -572,6 +743,14 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
             log.debug("closing " + this);
         }
         if (!isReadOnly()) {
+            if (checkpointThread != null) {
+                checkpointThread.shutdown();
+                try {
+                    checkpointThread.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
             try {
                 waitOnDeletions();
             } catch (Exception e) {
@@ -593,6 +772,9 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
             } catch (Exception e) {
                 log.warn("", e);
             }
+            if (writeBehind != null) {
+                writeBehind.close();
+            }
         }
         if (source != null) {
             try {
@@ -655,7 +837,7 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
 
         protected DBKey dbkey() {
             if (dbkey == null) {
-                dbkey = new DBKey(db, Raw.get(name));
+                dbkey = new DBKey(db, name);
             }
             return dbkey;
         }
@@ -816,36 +998,70 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
 
     /**
      * Recursively delete all the children of the input node.
+     * The children of each node are deleted with a single range deletion
+     * on the backing store. Each level is only traversed to find the
+     * children that have their own children, and the traversal is
+     * complete before descending to the next level.
      *
      * @param rootNode
      */
     void deleteSubTree(ConcurrentTreeNode rootNode) {
-        int nodeDB = rootNode.nodeDB();
+        deleteNodeDB(rootNode.nodeDB());
+    }
+
+    private void deleteNodeDB(int nodeDB) {
+        List<Integer> children = new ArrayList<>();
+        /* Nodes that are waiting to be written may not be in the backing store yet. */
+        Map<DBKey, ConcurrentTreeNode> discarded = Collections.emptyMap();
+        if (writeBehind != null) {
+            discarded = writeBehind.discard(new DBKey(nodeDB), new DBKey(nodeDB + 1));
+        }
         Range<DBKey, ConcurrentTreeNode> range = fetchNodeRange(nodeDB);
         try {
             while (range.hasNext()) {
                 Map.Entry<DBKey, ConcurrentTreeNode> entry = range.next();
-                ConcurrentTreeNode next = entry.getValue();
-
-                if (next.hasNodes() && !next.isAlias()) {
-                    deleteSubTree(next);
+                ConcurrentTreeNode next = discarded.remove(entry.getKey());
+                if (next == null && writeBehind != null) {
+                    next = writeBehind.discard(entry.getKey());
                 }
-                String name = entry.getKey().rawKey().toString();
-                CacheKey key = new CacheKey(nodeDB, name);
-                ConcurrentTreeNode cacheNode = cache.remove(key);
-                /* Mark the node as deleted so that it will not be
-                 * pushed to disk when removed from the eviction queue.
-                 */
-                if (cacheNode != null) {
-                    cacheNode.markDeleted();
+                if (next == null) {
+                    next = entry.getValue();
                 }
+                deleteNode(nodeDB, entry.getKey(), next, children);
             }
         } finally {
             range.close();
         }
+        for (Map.Entry<DBKey, ConcurrentTreeNode> entry : discarded.entrySet()) {
+            deleteNode(nodeDB, entry.getKey(), entry.getValue(), children);
+        }
+        for (Integer child : children) {
+            deleteNodeDB(child);
+        }
         source.remove(new DBKey(nodeDB), new DBKey(nodeDB + 1), false);
     }
 
+    /**
+     * Remove a node of a deleted range from the cache and add
+     * the node database of its children to {@code children}.
+     */
+    private void deleteNode(int nodeDB, DBKey dbkey, ConcurrentTreeNode next, List<Integer> children) {
+        String name = dbkey.rawKey().toString();
+        CacheKey key = new CacheKey(nodeDB, name);
+        ConcurrentTreeNode cacheNode = cache.remove(key);
+        /* Mark the node as deleted so that it will not be
+         * pushed to disk when removed from the eviction queue.
+         */
+        if (cacheNode != null) {
+            cacheNode.markDeleted();
+            next = cacheNode;
+        }
+        Integer childDB = next.nodeDB();
+        if (childDB != null && next.hasNodes() && !next.isAlias()) {
+            children.add(childDB);
+        }
+    }
+
     private Map.Entry<DBKey, ConcurrentTreeNode> nextTrashNode() {
         synchronized (treeTrashNode) {
             if (trashIterator == null) {
@@ -934,7 +1150,17 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
     }
 
     void repairIntegrity() {
-        PagedKeyValueStore store = source.getEps();
+        if (source instanceof ShardedPageDB) {
+            ShardedPageDB<ConcurrentTreeNode> sharded = (ShardedPageDB<ConcurrentTreeNode>) source;
+            for (int i = 0; i < sharded.getShardCount(); i++) {
+                repairIntegrity(sharded.getShard(i).getEps());
+            }
+        } else {
+            repairIntegrity(source.getEps());
+        }
+    }
+
+    private static void repairIntegrity(PagedKeyValueStore store) {
         if (store instanceof SkipListCache) {
             ((SkipListCache) store).testIntegrity(true);
         }
@@ -21,21 +21,22 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.addthis.basis.util.ClosableIterator;
 import com.addthis.basis.util.MemoryCounter.Mem;
+import com.addthis.basis.util.Parameter;
 
 import com.addthis.codec.Codec;
+import com.addthis.hydra.store.db.ColumnarValue;
 import com.addthis.hydra.store.db.DBKey;
 import com.addthis.hydra.store.db.IPageDB.Range;
 
 
 /**
- * Each instance has an AtomicInteger 'lease' that records the current
+ * Each instance has a 'lease' that records the current
  * activity of a node. Values of lease signify the following behavior:
  *
  * N (for N > 0) : There are N threads that may be modifying the node. The node is active.
@@ -48,11 +49,39 @@ import com.addthis.hydra.store.db.IPageDB.Range;
  * can be deleted (yes it is counterintuitive but for legacy purposes
  * deleting nodes is a higher priority operation that modifying nodes).
  *
+ * The lease and the changed and decoded flags are packed into a single
+ * int so that a cached node does not carry any atomic or lock objects.
+ * The encoding locks of nodes are taken from a shared pool of striped
+ * read/write locks. Two nodes may share a lock, which preserves the
+ * invariant that a thread never holds the encoding locks of two nodes.
  */
-public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Codec.ConcurrentCodable {
+public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Codec.ConcurrentCodable, ColumnarValue {
 
     public static final int ALIAS = 1 << 1;
 
+    /**
+     * Number of encoding locks shared by all nodes. Rounded up to a power of two.
+     */
+    private static final int lockStripes = Parameter.intValue("hydra.tree.node.locks", 4096);
+
+    private static final ReadWriteLock[] locks;
+
+    static {
+        int size = Integer.highestOneBit(Math.max(1, lockStripes) - 1) << 1;
+        locks = new ReadWriteLock[Math.max(1, size)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    private static final AtomicIntegerFieldUpdater<ConcurrentTreeNode> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(ConcurrentTreeNode.class, "state");
+
+    private static final int LEASE_BITS = 24;
+    private static final int LEASE_MASK = (1 << LEASE_BITS) - 1;
+    private static final int CHANGED = 1 << LEASE_BITS;
+    private static final int DECODED = 1 << (LEASE_BITS + 1);
+
     public static ConcurrentTreeNode getTreeRoot(ConcurrentTree tree) {
         ConcurrentTreeNode node = new ConcurrentTreeNode() {
             @Override
@@ -61,7 +90,7 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
             }
         };
         node.tree = tree;
-        node.leases.incrementAndGet();
+        node.state = 1;
         node.nodedb = 1;
         return node;
     }
@@ -73,13 +102,13 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
     }
 
     protected void initIfDecoded(ConcurrentTree tree, DBKey key, String name) {
-        if (decoded.get()) {
-            synchronized (initLock) {
-                if (initOnce.compareAndSet(false, true)) {
+        if ((state & DECODED) != 0) {
+            synchronized (this) {
+                if ((state & DECODED) != 0) {
                     this.tree = tree;
                     this.dbkey = key;
                     this.name = name;
-                    decoded.set(false);
+                    clearFlag(DECODED);
                 }
             }
         }
@@ -105,16 +134,13 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
 
     @Mem(estimate = false, size = 64)
     private ConcurrentTree tree;
-    @Mem(estimate = false, size = 64)
-    private AtomicInteger leases = new AtomicInteger(0);
-    @Mem(estimate = false, size = 64)
-    private AtomicBoolean changed = new AtomicBoolean(false);
-    @Mem(estimate = false, size = 64)
-    private ReadWriteLock lock = new ReentrantReadWriteLock();
 
-    private AtomicBoolean decoded = new AtomicBoolean(false);
-    private AtomicBoolean initOnce = new AtomicBoolean(false);
-    private Object initLock = new Object();
+    /**
+     * The lease state in the low {@link #LEASE_BITS} bits as a signed
+     * value (see the class comment) and the {@link #CHANGED} and
+     * {@link #DECODED} flags in the high bits. Updated with {@link #STATE}.
+     */
+    private volatile int state;
 
     protected String name;
     protected DBKey dbkey;
@@ -134,13 +160,60 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
 
     public String toString() {
         return "TN[k=" + dbkey + ",db=" + nodedb + ",n#=" + nodes + ",h#=" + hits +
-               ",nm=" + name + ",le=" + leases + ",ch=" + changed + ",bi=" + bits + "]";
+               ",nm=" + name + ",le=" + leases(state) + ",ch=" + isChanged() + ",bi=" + bits + "]";
     }
 
     public String getName() {
         return name;
     }
 
+    private static int leases(int state) {
+        return (state << (32 - LEASE_BITS)) >> (32 - LEASE_BITS);
+    }
+
+    private static int withLeases(int state, int leases) {
+        return (state & ~LEASE_MASK) | (leases & LEASE_MASK);
+    }
+
+    /**
+     * Atomically change the lease from {@code expect} to {@code update}
+     * without modifying the flags.
+     */
+    private boolean casLeases(int expect, int update) {
+        while (true) {
+            int current = state;
+            if (leases(current) != expect) {
+                return false;
+            }
+            if (STATE.compareAndSet(this, current, withLeases(current, update))) {
+                return true;
+            }
+        }
+    }
+
+    private void setFlag(int flag) {
+        while (true) {
+            int current = state;
+            if ((current & flag) != 0 || STATE.compareAndSet(this, current, current | flag)) {
+                return;
+            }
+        }
+    }
+
+    private void clearFlag(int flag) {
+        while (true) {
+            int current = state;
+            if ((current & flag) == 0 || STATE.compareAndSet(this, current, current & ~flag)) {
+                return;
+            }
+        }
+    }
+
+    private ReadWriteLock lock() {
+        int hash = System.identityHashCode(this);
+        return locks[(hash ^ (hash >>> 16)) & (locks.length - 1)];
+    }
+
     @SuppressWarnings("unchecked")
     public Map<String, TreeNodeData> getDataMap() {
         return data;
@@ -151,7 +224,7 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
     }
 
     public int getLeaseCount() {
-        return leases.get();
+        return leases(state);
     }
 
     /**
@@ -169,7 +242,7 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
 
     protected synchronized int updateNodeCount(int delta) {
         nodes += delta;
-        changed.set(true);
+        setFlag(CHANGED);
         return nodes;
     }
 
@@ -178,7 +251,7 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
      * allows the editing of deleted nodes. So we're going to continue to support that behavior.
      */
     void requireEditable() {
-        int count = leases.get();
+        int count = leases(state);
         if (!(count == -2 || count > 0)) {
             throw new RuntimeException("fail editable requirement: lease state is " + count);
         }
@@ -193,21 +266,26 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
     }
 
     public boolean isDeleted() {
-        int count = leases.get();
+        int count = leases(state);
         return count == -2;
     }
 
     protected void markChanged() {
         requireEditable();
-        changed.set(true);
+        setFlag(CHANGED);
     }
 
     protected void markDeleted() {
-        leases.set(-2);
+        while (true) {
+            int current = state;
+            if (STATE.compareAndSet(this, current, withLeases(current, -2))) {
+                return;
+            }
+        }
     }
 
     protected void evictionComplete() {
-        leases.compareAndSet(-1, -3);
+        casLeases(-1, -3);
     }
 
     protected synchronized void markAlias() {
@@ -215,7 +293,7 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
     }
 
     protected boolean isChanged() {
-        return changed.get();
+        return (state & CHANGED) != 0;
     }
 
     private final void bitSet(int set) {
@@ -239,10 +317,10 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
      */
     void reactivate() {
         while(true) {
-            int count = leases.get();
-            if (count == -3 && leases.compareAndSet(-3, 0)) {
+            int count = leases(state);
+            if (count == -3 && casLeases(-3, 0)) {
                 return;
-            } else if (count == -1 && leases.compareAndSet(-1, 0)) {
+            } else if (count == -1 && casLeases(-1, 0)) {
                 return;
             } else if (count != -3 && count != -1) {
                 return;
@@ -259,11 +337,11 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
      */
     boolean tryLease() {
         while (true) {
-            int count = leases.get();
+            int count = leases(state);
             if (count < 0) {
                 return false;
             }
-            if (leases.compareAndSet(count, count + 1)) {
+            if (casLeases(count, count + 1)) {
                 return true;
             }
         }
@@ -279,13 +357,13 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
      */
     boolean trySetEviction() {
         while (true) {
-            int count = leases.get();
+            int count = leases(state);
             if (count == -2) {
                 return true;
             } else if (count != 0) {
                 return false;
             }
-            if (leases.compareAndSet(0, -1)) {
+            if (casLeases(0, -1)) {
                 return true;
             }
         }
@@ -297,11 +375,11 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
     @Override
     public void release() {
         while (true) {
-            int count = leases.get();
+            int count = leases(state);
             if (count <= 0) {
                 return;
             }
-            if (leases.compareAndSet(count, count - 1)) {
+            if (casLeases(count, count - 1)) {
                 return;
             }
         }
@@ -419,7 +497,7 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
         requireEditable();
         boolean updated = false;
         HashMap<String, TreeDataParameters> dataconf = path.dataConfig();
-        lock.writeLock().lock();
+        lock().writeLock().lock();
         try {
             if (path.countHits()) {
                 hits += state.getCountValue();
@@ -436,16 +514,16 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
                         data.put(el.getKey(), tnd);
                         updated = true;
                     }
-                    if (tnd.updateChildData(state, this, el.getValue())) {
+                    if (tnd.updateChildData(state, this, el.getValue(), state.getCountValue())) {
                         updated = true;
                     }
                 }
             }
         } finally {
-            lock.writeLock().unlock();
+            lock().writeLock().unlock();
         }
         if (updated) {
-            changed.set(true);
+            setFlag(CHANGED);
         }
     }
 
@@ -455,21 +533,21 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
     public void updateParentData(DataTreeNodeUpdater state, DataTreeNode child, boolean isnew) {
         requireEditable();
         List<TreeNodeDataDeferredOperation> deferredOps = null;
-        lock.writeLock().lock();
+        lock().writeLock().lock();
         try {
             if (child != null && data != null) {
                 deferredOps = new ArrayList<>(1);
                 for (TreeNodeData<?> tnd : data.values()) {
                     if (isnew && tnd.updateParentNewChild(state, this, child, deferredOps)) {
-                        changed.set(true);
+                        setFlag(CHANGED);
                     }
-                    if (tnd.updateParentData(state, this, child, deferredOps)) {
-                        changed.set(true);
+                    if (tnd.updateParentData(state, this, child, deferredOps, state.getCountValue())) {
+                        setFlag(CHANGED);
                     }
                 }
             }
         } finally {
-            lock.writeLock().unlock();
+            lock().writeLock().unlock();
         }
         if (deferredOps != null) {
             for (TreeNodeDataDeferredOperation currentOp : deferredOps) {
@@ -481,25 +559,25 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
     // TODO concurrent broken -- data classes should be responsible for their
     // own get/update sync
     public DataTreeNodeActor getData(String key) {
-        lock.readLock().lock();
+        lock().readLock().lock();
         try {
             return data != null ? data.get(key) : null;
         } finally {
-            lock.readLock().unlock();
+            lock().readLock().unlock();
         }
     }
 
     // TODO concurrent broken -- data classes should be responsible for their
     // own get/update sync
     public Collection<String> getDataFields() {
-        lock.readLock().lock();
+        lock().readLock().lock();
         try {
             if (data == null || data.size() == 0) {
                 return null;
             }
             return data.keySet();
         } finally {
-            lock.readLock().unlock();
+            lock().readLock().unlock();
         }
     }
 
@@ -510,7 +588,7 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
 
     @Override
     public void postDecode() {
-        decoded.set(true);
+        setFlag(DECODED);
         if (data != null) {
             for (TreeNodeData actor : data.values()) {
                 actor.setBoundNode(this);
@@ -522,6 +600,36 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
     public void preEncode() {
     }
 
+    @Override
+    public int columnCount() {
+        return TreeNodeDataMap.COLUMNS;
+    }
+
+    @Override
+    public byte[] encodeColumns(long[] columns, Codec codec) throws Exception {
+        lock().readLock().lock();
+        try {
+            Integer db = nodedb;
+            columns[TreeNodeDataMap.COLUMN_HITS] = hits;
+            columns[TreeNodeDataMap.COLUMN_NODES] = nodes;
+            columns[TreeNodeDataMap.COLUMN_NODEDB] = db != null ? db : -1;
+            columns[TreeNodeDataMap.COLUMN_BITS] = bits;
+            return TreeNodeDataMap.encode(columns, data, codec);
+        } finally {
+            lock().readLock().unlock();
+        }
+    }
+
+    @Override
+    public void decodeColumns(long[] columns, byte[] attachments, Codec codec) throws Exception {
+        hits = columns[TreeNodeDataMap.COLUMN_HITS];
+        nodes = (int) columns[TreeNodeDataMap.COLUMN_NODES];
+        nodedb = columns[TreeNodeDataMap.COLUMN_NODEDB] >= 0 ? (int) columns[TreeNodeDataMap.COLUMN_NODEDB] : null;
+        bits = (int) columns[TreeNodeDataMap.COLUMN_BITS];
+        // attachments of an editable node are always needed
+        data = TreeNodeDataMap.decode(columns, attachments, codec);
+    }
+
     /**
      * TODO warning: not thread safe. sync around next(), hasNext() when
      * concurrency is required.
@@ -590,24 +698,24 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
 
     @Override
     public boolean encodeLock() {
-        lock.readLock().lock();
+        lock().readLock().lock();
         return true;
     }
 
     @Override
     public void encodeUnlock() {
-        lock.readLock().unlock();
+        lock().readLock().unlock();
     }
 
 
     @Override
     public void writeLock() {
-        lock.writeLock().lock();
+        lock().writeLock().lock();
     }
 
     @Override
     public void writeUnlock() {
-        lock.writeLock().unlock();
+        lock().writeLock().unlock();
     }
 
     @Override
@@ -16,7 +16,10 @@ package com.addthis.hydra.data.tree;
 import java.io.File;
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ExecutionException;
@@ -84,6 +87,9 @@ public final class ReadTree implements DataTree {
     private final AtomicBoolean closed = new AtomicBoolean(false);
     private final boolean metrics;
 
+    //checkpoint directory that is released when this tree is closed, if opened with openCheckpoint
+    private volatile File checkpoint;
+
     public ReadTree(File root) throws Exception {
         this(root, false);
     }
@@ -153,6 +159,28 @@ public final class ReadTree implements DataTree {
         }
     }
 
+    /**
+     * Open the most recent complete checkpoint of the tree in {@code root}.
+     * The files of the checkpoint do not change while the tree is being updated,
+     * but the checkpoint is not a point in time snapshot of the tree, see
+     * {@link TreeCheckpoint}. The checkpoint is not deleted while it is open
+     * in this process. Long lived readers should move to a newer checkpoint.
+     */
+    public static ReadTree openCheckpoint(File root) throws Exception {
+        File dir = TreeCheckpoint.acquire(root);
+        if (dir == null) {
+            throw new IOException("No checkpoint of tree '" + root + "'");
+        }
+        try {
+            ReadTree tree = new ReadTree(dir);
+            tree.checkpoint = dir;
+            return tree;
+        } catch (Exception ex) {
+            TreeCheckpoint.release(dir);
+            throw ex;
+        }
+    }
+
     /**
      * Creates the ReadPageDB source object and also emits some timing metrics for that operation.
      *
@@ -305,6 +333,9 @@ public final class ReadTree implements DataTree {
         } catch (Exception ex)  {
             log.error("While closing source:", ex);
         }
+        if (checkpoint != null) {
+            TreeCheckpoint.release(checkpoint);
+        }
     }
 
     @Override
@@ -341,7 +372,7 @@ public final class ReadTree implements DataTree {
         }
 
         protected DBKey dbkey() {
-            return new DBKey(parentID, Raw.get(name));
+            return new DBKey(parentID, name);
         }
 
         @Override
@@ -495,12 +526,29 @@ public final class ReadTree implements DataTree {
         return source.getReadEps();
     }
 
+    /**
+     * Returns the store of each shard or the only store
+     * if the tree is not sharded.
+     */
+    public List<ReadExternalPagedStore<DBKey, ReadTreeNode>> getReadStores() {
+        int shards = source.getShardCount();
+        if (shards == 0) {
+            return Collections.singletonList(source.getReadEps());
+        }
+        List<ReadExternalPagedStore<DBKey, ReadTreeNode>> stores = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            stores.add(source.getShard(i).getReadEps());
+        }
+        return stores;
+    }
+
     /**
      * For testing purposes only.
      */
     void testIntegrity() {
-        ReadExternalPagedStore store = source.getReadEps();
-        store.testIntegrity();
+        for (ReadExternalPagedStore<DBKey, ReadTreeNode> store : getReadStores()) {
+            store.testIntegrity();
+        }
     }
 
 }
@@ -23,6 +23,7 @@ import com.addthis.basis.util.ClosableIterator;
 import com.addthis.basis.util.MemoryCounter.Mem;
 
 import com.addthis.codec.Codec;
+import com.addthis.hydra.store.db.ColumnarValue;
 import com.addthis.hydra.store.db.DBKey;
 import com.addthis.hydra.store.db.IPageDB.Range;
 import com.addthis.hydra.store.db.IReadWeighable;
@@ -32,7 +33,8 @@ import com.addthis.hydra.store.db.IReadWeighable;
  *         <p/>
  *         read only tree node that plays nice with ReadTree
  */
-public class ReadTreeNode implements DataTreeNode, Codec.SuperCodable, Codec.ConcurrentCodable, IReadWeighable {
+public class ReadTreeNode implements DataTreeNode, Codec.SuperCodable, Codec.ConcurrentCodable, IReadWeighable,
+                                     ColumnarValue {
 
     /**
      * required for Codable. must be followed by an init() call.
@@ -75,6 +77,14 @@ public class ReadTreeNode implements DataTreeNode, Codec.SuperCodable, Codec.Con
     @Codec.Set(codable = true)
     private HashMap<String, TreeNodeData> data;
 
+    //encoded data-attachments of a node read in the columnar layout. decoded on first use.
+    private volatile byte[] encodedData;
+    @Mem(estimate = false, size = 64)
+    private Codec dataCodec;
+    //data-attachments of a node read in the columnar layout that are decoded one at a time
+    @Mem(estimate = false, size = 64)
+    private volatile TreeNodeDataMap.Lazy lazyData;
+
     //reference to the transient (in memory) tree object -- not serialized
     @Mem(estimate = false, size = 64)
     private ReadTree tree;
@@ -97,7 +107,8 @@ public class ReadTreeNode implements DataTreeNode, Codec.SuperCodable, Codec.Con
         tn.nodes = nodes;
         tn.nodedb = nodedb;
         tn.bits = bits;
-        tn.data = data;
+        tn.lazyData = lazyData;
+        tn.data = lazyData == null ? data() : null;
         tn.tree = tree;
         return tn;
     }
@@ -184,13 +195,44 @@ public class ReadTreeNode implements DataTreeNode, Codec.SuperCodable, Codec.Con
 
     @Override
     public Map<String, TreeNodeData> getDataMap() {
-        return data;
+        return data();
     }
 
     // TODO concurrent broken -- data classes should be responsible for their
     // own get/update sync
     public DataTreeNodeActor getData(String key) {
-        return data != null ? data.get(key) : null;
+        TreeNodeDataMap.Lazy lazy = lazyData;
+        if (lazy != null) {
+            return lazy.get(key, this);
+        }
+        HashMap<String, TreeNodeData> map = data();
+        return map != null ? map.get(key) : null;
+    }
+
+    /**
+     * Returns the data attachments and decodes them if they are still encoded.
+     */
+    private HashMap<String, TreeNodeData> data() {
+        TreeNodeDataMap.Lazy lazy = lazyData;
+        if (lazy != null) {
+            return lazy.toMap(this);
+        }
+        if (encodedData != null) {
+            synchronized (this) {
+                byte[] encoded = encodedData;
+                if (encoded != null) {
+                    try {
+                        data = TreeNodeDataMap.decode(new long[TreeNodeDataMap.COLUMN_LAYOUT], encoded, dataCodec);
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    bindData();
+                    dataCodec = null;
+                    encodedData = null;
+                }
+            }
+        }
+        return data;
     }
 
     @Override
@@ -200,6 +242,10 @@ public class ReadTreeNode implements DataTreeNode, Codec.SuperCodable, Codec.Con
 
     @Override
     public void postDecode() {
+        bindData();
+    }
+
+    private void bindData() {
         if (data != null) {
             for (TreeNodeData actor : data.values()) {
                 actor.setBoundNode(this);
@@ -211,6 +257,48 @@ public class ReadTreeNode implements DataTreeNode, Codec.SuperCodable, Codec.Con
     public void preEncode() {
     }
 
+    @Override
+    public int columnCount() {
+        return TreeNodeDataMap.COLUMNS;
+    }
+
+    @Override
+    public byte[] encodeColumns(long[] columns, Codec codec) throws Exception {
+        columns[TreeNodeDataMap.COLUMN_HITS] = hits;
+        columns[TreeNodeDataMap.COLUMN_NODES] = nodes;
+        columns[TreeNodeDataMap.COLUMN_NODEDB] = nodedb != null ? nodedb : -1;
+        columns[TreeNodeDataMap.COLUMN_BITS] = bits;
+        TreeNodeDataMap.Lazy lazy = lazyData;
+        if (lazy != null) {
+            byte[] unmodified = lazy.unmodified();
+            if (unmodified != null) {
+                columns[TreeNodeDataMap.COLUMN_LAYOUT] = TreeNodeDataMap.LAYOUT_ATTACHMENTS;
+                return unmodified;
+            }
+        }
+        return TreeNodeDataMap.encode(columns, data(), codec);
+    }
+
+    /**
+     * The attachments are not decoded until they are used, so
+     * scans that only read names and counters never decode them.
+     * In {@link TreeNodeDataMap#LAYOUT_ATTACHMENTS} each attachment
+     * is decoded separately when it is first requested.
+     */
+    @Override
+    public void decodeColumns(long[] columns, byte[] attachments, Codec codec) {
+        hits = columns[TreeNodeDataMap.COLUMN_HITS];
+        nodes = (int) columns[TreeNodeDataMap.COLUMN_NODES];
+        nodedb = columns[TreeNodeDataMap.COLUMN_NODEDB] >= 0 ? (int) columns[TreeNodeDataMap.COLUMN_NODEDB] : null;
+        bits = (int) columns[TreeNodeDataMap.COLUMN_BITS];
+        if (attachments != null && TreeNodeDataMap.layout(columns) == TreeNodeDataMap.LAYOUT_ATTACHMENTS) {
+            lazyData = new TreeNodeDataMap.Lazy(attachments, codec);
+        } else {
+            dataCodec = codec;
+            encodedData = attachments;
+        }
+    }
+
     @Override
     public void setWeight(int weight) {
         bits = weight;
@@ -0,0 +1,229 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.addthis.basis.util.Bytes;
+import com.addthis.basis.util.Files;
+
+import com.addthis.hydra.store.db.DBKey;
+import com.addthis.hydra.store.db.IPageDB;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Images of a {@link ConcurrentTree} that are written while the tree is
+ * being updated. A checkpoint is a read-only tree that can be opened with
+ * {@link ReadTree#openCheckpoint(File)} so that queries can read the tree
+ * before the job has finished. A checkpoint is not a point in time snapshot.
+ * The changed nodes and pages are written while mapping continues, so
+ * updates that run concurrently with a checkpoint may be partially included.
+ * The files of a checkpoint do not change once it is complete.
+ * <p/>
+ * Checkpoints are stored in numbered directories below {@link #DIR} in
+ * the root of the tree. The files of the page database that have not
+ * changed since the previous checkpoint are hard links to the same files,
+ * so a checkpoint only writes the nodes and pages that have changed.
+ * A checkpoint is complete once its directory has been renamed into
+ * place, which happens after {@link #MANIFEST} has been written.
+ * <p/>
+ * Each line of the manifest is a file of the checkpoint and its size
+ * separated by a tab. The line starts with {@code +} if the file is not
+ * part of the previous checkpoint and with {@code =} otherwise, so
+ * replicating a checkpoint only needs to transfer the {@code +} files.
+ * <p/>
+ * A checkpoint that is older than the retained checkpoints is deleted
+ * when it is not open by a reader in this process and the following
+ * checkpoint was completed at least a grace period ago, which gives
+ * readers in other processes time to finish.
+ */
+public final class TreeCheckpoint {
+
+    private static final Logger log = LoggerFactory.getLogger(TreeCheckpoint.class);
+
+    public static final String DIR = "checkpoints";
+
+    public static final String MANIFEST = "checkpoint.manifest";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Number of readers in this process of each checkpoint directory.
+     * Guarded by the class monitor.
+     */
+    private static final Map<File, Integer> readers = new HashMap<>();
+
+    private TreeCheckpoint() {
+    }
+
+    /**
+     * Returns the directory of the most recent complete checkpoint
+     * of the tree in {@code root} and marks it as being read,
+     * or returns null if there is none. The checkpoint is
+     * not deleted until {@link #release(File)} is called.
+     */
+    static synchronized File acquire(File root) {
+        File dir = latest(root);
+        if (dir != null) {
+            Integer count = readers.get(dir.getAbsoluteFile());
+            readers.put(dir.getAbsoluteFile(), count == null ? 1 : count + 1);
+        }
+        return dir;
+    }
+
+    static synchronized void release(File dir) {
+        Integer count = readers.get(dir.getAbsoluteFile());
+        if (count == null || count <= 1) {
+            readers.remove(dir.getAbsoluteFile());
+        } else {
+            readers.put(dir.getAbsoluteFile(), count - 1);
+        }
+    }
+
+    /**
+     * Returns the directory of the most recent complete checkpoint
+     * of the tree in {@code root} or null if there is none.
+     */
+    public static File latest(File root) {
+        Map.Entry<Long, File> last = complete(root).lastEntry();
+        return last == null ? null : last.getValue();
+    }
+
+    /**
+     * Returns the files of the checkpoint in {@code dir} that are
+     * not part of the previous checkpoint.
+     */
+    public static List<String> delta(File dir) throws IOException {
+        List<String> names = new ArrayList<>();
+        for (String line : Bytes.toString(Files.read(new File(dir, MANIFEST))).split("\n")) {
+            if (line.startsWith("+")) {
+                names.add(line.substring(2, line.lastIndexOf('\t')));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Write a checkpoint of {@code source} and the files in {@code extra}
+     * and delete the checkpoints older than the {@code retain} most recent
+     * checkpoints that are no longer read. The caller must ensure that
+     * checkpoints of the same tree are not written concurrently.
+     *
+     * @param extra files of the tree that are copied into the checkpoint
+     * @param grace milliseconds that a checkpoint is kept after the
+     *              following checkpoint was completed
+     * @return directory of the checkpoint
+     */
+    static File write(File root, IPageDB<DBKey, ?> source, File[] extra, int retain, long grace)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        TreeMap<Long, File> complete = complete(root);
+        long id = complete.isEmpty() ? 1 : complete.lastKey() + 1;
+        File dir = new File(new File(root, DIR), Long.toString(id));
+        File temp = new File(dir.getPath() + TEMP_SUFFIX);
+        if (temp.exists()) {
+            Files.deleteDir(temp);
+        }
+        List<String> names = source.checkpoint(temp);
+        for (File file : extra) {
+            if (file.exists()) {
+                // these files are rewritten in place so they are copied rather than linked
+                Files.write(new File(temp, file.getName()), Files.read(file), false);
+                names.add(file.getName());
+            }
+        }
+        Map<String, Long> previous = complete.isEmpty() ? new HashMap<String, Long>() :
+                                     manifest(complete.lastEntry().getValue());
+        StringBuilder manifest = new StringBuilder();
+        int added = 0;
+        for (String name : names) {
+            long size = new File(temp, name).length();
+            Long prev = previous.get(name);
+            boolean isNew = (prev == null || prev != size);
+            if (isNew) {
+                added++;
+            }
+            manifest.append(isNew ? '+' : '=').append('\t').append(name).append('\t').append(size).append('\n');
+        }
+        Files.write(new File(temp, MANIFEST), Bytes.toBytes(manifest.toString()), false);
+        if (!temp.renameTo(dir)) {
+            throw new IOException("unable to rename " + temp + " to " + dir);
+        }
+        complete.put(id, dir);
+        retire(complete, retain, grace);
+        log.info("[checkpoint] dir={} files={} added={} ms={}", dir, names.size(), added,
+                System.currentTimeMillis() - start);
+        return dir;
+    }
+
+    /**
+     * Delete the checkpoints before the {@code retain} most recent
+     * ones that are not in use and whose following checkpoint is
+     * older than {@code grace}. The others are retried by the next checkpoint.
+     */
+    private static void retire(TreeMap<Long, File> complete, int retain, long grace) {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<Long, File>> entries = new ArrayList<>(complete.entrySet());
+        for (Map.Entry<Long, File> entry : entries.subList(0, Math.max(0, entries.size() - Math.max(1, retain)))) {
+            File dir = entry.getValue();
+            File next = complete.higherEntry(entry.getKey()).getValue();
+            long superseded = new File(next, MANIFEST).lastModified();
+            synchronized (TreeCheckpoint.class) {
+                if (readers.containsKey(dir.getAbsoluteFile()) || now - superseded < grace) {
+                    continue;
+                }
+                Files.deleteDir(dir);
+            }
+            log.info("[checkpoint] deleted {}", dir);
+        }
+    }
+
+    private static TreeMap<Long, File> complete(File root) {
+        TreeMap<Long, File> result = new TreeMap<>();
+        File[] dirs = new File(root, DIR).listFiles();
+        if (dirs == null) {
+            return result;
+        }
+        for (File dir : dirs) {
+            try {
+                if (dir.isDirectory() && new File(dir, MANIFEST).isFile()) {
+                    result.put(Long.parseLong(dir.getName()), dir);
+                }
+            } catch (NumberFormatException ignored) {
+                // temporary directory of an incomplete checkpoint
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, Long> manifest(File dir) throws IOException {
+        Map<String, Long> result = new HashMap<>();
+        for (String line : Bytes.toString(Files.read(new File(dir, MANIFEST))).split("\n")) {
+            String[] fields = line.split("\t");
+            if (fields.length == 3) {
+                result.put(fields[1], Long.parseLong(fields[2]));
+            }
+        }
+        return result;
+    }
+}
@@ -324,7 +324,7 @@ public class TreeNode implements DataTreeNode, Codec.SuperCodable, Codec.Concurr
                         data.put(el.getKey(), tnd);
                         updated = true;
                     }
-                    if (tnd.updateChildData(state, this, el.getValue())) {
+                    if (tnd.updateChildData(state, this, el.getValue(), state.getCountValue())) {
                         updated = true;
                     }
                 }
@@ -351,7 +351,7 @@ public class TreeNode implements DataTreeNode, Codec.SuperCodable, Codec.Concurr
                     if (isnew && tnd.updateParentNewChild(state, this, child, deferredOps)) {
                         changed.set(true);
                     }
-                    if (tnd.updateParentData(state, this, child, deferredOps)) {
+                    if (tnd.updateParentData(state, this, child, deferredOps, state.getCountValue())) {
                         changed.set(true);
                     }
                 }
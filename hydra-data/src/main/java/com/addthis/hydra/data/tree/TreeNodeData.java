@@ -60,6 +60,19 @@ public abstract class TreeNodeData<C extends TreeDataParameters<?>> implements C
      */
     public abstract boolean updateChildData(DataTreeNodeUpdater state, DataTreeNode childNode, C conf);
 
+    /**
+     * Apply the bundle of {@code state} as if it was seen {@code count} times.
+     * Called when identical bundles have been combined before the tree update.
+     * Override when the repeated update can be applied in a single step.
+     */
+    public boolean updateChildData(DataTreeNodeUpdater state, DataTreeNode childNode, C conf, int count) {
+        boolean updated = false;
+        for (int i = 0; i < count; i++) {
+            updated |= updateChildData(state, childNode, conf);
+        }
+        return updated;
+    }
+
     /**
      * override to track new children
      */
@@ -80,6 +93,20 @@ public abstract class TreeNodeData<C extends TreeDataParameters<?>> implements C
         return false;
     }
 
+    /**
+     * Apply {@link #updateParentData(DataTreeNodeUpdater, DataTreeNode, DataTreeNode, List)}
+     * as if the bundle of {@code state} was seen {@code count} times.
+     */
+    public boolean updateParentData(DataTreeNodeUpdater state, DataTreeNode parentNode,
+            DataTreeNode childNode,
+            List<TreeNodeDataDeferredOperation> deferredOps, int count) {
+        boolean updated = false;
+        for (int i = 0; i < count; i++) {
+            updated |= updateParentData(state, parentNode, childNode, deferredOps);
+        }
+        return updated;
+    }
+
     /**
      * return a stored value to the query engine given a query key
      */
@@ -0,0 +1,228 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.addthis.basis.util.Bytes;
+
+import com.addthis.codec.Codec;
+
+/**
+ * The data attachments of a tree node. Used to encode the attachments
+ * separately from the fixed fields of a node in the columnar layout
+ * of {@link com.addthis.hydra.store.db.ColumnarValue}.
+ * <p/>
+ * The {@link #COLUMN_LAYOUT} column selects how the attachments are
+ * encoded. In {@link #LAYOUT_MAP} the whole map is a single codec object.
+ * In {@link #LAYOUT_ATTACHMENTS} each attachment is encoded on its own:
+ * <pre>
+ *     [number of attachments]([name][length][encoded attachment])*
+ * </pre>
+ * so a reader can decode one attachment without decoding the others,
+ * see {@link Lazy}. Values written before the layout column existed
+ * have fewer columns and use {@link #LAYOUT_MAP}.
+ */
+public final class TreeNodeDataMap implements Codec.Codable {
+
+    /**
+     * Columns of a tree node in the columnar layout. The nodedb
+     * column is -1 if the node does not have a nodedb.
+     */
+    static final int COLUMN_HITS = 0;
+    static final int COLUMN_NODES = 1;
+    static final int COLUMN_NODEDB = 2;
+    static final int COLUMN_BITS = 3;
+    static final int COLUMN_LAYOUT = 4;
+    static final int COLUMNS = 5;
+
+    static final int LAYOUT_MAP = 0;
+    static final int LAYOUT_ATTACHMENTS = 1;
+
+    @SuppressWarnings("unchecked")
+    @Codec.Set(codable = true)
+    private HashMap<String, TreeNodeData> data;
+
+    public TreeNodeDataMap() {
+    }
+
+    TreeNodeDataMap(HashMap<String, TreeNodeData> data) {
+        this.data = data;
+    }
+
+    HashMap<String, TreeNodeData> getData() {
+        return data;
+    }
+
+    /**
+     * A single attachment. The field carries the type of the attachment.
+     */
+    public static final class Attachment implements Codec.Codable {
+
+        @SuppressWarnings("unchecked")
+        @Codec.Set(codable = true)
+        private TreeNodeData value;
+
+        public Attachment() {
+        }
+
+        Attachment(TreeNodeData value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Encode the attachments in {@link #LAYOUT_ATTACHMENTS} and
+     * record the layout in {@code columns}.
+     */
+    static byte[] encode(long[] columns, HashMap<String, TreeNodeData> data, Codec codec) throws Exception {
+        columns[COLUMN_LAYOUT] = LAYOUT_ATTACHMENTS;
+        if (data == null) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Bytes.writeLength(data.size(), out);
+        for (Map.Entry<String, TreeNodeData> entry : data.entrySet()) {
+            Bytes.writeString(entry.getKey(), out);
+            Bytes.writeBytes(codec.encode(new Attachment(entry.getValue())), out);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode every attachment in the layout recorded in {@code columns}.
+     */
+    static HashMap<String, TreeNodeData> decode(long[] columns, byte[] encoded, Codec codec) throws Exception {
+        if (encoded == null) {
+            return null;
+        }
+        if (layout(columns) == LAYOUT_MAP) {
+            return codec.decode(TreeNodeDataMap.class, encoded).getData();
+        }
+        return new Lazy(encoded, codec).decodeAll();
+    }
+
+    static int layout(long[] columns) {
+        return columns.length > COLUMN_LAYOUT ? (int) columns[COLUMN_LAYOUT] : LAYOUT_MAP;
+    }
+
+    /**
+     * Attachments in {@link #LAYOUT_ATTACHMENTS} that are decoded one at a
+     * time when they are first requested. Decoded attachments are kept.
+     * The names and positions of the attachments are read on first use.
+     */
+    static final class Lazy {
+
+        private final byte[] encoded;
+        private final Codec codec;
+
+        private String[] names;
+        private int[] offsets;
+        private int[] lengths;
+        private TreeNodeData[] decoded;
+        private int decodedCount;
+
+        Lazy(byte[] encoded, Codec codec) {
+            this.encoded = encoded;
+            this.codec = codec;
+        }
+
+        /**
+         * Returns the encoded attachments or null if any attachment has
+         * been decoded, since a decoded attachment may have been modified.
+         */
+        synchronized byte[] unmodified() {
+            return decodedCount == 0 ? encoded : null;
+        }
+
+        /**
+         * Returns the number of attachments that have been decoded.
+         */
+        synchronized int decodedCount() {
+            return decodedCount;
+        }
+
+        synchronized TreeNodeData get(String name, ReadTreeNode node) {
+            readIndex();
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    return decode(i, node);
+                }
+            }
+            return null;
+        }
+
+        synchronized HashMap<String, TreeNodeData> toMap(ReadTreeNode node) {
+            readIndex();
+            HashMap<String, TreeNodeData> map = new HashMap<>();
+            for (int i = 0; i < names.length; i++) {
+                map.put(names[i], decode(i, node));
+            }
+            return map;
+        }
+
+        HashMap<String, TreeNodeData> decodeAll() {
+            return toMap(null);
+        }
+
+        private TreeNodeData decode(int index, ReadTreeNode node) {
+            TreeNodeData value = decoded[index];
+            if (value == null) {
+                try {
+                    value = codec.decode(Attachment.class,
+                            Arrays.copyOfRange(encoded, offsets[index], offsets[index] + lengths[index])).value;
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+                if (node != null && value != null) {
+                    value.setBoundNode(node);
+                }
+                decoded[index] = value;
+                decodedCount++;
+            }
+            return value;
+        }
+
+        private void readIndex() {
+            if (names != null) {
+                return;
+            }
+            try {
+                ByteArrayInputStream in = new ByteArrayInputStream(encoded);
+                int count = (int) Bytes.readLength(in);
+                String[] read = new String[count];
+                offsets = new int[count];
+                lengths = new int[count];
+                for (int i = 0; i < count; i++) {
+                    read[i] = Bytes.readString(in);
+                    lengths[i] = (int) Bytes.readLength(in);
+                    offsets[i] = encoded.length - in.available();
+                    if (in.skip(lengths[i]) != lengths[i]) {
+                        throw new IOException("truncated attachment " + read[i]);
+                    }
+                }
+                decoded = new TreeNodeData[count];
+                names = read;
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+}
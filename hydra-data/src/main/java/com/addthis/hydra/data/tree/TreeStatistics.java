@@ -20,6 +20,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -53,7 +54,10 @@ public class TreeStatistics {
     private final ReadTree readTree;
 
     @Nonnull
-    private final ReadExternalPagedStore<DBKey, ReadTreeNode> readEPS;
+    /**
+     * The store of each shard of {@link #readTree}.
+     */
+    private final List<ReadExternalPagedStore<DBKey, ReadTreeNode>> readStores;
 
     @Nonnull
     private final ConcurrentTree writeTree;
@@ -87,7 +91,7 @@ public class TreeStatistics {
         this.readTree = readTree;
         this.writeTree = writeTree;
         this.terminating = terminating;
-        this.readEPS = readTree.getReadEps();
+        this.readStores = readTree.getReadStores();
         this.sampleRate = sampleRate;
         this.children = children;
         scheduler.scheduleAtFixedRate(new ReporterRunnable(), 0, LOG_REPORT_RATE, TimeUnit.SECONDS);
@@ -266,10 +270,10 @@ public class TreeStatistics {
 
             // get key statistics
             ReadTree.CacheKey cacheKey = new ReadTree.CacheKey(readNodeParent.nodeDB(), name);
-            long keyBytes = readEPS.getKeyCoder().keyEncode(cacheKey.dbkey()).length;
+            long keyBytes = readStores.get(0).getKeyCoder().keyEncode(cacheKey.dbkey()).length;
 
             // get value statistics
-            CodableStatistics statistics = readEPS.getKeyCoder().valueStatistics(readNode);
+            CodableStatistics statistics = readStores.get(0).getKeyCoder().valueStatistics(readNode);
 
             nodeState = writeTree.getOrCreateNode(newChild, "node", null);
 
@@ -600,7 +604,18 @@ public class TreeStatistics {
     }
 
     private void pageDBStatistics(ConcurrentTreeNode writeRoot) {
-        ExternalPagedStoreMetrics metrics = readEPS.getMetrics();
+        if (readStores.size() == 1) {
+            pageDBStatistics(writeRoot, readStores.get(0), "pagedb");
+        } else {
+            for (int i = 0; i < readStores.size(); i++) {
+                pageDBStatistics(writeRoot, readStores.get(i), "pagedb-shard-" + i);
+            }
+        }
+    }
+
+    private void pageDBStatistics(ConcurrentTreeNode writeRoot,
+            ReadExternalPagedStore<DBKey, ReadTreeNode> store, String name) {
+        ExternalPagedStoreMetrics metrics = store.getMetrics();
 
         if (metrics == null) {
             return;
@@ -611,7 +626,7 @@ public class TreeStatistics {
         ConcurrentTreeNode pageDBNode = null, keyNode = null;
 
         try {
-            pageDBNode = writeTree.getOrCreateNode(writeRoot, "pagedb", null);
+            pageDBNode = writeTree.getOrCreateNode(writeRoot, name, null);
             keyNode = writeTree.getOrCreateNode(pageDBNode, "keys", null);
             exportHistogram(pageSize, keyNode);
         } finally {
@@ -622,8 +637,6 @@ public class TreeStatistics {
                 keyNode.release();
             }
         }
-
-
     }
 
     public static void main(String args[]) throws Exception {
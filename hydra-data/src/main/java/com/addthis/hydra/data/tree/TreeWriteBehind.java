@@ -0,0 +1,362 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.addthis.hydra.store.db.DBKey;
+import com.addthis.hydra.store.db.IPageDB;
+import com.addthis.hydra.store.util.NamedThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the changed nodes that are evicted from the {@link ConcurrentTree}
+ * node cache to the backing store on background threads.
+ * <p/>
+ * An evicted node stays in the pending map until it has been written.
+ * A cache miss for a pending node moves the node back into the cache
+ * instead of reading the backing store, and the write of the evicted copy
+ * is dropped. Repeated evictions of the same node are therefore written
+ * to the backing store once. A cache miss for a node that is being written
+ * waits for the write to complete.
+ * <p/>
+ * At most {@code maxPending} nodes are pending. Evictions block when
+ * the limit is reached until the writer threads catch up.
+ * <p/>
+ * A node whose write fails stays pending and is queued again.
+ * {@link #flush()} and {@link #close()} throw if a write fails.
+ */
+final class TreeWriteBehind {
+
+    private static final Logger log = LoggerFactory.getLogger(TreeWriteBehind.class);
+
+    private static final int QUEUED = 0;
+    private static final int WRITING = 1;
+    private static final int WRITTEN = 2;
+    private static final int RECLAIMED = 3;
+    private static final int DISCARDED = 4;
+
+    /**
+     * Milliseconds that a writer thread waits after a failed write.
+     */
+    private static final long RETRY_DELAY = 100;
+
+    private static final class Entry {
+
+        final DBKey key;
+        final ConcurrentTreeNode node;
+
+        /**
+         * One of QUEUED, WRITING, WRITTEN, RECLAIMED or DISCARDED. Guarded by this.
+         */
+        int state = QUEUED;
+
+        Entry(DBKey key, ConcurrentTreeNode node) {
+            this.key = key;
+            this.node = node;
+        }
+    }
+
+    private final IPageDB<DBKey, ConcurrentTreeNode> source;
+    private final ConcurrentSkipListMap<DBKey, Entry> pending = new ConcurrentSkipListMap<>();
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final Semaphore capacity;
+    private final int batchSize;
+    private final ExecutorService writers;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong reclaimed = new AtomicLong();
+
+    TreeWriteBehind(IPageDB<DBKey, ConcurrentTreeNode> source, String scope,
+            int threads, int maxPending, int batchSize) {
+        this.source = source;
+        this.capacity = new Semaphore(maxPending);
+        this.batchSize = batchSize;
+        this.writers = Executors.newFixedThreadPool(threads,
+                new NamedThreadFactory(scope + "-writebehind-", true));
+        for (int i = 0; i < threads; i++) {
+            writers.execute(new Writer());
+        }
+    }
+
+    /**
+     * Queue an evicted node for writing. Blocks while
+     * the maximum number of nodes are pending.
+     */
+    void add(DBKey key, ConcurrentTreeNode node) {
+        if (closed.get()) {
+            source.put(key, node);
+            return;
+        }
+        capacity.acquireUninterruptibly();
+        Entry entry = new Entry(key, node);
+        pending.put(key, entry);
+        queue.add(entry);
+    }
+
+    /**
+     * If the node for {@code key} is pending then move it back into the
+     * cache, or wait for its write to complete when it is being written.
+     *
+     * @return true if the node was pending and the cache lookup should be
+     *         repeated, or false if the node is not pending and the backing
+     *         store is current
+     */
+    boolean reclaim(DBKey key, ConcurrentTree.CacheKey cacheKey,
+            ConcurrentMap<ConcurrentTree.CacheKey, ConcurrentTreeNode> cache) {
+        Entry entry = pending.get(key);
+        if (entry == null) {
+            return false;
+        }
+        synchronized (entry) {
+            awaitWrite(entry);
+            if (entry.state == QUEUED) {
+                entry.state = RECLAIMED;
+                entry.node.reactivate();
+                cache.putIfAbsent(cacheKey, entry.node);
+                finish(entry);
+                reclaimed.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop the pending write of the node for {@code key}. Used when
+     * the node is deleted from the backing store.
+     *
+     * @return the node if its write was dropped, or null if the
+     *         node is not pending or has already been written
+     */
+    ConcurrentTreeNode discard(DBKey key) {
+        Entry entry = pending.get(key);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            awaitWrite(entry);
+            if (entry.state == QUEUED) {
+                entry.state = DISCARDED;
+                finish(entry);
+                return entry.node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drop the pending writes of every node with a key in the range
+     * [{@code from}, {@code to}). Used when the range is deleted from
+     * the backing store.
+     *
+     * @return the nodes whose writes were dropped, by key
+     */
+    Map<DBKey, ConcurrentTreeNode> discard(DBKey from, DBKey to) {
+        Map<DBKey, ConcurrentTreeNode> discarded = new TreeMap<>();
+        for (DBKey key : pending.subMap(from, to).keySet()) {
+            ConcurrentTreeNode node = discard(key);
+            if (node != null) {
+                discarded.put(key, node);
+            }
+        }
+        return discarded;
+    }
+
+    /**
+     * Write every node that is pending when this method is called.
+     * The writes are performed by the calling thread together with
+     * the writer threads. Throws the exception of the first write
+     * that fails, and the node of that write stays pending.
+     */
+    void flush() {
+        for (Entry entry : pending.values()) {
+            write(entry);
+            synchronized (entry) {
+                awaitWrite(entry);
+            }
+        }
+    }
+
+    /**
+     * Stop the writer threads and write every pending node.
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        writers.shutdown();
+        try {
+            writers.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        log.debug("[close] written={} reclaimed={}", written, reclaimed);
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    long getWrittenCount() {
+        return written.get();
+    }
+
+    long getReclaimedCount() {
+        return reclaimed.get();
+    }
+
+    /**
+     * Write a single entry. If the write fails then the entry
+     * stays pending and the exception is thrown to the caller.
+     */
+    private void write(Entry entry) {
+        if (!begin(entry)) {
+            return;
+        }
+        try {
+            source.put(entry.key, entry.node);
+        } catch (RuntimeException | Error ex) {
+            abort(entry);
+            throw ex;
+        }
+        written.incrementAndGet();
+        complete(entry);
+    }
+
+    /**
+     * Write the queued entries of {@code batch} with a single
+     * call to the backing store. If the write fails then the
+     * entries stay pending and are queued again.
+     *
+     * @return false if the write failed
+     */
+    private boolean write(List<Entry> batch) {
+        List<Entry> writing = new ArrayList<>(batch.size());
+        Map<DBKey, ConcurrentTreeNode> nodes = new TreeMap<>();
+        for (Entry entry : batch) {
+            if (begin(entry)) {
+                writing.add(entry);
+                nodes.put(entry.key, entry.node);
+            }
+        }
+        if (writing.isEmpty()) {
+            return true;
+        }
+        try {
+            source.putAll(nodes);
+        } catch (RuntimeException ex) {
+            log.warn("Failed to write " + writing.size() + " nodes, queueing them again", ex);
+            for (Entry entry : writing) {
+                abort(entry);
+                queue.add(entry);
+            }
+            return false;
+        }
+        written.addAndGet(writing.size());
+        for (Entry entry : writing) {
+            complete(entry);
+        }
+        return true;
+    }
+
+    private static boolean begin(Entry entry) {
+        synchronized (entry) {
+            if (entry.state != QUEUED) {
+                return false;
+            }
+            entry.state = WRITING;
+            return true;
+        }
+    }
+
+    private void complete(Entry entry) {
+        synchronized (entry) {
+            entry.state = WRITTEN;
+            finish(entry);
+            entry.notifyAll();
+        }
+    }
+
+    /**
+     * Return an entry that could not be written to the queued state.
+     * It stays pending so that it can be reclaimed, discarded or
+     * written again.
+     */
+    private static void abort(Entry entry) {
+        synchronized (entry) {
+            entry.state = QUEUED;
+            entry.notifyAll();
+        }
+    }
+
+    private static void awaitWrite(Entry entry) {
+        assert (Thread.holdsLock(entry));
+        while (entry.state == WRITING) {
+            try {
+                entry.wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    private void finish(Entry entry) {
+        pending.remove(entry.key, entry);
+        capacity.release();
+    }
+
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            List<Entry> batch = new ArrayList<>(batchSize);
+            while (!closed.get()) {
+                try {
+                    Entry entry = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (entry == null) {
+                        continue;
+                    }
+                    batch.add(entry);
+                    queue.drainTo(batch, batchSize - 1);
+                    if (!write(batch)) {
+                        Thread.sleep(RETRY_DELAY);
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                } catch (Exception ex) {
+                    log.warn("Uncaught exception in concurrent tree write behind thread", ex);
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+    }
+}
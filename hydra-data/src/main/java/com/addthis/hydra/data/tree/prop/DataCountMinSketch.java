@@ -83,7 +83,10 @@ public class DataCountMinSketch extends TreeNodeData<DataCountMinSketch.Config>
      * <p/>
      *
      * <p>If no command is specified or an invalid command is specified then the estimator returns as
-     * a custom value type.
+     * a custom value type. The sum of two custom values is the merge of their sketches, so the
+     * "c" column of the {@link com.addthis.hydra.data.query.op.OpGather gather} operation and the
+     * {@link com.addthis.hydra.data.query.op.OpCountMinSketch cms} operation estimate counts
+     * over the sketches of all nodes and tasks.
      *
      * <p>%{attachment}={a "~" separated list of key} : generates a virtual node for each key.
      * The number of hits for each virtual node is equal to the count estimate in the sketch.
@@ -244,6 +247,16 @@ public class DataCountMinSketch extends TreeNodeData<DataCountMinSketch.Config>
             this.item = item;
         }
 
+        @Nonnull
+        public CountMinSketch getSketch() {
+            return sketch;
+        }
+
+        @Nullable
+        public String getItem() {
+            return item;
+        }
+
         @Override
         public Class<? extends ValueCustom> getContainerClass() {
             return CMSValue.class;
@@ -295,7 +308,7 @@ public class DataCountMinSketch extends TreeNodeData<DataCountMinSketch.Config>
 
         @Override
         public ValueString asString() throws ValueTranslationException {
-            throw new ValueTranslationException();
+            return ValueFactory.create(Long.toString(toLong()));
         }
 
         @Override
@@ -321,13 +334,12 @@ public class DataCountMinSketch extends TreeNodeData<DataCountMinSketch.Config>
             try {
                 if (val instanceof CMSValue) {
                     CountMinSketch other = ((CMSValue) val).sketch;
-                    return new CMSValue(sketch.merge(other));
+                    return new CMSValue(CountMinSketch.merge(sketch, other), item);
                 }
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
-
-            return null;
+            return asLong().sum(val.asLong());
         }
 
         @Override
@@ -349,5 +361,10 @@ public class DataCountMinSketch extends TreeNodeData<DataCountMinSketch.Config>
         public ValueNumber min(ValueNumber val) {
             return val.asLong().getLong() < toLong() ? val : this;
         }
+
+        @Override
+        public String toString() {
+            return Long.toString(toLong());
+        }
     }
 }
@@ -76,16 +76,21 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements C
      *   count : the cardinality estimation.
      *   class : the simple class name of the estimator.
      *   used  : if the estimator is linear then return the utilization. Otherwise an command.
-     *   put(x): offer x / show x to the estimator to be counted. 1 if the estimate changed, else 0.</pre>
+     *   put(x): offer x / show x to the estimator to be counted. 1 if the estimate changed, else 0.
+     *   sketch: the estimator as a custom value type.</pre>
      *
      * <p>If no command is specified or an invalid command is specified then the estimator returns as
-     * a custom value type.
+     * a custom value type. The estimator is sent to the query master as its serialized bytes and
+     * the sum of two estimators is their merge, so the "c" column of the
+     * {@link com.addthis.hydra.data.query.op.OpGather gather} operation counts a value
+     * seen by several tasks once. Summing the "count" of each task counts it once per task.
      *
      * <p>"%" operations are not supported.
      *
      * <p>Query Path Example:</p>
      * <pre>
      *     /shard-counter/+130101$+ips=count
+     *     /shard-counter/+130101$+ips=sketch with ops gather=kc
      * </pre>
      *
      * @user-reference
@@ -295,6 +300,8 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements C
                 return ValueFactory.create(((LinearCounting) ic).getUtilization());
             } else if (key.startsWith("put(") && key.endsWith(")")) {
                 return ValueFactory.create(ic.offer(key.substring(4, key.length() - 1)) ? 1 : 0);
+            } else if (key.equals("sketch")) {
+                return new LCValue(ic);
             }
         }
         return new LCValue(ic);
@@ -443,7 +450,7 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements C
 
         @Override
         public ValueString asString() throws ValueTranslationException {
-            throw new ValueTranslationException();
+            return ValueFactory.create(toString());
         }
 
         @Override
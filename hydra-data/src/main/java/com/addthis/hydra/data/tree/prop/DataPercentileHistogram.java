@@ -0,0 +1,358 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree.prop;
+
+import java.util.List;
+
+import com.addthis.basis.util.Strings;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.util.ValueUtil;
+import com.addthis.bundle.value.ValueArray;
+import com.addthis.bundle.value.ValueBytes;
+import com.addthis.bundle.value.ValueCustom;
+import com.addthis.bundle.value.ValueDouble;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueLong;
+import com.addthis.bundle.value.ValueMap;
+import com.addthis.bundle.value.ValueNumber;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.bundle.value.ValueSimple;
+import com.addthis.bundle.value.ValueString;
+import com.addthis.bundle.value.ValueTranslationException;
+import com.addthis.codec.Codec;
+import com.addthis.hydra.data.filter.value.ValueFilter;
+import com.addthis.hydra.data.tree.DataTreeNode;
+import com.addthis.hydra.data.tree.DataTreeNodeUpdater;
+import com.addthis.hydra.data.tree.TreeDataParameters;
+import com.addthis.hydra.data.tree.TreeNodeData;
+import com.addthis.hydra.data.tree.TreeNodeList;
+import com.addthis.hydra.data.util.LogLinearHistogram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class DataPercentileHistogram extends TreeNodeData<DataPercentileHistogram.Config> implements Codec.SuperCodable {
+
+    private static final Logger log = LoggerFactory.getLogger(DataPercentileHistogram.class);
+
+    /**
+     * This data attachment <span class="hydra-summary">maintains a log-linear histogram
+     * for percentiles</span>.
+     * <p/>
+     * <p>Unlike the {@link DataPercentileDistribution distribution} attachment
+     * every value is counted. Values are counted in buckets whose width is a fixed
+     * fraction of their value, so that any percentile is within 2^-precision of the
+     * true value. Recording a value takes constant time and percentiles are computed
+     * from at most a few hundred buckets. Values must be non-negative longs, such as
+     * latencies. Histograms of different nodes and tasks can be merged.
+     * <p/>
+     * <p>Job Configuration Example:</p>
+     * <pre>
+     * { type : "const", value : "api"},
+     * { type : "branch", list : [[
+     *   { type : "value", name : "ymd", key : "DATE_YMD", data : {
+     *     latency : {type : "percentiles", key : "LATENCY", precision : 5},
+     * }},</pre>
+     *
+     * <p><b>Query Path Directives</b>
+     *
+     * <p>${attachment}=options. options = [mean, count, sum, max, min, stdev, median, 75, 95,
+     * 98, 99, 999, quantile(x), cdf(x)]
+     *
+     * <p>The median, numbered percentiles, quantile(x) and cdf(x) options return values that
+     * merge their histograms when they are summed, for example by the merge query operation
+     * or by {@link com.addthis.hydra.data.query.op.OpPercentileDistribution distribution}.
+     *
+     * <p>"%" operations take a comma separated list of quantiles and return a node for each
+     * of them whose hits are the value at that quantile.
+     *
+     * <p>Query Path Examples:</p>
+     * <pre>
+     *     /api/130228$+latency=99
+     *     /api/130228$+latency=quantile(0.9999)
+     * </pre>
+     *
+     * @user-reference
+     * @hydra-name percentiles
+     */
+    public static final class Config extends TreeDataParameters<DataPercentileHistogram> {
+
+        /**
+         * Name of the field to monitor. This field is required.
+         */
+        @Codec.Set(codable = true, required = true)
+        private String key;
+
+        /**
+         * Bits of precision of the histogram between 1 and 16.
+         * Percentiles are within 2^-precision of the true value
+         * and the number of buckets for each doubling of the value
+         * is 2^(precision-1). Default is 5.
+         */
+        @Codec.Set(codable = true)
+        private int precision = 5;
+
+        /**
+         * Optionally apply a filter before recording the data.
+         * Default is null.
+         */
+        @Codec.Set(codable = true)
+        private ValueFilter filter;
+
+        @Override
+        public DataPercentileHistogram newInstance() {
+            DataPercentileHistogram dh = new DataPercentileHistogram();
+            dh.histogram = new LogLinearHistogram(precision);
+            return dh;
+        }
+    }
+
+    @Codec.Set(codable = true)
+    private byte[] raw;
+
+    private LogLinearHistogram histogram;
+    private BundleField keyAccess;
+
+    @Override
+    public boolean updateChildData(DataTreeNodeUpdater state, DataTreeNode childNode, Config conf) {
+        Bundle p = state.getBundle();
+        if (keyAccess == null) {
+            keyAccess = p.getFormat().getField(conf.key);
+        }
+        ValueObject val = p.getValue(keyAccess);
+        if (val == null) {
+            return false;
+        }
+        if (conf.filter != null) {
+            val = conf.filter.filter(val);
+            if (val == null) {
+                return false;
+            }
+        }
+        if (val.getObjectType() == ValueObject.TYPE.ARRAY) {
+            boolean updated = false;
+            for (ValueObject obj : val.asArray()) {
+                updated |= update(obj);
+            }
+            return updated;
+        }
+        return update(val);
+    }
+
+    private boolean update(ValueObject value) {
+        try {
+            histogram.record(ValueUtil.asNumberOrParseLong(value, 10).asLong().getLong());
+            return true;
+        } catch (Exception e) {
+            log.warn("[DataPercentileHistogram] unable to update histogram because input was not a number: " + value.asString().toString());
+            return false;
+        }
+    }
+
+    @Override
+    public ValueObject getValue(String key) {
+        if (key == null || "".equals(key) || "mean".equals(key)) {
+            return ValueFactory.create(histogram.getMean());
+        } else if (key.equals("count")) {
+            return ValueFactory.create(histogram.getCount());
+        } else if (key.equals("sum")) {
+            return ValueFactory.create(histogram.getSum());
+        } else if (key.equals("max")) {
+            return ValueFactory.create(histogram.getMax());
+        } else if (key.equals("min")) {
+            return ValueFactory.create(histogram.getMin());
+        } else if (key.equals("stdev")) {
+            return ValueFactory.create(histogram.getStdDev());
+        } else if (key.equals("median")) {
+            return new HistogramValue(histogram, HistogramValue.OP.QUANTILE, 0.5);
+        } else if (key.equals("75")) {
+            return new HistogramValue(histogram, HistogramValue.OP.QUANTILE, 0.75);
+        } else if (key.equals("95")) {
+            return new HistogramValue(histogram, HistogramValue.OP.QUANTILE, 0.95);
+        } else if (key.equals("98")) {
+            return new HistogramValue(histogram, HistogramValue.OP.QUANTILE, 0.98);
+        } else if (key.equals("99")) {
+            return new HistogramValue(histogram, HistogramValue.OP.QUANTILE, 0.99);
+        } else if (key.equals("999")) {
+            return new HistogramValue(histogram, HistogramValue.OP.QUANTILE, 0.999);
+        } else if (key.startsWith("quantile(") && key.endsWith(")")) {
+            return new HistogramValue(histogram, HistogramValue.OP.QUANTILE,
+                    Double.valueOf(key.substring(9, key.length() - 1)));
+        } else if (key.startsWith("cdf(") && key.endsWith(")")) {
+            return new HistogramValue(histogram, HistogramValue.OP.CDF,
+                    Double.valueOf(key.substring(4, key.length() - 1)));
+        } else {
+            throw new UnsupportedOperationException("Unhandled key: " + key);
+        }
+    }
+
+    @Override
+    public List<DataTreeNode> getNodes(DataTreeNode parent, String key) {
+        String keys[] = Strings.splitArray(key, ",");
+        TreeNodeList list = new TreeNodeList(keys.length);
+        for (String k : keys) {
+            list.add(new VirtualTreeNode(k, histogram.getQuantile(Double.valueOf(k))));
+        }
+        return list;
+    }
+
+    @Override
+    public void postDecode() {
+        histogram = LogLinearHistogram.fromBytes(raw);
+        raw = null;
+    }
+
+    @Override
+    public void preEncode() {
+        raw = histogram.toBytes();
+    }
+
+    /**
+     * A quantile or cdf of a histogram. The sum of two values is
+     * computed from the merge of their histograms.
+     */
+    public static final class HistogramValue implements ValueCustom, ValueNumber {
+
+        enum OP {CDF, QUANTILE}
+
+        private LogLinearHistogram histogram;
+        private double quantile;
+        private OP op;
+
+        /* required for codec */
+        public HistogramValue() {
+        }
+
+        public HistogramValue(LogLinearHistogram histogram, OP op, double quantile) {
+            this.histogram = histogram;
+            this.quantile = quantile;
+            this.op = op;
+        }
+
+        public LogLinearHistogram getHistogram() {
+            return histogram;
+        }
+
+        @Override
+        public Class<? extends ValueCustom> getContainerClass() {
+            return HistogramValue.class;
+        }
+
+        @Override
+        public TYPE getObjectType() {
+            return TYPE.CUSTOM;
+        }
+
+        @Override
+        public ValueBytes asBytes() throws ValueTranslationException {
+            throw new ValueTranslationException();
+        }
+
+        @Override
+        public ValueArray asArray() throws ValueTranslationException {
+            throw new ValueTranslationException();
+        }
+
+        @Override
+        public ValueMap asMap() throws ValueTranslationException {
+            ValueMap map = ValueFactory.createMap();
+            map.put("q", ValueFactory.create(quantile));
+            map.put("o", ValueFactory.create(op.toString()));
+            map.put("b", ValueFactory.create(histogram.toBytes()));
+            return map;
+        }
+
+        @Override
+        public ValueNumber asNumber() throws ValueTranslationException {
+            return this;
+        }
+
+        @Override
+        public ValueLong asLong() {
+            return asDouble().asLong();
+        }
+
+        @Override
+        public ValueDouble asDouble() {
+            switch (op) {
+                case CDF:
+                    return ValueFactory.create(histogram.getCdf((long) quantile));
+                case QUANTILE:
+                default:
+                    return ValueFactory.create((double) histogram.getQuantile(quantile));
+            }
+        }
+
+        @Override
+        public ValueString asString() throws ValueTranslationException {
+            return asDouble().asString();
+        }
+
+        @Override
+        public ValueCustom asCustom() throws ValueTranslationException {
+            return this;
+        }
+
+        @Override
+        public void setValues(ValueMap valueMapEntries) {
+            byte b[] = valueMapEntries.get("b").asBytes().getBytes();
+            this.quantile = valueMapEntries.get("q").asDouble().getDouble();
+            this.op = OP.valueOf(valueMapEntries.get("o").asString().toString());
+            this.histogram = LogLinearHistogram.fromBytes(b);
+        }
+
+        @Override
+        public ValueSimple asSimple() {
+            return asDouble();
+        }
+
+        @Override
+        public ValueNumber sum(ValueNumber valueNumber) {
+            if (HistogramValue.class == valueNumber.getClass()) {
+                LogLinearHistogram merged = new LogLinearHistogram(histogram.getPrecision())
+                        .merge(histogram).merge(((HistogramValue) valueNumber).histogram);
+                return new HistogramValue(merged, op, quantile);
+            }
+            return asDouble().sum(valueNumber.asDouble());
+        }
+
+        @Override
+        public ValueNumber diff(ValueNumber valueNumber) {
+            return asDouble().diff(valueNumber.asDouble());
+        }
+
+        @Override
+        public ValueNumber avg(int count) {
+            // the value of a sum is already that of the merged histograms
+            return this;
+        }
+
+        @Override
+        public ValueNumber min(ValueNumber valueNumber) {
+            return valueNumber.asDouble().getDouble() < asDouble().getDouble() ? valueNumber : this;
+        }
+
+        @Override
+        public ValueNumber max(ValueNumber valueNumber) {
+            return valueNumber.asDouble().getDouble() > asDouble().getDouble() ? valueNumber : this;
+        }
+
+        @Override
+        public String toString() {
+            return asString().toString();
+        }
+    }
+}
@@ -100,6 +100,7 @@ public class DataSeen extends TreeNodeData<DataSeen.Config> implements Codec.Sup
          * <p>2 - HASH_HASHCODE_LONG_REV : mostly bad
          * <p>3 - HASH_MD5 :  marginally better accuracy, much slower
          * <p>4 - HASH_PLUGGABLE_SHIFT : best blend of speed and accuracy
+         * <p>5 - HASH_BLOCKED_MURMUR : fastest, slightly more false positives
          * <p>Default value is 4.
          */
         @Codec.Set(codable = true)
@@ -144,6 +144,16 @@ public class DataSum extends TreeNodeData<DataSum.Config> {
         return true;
     }
 
+    @Override
+    public boolean updateChildData(DataTreeNodeUpdater state, DataTreeNode tn, DataSum.Config conf, int count) {
+        long sumBefore = sum;
+        long numBefore = num;
+        updateChildData(state, tn, conf);
+        sum += (sum - sumBefore) * (count - 1);
+        num += (num - numBefore) * (count - 1);
+        return true;
+    }
+
     @Override
     public ValueObject getValue(String key) {
         if (key.equals("sum")) {
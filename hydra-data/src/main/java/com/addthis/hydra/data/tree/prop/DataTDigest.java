@@ -81,6 +81,11 @@ public class DataTDigest extends TreeNodeData<DataTDigest.Config> implements Cod
      *  quantile(x) : the value of the digest for quatile x (x must be between 0 and 1)
      * </pre>
      *
+     * <p>Both commands return the digest as a custom value type. The sum of two digests is
+     * their merge, so the "c" column of the {@link com.addthis.hydra.data.query.op.OpGather gather}
+     * operation and the {@link com.addthis.hydra.data.query.op.OpTDigest tdigest} operation
+     * compute quantiles of the values of all nodes and tasks.</p>
+     *
      * @user-reference
      * @hydra-name tdigest
      */
@@ -196,6 +201,10 @@ public class DataTDigest extends TreeNodeData<DataTDigest.Config> implements Cod
             this.op = op;
         }
 
+        public TDigest getDigest() {
+            return tdigest;
+        }
+
         @Override
         public Class<? extends ValueCustom> getContainerClass() {
             return TDigestValue.class;
@@ -276,7 +285,8 @@ public class DataTDigest extends TreeNodeData<DataTDigest.Config> implements Cod
         @Override
         public ValueNumber sum(ValueNumber valueNumber) {
             if (TDigestValue.class == valueNumber.getClass()) {
-                return new TDigestValue(TDigest.merge(tdigest.compression(), Arrays.asList(((TDigestValue) valueNumber).tdigest)), op, quantile);
+                return new TDigestValue(TDigest.merge(tdigest.compression(),
+                        Arrays.asList(tdigest, ((TDigestValue) valueNumber).tdigest)), op, quantile);
             }
             return asLong().sum(valueNumber.asLong());
         }
@@ -15,13 +15,8 @@ package com.addthis.hydra.data.util;
 
 import javax.annotation.Nonnull;
 
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
-import com.addthis.basis.util.MemoryCounter;
 
 import com.addthis.codec.Codec;
 
@@ -30,14 +25,23 @@ import jsr166e.ConcurrentHashMapV8;
 /**
  * Class that helps maintain a top N list for any String Map TODO should move
  * into basis libraries
+ * <p/>
+ * The counts are kept in a {@link StreamSummary} guarded by the topper
+ * so that evicting the smallest count is a constant time operation.
+ * The summary is encoded as the map of keys to counts so that
+ * previously encoded toppers can still be decoded.
  */
 public final class ConcurrentKeyTopper implements Codec.SuperCodable {
 
     public ConcurrentKeyTopper() {
     }
 
+    /**
+     * Counts of the summary from the last encode. Released by the next
+     * update. The tree node that holds the topper is locked while it is
+     * encoded, so an update never runs during an encode.
+     */
     @Codec.Set(codable = true, required = true)
-//  @MemoryCounter.Mem(estimate = false, size = 50000)
     private ConcurrentHashMapV8<String, Long> map;
 
     @SuppressWarnings("unused")
@@ -51,28 +55,29 @@ public final class ConcurrentKeyTopper implements Codec.SuperCodable {
     @Codec.Set(codable = true)
     private boolean lossy;
 
-    // If maxSizeLimit is true then map.size() >= maxSize
-    private volatile boolean maxSizeLimit = false;
+    /**
+     * Non-zero errors of the keys from the last encode. Released with {@link #map}.
+     */
+    @Codec.Set(codable = true)
+    private HashMap<String, Long> errors;
 
-    @MemoryCounter.Mem(estimate = false, size = 64)
-    private final AtomicReference<String> staging = new AtomicReference<>();
+    private StreamSummary summary;
 
-    @MemoryCounter.Mem(estimate = false, size = 64)
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private String staging;
 
     @Override
-    public String toString() {
-        return "topper(map:" + map.toString() + ",lossy:" + lossy + ")";
+    public synchronized String toString() {
+        return "topper(map:" + summary.toString() + ",lossy:" + lossy + ")";
     }
 
     public ConcurrentKeyTopper init(int size) {
-        map = new ConcurrentHashMapV8<>(size + 16, 0.75f, 4);
+        summary = new StreamSummary(size + 16);
         this.lossy = true;
         return this;
     }
 
     public ConcurrentKeyTopper init() {
-        map = new ConcurrentHashMapV8<>(16, 0.75f, 4);
+        summary = new StreamSummary(16);
         this.lossy = true;
         return this;
     }
@@ -82,103 +87,29 @@ public final class ConcurrentKeyTopper implements Codec.SuperCodable {
         return lossy;
     }
 
-    public int size() {
-        return map.size();
+    public synchronized int size() {
+        return summary.size();
     }
 
-    public Long get(String key) {
-        return map.get(key);
-    }
-
-    private String findMinKey() {
-        String minKey = null;
-        long minValue = Long.MAX_VALUE;
-
-        for (Map.Entry<String, Long> entry : map.entrySet()) {
-            long value = entry.getValue();
-            if (value < minValue) {
-                minValue = value;
-                minKey = entry.getKey();
-            }
-        }
-
-        return minKey;
+    public synchronized Long get(String key) {
+        return summary.get(key);
     }
 
     /**
-     * returns the list sorted by greatest to least count.
+     * Returns the amount by which the count of a key may exceed the
+     * number of times it was incremented.
+     *
+     * @return the error of the key or zero if the key is not in the topper
      */
-    @SuppressWarnings("unchecked")
-    public Map.Entry<String, Long>[] getSortedEntries() {
-        lock.readLock().lock();
-
-        try {
-            int size = map.size();
-            Map.Entry e[] = new Map.Entry[size];
-            e = map.entrySet().toArray(e);
-            Arrays.sort(e, new Comparator() {
-                public int compare(Object arg0, Object arg1) {
-                    return Long.compare(
-                            ((Map.Entry<String, Long>) arg1).getValue(),
-                            ((Map.Entry<String, Long>) arg0).getValue());
-                }
-            });
-            return e;
-        } finally {
-            lock.readLock().unlock();
-        }
+    public synchronized long getError(String key) {
+        return summary.getError(key);
     }
 
     /**
-     * Precondition: the readlock is held
-     * Postcondition: the readlock is held
+     * returns the list sorted by greatest to least count.
      */
-    private String evictAnotherKey(@Nonnull String newKey, int weight) {
-        assert (weight > 0);
-
-        lock.readLock().unlock();
-        boolean writeLock = false;
-
-        try {
-            lock.writeLock().lock();
-            writeLock = true;
-
-            if (map.containsKey(newKey)) {
-                return null;
-            }
-
-            // the staging area is only used when weight is one
-            if (weight == 1) {
-                String currentStage = staging.get();
-
-                if (!newKey.equals(currentStage)) {
-                    return null;
-                }
-            }
-
-            String key = findMinKey();
-
-            long minValue = map.get(key);
-
-            map.remove(key);
-
-            // if weight is one then we used the staging area
-            // and that should be counted as an instance
-            if (weight == 1) {
-                map.put(newKey, minValue + 1);
-                staging.set(null);
-            } else {
-                map.put(newKey, minValue + weight - 1);
-            }
-
-            return key;
-        } finally {
-            lock.readLock().lock();
-
-            if (writeLock) {
-                lock.writeLock().unlock();
-            }
-        }
+    public synchronized Map.Entry<String, Long>[] getSortedEntries() {
+        return summary.getSortedEntries();
     }
 
     /**
@@ -200,43 +131,34 @@ public final class ConcurrentKeyTopper implements Codec.SuperCodable {
      * @return element dropped from top or null if accepted into top with no
      *         drops
      */
-    public String increment(@Nonnull String id, int weight, int maxSize) {
+    public synchronized String increment(@Nonnull String id, int weight, int maxSize) {
         assert (weight > 0);
+        releaseEncoded();
 
-        lock.readLock().lock();
-
-        try {
-            while (true) {
-                Long currentValue = map.get(id);
-                if (currentValue == null) {
-                    if (!maxSizeLimit && map.size() < maxSize) {
-                        if (map.putIfAbsent(id, (long) weight) == null) {
-                            return null;
-                        }
-                    } else {
-                        maxSizeLimit = true;
-                        if (weight == 1) {
-                            String currentStage = staging.get();
-                            if (!id.equals(currentStage)) {
-                                if (staging.compareAndSet(currentStage, id)) {
-                                    return currentStage;
-                                } else {
-                                    continue;
-                                }
-                            }
-                        }
-                        String evicted = evictAnotherKey(id, weight);
-                        if (evicted != null) {
-                            return evicted;
-                        }
-                    }
-                } else if (map.replace(id, currentValue, currentValue + weight)) {
-                    return null;
-                }
-            }
-        } finally {
-            lock.readLock().unlock();
+        if (summary.increment(id, weight)) {
+            return null;
         }
+        if (summary.size() < maxSize) {
+            summary.put(id, weight);
+            return null;
+        }
+        // the staging area is only used when weight is one
+        if (weight == 1 && !id.equals(staging)) {
+            String previous = staging;
+            staging = id;
+            return previous;
+        }
+        long minValue = summary.minCount();
+        String key = summary.removeMin();
+        // if weight is one then we used the staging area
+        // and that should be counted as an instance
+        if (weight == 1) {
+            summary.put(id, minValue + 1, minValue);
+            staging = null;
+        } else {
+            summary.put(id, minValue + weight - 1, minValue);
+        }
+        return key;
     }
 
     /**
@@ -249,34 +171,39 @@ public final class ConcurrentKeyTopper implements Codec.SuperCodable {
      * @return whether the element was in the map
      */
     @SuppressWarnings("unused")
-    public boolean incrementExisting(String id) {
-        lock.readLock().lock();
+    public synchronized boolean incrementExisting(String id) {
+        releaseEncoded();
+        return summary.increment(id, 1);
+    }
 
-        try {
-            while (true) {
-                Long currentValue = map.get(id);
-                if (currentValue == null) {
-                    return false;
-                } else if (map.replace(id, currentValue, currentValue + 1)) {
-                    return true;
-                }
-            }
-        } finally {
-            lock.readLock().unlock();
-        }
+    /**
+     * Drop the snapshot of the last encode. Called under the monitor.
+     */
+    private void releaseEncoded() {
+        map = null;
+        errors = null;
     }
 
     @Override
-    public void postDecode() {
+    public synchronized void postDecode() {
+        summary = new StreamSummary(map.size() + 16);
+        for (Map.Entry<String, Long> entry : map.entrySet()) {
+            Long error = (errors != null) ? errors.get(entry.getKey()) : null;
+            summary.put(entry.getKey(), entry.getValue(), (error != null) ? error : 0);
+        }
+        map = null;
+        errors = null;
     }
 
     @Override
-    public void preEncode() {
-        String key = findMinKey();
-
-        if (key != null) {
-            minKey = key;
-            minVal = map.get(key);
+    public synchronized void preEncode() {
+        ConcurrentHashMapV8<String, Long> snapshot = new ConcurrentHashMapV8<>(summary.size() + 16, 0.75f, 4);
+        snapshot.putAll(summary.toMap());
+        errors = summary.toErrorMap();
+        map = snapshot;
+        if (summary.size() > 0) {
+            minKey = summary.minKey();
+            minVal = summary.minCount();
         }
     }
 }
@@ -13,8 +13,6 @@
  */
 package com.addthis.hydra.data.util;
 
-import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -24,12 +22,21 @@ import com.addthis.codec.Codec;
 /**
  * Class that helps maintain a top N list for any String Map TODO should move
  * into basis libraries
+ * <p/>
+ * The counts are kept in a {@link StreamSummary} so that the smallest
+ * count is found in constant time when a full topper admits a new key.
+ * The summary is encoded as the map of keys to counts so that
+ * previously encoded toppers can still be decoded.
  */
-public final class KeyTopper implements Codec.Codable {
+public final class KeyTopper implements Codec.SuperCodable {
 
     public KeyTopper() {
     }
 
+    /**
+     * Counts of the summary from the last encode.
+     * Cleared with {@link #errors} by any update and after decoding.
+     */
     @Codec.Set(codable = true, required = true)
     private HashMap<String, Long> map;
     @Codec.Set(codable = true)
@@ -38,14 +45,21 @@ public final class KeyTopper implements Codec.Codable {
     private String minKey;
     @Codec.Set(codable = true)
     private boolean lossy;
+    /**
+     * Non-zero errors of the keys. Older toppers do not have errors.
+     */
+    @Codec.Set(codable = true)
+    private HashMap<String, Long> errors;
+
+    private StreamSummary summary;
 
     @Override
     public String toString() {
-        return "topper(min:" + minKey + "=" + minVal + "->" + map.toString() + ",lossy:" + lossy + ")";
+        return "topper(min:" + minKey + "=" + minVal + "->" + summary.toString() + ",lossy:" + lossy + ")";
     }
 
     public KeyTopper init() {
-        map = new HashMap<String, Long>();
+        summary = new StreamSummary();
         return this;
     }
 
@@ -59,41 +73,46 @@ public final class KeyTopper implements Codec.Codable {
     }
 
     public int size() {
-        return map.size();
+        return summary.size();
     }
 
     public Long get(String key) {
-        return map.get(key);
+        return summary.get(key);
+    }
+
+    /**
+     * Returns the amount by which the count of a key may exceed the
+     * number of times it was incremented. A lossy topper admits a new key
+     * with the count of the key that it evicts and that count is the error.
+     *
+     * @return the error of the key or zero if the key is not in the topper
+     */
+    public long getError(String key) {
+        return summary.getError(key);
     }
 
     /**
      * returns the list sorted by greatest to least count.
      */
-    @SuppressWarnings("unchecked")
     public Map.Entry<String, Long>[] getSortedEntries() {
-        Map.Entry e[] = new Map.Entry[map.size()];
-        e = map.entrySet().toArray(e);
-        Arrays.sort(e, new Comparator() {
-            public int compare(Object arg0, Object arg1) {
-                return (int) (((Long) ((Map.Entry) arg1).getValue()) - ((Long) ((Map.Entry) arg0).getValue()));
-            }
-        });
-        return e;
+        return summary.getSortedEntries();
     }
 
     /** */
     private void recalcMin(boolean maxed, boolean newentry, String id) {
         if (minKey == null || (maxed && newentry) || (!newentry && id.equals(minKey))) {
-            minVal = 0;
-            for (Map.Entry<String, Long> e : this.map.entrySet()) {
-                if (minVal == 0 || e.getValue() < minVal) {
-                    minVal = e.getValue();
-                    minKey = e.getKey();
-                }
-            }
+            minKey = summary.minKey();
+            minVal = summary.minCount();
         }
     }
 
+    /**
+     * Returns the count that a new key starts from.
+     */
+    private long initialCount(int maxsize) {
+        return Math.max(lossy && (summary.size() >= maxsize) ? minVal - 1 : 0L, 0L);
+    }
+
     /**
      * Adds 'ID' the top N if: 1) there are more empty slots or 2) count >
      * smallest top count in the list
@@ -103,11 +122,7 @@ public final class KeyTopper implements Codec.Codable {
      *         drops
      */
     public String increment(String id, int maxsize) {
-        Long count = map.get(id);
-        if (count == null) {
-            count = Math.max(lossy && (map.size() >= maxsize) ? minVal - 1 : 0L, 0L);
-        }
-        return update(id, count + 1, maxsize);
+        return increment(id, 1, maxsize);
     }
 
     /**
@@ -121,19 +136,18 @@ public final class KeyTopper implements Codec.Codable {
      *         drops
      */
     public String increment(String id, int weight, int maxsize) {
-        Long count = map.get(id);
-
+        Long count = summary.get(id);
         if (count == null) {
-            count = Math.max(lossy && (map.size() >= maxsize) ? minVal - 1 : 0L, 0L);
+            long initial = initialCount(maxsize);
+            return update(id, initial + weight, initial, maxsize);
         }
-
-        return update(id, count + weight, maxsize);
+        return update(id, count + weight, 0, maxsize);
     }
 
     public String decrement(String id, int maxsize) {
-        Long count = map.get(id);
+        Long count = summary.get(id);
         if (count == null) {
-            count = Math.max(lossy && (map.size() >= maxsize) ? minVal + 1 : 0L, 0L);
+            count = Math.max(lossy && (summary.size() >= maxsize) ? minVal + 1 : 0L, 0L);
         }
         return update(id, count - 1, maxsize);
     }
@@ -148,11 +162,8 @@ public final class KeyTopper implements Codec.Codable {
      * @return whether the element was in the map
      */
     public boolean incrementExisting(String id) {
-        if (map.containsKey(id)) {
-            map.put(id, get(id) + 1);
-            return true;
-        }
-        return false;
+        releaseEncoded();
+        return summary.increment(id, 1);
     }
 
     /**
@@ -166,21 +177,29 @@ public final class KeyTopper implements Codec.Codable {
      *         or inclusion in the top.
      */
     public String update(String id, long count, int maxsize) {
+        return update(id, count, 0, maxsize);
+    }
+
+    /**
+     * @param error error of 'ID' if it is a new entry
+     */
+    private String update(String id, long count, long error, int maxsize) {
+        releaseEncoded();
         String removed = null;
         /** should go into top */
         if (count >= minVal) {
-            boolean newentry = map.get(id) == null;
-            boolean maxed = map.size() >= maxsize;
+            boolean newentry = !summary.contains(id);
+            boolean maxed = summary.size() >= maxsize;
             // only remove if topN is full and we're not updating an existing entry
             if (maxed && newentry) {
-                if (minKey == null && minVal == 0) {
-                    recalcMin(maxed, newentry, id);
-                }
-                map.remove(minKey);
-                removed = minKey;
+                removed = removeMin();
             }
             // update or add entry
-            map.put(id, count);
+            if (newentry) {
+                summary.put(id, count, error);
+            } else {
+                summary.put(id, count);
+            }
             // recalc min *only* if the min entry was removed or updated
             // checking for null minkey is critical check for empty topN as it
             // sets first min
@@ -191,8 +210,8 @@ public final class KeyTopper implements Codec.Codable {
             }
         }
         /** should go into top */
-        else if (map.size() < maxsize) {
-            map.put(id, count);
+        else if (summary.size() < maxsize) {
+            summary.put(id, count, error);
             if (minKey == null || count < minVal) {
                 minKey = id;
                 minVal = count;
@@ -204,4 +223,82 @@ public final class KeyTopper implements Codec.Codable {
         }
         return removed;
     }
+
+    /**
+     * Remove the key with the smallest count. Of the keys with the
+     * smallest count the one that most recently became the minimum
+     * is removed if it is known.
+     */
+    private String removeMin() {
+        Long count = (minKey != null) ? summary.get(minKey) : null;
+        if (count != null && count == summary.minCount()) {
+            summary.remove(minKey);
+            return minKey;
+        }
+        return summary.removeMin();
+    }
+
+    /**
+     * Add the counts of another topper to this topper and keep the
+     * {@code maxsize} keys with the largest counts. The result is exact
+     * if neither topper has evicted a key. Otherwise a key that is missing
+     * from a lossy topper may have been counted up to the smallest count of
+     * that topper, which is added to both the count and the error of the key
+     * as in the merge of Space-Saving summaries.
+     */
+    public KeyTopper merge(KeyTopper other, int maxsize) {
+        releaseEncoded();
+        long missing = other.lossy && other.size() >= maxsize ? other.summary.minCount() : 0;
+        long otherMissing = lossy && size() >= maxsize ? summary.minCount() : 0;
+        if (missing > 0) {
+            for (Map.Entry<String, Long> entry : summary.getSortedEntries()) {
+                if (!other.summary.contains(entry.getKey())) {
+                    summary.merge(entry.getKey(), missing, missing);
+                }
+            }
+        }
+        for (Map.Entry<String, Long> entry : other.summary.getSortedEntries()) {
+            String key = entry.getKey();
+            long error = other.summary.getError(key);
+            if (summary.contains(key)) {
+                summary.merge(key, entry.getValue(), error);
+            } else {
+                summary.put(key, entry.getValue() + otherMissing, error + otherMissing);
+            }
+        }
+        while (summary.size() > maxsize) {
+            summary.removeMin();
+        }
+        lossy |= other.lossy;
+        minKey = summary.minKey();
+        minVal = summary.minCount();
+        return this;
+    }
+
+    /**
+     * Drop the snapshot of the last encode once the summary changes.
+     */
+    private void releaseEncoded() {
+        map = null;
+        errors = null;
+    }
+
+    @Override
+    public void preEncode() {
+        if (map == null) {
+            map = summary.toMap();
+            errors = summary.toErrorMap();
+        }
+    }
+
+    @Override
+    public void postDecode() {
+        summary = new StreamSummary(map.size());
+        for (Map.Entry<String, Long> entry : map.entrySet()) {
+            Long error = (errors != null) ? errors.get(entry.getKey()) : null;
+            summary.put(entry.getKey(), entry.getValue(), (error != null) ? error : 0);
+        }
+        map = null;
+        errors = null;
+    }
 }
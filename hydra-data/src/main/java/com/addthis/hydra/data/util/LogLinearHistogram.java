@@ -0,0 +1,323 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+
+import com.addthis.basis.util.Bytes;
+
+/**
+ * Histogram of non-negative longs with buckets whose width grows with
+ * their value, as in HdrHistogram. Values below 2^precision have a bucket
+ * each. Above that every power of two is divided into 2^(precision-1) equal
+ * buckets, so a bucket never spans more than 2^(1-precision) of its values
+ * and a quantile is within 2^-precision of the true value. Recording a
+ * value is a constant time operation. Negative values are recorded as zero.
+ * <p/>
+ * Only the range of buckets between the smallest and the largest value is
+ * allocated. {@link #toBytes()} writes the non-empty buckets as variable
+ * length integers. Histograms can be merged with {@link #merge(LogLinearHistogram)}.
+ * This class is not thread safe.
+ */
+public final class LogLinearHistogram {
+
+    private static final long[] EMPTY = new long[0];
+
+    private final int precision;
+    private final int half;
+
+    /**
+     * counts of the buckets from {@code offset}
+     */
+    private long[] counts = EMPTY;
+    private int offset;
+
+    private long count;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+    private long sum;
+
+    /**
+     * @param precision between 1 and 16 bits
+     */
+    public LogLinearHistogram(int precision) {
+        if (precision < 1 || precision > 16) {
+            throw new IllegalArgumentException("precision must be between 1 and 16: " + precision);
+        }
+        this.precision = precision;
+        this.half = 1 << (precision - 1);
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return count > 0 ? min : 0;
+    }
+
+    public long getMax() {
+        return count > 0 ? max : 0;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public double getMean() {
+        return count > 0 ? (double) sum / count : 0;
+    }
+
+    /**
+     * Standard deviation computed from the midpoints of the buckets.
+     */
+    public double getStdDev() {
+        if (count < 2) {
+            return 0;
+        }
+        double mean = getMean();
+        double squares = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                double delta = midpoint(offset + i) - mean;
+                squares += delta * delta * counts[i];
+            }
+        }
+        return Math.sqrt(squares / (count - 1));
+    }
+
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    public void record(long value, long times) {
+        if (value < 0) {
+            value = 0;
+        }
+        int index = index(value);
+        if (index < offset || index >= offset + counts.length) {
+            grow(index);
+        }
+        counts[index - offset] += times;
+        count += times;
+        sum += value * times;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Add the values of another histogram to this histogram. If the other
+     * histogram has a different precision then its buckets are recorded
+     * at their midpoints.
+     */
+    public LogLinearHistogram merge(LogLinearHistogram other) {
+        if (other.count == 0) {
+            return this;
+        }
+        if (other.precision == precision) {
+            int first = other.offset;
+            int last = other.offset + other.counts.length - 1;
+            if (first < offset || last >= offset + counts.length) {
+                grow(first);
+                grow(last);
+            }
+            for (int i = 0; i < other.counts.length; i++) {
+                counts[first - offset + i] += other.counts[i];
+            }
+        } else {
+            for (int i = 0; i < other.counts.length; i++) {
+                if (other.counts[i] != 0) {
+                    long value = other.midpoint(other.offset + i);
+                    int index = index(value);
+                    if (index < offset || index >= offset + counts.length) {
+                        grow(index);
+                    }
+                    counts[index - offset] += other.counts[i];
+                }
+            }
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        return this;
+    }
+
+    /**
+     * Returns the value at quantile {@code q} between 0 and 1, which is the
+     * midpoint of the bucket that holds it limited to the smallest and
+     * largest recorded values. Returns zero if the histogram is empty.
+     */
+    public long getQuantile(double q) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(Math.max(q, 0), 1) * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(Math.max(midpoint(offset + i), min), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns the fraction of values that are less than or equal to {@code value}.
+     */
+    public double getCdf(long value) {
+        if (count == 0) {
+            return 0;
+        }
+        if (value >= max) {
+            return 1;
+        }
+        if (value < min) {
+            return 0;
+        }
+        int index = index(value);
+        long seen = 0;
+        for (int i = 0; i < counts.length && offset + i <= index; i++) {
+            seen += counts[i];
+        }
+        return (double) seen / count;
+    }
+
+    int index(long value) {
+        if (value < 2 * half) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - precision;
+        return shift * half + (int) (value >>> shift);
+    }
+
+    long lowerBound(int index) {
+        if (index < 2 * half) {
+            return index;
+        }
+        int shift = index / half - 1;
+        return (long) (index - shift * half) << shift;
+    }
+
+    long midpoint(int index) {
+        if (index < 2 * half) {
+            return index;
+        }
+        int shift = index / half - 1;
+        return ((long) (index - shift * half) << shift) + (1L << (shift - 1));
+    }
+
+    private void grow(int index) {
+        if (counts.length == 0) {
+            counts = new long[Math.max(half / 2, 4)];
+            offset = Math.max(0, index - counts.length / 2);
+            return;
+        }
+        int first = Math.min(offset, index);
+        int last = Math.max(offset + counts.length - 1, index);
+        int length = last - first + 1;
+        // leave room to grow in the direction of the new index
+        int spare = Math.max(length / 4, 4);
+        int newOffset = index < offset ? Math.max(0, first - spare) : first;
+        int newLength = last - newOffset + 1 + (index >= offset ? spare : 0);
+        long[] grown = new long[newLength];
+        System.arraycopy(counts, 0, grown, offset - newOffset, counts.length);
+        counts = grown;
+        offset = newOffset;
+    }
+
+    /**
+     * Returns the histogram as variable length integers: the precision, the
+     * count and if not empty the smallest and largest values, the sum, the
+     * number of non-empty buckets and for each of them the distance from the
+     * previous non-empty bucket and its count.
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            Bytes.writeLength(precision, out);
+            Bytes.writeLength(count, out);
+            if (count > 0) {
+                Bytes.writeLength(min, out);
+                Bytes.writeLength(max, out);
+                Bytes.writeLength(sum, out);
+                int buckets = 0;
+                for (long c : counts) {
+                    if (c != 0) {
+                        buckets++;
+                    }
+                }
+                Bytes.writeLength(buckets, out);
+                int previous = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] != 0) {
+                        Bytes.writeLength(offset + i - previous, out);
+                        Bytes.writeLength(counts[i], out);
+                        previous = offset + i;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return out.toByteArray();
+    }
+
+    public static LogLinearHistogram fromBytes(byte[] bytes) {
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+        try {
+            LogLinearHistogram histogram = new LogLinearHistogram((int) Bytes.readLength(in));
+            histogram.count = Bytes.readLength(in);
+            if (histogram.count > 0) {
+                histogram.min = Bytes.readLength(in);
+                histogram.max = Bytes.readLength(in);
+                histogram.sum = Bytes.readLength(in);
+                int buckets = (int) Bytes.readLength(in);
+                int[] indices = new int[buckets];
+                long[] values = new long[buckets];
+                int index = 0;
+                for (int i = 0; i < buckets; i++) {
+                    index += (int) Bytes.readLength(in);
+                    indices[i] = index;
+                    values[i] = Bytes.readLength(in);
+                }
+                if (buckets > 0) {
+                    histogram.offset = indices[0];
+                    histogram.counts = new long[indices[buckets - 1] - indices[0] + 1];
+                    for (int i = 0; i < buckets; i++) {
+                        histogram.counts[indices[i] - histogram.offset] = values[i];
+                    }
+                }
+            }
+            return histogram;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LogLinearHistogram[precision=" + precision + ",count=" + count + ",min=" + getMin() +
+               ",max=" + getMax() + ",offset=" + offset + ",counts=" + Arrays.toString(counts) + "]";
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.util;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts of string keys ordered by count as in the Stream-Summary structure
+ * of the Space-Saving algorithm (Metwally, Agrawal and El Abbadi). Keys with
+ * the same count share a bucket and the buckets are linked in order of their
+ * count, so the key with the smallest count is found in constant time and
+ * changing a count by one moves the key to an adjacent bucket. Larger changes
+ * walk the buckets between the old and the new count.
+ * <p/>
+ * Each key also has an error, which is the amount by which its count may
+ * over-estimate the true count. The error is maintained by the caller.
+ * <p/>
+ * Keys, counts and links are stored in arrays indexed by slot and the keys
+ * are found through an open addressing table of slots, so the structure has
+ * no per-key objects besides the keys themselves. This class is not thread safe.
+ */
+public final class StreamSummary {
+
+    private static final int NONE = -1;
+
+    // per slot
+    private String[] keys;
+    private long[] counts;
+    private long[] errors;
+    private int[] bucketOf;
+    private int[] prev;
+    private int[] next;
+
+    // per bucket
+    private long[] bucketCounts;
+    private int[] heads;
+    private int[] tails;
+    private int[] lower;
+    private int[] higher;
+
+    // slot + 1 of each key or 0 if empty
+    private int[] table;
+
+    private int size;
+    private int usedSlots;
+    private int freeSlot = NONE;
+    private int usedBuckets;
+    private int freeBucket = NONE;
+    private int minBucket = NONE;
+    private int maxBucket = NONE;
+
+    public StreamSummary() {
+        this(8);
+    }
+
+    public StreamSummary(int capacity) {
+        capacity = Math.max(capacity, 4);
+        keys = new String[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        bucketOf = new int[capacity];
+        prev = new int[capacity];
+        next = new int[capacity];
+        bucketCounts = new long[capacity];
+        heads = new int[capacity];
+        tails = new int[capacity];
+        lower = new int[capacity];
+        higher = new int[capacity];
+        table = new int[Integer.highestOneBit(capacity * 2 - 1) * 2];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(String key) {
+        return find(key) != NONE;
+    }
+
+    /**
+     * Returns the count of {@code key} or null if the key is not present.
+     */
+    public Long get(String key) {
+        int slot = find(key);
+        return slot != NONE ? counts[slot] : null;
+    }
+
+    /**
+     * Returns the error of {@code key} or zero if the key is not present.
+     */
+    public long getError(String key) {
+        int slot = find(key);
+        return slot != NONE ? errors[slot] : 0;
+    }
+
+    /**
+     * Returns the key with the smallest count or null if empty.
+     * Of the keys with the smallest count the key that has
+     * had that count for the longest time is returned.
+     */
+    public String minKey() {
+        return minBucket != NONE ? keys[heads[minBucket]] : null;
+    }
+
+    /**
+     * Returns the smallest count or zero if empty.
+     */
+    public long minCount() {
+        return minBucket != NONE ? bucketCounts[minBucket] : 0;
+    }
+
+    /**
+     * Set the count of {@code key}. A new key has an error of zero
+     * and an existing key keeps its error.
+     */
+    public void put(String key, long count) {
+        int slot = find(key);
+        if (slot == NONE) {
+            add(key, count, 0);
+        } else {
+            move(slot, count);
+        }
+    }
+
+    /**
+     * Set the count and the error of {@code key}.
+     */
+    public void put(String key, long count, long error) {
+        int slot = find(key);
+        if (slot == NONE) {
+            add(key, count, error);
+        } else {
+            errors[slot] = error;
+            move(slot, count);
+        }
+    }
+
+    /**
+     * Add {@code delta} to the count of an existing key.
+     *
+     * @return false if the key is not present
+     */
+    public boolean increment(String key, long delta) {
+        int slot = find(key);
+        if (slot == NONE) {
+            return false;
+        }
+        move(slot, counts[slot] + delta);
+        return true;
+    }
+
+    /**
+     * Add {@code count} to the count and {@code error} to the error of
+     * {@code key}. A key that is not present is added with those values.
+     */
+    public void merge(String key, long count, long error) {
+        int slot = find(key);
+        if (slot == NONE) {
+            add(key, count, error);
+        } else {
+            errors[slot] += error;
+            move(slot, counts[slot] + count);
+        }
+    }
+
+    /**
+     * @return false if the key is not present
+     */
+    public boolean remove(String key) {
+        int slot = find(key);
+        if (slot == NONE) {
+            return false;
+        }
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * Remove the key returned by {@link #minKey()}.
+     *
+     * @return the removed key or null if empty
+     */
+    public String removeMin() {
+        if (minBucket == NONE) {
+            return null;
+        }
+        int slot = heads[minBucket];
+        String key = keys[slot];
+        removeSlot(slot);
+        return key;
+    }
+
+    /**
+     * Returns the keys and counts from the largest to the smallest count.
+     */
+    @SuppressWarnings("unchecked")
+    public Map.Entry<String, Long>[] getSortedEntries() {
+        Map.Entry<String, Long>[] result = new Map.Entry[size];
+        int pos = 0;
+        for (int b = maxBucket; b != NONE; b = lower[b]) {
+            for (int s = heads[b]; s != NONE; s = next[s]) {
+                result[pos++] = new AbstractMap.SimpleImmutableEntry<>(keys[s], counts[s]);
+            }
+        }
+        return result;
+    }
+
+    public HashMap<String, Long> toMap() {
+        HashMap<String, Long> map = new HashMap<>(size * 2);
+        for (int b = minBucket; b != NONE; b = higher[b]) {
+            for (int s = heads[b]; s != NONE; s = next[s]) {
+                map.put(keys[s], counts[s]);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Returns the keys that have a non-zero error or null if there are none.
+     */
+    public HashMap<String, Long> toErrorMap() {
+        HashMap<String, Long> map = null;
+        for (int b = minBucket; b != NONE; b = higher[b]) {
+            for (int s = heads[b]; s != NONE; s = next[s]) {
+                if (errors[s] != 0) {
+                    if (map == null) {
+                        map = new HashMap<>();
+                    }
+                    map.put(keys[s], errors[s]);
+                }
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int find(String key) {
+        int mask = table.length - 1;
+        for (int i = hash(key) & mask; table[i] != 0; i = (i + 1) & mask) {
+            int slot = table[i] - 1;
+            if (keys[slot].equals(key)) {
+                return slot;
+            }
+        }
+        return NONE;
+    }
+
+    private void add(String key, long count, long error) {
+        if ((size + 1) * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        int slot = allocateSlot();
+        keys[slot] = key;
+        counts[slot] = count;
+        errors[slot] = error;
+        int mask = table.length - 1;
+        int i = hash(key) & mask;
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = slot + 1;
+        size++;
+        place(slot, count, minBucket);
+    }
+
+    private void removeSlot(int slot) {
+        unlinkSlot(slot);
+        // backward shift deletion from the open addressing table
+        int mask = table.length - 1;
+        int i = hash(keys[slot]) & mask;
+        while (table[i] != slot + 1) {
+            i = (i + 1) & mask;
+        }
+        table[i] = 0;
+        for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            int home = hash(keys[table[j] - 1]) & mask;
+            if ((j > i && (home <= i || home > j)) || (j < i && home <= i && home > j)) {
+                table[i] = table[j];
+                table[j] = 0;
+                i = j;
+            }
+        }
+        keys[slot] = null;
+        next[slot] = freeSlot;
+        freeSlot = slot;
+        size--;
+    }
+
+    private void rehash(int length) {
+        table = new int[length];
+        int mask = length - 1;
+        for (int slot = 0; slot < usedSlots; slot++) {
+            if (keys[slot] != null) {
+                int i = hash(keys[slot]) & mask;
+                while (table[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = slot + 1;
+            }
+        }
+    }
+
+    private int allocateSlot() {
+        if (freeSlot != NONE) {
+            int slot = freeSlot;
+            freeSlot = next[slot];
+            return slot;
+        }
+        if (usedSlots == keys.length) {
+            int length = keys.length * 2;
+            keys = Arrays.copyOf(keys, length);
+            counts = Arrays.copyOf(counts, length);
+            errors = Arrays.copyOf(errors, length);
+            bucketOf = Arrays.copyOf(bucketOf, length);
+            prev = Arrays.copyOf(prev, length);
+            next = Arrays.copyOf(next, length);
+        }
+        return usedSlots++;
+    }
+
+    private int allocateBucket(long count) {
+        int bucket;
+        if (freeBucket != NONE) {
+            bucket = freeBucket;
+            freeBucket = higher[bucket];
+        } else {
+            if (usedBuckets == bucketCounts.length) {
+                int length = bucketCounts.length * 2;
+                bucketCounts = Arrays.copyOf(bucketCounts, length);
+                heads = Arrays.copyOf(heads, length);
+                tails = Arrays.copyOf(tails, length);
+                lower = Arrays.copyOf(lower, length);
+                higher = Arrays.copyOf(higher, length);
+            }
+            bucket = usedBuckets++;
+        }
+        bucketCounts[bucket] = count;
+        heads[bucket] = NONE;
+        tails[bucket] = NONE;
+        return bucket;
+    }
+
+    /**
+     * Change the count of a slot.
+     */
+    private void move(int slot, long count) {
+        if (counts[slot] == count) {
+            return;
+        }
+        counts[slot] = count;
+        place(slot, count, unlinkSlot(slot));
+    }
+
+    /**
+     * Remove a slot from its bucket and free the bucket if it is empty.
+     *
+     * @return a bucket that is still linked and was adjacent to the slot, or NONE
+     */
+    private int unlinkSlot(int slot) {
+        int bucket = bucketOf[slot];
+        if (prev[slot] != NONE) {
+            next[prev[slot]] = next[slot];
+        } else {
+            heads[bucket] = next[slot];
+        }
+        if (next[slot] != NONE) {
+            prev[next[slot]] = prev[slot];
+        } else {
+            tails[bucket] = prev[slot];
+        }
+        if (heads[bucket] != NONE) {
+            return bucket;
+        }
+        int below = lower[bucket];
+        int above = higher[bucket];
+        if (below != NONE) {
+            higher[below] = above;
+        } else {
+            minBucket = above;
+        }
+        if (above != NONE) {
+            lower[above] = below;
+        } else {
+            maxBucket = below;
+        }
+        higher[bucket] = freeBucket;
+        freeBucket = bucket;
+        return below != NONE ? below : above;
+    }
+
+    /**
+     * Append a slot to the bucket of {@code count}, creating the bucket if
+     * necessary. The search for the bucket starts at {@code hint}.
+     */
+    private void place(int slot, long count, int hint) {
+        int floor = hint != NONE ? hint : minBucket;
+        if (floor != NONE) {
+            if (bucketCounts[floor] <= count) {
+                while (higher[floor] != NONE && bucketCounts[higher[floor]] <= count) {
+                    floor = higher[floor];
+                }
+            } else {
+                while (floor != NONE && bucketCounts[floor] > count) {
+                    floor = lower[floor];
+                }
+            }
+        }
+        int bucket;
+        if (floor != NONE && bucketCounts[floor] == count) {
+            bucket = floor;
+        } else {
+            bucket = allocateBucket(count);
+            int above = (floor != NONE) ? higher[floor] : minBucket;
+            lower[bucket] = floor;
+            higher[bucket] = above;
+            if (floor != NONE) {
+                higher[floor] = bucket;
+            } else {
+                minBucket = bucket;
+            }
+            if (above != NONE) {
+                lower[above] = bucket;
+            } else {
+                maxBucket = bucket;
+            }
+        }
+        bucketOf[slot] = bucket;
+        next[slot] = NONE;
+        prev[slot] = tails[bucket];
+        if (tails[bucket] != NONE) {
+            next[tails[bucket]] = slot;
+        } else {
+            heads[bucket] = slot;
+        }
+        tails[bucket] = slot;
+    }
+}
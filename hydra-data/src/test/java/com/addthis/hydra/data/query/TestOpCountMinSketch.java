@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import com.addthis.hydra.data.tree.prop.DataCountMinSketch;
+
+import com.clearspring.analytics.stream.frequency.CountMinSketch;
+
+import org.junit.Test;
+
+public class TestOpCountMinSketch extends TestOp {
+
+    @Test
+    public void testKeyColumn() throws Exception {
+        CountMinSketch first = new CountMinSketch(10, 1000, 0);
+        first.add("a", 5);
+        first.add("b", 2);
+        CountMinSketch second = new CountMinSketch(10, 1000, 0);
+        second.add("a", 3);
+        second.add("c", 4);
+        doOpTest(
+                new DataTableHelper().
+                        tr().td("a").td(new DataCountMinSketch.CMSValue(first)).
+                        tr().td("b").td().
+                        tr().td("c").td(new DataCountMinSketch.CMSValue(second)),
+                "cms=1,0",
+                new DataTableHelper().
+                        tr().td("a").td(8).
+                        tr().td("c").td(4).
+                        tr().td("b").td(2)
+        );
+        doOpTest(
+                new DataTableHelper().
+                        tr().td("a").td(new DataCountMinSketch.CMSValue(first)).
+                        tr().td("b").td().
+                        tr().td("c").td(new DataCountMinSketch.CMSValue(second)),
+                "cms=1,0,1",
+                new DataTableHelper().
+                        tr().td("a").td(8)
+        );
+    }
+
+    @Test
+    public void testItems() throws Exception {
+        CountMinSketch first = new CountMinSketch(10, 1000, 0);
+        first.add("a", 5);
+        first.add("b", 2);
+        CountMinSketch second = new CountMinSketch(10, 1000, 0);
+        second.add("b", 7);
+        doOpTest(
+                new DataTableHelper().
+                        tr().td("x").td(new DataCountMinSketch.CMSValue(first, "a")).
+                        tr().td("y").td(new DataCountMinSketch.CMSValue(second, "b")),
+                "cms=1",
+                new DataTableHelper().
+                        tr().td("b").td(9).
+                        tr().td("a").td(5)
+        );
+        doOpTest(
+                new DataTableHelper().
+                        tr().td("x").td(new DataCountMinSketch.CMSValue(first)).
+                        tr().td("y").td(new DataCountMinSketch.CMSValue(second)),
+                "cms=1",
+                new DataTableHelper().
+                        tr().td(14)
+        );
+    }
+}
@@ -13,6 +13,10 @@
  */
 package com.addthis.hydra.data.query;
 
+import com.addthis.hydra.data.tree.prop.DataCounting;
+
+import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
+
 import org.junit.Test;
 
 public class TestOpGather extends TestOp {
@@ -174,6 +178,43 @@ public class TestOpGather extends TestOp {
         );
     }
 
+    @Test
+    public void testGatherCardinality() throws Exception {
+        doOpTest(
+                new DataTableHelper().
+                        tr().td("a").td(sketch(0, 10)).
+                        tr().td("b").td(sketch(0, 10)).
+                        tr().td("a").td(sketch(5, 15)).
+                        tr().td("a").td(sketch(10, 20)).
+                        tr().td("b").td(sketch(0, 10)),
+                "gather=kc;sort",
+                new DataTableHelper().
+                        tr().td("a").td(20).
+                        tr().td("b").td(10)
+        );
+        doOpTest(
+                new DataTableHelper().
+                        tr().td("a").td(sketch(0, 10)).
+                        tr().td("b").td(sketch(0, 10)).
+                        tr().td("a").td(sketch(5, 15)).
+                        tr().td("a").td(sketch(10, 20)).
+                        tr().td("b").td(sketch(0, 10)),
+                "gather=kc;sort",
+                new DataTableHelper().
+                        tr().td("a").td(20).
+                        tr().td("b").td(10),
+                2, 2
+        );
+    }
+
+    private static DataCounting.LCValue sketch(int from, int to) {
+        HyperLogLogPlus hllp = new HyperLogLogPlus(14, 25);
+        for (int i = from; i < to; i++) {
+            hllp.offer(Integer.toString(i));
+        }
+        return new DataCounting.LCValue(hllp);
+    }
+
     //@Test
     public void comparePerformance() throws Exception {
         long inMemoryTime = 0;
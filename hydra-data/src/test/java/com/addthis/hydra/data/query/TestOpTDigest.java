@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import com.addthis.hydra.data.tree.prop.DataTDigest;
+
+import com.clearspring.analytics.stream.quantile.TDigest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestOpTDigest extends TestOp {
+
+    private static final double[] QUANTILES = {.5, .75, .95, .98, .99, .999};
+
+    /**
+     * With this few values every value has its own centroid,
+     * so the merged quantiles equal those of a single digest.
+     */
+    @Test
+    public void testMerge() throws Exception {
+        TDigest first = new TDigest(100);
+        TDigest second = new TDigest(100);
+        TDigest all = new TDigest(100);
+        for (int i = 1; i <= 100; i++) {
+            (i % 2 == 0 ? first : second).add(i);
+            all.add(i);
+        }
+        all.add(250);
+        DataTableHelper expected = new DataTableHelper();
+        for (double quantile : QUANTILES) {
+            expected.tr().td(quantile).td(all.quantile(quantile));
+        }
+        doOpTest(
+                new DataTableHelper().
+                        tr().td("a").td(new DataTDigest.TDigestValue(first, null, null)).
+                        tr().td("b").td().
+                        tr().td("c").td(250).
+                        tr().td("d").td(new DataTDigest.TDigestValue(second, null, null)),
+                "tdigest=1",
+                expected
+        );
+    }
+
+    @Test
+    public void testSum() throws Exception {
+        TDigest first = new TDigest(100);
+        TDigest second = new TDigest(100);
+        for (int i = 0; i < 10; i++) {
+            first.add(i);
+        }
+        for (int i = 10; i < 30; i++) {
+            second.add(i);
+        }
+        DataTDigest.TDigestValue sum = (DataTDigest.TDigestValue)
+                new DataTDigest.TDigestValue(first, null, null).sum(
+                        new DataTDigest.TDigestValue(second, null, null));
+        assertEquals(30, sum.getDigest().size());
+    }
+}
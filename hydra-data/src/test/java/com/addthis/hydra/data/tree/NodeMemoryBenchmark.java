@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Reports the heap used by each cached {@link ConcurrentTreeNode} and by the
+ * per-node lease, flag and lock objects that nodes carried before their
+ * state was packed into a single field.
+ * <p/>
+ * Usage: NodeMemoryBenchmark [number of nodes]
+ */
+public class NodeMemoryBenchmark {
+
+    /**
+     * The per-node objects of the previous node representation.
+     */
+    private static final class LegacyNodeState {
+
+        final AtomicInteger leases = new AtomicInteger(0);
+        final AtomicBoolean changed = new AtomicBoolean(false);
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        final AtomicBoolean decoded = new AtomicBoolean(false);
+        final AtomicBoolean initOnce = new AtomicBoolean(false);
+        final Object initLock = new Object();
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        long start = usedMemory();
+        ConcurrentTreeNode[] nodes = new ConcurrentTreeNode[count];
+        for (int i = 0; i < count; i++) {
+            nodes[i] = new ConcurrentTreeNode();
+            nodes[i].tryLease();
+            nodes[i].release();
+        }
+        long nodeBytes = usedMemory() - start;
+
+        start = usedMemory();
+        LegacyNodeState[] legacy = new LegacyNodeState[count];
+        for (int i = 0; i < count; i++) {
+            legacy[i] = new LegacyNodeState();
+        }
+        long legacyBytes = usedMemory() - start;
+
+        double perNode = (double) nodeBytes / count;
+        double perLegacy = (double) legacyBytes / count;
+        System.out.println(String.format("nodes=%d bytes/node=%.1f", count, perNode));
+        System.out.println(String.format("previous per-node state objects: bytes/node=%.1f", perLegacy));
+        System.out.println(String.format("previous representation: bytes/node=%.1f reduction=%.1f%%",
+                perNode + perLegacy, 100.0 * perLegacy / (perNode + perLegacy)));
+        // keep both arrays reachable until the measurements are complete
+        System.out.println("retained " + (nodes.length + legacy.length) + " objects");
+    }
+}
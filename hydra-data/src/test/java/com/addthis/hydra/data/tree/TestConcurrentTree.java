@@ -27,6 +27,10 @@ import com.addthis.basis.util.ClosableIterator;
 import com.addthis.basis.util.Files;
 
 import com.addthis.hydra.store.db.CloseOperation;
+import com.addthis.hydra.store.db.DBKey;
+import com.addthis.hydra.store.db.IPageDB;
+import com.addthis.hydra.store.db.ShardedPageDB;
+import com.addthis.hydra.store.db.SortedPageExport;
 
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
@@ -34,8 +38,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class TestConcurrentTree {
@@ -189,6 +195,174 @@ public class TestConcurrentTree {
         }
     }
 
+    @Test
+    public void testWriteBehind() throws Exception {
+        log.info("testWriteBehind");
+        File dir = makeTemporaryDirectory();
+        try {
+            ConcurrentTree tree = new ConcurrentTree.Builder(dir, false).kvStoreType(1).
+                    cleanQSize(100).writeBehindThreads(2).build();
+            ConcurrentTreeNode root = tree.getRootNode();
+            for (int iter = 0; iter < 3; iter++) {
+                for (int i = 0; i < 1000; i++) {
+                    ConcurrentTreeNode node = tree.getOrCreateNode(root, Integer.toString(i), null);
+                    assertNotNull(node);
+                    node.incrementCounter();
+                    node.markChanged();
+                    node.release();
+                }
+            }
+            tree.close(false, close);
+            tree = new ConcurrentTree.Builder(dir, false).kvStoreType(1).build();
+            root = tree.getRootNode();
+            for (int i = 0; i < 1000; i++) {
+                ConcurrentTreeNode node = tree.getNode(root, Integer.toString(i), true);
+                assertNotNull(node);
+                assertEquals(3, node.getCounter());
+                node.release();
+            }
+            tree.close(false, close);
+        } finally {
+            if (dir != null) {
+                Files.deleteDir(dir);
+            }
+        }
+    }
+
+    @Test
+    public void testShards() throws Exception {
+        log.info("testShards");
+        File dir = makeTemporaryDirectory();
+        File stats = makeTemporaryDirectory();
+        try {
+            ConcurrentTree tree = new ConcurrentTree.Builder(dir, false).kvStoreType(1).shards(4).build();
+            ConcurrentTreeNode root = tree.getRootNode();
+            for (int i = 0; i < 100; i++) {
+                ConcurrentTreeNode node = tree.getOrCreateNode(root, Integer.toString(i), null);
+                node.incrementCounter();
+                node.markChanged();
+                ConcurrentTreeNode child = tree.getOrCreateNode(node, "child", null);
+                child.incrementCounter();
+                child.markChanged();
+                child.release();
+                node.release();
+            }
+            tree.close(false, close);
+            assertEquals(4, ShardedPageDB.shardCount(dir));
+            // the shard count is detected when the tree is reopened
+            tree = new ConcurrentTree.Builder(dir, false).kvStoreType(1).build();
+            root = tree.getRootNode();
+            for (int i = 0; i < 100; i++) {
+                ConcurrentTreeNode node = tree.getNode(root, Integer.toString(i), true);
+                assertNotNull(node);
+                assertEquals(1, node.getCounter());
+                ConcurrentTreeNode child = tree.getNode(node, "child", true);
+                assertNotNull(child);
+                child.incrementCounter();
+                child.markChanged();
+                child.release();
+                node.release();
+            }
+            tree.close(false, close);
+            SortedPageExport.export(dir, ReadTreeNode.class);
+            ReadTree readTree = new ReadTree(dir);
+            assertEquals(1, readTree.getRootNode().getNode("99").getCounter());
+            assertEquals(2, readTree.getRootNode().getNode("42").getNode("child").getCounter());
+            assertEquals(4, readTree.getReadStores().size());
+            ConcurrentTree writeTree = new ConcurrentTree.Builder(stats, false).kvStoreType(1).build();
+            new TreeStatistics(readTree, writeTree).generateStatistics();
+            writeTree.close(false, close);
+            readTree.close();
+        } finally {
+            if (dir != null) {
+                Files.deleteDir(dir);
+            }
+            Files.deleteDir(stats);
+        }
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        log.info("testCheckpoint");
+        File dir = makeTemporaryDirectory();
+        try {
+            ConcurrentTree tree = new ConcurrentTree.Builder(dir, false).kvStoreType(1).build();
+            ConcurrentTreeNode root = tree.getRootNode();
+            for (int i = 0; i < 100; i++) {
+                ConcurrentTreeNode node = tree.getOrCreateNode(root, Integer.toString(i), null);
+                node.incrementCounter();
+                node.markChanged();
+                node.release();
+            }
+            File first = tree.checkpoint();
+            for (int i = 0; i < 50; i++) {
+                ConcurrentTreeNode node = tree.getNode(root, Integer.toString(i), true);
+                node.incrementCounter();
+                node.markChanged();
+                node.release();
+            }
+            File second = tree.checkpoint();
+            assertEquals(second, TreeCheckpoint.latest(dir));
+            assertFalse(TreeCheckpoint.delta(second).contains("db.type"));
+            ReadTree snapshot = ReadTree.openCheckpoint(dir);
+            assertEquals(2, snapshot.getRootNode().getNode("0").getCounter());
+            assertEquals(1, snapshot.getRootNode().getNode("99").getCounter());
+            snapshot.close();
+            snapshot = new ReadTree(first);
+            assertEquals(1, snapshot.getRootNode().getNode("0").getCounter());
+            snapshot.close();
+            tree.close(false, close);
+        } finally {
+            if (dir != null) {
+                Files.deleteDir(dir);
+            }
+        }
+    }
+
+    @Test
+    public void testCheckpointRetention() throws Exception {
+        log.info("testCheckpointRetention");
+        File dir = makeTemporaryDirectory();
+        long grace = ConcurrentTree.checkpointGrace;
+        try {
+            ConcurrentTree.checkpointGrace = 0;
+            ConcurrentTree tree = new ConcurrentTree.Builder(dir, false).kvStoreType(1).build();
+            ConcurrentTreeNode root = tree.getRootNode();
+            ConcurrentTreeNode node = tree.getOrCreateNode(root, "a", null);
+            node.incrementCounter();
+            node.markChanged();
+            node.release();
+            File first = tree.checkpoint();
+            ReadTree reader = ReadTree.openCheckpoint(dir);
+            File second = tree.checkpoint();
+            File third = tree.checkpoint();
+            // the first checkpoint is older than the two retained ones but it is still open
+            assertTrue(first.isDirectory());
+            assertEquals(1, reader.getRootNode().getNode("a").getCounter());
+            reader.close();
+            File fourth = tree.checkpoint();
+            assertFalse(first.exists());
+            assertFalse(second.exists());
+            assertTrue(third.isDirectory());
+            assertTrue(fourth.isDirectory());
+            // a superseded checkpoint is kept for the grace period
+            ConcurrentTree.checkpointGrace = 60000;
+            File fifth = tree.checkpoint();
+            assertTrue(third.isDirectory());
+            ConcurrentTree.checkpointGrace = 0;
+            tree.checkpoint();
+            assertFalse(third.exists());
+            assertFalse(fourth.exists());
+            assertTrue(fifth.isDirectory());
+            tree.close(false, close);
+        } finally {
+            ConcurrentTree.checkpointGrace = grace;
+            if (dir != null) {
+                Files.deleteDir(dir);
+            }
+        }
+    }
+
     @Test
     public void testRecursiveDeleteOneThread() throws Exception {
         log.info("testRecursiveDeleteOneThread");
@@ -223,6 +397,44 @@ public class TestConcurrentTree {
         }
     }
 
+    @Test
+    public void testRecursiveDeleteWriteBehind() throws Exception {
+        log.info("testRecursiveDeleteWriteBehind");
+        File dir = makeTemporaryDirectory();
+        try {
+            ConcurrentTree tree = new ConcurrentTree.Builder(dir, false).kvStoreType(1).
+                    writeBehindThreads(1).build();
+            ConcurrentTreeNode root = tree.getRootNode();
+            List<Integer> nodeDBs = new ArrayList<>();
+            ConcurrentTreeNode parent = tree.getOrCreateNode(root, "hello", null);
+            for (int i = 0; i < (TreeCommonParameters.cleanQMax << 1); i++) {
+                ConcurrentTreeNode child = tree.getOrCreateNode(parent, Integer.toString(i), null);
+                assertNotNull(child);
+                nodeDBs.add(parent.nodeDB());
+                parent.release();
+                parent = child;
+            }
+            parent.release();
+
+            tree.deleteNode(root, "hello");
+            tree.waitOnDeletions();
+            tree.sync();
+            for (Integer nodeDB : nodeDBs) {
+                IPageDB.Range<DBKey, ConcurrentTreeNode> range = tree.fetchNodeRange(nodeDB);
+                try {
+                    assertFalse(range.hasNext());
+                } finally {
+                    range.close();
+                }
+            }
+            tree.close(false, close);
+        } finally {
+            if (dir != null) {
+                Files.deleteDir(dir);
+            }
+        }
+    }
+
     @Test
     public void testRecursiveDeleteMultiThreads() throws Exception {
         log.info("testRecursiveDeleteMultiThreads");
@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+import java.util.HashMap;
+
+import com.addthis.codec.Codec;
+import com.addthis.codec.CodecBin2;
+import com.addthis.codec.CodecJSON;
+import com.addthis.hydra.data.tree.prop.DataSum;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TestTreeNodeDataMap {
+
+    private final Codec codec = new CodecBin2();
+
+    private static HashMap<String, TreeNodeData> attachments() throws Exception {
+        HashMap<String, TreeNodeData> data = new HashMap<>();
+        data.put("a", CodecJSON.decodeString(new DataSum(), "{sum:5,num:2}"));
+        data.put("b", CodecJSON.decodeString(new DataSum(), "{sum:7,num:3}"));
+        data.put("c", CodecJSON.decodeString(new DataSum(), "{sum:9,num:4}"));
+        return data;
+    }
+
+    @Test
+    public void testDecodeOnFirstAccess() throws Exception {
+        long[] columns = new long[TreeNodeDataMap.COLUMNS];
+        byte[] encoded = TreeNodeDataMap.encode(columns, attachments(), codec);
+        assertEquals(TreeNodeDataMap.LAYOUT_ATTACHMENTS, TreeNodeDataMap.layout(columns));
+        TreeNodeDataMap.Lazy lazy = new TreeNodeDataMap.Lazy(encoded, codec);
+        assertEquals(0, lazy.decodedCount());
+        assertSame(encoded, lazy.unmodified());
+        TreeNodeData b = lazy.get("b", null);
+        assertEquals("7", b.getValue("sum").toString());
+        assertEquals(1, lazy.decodedCount());
+        assertNull(lazy.unmodified());
+        assertSame(b, lazy.get("b", null));
+        assertEquals(1, lazy.decodedCount());
+        assertNull(lazy.get("missing", null));
+        assertEquals(1, lazy.decodedCount());
+        TreeNodeData a = lazy.get("a", null);
+        assertEquals("5", a.getValue("sum").toString());
+        assertEquals(2, lazy.decodedCount());
+        HashMap<String, TreeNodeData> all = lazy.decodeAll();
+        assertEquals(3, lazy.decodedCount());
+        assertSame(a, all.get("a"));
+        assertSame(b, all.get("b"));
+        assertEquals("9", all.get("c").getValue("sum").toString());
+    }
+
+    @Test
+    public void testReadTreeNodeLazyData() throws Exception {
+        long[] columns = new long[TreeNodeDataMap.COLUMNS];
+        columns[TreeNodeDataMap.COLUMN_HITS] = 10;
+        columns[TreeNodeDataMap.COLUMN_NODEDB] = -1;
+        byte[] encoded = TreeNodeDataMap.encode(columns, attachments(), codec);
+        ReadTreeNode node = new ReadTreeNode();
+        node.decodeColumns(columns, encoded, codec);
+        assertEquals(10, node.getCounter());
+        // attachments that were never decoded are written back as they were read
+        long[] copy = new long[TreeNodeDataMap.COLUMNS];
+        assertSame(encoded, node.encodeColumns(copy, codec));
+        assertEquals(TreeNodeDataMap.LAYOUT_ATTACHMENTS, TreeNodeDataMap.layout(copy));
+        TreeNodeData c = (TreeNodeData) node.getData("c");
+        assertNotNull(c);
+        assertEquals("4", c.getValue("count").toString());
+        assertEquals(3, node.getDataMap().size());
+    }
+
+    @Test
+    public void testOldLayout() throws Exception {
+        // values written before the layout column have four columns and a single map
+        long[] columns = new long[TreeNodeDataMap.COLUMN_LAYOUT];
+        columns[TreeNodeDataMap.COLUMN_HITS] = 3;
+        columns[TreeNodeDataMap.COLUMN_NODES] = 1;
+        columns[TreeNodeDataMap.COLUMN_NODEDB] = 12;
+        byte[] encoded = codec.encode(new TreeNodeDataMap(attachments()));
+        assertEquals(TreeNodeDataMap.LAYOUT_MAP, TreeNodeDataMap.layout(columns));
+        ReadTreeNode node = new ReadTreeNode();
+        node.decodeColumns(columns, encoded, codec);
+        assertEquals(3, node.getCounter());
+        assertEquals(1, node.getNodeCount());
+        assertEquals("7", ((TreeNodeData) node.getData("b")).getValue("sum").toString());
+        assertEquals(3, node.getDataMap().size());
+        assertEquals("9", node.getDataMap().get("c").getValue("sum").toString());
+        HashMap<String, TreeNodeData> decoded = TreeNodeDataMap.decode(columns, encoded, codec);
+        assertEquals("2", decoded.get("a").getValue("count").toString());
+    }
+}
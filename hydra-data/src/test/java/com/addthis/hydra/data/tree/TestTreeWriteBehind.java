@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.addthis.hydra.store.db.DBKey;
+import com.addthis.hydra.store.db.IPageDB;
+import com.addthis.hydra.store.util.Raw;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestTreeWriteBehind {
+
+    /**
+     * In-memory store for the write behind that fails
+     * every write while {@code failing} is set.
+     */
+    private static final class Store implements InvocationHandler {
+
+        final Map<DBKey, ConcurrentTreeNode> nodes = new ConcurrentSkipListMap<>();
+        final AtomicBoolean failing = new AtomicBoolean();
+        final AtomicInteger failures = new AtomicInteger();
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "put":
+                    check();
+                    return nodes.put((DBKey) args[0], (ConcurrentTreeNode) args[1]);
+                case "putAll":
+                    check();
+                    nodes.putAll((Map<DBKey, ConcurrentTreeNode>) args[0]);
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+
+        private void check() {
+            if (failing.get()) {
+                failures.incrementAndGet();
+                throw new IllegalStateException("write failed");
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        IPageDB<DBKey, ConcurrentTreeNode> source() {
+            return (IPageDB<DBKey, ConcurrentTreeNode>) Proxy.newProxyInstance(
+                    IPageDB.class.getClassLoader(), new Class[]{IPageDB.class}, this);
+        }
+    }
+
+    @Test
+    public void testFailedWritesStayPending() throws Exception {
+        Store store = new Store();
+        store.failing.set(true);
+        TreeWriteBehind writeBehind = new TreeWriteBehind(store.source(), "test", 1, 100, 10);
+        ConcurrentTreeNode[] nodes = new ConcurrentTreeNode[20];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new ConcurrentTreeNode();
+            writeBehind.add(new DBKey(1, Raw.get(Integer.toString(i))), nodes[i]);
+        }
+        while (store.failures.get() < 2) {
+            Thread.sleep(10);
+        }
+        assertEquals(nodes.length, writeBehind.getPendingCount());
+        assertEquals(0, writeBehind.getWrittenCount());
+        try {
+            writeBehind.flush();
+            fail();
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        assertEquals(nodes.length, writeBehind.getPendingCount());
+        assertTrue(store.nodes.isEmpty());
+        store.failing.set(false);
+        writeBehind.close();
+        assertEquals(0, writeBehind.getPendingCount());
+        assertEquals(nodes.length, writeBehind.getWrittenCount());
+        assertEquals(nodes.length, store.nodes.size());
+        for (int i = 0; i < nodes.length; i++) {
+            assertSame(nodes[i], store.nodes.get(new DBKey(1, Raw.get(Integer.toString(i)))));
+        }
+    }
+}
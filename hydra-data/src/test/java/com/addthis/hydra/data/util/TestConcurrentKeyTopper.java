@@ -19,6 +19,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.addthis.codec.Codec;
+import com.addthis.codec.CodecBin2;
+
 import org.apache.commons.lang3.RandomStringUtils;
 
 import org.junit.Test;
@@ -63,6 +66,26 @@ public class TestConcurrentKeyTopper {
 
     }
 
+    @Test
+    public void testEncodeAfterUpdate() throws Exception {
+        Codec codec = new CodecBin2();
+        ConcurrentKeyTopper topper = new ConcurrentKeyTopper().init(4);
+        for (int i = 0; i < 8; i++) {
+            topper.increment(Integer.toString(i % 6), 4);
+        }
+        ConcurrentKeyTopper first = codec.decode(ConcurrentKeyTopper.class, codec.encode(topper));
+        topper.increment("0", 3, 4);
+        ConcurrentKeyTopper second = codec.decode(ConcurrentKeyTopper.class, codec.encode(topper));
+        assertEquals(topper.size(), first.size());
+        assertEquals(topper.size(), second.size());
+        assertEquals(Long.valueOf(topper.get("0") - 3), first.get("0"));
+        assertEquals(topper.get("0"), second.get("0"));
+        for (Map.Entry<String, Long> entry : topper.getSortedEntries()) {
+            assertEquals(entry.getValue(), second.get(entry.getKey()));
+            assertEquals(topper.getError(entry.getKey()), second.getError(entry.getKey()));
+        }
+    }
+
     @Test
     public void testIncrementWithEviction() {
         ConcurrentKeyTopper topper = new ConcurrentKeyTopper();
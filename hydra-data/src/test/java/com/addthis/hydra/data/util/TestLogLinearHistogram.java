@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestLogLinearHistogram {
+
+    private static final double[] QUANTILES = {0.01, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999, 1.0};
+
+    @Test
+    public void testBuckets() {
+        LogLinearHistogram histogram = new LogLinearHistogram(5);
+        int previous = -1;
+        for (long value = 0; value < 100000; value++) {
+            int index = histogram.index(value);
+            assertTrue(index == previous || index == previous + 1);
+            assertTrue(histogram.lowerBound(index) <= value);
+            assertTrue(histogram.lowerBound(index + 1) > value);
+            previous = index;
+        }
+        assertTrue(histogram.index(Long.MAX_VALUE) > previous);
+    }
+
+    @Test
+    public void testQuantiles() {
+        Random random = new Random(0);
+        long[] values = new long[100000];
+        LogLinearHistogram histogram = new LogLinearHistogram(5);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextGaussian() * 2 + 8);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double q : QUANTILES) {
+            long expected = values[(int) Math.ceil(q * values.length) - 1];
+            long actual = histogram.getQuantile(q);
+            assertTrue(q + ": " + expected + " != " + actual, Math.abs(actual - expected) <= expected / 32.0);
+        }
+        assertEquals(values[0], histogram.getMin());
+        assertEquals(values[values.length - 1], histogram.getMax());
+        assertEquals(values.length, histogram.getCount());
+    }
+
+    @Test
+    public void testMergeAndBytes() {
+        Random random = new Random(1);
+        LogLinearHistogram all = new LogLinearHistogram(6);
+        LogLinearHistogram low = new LogLinearHistogram(6);
+        LogLinearHistogram high = new LogLinearHistogram(6);
+        for (int i = 0; i < 10000; i++) {
+            long value = random.nextInt(1000);
+            all.record(value);
+            low.record(value);
+            value = 1000000 + random.nextInt(1000000);
+            all.record(value);
+            high.record(value);
+        }
+        LogLinearHistogram merged = LogLinearHistogram.fromBytes(high.toBytes()).merge(LogLinearHistogram.fromBytes(low.toBytes()));
+        assertEquals(all.getCount(), merged.getCount());
+        assertEquals(all.getSum(), merged.getSum());
+        assertEquals(all.getMin(), merged.getMin());
+        assertEquals(all.getMax(), merged.getMax());
+        for (double q : QUANTILES) {
+            assertEquals(all.getQuantile(q), merged.getQuantile(q));
+        }
+        assertTrue(Arrays.equals(all.toBytes(), merged.toBytes()));
+
+        LogLinearHistogram empty = LogLinearHistogram.fromBytes(new LogLinearHistogram(6).toBytes());
+        assertEquals(0, empty.getCount());
+        assertEquals(0, empty.getQuantile(0.5));
+        assertEquals(all.getQuantile(0.5), empty.merge(all).getQuantile(0.5));
+    }
+}
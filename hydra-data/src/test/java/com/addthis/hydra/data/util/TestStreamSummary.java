@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestStreamSummary {
+
+    @Test
+    public void testRandomOperations() {
+        Random random = new Random(0);
+        StreamSummary summary = new StreamSummary();
+        HashMap<String, Long> reference = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            String key = Integer.toString(random.nextInt(500));
+            switch (random.nextInt(4)) {
+                case 0:
+                    long count = random.nextInt(20);
+                    summary.put(key, count);
+                    reference.put(key, count);
+                    break;
+                case 1:
+                    long delta = random.nextInt(5) - 1;
+                    assertEquals(reference.containsKey(key), summary.increment(key, delta));
+                    if (reference.containsKey(key)) {
+                        reference.put(key, reference.get(key) + delta);
+                    }
+                    break;
+                case 2:
+                    assertEquals(reference.remove(key) != null, summary.remove(key));
+                    break;
+                default:
+                    String min = summary.removeMin();
+                    if (min != null) {
+                        long value = reference.remove(min);
+                        for (long other : reference.values()) {
+                            assertTrue(value <= other);
+                        }
+                    }
+            }
+            assertEquals(reference.size(), summary.size());
+            assertEquals(reference.get(key), summary.get(key));
+        }
+        assertEquals(reference, summary.toMap());
+        Map.Entry<String, Long>[] sorted = summary.getSortedEntries();
+        assertEquals(reference.size(), sorted.length);
+        for (int i = 1; i < sorted.length; i++) {
+            assertTrue(sorted[i - 1].getValue() >= sorted[i].getValue());
+        }
+    }
+
+    @Test
+    public void testMinKey() {
+        StreamSummary summary = new StreamSummary();
+        assertNull(summary.minKey());
+        summary.put("a", 2);
+        summary.put("b", 1);
+        summary.put("c", 1);
+        assertEquals("b", summary.minKey());
+        summary.increment("b", 2);
+        assertEquals("c", summary.minKey());
+        assertEquals(1, summary.minCount());
+        assertEquals("c", summary.removeMin());
+        assertEquals("a", summary.minKey());
+        assertEquals(2, summary.minCount());
+    }
+
+    @Test
+    public void testKeyTopperEviction() {
+        KeyTopper topper = new KeyTopper().init().setLossy(true);
+        for (int i = 0; i < 10; i++) {
+            topper.increment(Integer.toString(i), i + 1, 10);
+        }
+        assertEquals("0", topper.increment("new", 10));
+        assertNull(topper.get("0"));
+        // the new key inherits the count of the evicted key
+        assertEquals(Long.valueOf(1), topper.get("new"));
+        assertEquals(0, topper.getError("new"));
+        assertEquals("new", topper.increment("other", 10));
+        assertEquals(Long.valueOf(1), topper.get("other"));
+        assertEquals("9", topper.getSortedEntries()[0].getKey());
+    }
+
+    @Test
+    public void testKeyTopperEncode() {
+        KeyTopper topper = new KeyTopper().init().setLossy(true);
+        topper.increment("a", 2);
+        topper.increment("a", 2);
+        topper.increment("b", 2);
+        assertEquals("b", topper.increment("c", 2));
+        topper.increment("c", 2);
+        assertEquals("a", topper.increment("d", 2));
+        topper.preEncode();
+        topper.postDecode();
+        assertEquals(2, topper.size());
+        assertEquals(Long.valueOf(2), topper.get("c"));
+        assertEquals(0, topper.getError("c"));
+        assertEquals(Long.valueOf(2), topper.get("d"));
+        assertEquals(1, topper.getError("d"));
+    }
+
+    @Test
+    public void testKeyTopperMerge() {
+        KeyTopper first = new KeyTopper().init();
+        KeyTopper second = new KeyTopper().init();
+        first.increment("a", 5, 10);
+        first.increment("b", 3, 10);
+        second.increment("a", 1, 10);
+        second.increment("c", 4, 10);
+        first.merge(second, 2);
+        assertEquals(2, first.size());
+        assertEquals(Long.valueOf(6), first.get("a"));
+        assertEquals(Long.valueOf(4), first.get("c"));
+        assertNull(first.get("b"));
+        assertEquals(0, first.getError("a"));
+
+        KeyTopper lossy = new KeyTopper().init().setLossy(true);
+        lossy.increment("x", 2, 2);
+        lossy.increment("y", 3, 2);
+        KeyTopper other = new KeyTopper().init();
+        other.increment("z", 1, 2);
+        other.merge(lossy, 2);
+        // z may have been counted up to twice by the full lossy topper
+        assertEquals(2, other.size());
+        assertEquals(Long.valueOf(3), other.get("z"));
+        assertEquals(2, other.getError("z"));
+        assertEquals(Long.valueOf(3), other.get("y"));
+        assertNull(other.get("x"));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.common.hash;
+
+/**
+ * The x64 128 bit variant of MurmurHash3 that does not allocate.
+ * Each method returns the first 64 bits of the 128 bit hash, which
+ * mix both halves of the state and equal {@code asLong()} of the
+ * corresponding guava {@code Hashing.murmur3_128(seed)} hash.
+ * Strings are hashed as their UTF-16 chars in little endian order
+ * like {@code hashUnencodedChars}.
+ */
+public final class MurmurHash3 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private MurmurHash3() {
+    }
+
+    public static long hash64(byte[] data, int seed) {
+        return hash64(data, 0, data.length, seed);
+    }
+
+    public static long hash64(byte[] data, int offset, int length, int seed) {
+        long h1 = seed;
+        long h2 = h1;
+        int end = offset + (length & ~15);
+        for (int i = offset; i < end; i += 16) {
+            long k1 = getLong(data, i);
+            long k2 = getLong(data, i + 8);
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        long k1 = 0;
+        long k2 = 0;
+        switch (length & 15) {
+            case 15: k2 ^= (data[end + 14] & 0xffL) << 48;
+            case 14: k2 ^= (data[end + 13] & 0xffL) << 40;
+            case 13: k2 ^= (data[end + 12] & 0xffL) << 32;
+            case 12: k2 ^= (data[end + 11] & 0xffL) << 24;
+            case 11: k2 ^= (data[end + 10] & 0xffL) << 16;
+            case 10: k2 ^= (data[end + 9] & 0xffL) << 8;
+            case 9: k2 ^= (data[end + 8] & 0xffL);
+            case 8: k1 ^= (data[end + 7] & 0xffL) << 56;
+            case 7: k1 ^= (data[end + 6] & 0xffL) << 48;
+            case 6: k1 ^= (data[end + 5] & 0xffL) << 40;
+            case 5: k1 ^= (data[end + 4] & 0xffL) << 32;
+            case 4: k1 ^= (data[end + 3] & 0xffL) << 24;
+            case 3: k1 ^= (data[end + 2] & 0xffL) << 16;
+            case 2: k1 ^= (data[end + 1] & 0xffL) << 8;
+            case 1: k1 ^= (data[end] & 0xffL);
+            default:
+        }
+        h1 ^= mixK1(k1);
+        h2 ^= mixK2(k2);
+        return finish(h1, h2, length);
+    }
+
+    public static long hash64(CharSequence chars, int seed) {
+        long h1 = seed;
+        long h2 = h1;
+        int length = chars.length();
+        int end = length & ~7;
+        for (int i = 0; i < end; i += 8) {
+            long k1 = getLong(chars, i);
+            long k2 = getLong(chars, i + 4);
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        long k1 = 0;
+        long k2 = 0;
+        switch (length & 7) {
+            case 7: k2 ^= (long) chars.charAt(end + 6) << 32;
+            case 6: k2 ^= (long) chars.charAt(end + 5) << 16;
+            case 5: k2 ^= (long) chars.charAt(end + 4);
+            case 4: k1 ^= (long) chars.charAt(end + 3) << 48;
+            case 3: k1 ^= (long) chars.charAt(end + 2) << 32;
+            case 2: k1 ^= (long) chars.charAt(end + 1) << 16;
+            case 1: k1 ^= (long) chars.charAt(end);
+            default:
+        }
+        h1 ^= mixK1(k1);
+        h2 ^= mixK2(k2);
+        return finish(h1, h2, length * 2);
+    }
+
+    /**
+     * Hash of the 8 little endian bytes of {@code value}.
+     */
+    public static long hash64(long value, int seed) {
+        long h1 = seed;
+        long h2 = h1;
+        h1 ^= mixK1(value);
+        return finish(h1, h2, 8);
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return (data[offset] & 0xffL)
+               | (data[offset + 1] & 0xffL) << 8
+               | (data[offset + 2] & 0xffL) << 16
+               | (data[offset + 3] & 0xffL) << 24
+               | (data[offset + 4] & 0xffL) << 32
+               | (data[offset + 5] & 0xffL) << 40
+               | (data[offset + 6] & 0xffL) << 48
+               | (data[offset + 7] & 0xffL) << 56;
+    }
+
+    private static long getLong(CharSequence chars, int offset) {
+        return (long) chars.charAt(offset)
+               | (long) chars.charAt(offset + 1) << 16
+               | (long) chars.charAt(offset + 2) << 32
+               | (long) chars.charAt(offset + 3) << 48;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long finish(long h1, long h2, int length) {
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        return h1 + h2;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
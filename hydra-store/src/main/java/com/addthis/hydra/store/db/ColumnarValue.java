@@ -0,0 +1,45 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.db;
+
+import com.addthis.codec.Codec;
+
+/**
+ * A value that can be stored in the columnar layout of a {@link PageDB}.
+ * The value is split into a fixed number of integer columns and an
+ * optional blob of attachments. The columns are stored as variable length
+ * integers in front of the blob, so a reader can restore them without
+ * decoding the attachments. Implementations may keep the encoded
+ * attachments and decode them when they are first used.
+ */
+public interface ColumnarValue extends Codec.Codable {
+
+    /**
+     * Number of integer columns. Must not depend on the state of the value.
+     */
+    public int columnCount();
+
+    /**
+     * Copy the columns into {@code columns} and return the encoded attachments
+     * or null if there are none. Both must describe the same state of the value.
+     */
+    public byte[] encodeColumns(long[] columns, Codec codec) throws Exception;
+
+    /**
+     * Restore the value from its columns and encoded attachments.
+     *
+     * @param attachments encoded attachments or null if there are none
+     */
+    public void decodeColumns(long[] columns, byte[] attachments, Codec codec) throws Exception;
+}
@@ -20,74 +20,127 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import java.util.Arrays;
+import java.util.Comparator;
+
 import com.addthis.basis.util.Bytes;
 
 import com.addthis.hydra.store.util.Raw;
 
 
+/**
+ * A key of a {@link PageDB}: a node database id and the name of a node
+ * within that database. Both are packed into a single array that is
+ * also the encoded form of the key, a four byte big-endian id followed
+ * by the name bytes, so encoding and decoding a key never copies it.
+ * The packed array must not be modified once it is owned by a key.
+ * <p/>
+ * Keys are ordered by id and then by the unsigned lexicographic order of
+ * their names. Comparisons read the packed arrays in place and do not
+ * allocate.
+ */
 public final class DBKey implements IPageDB.Key, Comparable<DBKey> {
 
-    private static final Raw EMPTY = Raw.get(new byte[0]);
+    private static final int ID_LENGTH = 4;
+
+    /**
+     * Orders packed keys in the same way as {@link #compareTo(DBKey)}.
+     */
+    public static final Comparator<byte[]> PACKED_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            return comparePacked(a, b);
+        }
+    };
 
-    private final int id;
-    private final Raw key;
+    private final byte[] packed;
 
+    /**
+     * Create a key from its encoded form. The array is owned
+     * by the new key and is not copied.
+     */
     public DBKey(byte raw[]) {
-        id = Bytes.toInt(raw, 0, 4);
-        key = Raw.get(Bytes.cut(raw, 4, raw.length - 4));
+        if (raw.length < ID_LENGTH) {
+            throw new IllegalArgumentException("encoded key length " + raw.length + " is less than " + ID_LENGTH);
+        }
+        packed = raw;
     }
 
     public DBKey(InputStream in) throws IOException {
-        this(Bytes.readInt(in), Raw.get(Bytes.readBytes(in)));
+        this(Bytes.readInt(in), Bytes.readBytes(in));
     }
 
     public DBKey(int id) {
-        this(id, (Raw) null);
+        this(id, (byte[]) null);
     }
 
     public DBKey(int id, String key) {
-        this(id, Raw.get(key));
+        this(id, key != null ? Bytes.toBytes(key) : null);
     }
 
     public DBKey(int id, Raw key) {
-        if (key == null) {
-            key = EMPTY;
+        this(id, key != null ? key.toBytes() : null);
+    }
+
+    public DBKey(int id, byte[] key) {
+        int length = key != null ? key.length : 0;
+        packed = pack(id, length);
+        if (length > 0) {
+            System.arraycopy(key, 0, packed, ID_LENGTH, length);
         }
-        this.id = id;
-        this.key = key;
+    }
+
+    private static byte[] pack(int id, int length) {
+        byte[] result = new byte[ID_LENGTH + length];
+        result[0] = (byte) (id >>> 24);
+        result[1] = (byte) (id >>> 16);
+        result[2] = (byte) (id >>> 8);
+        result[3] = (byte) id;
+        return result;
+    }
+
+    private static int id(byte[] packed) {
+        return ((packed[0] & 0xff) << 24) | ((packed[1] & 0xff) << 16) |
+               ((packed[2] & 0xff) << 8) | (packed[3] & 0xff);
     }
 
     public int id() {
-        return id;
+        return id(packed);
     }
 
     public byte[] key() {
-        return key.toBytes();
+        return Arrays.copyOfRange(packed, ID_LENGTH, packed.length);
     }
 
     public Raw rawKey() {
-        return key;
+        return Raw.get(key());
     }
 
+    /**
+     * Returns the encoded key. The returned array is shared
+     * with this key and must not be modified.
+     */
     public byte[] toBytes() {
-        if (key == null) {
-            return Bytes.toBytes(id);
-        }
-        return Raw.get(Bytes.toBytes(id)).cat(key).toBytes();
+        return packed;
     }
 
     public void writeOut(OutputStream out) throws IOException {
-        Bytes.writeInt(id, out);
-        Bytes.writeBytes(key.toBytes(), out);
+        Bytes.writeInt(id(), out);
+        Bytes.writeLength(packed.length - ID_LENGTH, out);
+        out.write(packed, ID_LENGTH, packed.length - ID_LENGTH);
     }
 
     public String toString() {
-        return id + ":" + key;
+        return id() + ":" + rawKey();
     }
 
     @Override
     public int hashCode() {
-        return key.hashCode() + id;
+        int h = 0;
+        for (int i = ID_LENGTH; i < packed.length; i++) {
+            h = 31 * h + packed[i];
+        }
+        return h + id();
     }
 
     @Override
@@ -96,8 +149,7 @@ public final class DBKey implements IPageDB.Key, Comparable<DBKey> {
             return true;
         }
         if (o instanceof DBKey) {
-            DBKey k = (DBKey) o;
-            return (k.id == id && k.key.equals(key));
+            return Arrays.equals(packed, ((DBKey) o).packed);
         } else {
             return false;
         }
@@ -105,10 +157,27 @@ public final class DBKey implements IPageDB.Key, Comparable<DBKey> {
 
     @Override
     public int compareTo(DBKey dk) {
-        int dkId = dk.id();
-        if (dkId == id) {
-            return key.compareTo(dk.key);
+        return comparePacked(packed, dk.packed);
+    }
+
+    /**
+     * Compare two encoded keys. Ids are compared as signed integers
+     * and names as unsigned bytes, with a name that is a prefix of
+     * another name ordered first.
+     */
+    public static int comparePacked(byte[] a, byte[] b) {
+        int aId = id(a);
+        int bId = id(b);
+        if (aId != bId) {
+            return aId > bId ? 1 : -1;
+        }
+        int length = Math.min(a.length, b.length);
+        for (int i = ID_LENGTH; i < length; i++) {
+            int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
         }
-        return id > dkId ? 1 : -1;
+        return a.length - b.length;
     }
 }
@@ -13,6 +13,12 @@
  */
 package com.addthis.hydra.store.db;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.addthis.basis.util.Bytes;
+
 import com.addthis.codec.CodableStatistics;
 import com.addthis.codec.Codec;
 import com.addthis.codec.CodecBin2;
@@ -22,19 +28,38 @@ import com.addthis.hydra.store.util.Raw;
 import com.google.common.base.Objects;
 
 /**
+ * Values are either encoded with the codec or, if {@code columnar} is true,
+ * in the layout of {@link ColumnarValue}:
+ * <pre>
+ *     [number of columns][columns][length of attachments][attachments]
+ * </pre>
+ * Columns are zig-zag encoded variable length integers and a length of
+ * zero means that there are no attachments. The null value is encoded as
+ * a single zero byte.
  */
 class DBKeyCoder<V extends Codec.Codable> implements KeyCoder<DBKey, V> {
 
+    private static final byte[] COLUMNAR_NULL = new byte[]{0};
+
     protected final Codec codec;
     protected final Class<? extends V> clazz;
+    protected final boolean columnar;
 
     public DBKeyCoder(Class<? extends V> clazz) {
         this(new CodecBin2(), clazz);
     }
 
     public DBKeyCoder(Codec codec, Class<? extends V> clazz) {
+        this(codec, clazz, false);
+    }
+
+    public DBKeyCoder(Codec codec, Class<? extends V> clazz, boolean columnar) {
+        if (columnar && !ColumnarValue.class.isAssignableFrom(clazz)) {
+            throw new IllegalArgumentException(clazz + " does not implement ColumnarValue");
+        }
         this.codec = codec;
         this.clazz = clazz;
+        this.columnar = columnar;
     }
 
     @Override
@@ -42,6 +67,9 @@ class DBKeyCoder<V extends Codec.Codable> implements KeyCoder<DBKey, V> {
         return new DBKey(0, (Raw) null);
     }
 
+    /**
+     * Returns the packed array of the key without copying it.
+     */
     @Override
     public byte[] keyEncode(DBKey key) {
         return key != null ? key.toBytes() : new byte[0];
@@ -50,12 +78,64 @@ class DBKeyCoder<V extends Codec.Codable> implements KeyCoder<DBKey, V> {
     @Override
     public byte[] valueEncode(V value) {
         try {
+            if (columnar) {
+                return columnarEncode((ColumnarValue) value);
+            }
             return codec.encode(value);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    private byte[] columnarEncode(ColumnarValue value) throws Exception {
+        if (value == null) {
+            return COLUMNAR_NULL;
+        }
+        long[] columns = new long[value.columnCount()];
+        byte[] attachments = value.encodeColumns(columns, codec);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                columns.length * 2 + 2 + (attachments != null ? attachments.length : 0));
+        out.write(columns.length);
+        for (long column : columns) {
+            Bytes.writeLength((column << 1) ^ (column >> 63), out);
+        }
+        if (attachments != null && attachments.length > 0) {
+            Bytes.writeBytes(attachments, out);
+        } else {
+            Bytes.writeLength(0, out);
+        }
+        return out.toByteArray();
+    }
+
+    private V columnarDecode(byte[] value) throws Exception {
+        if (nullRawValueInternal(value)) {
+            return null;
+        }
+        ByteArrayInputStream in = new ByteArrayInputStream(value);
+        long[] columns = new long[in.read()];
+        for (int i = 0; i < columns.length; i++) {
+            long column = Bytes.readLength(in);
+            columns[i] = (column >>> 1) ^ -(column & 1);
+        }
+        int length = (int) Bytes.readLength(in);
+        byte[] attachments = null;
+        if (length > 0) {
+            attachments = new byte[length];
+            if (in.read(attachments, 0, length) != length) {
+                throw new IOException("truncated attachments: expected " + length + " bytes");
+            }
+        }
+        V result = clazz.newInstance();
+        ((ColumnarValue) result).decodeColumns(columns, attachments, codec);
+        if (result instanceof Codec.SuperCodable) {
+            ((Codec.SuperCodable) result).postDecode();
+        }
+        return result;
+    }
+
+    /**
+     * The returned key takes ownership of the array.
+     */
     @Override
     public DBKey keyDecode(byte[] key) {
         return key.length > 0 ? new DBKey(key) : null;
@@ -64,6 +144,9 @@ class DBKeyCoder<V extends Codec.Codable> implements KeyCoder<DBKey, V> {
     @Override
     public V valueDecode(byte[] value) {
         try {
+            if (columnar) {
+                return columnarDecode(value);
+            }
             return codec.decode(clazz, value);
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -72,6 +155,9 @@ class DBKeyCoder<V extends Codec.Codable> implements KeyCoder<DBKey, V> {
 
     @Override
     public boolean nullRawValueInternal(byte[] value) {
+        if (columnar) {
+            return value.length == 1 && value[0] == 0;
+        }
         return codec.storesNull(value);
     }
 
@@ -89,6 +175,7 @@ class DBKeyCoder<V extends Codec.Codable> implements KeyCoder<DBKey, V> {
         return Objects.toStringHelper(this)
                 .add("codec", codec)
                 .add("clazz", clazz)
+                .add("columnar", columnar)
                 .toString();
     }
 }
@@ -13,9 +13,12 @@
  */
 package com.addthis.hydra.store.db;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import com.addthis.basis.util.ClosableIterator;
@@ -49,6 +52,13 @@ public interface IPageDB<K extends Key, V extends Codec.Codable> {
 
     public V put(K key, V value);
 
+    /**
+     * Put every entry of {@code entries}. The entries are written
+     * in the iteration order of the map, so a sorted map places
+     * the entries of a page next to each other.
+     */
+    public void putAll(Map<K, V> entries);
+
     public V remove(K key);
 
     public void remove(K from, K to, boolean inclusive);
@@ -77,4 +87,13 @@ public interface IPageDB<K extends Key, V extends Codec.Codable> {
     public void setPageMem(int maxmem);
 
     public void setMemSampleInterval(int sample);
+
+    /**
+     * Write a consistent image of the database into the directory
+     * {@code target}. The image can be opened as a read-only database.
+     * Changes that are made concurrently may or may not be included.
+     *
+     * @return names of the files of the image relative to {@code target}
+     */
+    public List<String> checkpoint(File target) throws IOException;
 }
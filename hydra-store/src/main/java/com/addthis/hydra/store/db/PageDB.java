@@ -16,8 +16,10 @@ package com.addthis.hydra.store.db;
 import java.io.File;
 import java.io.IOException;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
@@ -29,11 +31,17 @@ import com.addthis.basis.util.Files;
 import com.addthis.basis.util.Parameter;
 
 import com.addthis.codec.Codec;
+import com.addthis.codec.CodecBin2;
 import com.addthis.hydra.store.kv.ByteStoreBDB;
 import com.addthis.hydra.store.kv.ConcurrentByteStoreBDB;
+import com.addthis.hydra.store.kv.ConcurrentByteStoreMapped;
 import com.addthis.hydra.store.kv.ExternalPagedStore;
 import com.addthis.hydra.store.kv.ExternalPagedStore.ByteStore;
+import com.addthis.hydra.store.kv.PageCompressor;
+import com.addthis.hydra.store.kv.PageDictionary;
 import com.addthis.hydra.store.kv.PagedKeyValueStore;
+import com.addthis.hydra.store.kv.SortedByteStore;
+import com.addthis.hydra.store.kv.StoreCheckpoint;
 import com.addthis.hydra.store.skiplist.SkipListCache;
 
 import org.slf4j.Logger;
@@ -49,6 +57,19 @@ public class PageDB<V extends Codec.Codable> implements IPageDB<DBKey, V> {
     static final String defaultDbName = Parameter.value("pagedb.dbname", "db.key");
     static final int defaultKeyValueStoreType = Parameter.intValue("pagedb.kvstore.type", 0);
 
+    /**
+     * If true then databases that use a SkipListCache train a deflate dictionary
+     * from their first pages and store it in {@link PageDictionary#FILE_NAME}.
+     */
+    static final boolean trainDictionary = Parameter.boolValue("pagedb.gz.dict", false);
+
+    /**
+     * Present in the directory of a database whose values are
+     * stored in the columnar layout of {@link ColumnarValue}.
+     */
+    static final String COLUMNAR_FILE = "db.columnar";
+
+    private final File dir;
     private final boolean readonly;
     private final PagedKeyValueStore<DBKey, V> eps;
     private final DBKeyCoder<V> keyCoder;
@@ -66,6 +87,8 @@ public class PageDB<V extends Codec.Codable> implements IPageDB<DBKey, V> {
         protected int kvStoreType = defaultKeyValueStoreType;
         protected String dbname = defaultDbName;
         protected boolean readonly = false;
+        protected boolean columnar = false;
+        protected long offHeapBytes = SkipListCache.defaultOffHeapBytes;
 
         public Builder(File dir, Class<? extends V> clazz, int maxPageSize, int maxPages) {
             this.dir = dir;
@@ -89,8 +112,27 @@ public class PageDB<V extends Codec.Codable> implements IPageDB<DBKey, V> {
             return this;
         }
 
+        /**
+         * Store values in the columnar layout if the database is created.
+         * Existing databases keep the layout they were created with.
+         */
+        public Builder columnar(boolean value) {
+            this.columnar = value;
+            return this;
+        }
+
+        /**
+         * Size in bytes of the off-heap page cache of the database.
+         * Only used by the stores that are backed by a SkipListCache.
+         */
+        public Builder offHeapBytes(long value) {
+            this.offHeapBytes = value;
+            return this;
+        }
+
         public PageDB<V> build() throws Exception {
-            return new PageDB<>(dir, clazz, dbname, maxPageSize, maxPages, kvStoreType, readonly);
+            return new PageDB<>(dir, clazz, dbname, maxPageSize, maxPages, kvStoreType, readonly, columnar,
+                                offHeapBytes);
         }
 
     }
@@ -108,11 +150,40 @@ public class PageDB<V extends Codec.Codable> implements IPageDB<DBKey, V> {
         this(dir, clazz, dbname, maxPageSize, maxPages, defaultKeyValueStoreType, readonly);
     }
 
+    /**
+     * @param keyValueStoreType 0 for ByteStoreBDB with ExternalPagedStore,
+     *                          1 for ConcurrentByteStoreBDB with SkipListCache,
+     *                          2 for ConcurrentByteStoreMapped with SkipListCache.
+     */
     public PageDB(File dir, Class<? extends V> clazz, String dbname, int maxPageSize,
             int maxPages, int keyValueStoreType, boolean readonly) throws IOException {
+        this(dir, clazz, dbname, maxPageSize, maxPages, keyValueStoreType, readonly, false);
+    }
+
+    /**
+     * @param columnar if true and the database does not exist yet then
+     *                 values are stored in the layout of {@link ColumnarValue}
+     */
+    public PageDB(File dir, Class<? extends V> clazz, String dbname, int maxPageSize,
+            int maxPages, int keyValueStoreType, boolean readonly, boolean columnar) throws IOException {
+        this(dir, clazz, dbname, maxPageSize, maxPages, keyValueStoreType, readonly, columnar,
+             SkipListCache.defaultOffHeapBytes);
+    }
+
+    /**
+     * @param offHeapBytes size in bytes of the off-heap page cache
+     */
+    public PageDB(File dir, Class<? extends V> clazz, String dbname, int maxPageSize, int maxPages,
+            int keyValueStoreType, boolean readonly, boolean columnar, long offHeapBytes) throws IOException {
         ByteStore store;
+        this.dir = dir;
         this.readonly = readonly;
-        this.keyCoder = new DBKeyCoder<>(clazz);
+        // the layout can only be chosen before any value is written
+        boolean create = columnar && !readonly && !new File(dir, "db.type").exists();
+        this.keyCoder = new DBKeyCoder<>(new CodecBin2(), clazz, create || isColumnar(dir));
+        // pages that were compressed with the dictionary of the store are read with it
+        PageDictionary dictionary = PageDictionary.open(dir);
+        File trainDir = (trainDictionary && !readonly) ? dir : null;
         switch (keyValueStoreType) {
             case 0:
                 store = new ByteStoreBDB(dir, dbname, readonly);
@@ -120,17 +191,40 @@ public class PageDB<V extends Codec.Codable> implements IPageDB<DBKey, V> {
                 break;
             case 1:
                 store = new ConcurrentByteStoreBDB(dir, dbname, readonly);
-                this.eps = new SkipListCache<>(keyCoder, store, maxPageSize, maxPages);
+                this.eps = new SkipListCache.Builder<>(keyCoder, store, maxPageSize, maxPages)
+                        .offHeapBytes(offHeapBytes)
+                        .compressor(new PageCompressor(dictionary, trainDir)).build();
+                break;
+            case 2:
+                store = new ConcurrentByteStoreMapped(dir, dbname, readonly);
+                this.eps = new SkipListCache.Builder<>(keyCoder, store, maxPageSize, maxPages)
+                        .offHeapBytes(offHeapBytes)
+                        .compressor(new PageCompressor(dictionary, trainDir)).build();
                 break;
             default:
                 throw new IllegalStateException("Illegal value " + keyValueStoreType +
                                                 " for configuration parameter \"pagedb.kvstore.type\"");
         }
         if (!readonly) {
+            // an exported copy is stale once the database can be modified
+            File sorted = SortedByteStore.file(dir, dbname);
+            if (sorted.exists() && !sorted.delete()) {
+                throw new IOException("unable to delete stale export " + sorted);
+            }
+            if (create) {
+                Files.write(new File(dir, COLUMNAR_FILE), Bytes.toBytes(clazz.getName()), false);
+            }
             Files.write(new File(dir, "db.type"), Bytes.toBytes(getClass().getName()), false);
         }
     }
 
+    /**
+     * Returns true if the values of the database in {@code dir} are stored in the columnar layout.
+     */
+    static boolean isColumnar(File dir) {
+        return new File(dir, COLUMNAR_FILE).exists();
+    }
+
     @Override
     public String toString() {
         return "PageDB:" + keyCoder + "," + eps;
@@ -149,6 +243,16 @@ public class PageDB<V extends Codec.Codable> implements IPageDB<DBKey, V> {
         return eps.getPutValue(key, value);
     }
 
+    @Override
+    public void putAll(Map<DBKey, V> entries) {
+        if (readonly) {
+            throw new RuntimeException("cannot modify. readonly.");
+        }
+        for (Map.Entry<DBKey, V> entry : entries.entrySet()) {
+            eps.putValue(entry.getKey(), entry.getValue());
+        }
+    }
+
     @Override
     public V remove(DBKey key) {
         if (readonly) {
@@ -220,6 +324,26 @@ public class PageDB<V extends Codec.Codable> implements IPageDB<DBKey, V> {
         }
     }
 
+    /**
+     * Only databases that use a {@link SkipListCache} can write checkpoints.
+     */
+    @Override
+    public List<String> checkpoint(File target) throws IOException {
+        if (!(eps instanceof SkipListCache)) {
+            throw new UnsupportedOperationException("checkpoints require a SkipListCache: " + eps);
+        }
+        Files.initDirectory(target);
+        List<String> names = new ArrayList<>(((SkipListCache<DBKey, V>) eps).checkpoint(target));
+        for (String name : new String[]{"db.type", COLUMNAR_FILE, PageDictionary.FILE_NAME}) {
+            File file = new File(dir, name);
+            if (file.exists()) {
+                StoreCheckpoint.link(file, new File(target, name));
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
     @Override
     public void setCacheSize(int cachesize) {
         eps.setMaxPages(cachesize);
@@ -23,6 +23,10 @@ public class ReadDBKeyCoder<V extends IReadWeighable & Codec.Codable> extends DB
         super(codec, clazz);
     }
 
+    public ReadDBKeyCoder(Codec codec, Class<? extends V> clazz, boolean columnar) {
+        super(codec, clazz, columnar);
+    }
+
     public ReadDBKeyCoder(Class<? extends V> clazz) {
         super(clazz);
     }
@@ -30,7 +34,9 @@ public class ReadDBKeyCoder<V extends IReadWeighable & Codec.Codable> extends DB
     @Override
     public V valueDecode(byte[] value) {
         V val = super.valueDecode(value);
-        val.setWeight(value.length);
+        if (val != null) {
+            val.setWeight(value.length);
+        }
         return val;
     }
 }
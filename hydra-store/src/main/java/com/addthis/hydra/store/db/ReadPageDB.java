@@ -17,6 +17,7 @@ import java.io.File;
 import java.io.IOException;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.TreeMap;
@@ -26,9 +27,12 @@ import com.addthis.basis.util.Parameter;
 import com.addthis.codec.Codec;
 import com.addthis.codec.CodecBin2;
 import com.addthis.hydra.store.kv.ByteStoreBDB;
+import com.addthis.hydra.store.kv.ConcurrentByteStoreMapped;
 import com.addthis.hydra.store.kv.ExternalPagedStore.ByteStore;
+import com.addthis.hydra.store.kv.PageDictionary;
 import com.addthis.hydra.store.kv.PagedKeyValueStore;
 import com.addthis.hydra.store.kv.ReadExternalPagedStore;
+import com.addthis.hydra.store.kv.SortedByteStore;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,11 +50,17 @@ public class ReadPageDB<V extends IReadWeighable & Codec.Codable> implements IPa
 
     private static final Logger log = LoggerFactory.getLogger(ReadPageDB.class);
     static final String defaultDbName = Parameter.value("pagedb.dbname", "db.key");
+    static final boolean readSorted = Parameter.boolValue("pagedb.read.sorted", true);
 
     private final Codec codec = new CodecBin2();
     private final Class<? extends V> clazz;
     private final ReadExternalPagedStore<DBKey, V> eps;
 
+    /**
+     * Shards of a {@link ShardedPageDB} or null if the database is not sharded.
+     */
+    private final ReadPageDB<V>[] shards;
+
     public ReadPageDB(File dir, Class<? extends V> clazz, int maxSize, int maxWeight) throws IOException {
         this(dir, clazz, maxSize, maxWeight, false);
     }
@@ -58,22 +68,75 @@ public class ReadPageDB<V extends IReadWeighable & Codec.Codable> implements IPa
     public ReadPageDB(File dir, Class<? extends V> clazz, int maxSize,
             int maxWeight, boolean metrics) throws IOException {
         this.clazz = clazz;
-        ByteStore store = new ByteStoreBDB(dir, defaultDbName, true);
-        this.eps = new ReadExternalPagedStore<>(new ReadDBKeyCoder<>(codec, clazz), store, maxSize, maxWeight, metrics);
+        int shardCount = ShardedPageDB.shardCount(dir);
+        if (shardCount > 0) {
+            this.eps = null;
+            this.shards = openShards(dir, clazz, shardCount, maxSize, maxWeight, metrics);
+        } else {
+            PageDictionary dictionary = PageDictionary.open(dir);
+            ByteStore store = openStore(dir, readSorted);
+            this.eps = new ReadExternalPagedStore<>(new ReadDBKeyCoder<>(codec, clazz, PageDB.isColumnar(dir)), store,
+                    maxSize, maxWeight, metrics, dictionary);
+            this.shards = null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V extends IReadWeighable & Codec.Codable> ReadPageDB<V>[] openShards(File dir,
+            Class<? extends V> clazz, int shardCount, int maxSize, int maxWeight,
+            boolean metrics) throws IOException {
+        ReadPageDB<V>[] shards = new ReadPageDB[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = new ReadPageDB<>(ShardedPageDB.shardDir(dir, i), clazz,
+                        Math.max(1, maxSize / shardCount), Math.max(1, maxWeight / shardCount), metrics);
+            }
+        } catch (IOException ex) {
+            for (ReadPageDB<V> shard : shards) {
+                if (shard != null) {
+                    shard.close();
+                }
+            }
+            throw ex;
+        }
+        return shards;
+    }
+
+    private ReadPageDB<V> shardOf(DBKey key) {
+        return shards[ShardedPageDB.shard(key.id(), shards.length)];
+    }
+
+    /**
+     * Open the pages of the database in {@code dir} for reading. If
+     * {@code sorted} is true and the database has been exported with
+     * {@link SortedPageExport} then the exported copy is used.
+     */
+    static ByteStore openStore(File dir, boolean sorted) throws IOException {
+        if (sorted && SortedByteStore.exists(dir, defaultDbName)) {
+            return new SortedByteStore(dir, defaultDbName);
+        } else if (ConcurrentByteStoreMapped.exists(dir, defaultDbName)) {
+            return new ConcurrentByteStoreMapped(dir, defaultDbName, true);
+        } else {
+            return new ByteStoreBDB(dir, defaultDbName, true);
+        }
     }
 
     public String toString() {
-        return "PageDB:" + clazz + "," + eps;
+        return "PageDB:" + clazz + "," + (shards != null ? shards.length + " shards" : eps);
     }
 
     @Override
     public V get(DBKey key) {
+        if (shards != null) {
+            return shardOf(key).get(key);
+        }
         return eps.getValue(key);
     }
 
     public TreeMap<DBKey, V> toTreeMap() {
         try {
-            IPageDB.Range<DBKey, V> range = range(this.eps.getFirstKey(), new DBKey(Integer.MAX_VALUE, ""));
+            DBKey first = (shards != null) ? new DBKey(Integer.MIN_VALUE) : this.eps.getFirstKey();
+            IPageDB.Range<DBKey, V> range = range(first, new DBKey(Integer.MAX_VALUE, ""));
             Iterator<Map.Entry<DBKey, V>> iterator = range.iterator();
             TreeMap<DBKey, V> map = new TreeMap<>();
             while (iterator.hasNext()) {
@@ -93,7 +156,18 @@ public class ReadPageDB<V extends IReadWeighable & Codec.Codable> implements IPa
         return new DR(from, to, 1);
     }
 
+    @SuppressWarnings("unchecked")
     public IPageDB.Range<DBKey, V> range(DBKey from, DBKey to, int sampleRate) {
+        if (shards != null) {
+            if (ShardedPageDB.singleId(from, to)) {
+                return shardOf(from).range(from, to, sampleRate);
+            }
+            IPageDB.Range<DBKey, V>[] ranges = new IPageDB.Range[shards.length];
+            for (int i = 0; i < shards.length; i++) {
+                ranges[i] = shards[i].range(from, to, sampleRate);
+            }
+            return new ShardedPageDB.MergedRange<>(ranges);
+        }
         return new DR(from, to, sampleRate);
     }
 
@@ -112,7 +186,13 @@ public class ReadPageDB<V extends IReadWeighable & Codec.Codable> implements IPa
 
     @Override
     public void close() {
-        eps.close();
+        if (shards != null) {
+            for (ReadPageDB<V> shard : shards) {
+                shard.close();
+            }
+        } else {
+            eps.close();
+        }
     }
 
     /**
@@ -192,10 +272,18 @@ public class ReadPageDB<V extends IReadWeighable & Codec.Codable> implements IPa
         throw new UnsupportedOperationException();
     }
 
+    public List<String> checkpoint(File target) {
+        throw new UnsupportedOperationException();
+    }
+
     public V put(DBKey key, V value) {
         throw new UnsupportedOperationException();
     }
 
+    public void putAll(Map<DBKey, V> entries) {
+        throw new UnsupportedOperationException();
+    }
+
     public V remove(DBKey key) {
         throw new UnsupportedOperationException();
     }
@@ -204,10 +292,28 @@ public class ReadPageDB<V extends IReadWeighable & Codec.Codable> implements IPa
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Returns the page store of the database. Sharded databases
+     * have one store for each shard, see {@link #getShard(int)}.
+     */
     public ReadExternalPagedStore<DBKey, V> getReadEps() {
+        if (shards != null) {
+            throw new UnsupportedOperationException("database has " + shards.length + " shards");
+        }
         return eps;
     }
 
+    /**
+     * Returns the number of shards or zero if the database is not sharded.
+     */
+    public int getShardCount() {
+        return shards == null ? 0 : shards.length;
+    }
+
+    public ReadPageDB<V> getShard(int shard) {
+        return shards[shard];
+    }
+
     @Override
     public PagedKeyValueStore<DBKey, V> getEps() { throw new UnsupportedOperationException(); }
 
@@ -0,0 +1,372 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.db;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import com.addthis.basis.util.Bytes;
+import com.addthis.basis.util.Files;
+
+import com.addthis.codec.Codec;
+import com.addthis.hydra.store.kv.PagedKeyValueStore;
+import com.addthis.hydra.store.skiplist.SkipListCache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Partitions the keys of a database across several {@link PageDB} instances
+ * by the {@link DBKey#id() id} of the key. Each shard has its own directory,
+ * external store and page cache with its own eviction threads, so writers
+ * to different ids do not contend with each other.
+ * <p/>
+ * All keys with the same id are stored in the same shard. A range of keys
+ * with a single id is served by one shard and other ranges are merged
+ * from every shard. The number of shards is fixed when the database is
+ * created and recorded in {@link #SHARDS_FILE}.
+ */
+public class ShardedPageDB<V extends Codec.Codable> implements IPageDB<DBKey, V> {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardedPageDB.class);
+
+    /**
+     * Present in the directory of a sharded database. Stores the number of shards.
+     */
+    static final String SHARDS_FILE = "db.shards";
+
+    private final PageDB<V>[] shards;
+
+    /**
+     * @param dir      directory of the database
+     * @param shards   number of shards if the database is created.
+     *                 Existing databases keep the number of shards
+     *                 they were created with.
+     * @param maxPages maximum number of pages in memory across all shards.
+     *                 The off-heap page cache is divided between the shards as well.
+     */
+    @SuppressWarnings("unchecked")
+    public ShardedPageDB(File dir, Class<? extends V> clazz, int maxPageSize, int maxPages,
+            int keyValueStoreType, boolean readonly, boolean columnar, int shards) throws Exception {
+        int existing = shardCount(dir);
+        if (existing > 0) {
+            shards = existing;
+        } else if (readonly) {
+            throw new IOException("missing " + SHARDS_FILE + " in readonly database " + dir);
+        } else if (shards <= 0) {
+            throw new IllegalArgumentException("shards must be positive: " + shards);
+        } else {
+            Files.initDirectory(dir);
+            Files.write(new File(dir, SHARDS_FILE), Bytes.toBytes(Integer.toString(shards)), false);
+        }
+        this.shards = new PageDB[shards];
+        try {
+            for (int i = 0; i < shards; i++) {
+                this.shards[i] = new PageDB.Builder<V>(shardDir(dir, i), clazz, maxPageSize,
+                        Math.max(1, maxPages / shards)).kvStoreType(keyValueStoreType)
+                        .readonly(readonly).columnar(columnar)
+                        .offHeapBytes(SkipListCache.defaultOffHeapBytes / shards).build();
+            }
+        } catch (Exception ex) {
+            close();
+            throw ex;
+        }
+        log.info("opened {} shards in {}", shards, dir);
+    }
+
+    /**
+     * Returns the number of shards of the database in {@code dir}
+     * or zero if the database is not sharded.
+     */
+    public static int shardCount(File dir) throws IOException {
+        File file = new File(dir, SHARDS_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+        return Integer.parseInt(Bytes.toString(Files.read(file)).trim());
+    }
+
+    static File shardDir(File dir, int shard) {
+        return new File(dir, shardName(shard));
+    }
+
+    private static String shardName(int shard) {
+        return "shard-" + shard;
+    }
+
+    /**
+     * Returns the shard of the keys with {@code id}.
+     */
+    static int shard(int id, int shards) {
+        int hash = id * 0x9E3779B9;
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % shards;
+    }
+
+    /**
+     * Returns true if every key in the range [from, to) has the id of {@code from}.
+     */
+    static boolean singleId(DBKey from, DBKey to) {
+        if (to == null) {
+            return false;
+        }
+        return from.id() == to.id() || (to.id() == from.id() + 1 && to.key().length == 0);
+    }
+
+    private PageDB<V> shardOf(DBKey key) {
+        return shards[shard(key.id(), shards.length)];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public PageDB<V> getShard(int shard) {
+        return shards[shard];
+    }
+
+    @Override
+    public String toString() {
+        return "ShardedPageDB:" + shards.length;
+    }
+
+    @Override
+    public V get(DBKey key) {
+        return shardOf(key).get(key);
+    }
+
+    @Override
+    public V put(DBKey key, V value) {
+        return shardOf(key).put(key, value);
+    }
+
+    @Override
+    public void putAll(Map<DBKey, V> entries) {
+        List<Map<DBKey, V>> split = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            split.add(null);
+        }
+        for (Entry<DBKey, V> entry : entries.entrySet()) {
+            int shard = shard(entry.getKey().id(), shards.length);
+            Map<DBKey, V> part = split.get(shard);
+            if (part == null) {
+                part = new TreeMap<>();
+                split.set(shard, part);
+            }
+            part.put(entry.getKey(), entry.getValue());
+        }
+        for (int i = 0; i < shards.length; i++) {
+            if (split.get(i) != null) {
+                shards[i].putAll(split.get(i));
+            }
+        }
+    }
+
+    @Override
+    public V remove(DBKey key) {
+        return shardOf(key).remove(key);
+    }
+
+    @Override
+    public void remove(DBKey from, DBKey to, boolean inclusive) {
+        if (singleId(from, to)) {
+            shardOf(from).remove(from, to, inclusive);
+        } else {
+            for (PageDB<V> shard : shards) {
+                shard.remove(from, to, inclusive);
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Range<DBKey, V> range(DBKey from, DBKey to) {
+        if (singleId(from, to)) {
+            return shardOf(from).range(from, to);
+        }
+        Range<DBKey, V>[] ranges = new Range[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            ranges[i] = shards[i].range(from, to);
+        }
+        return new MergedRange<>(ranges);
+    }
+
+    @Override
+    public void close() {
+        close(false, CloseOperation.NONE);
+    }
+
+    /**
+     * Close every shard.
+     *
+     * @return the first non-zero status code of a shard or zero
+     */
+    @Override
+    public int close(boolean cleanLog, CloseOperation operation) {
+        int status = 0;
+        for (PageDB<V> shard : shards) {
+            if (shard != null) {
+                int shardStatus = shard.close(cleanLog, operation);
+                if (status == 0) {
+                    status = shardStatus;
+                }
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Each shard has its own store. Use {@link #getShard(int)}.
+     */
+    @Override
+    public PagedKeyValueStore<DBKey, V> getEps() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setCacheSize(int cachesize) {
+        for (PageDB<V> shard : shards) {
+            shard.setCacheSize(Math.max(1, cachesize / shards.length));
+        }
+    }
+
+    @Override
+    public void setPageSize(int pagesize) {
+        for (PageDB<V> shard : shards) {
+            shard.setPageSize(pagesize);
+        }
+    }
+
+    @Override
+    public void setCacheMem(long maxmem) {
+        for (PageDB<V> shard : shards) {
+            shard.setCacheMem(maxmem / shards.length);
+        }
+    }
+
+    @Override
+    public void setPageMem(int maxmem) {
+        for (PageDB<V> shard : shards) {
+            shard.setPageMem(maxmem);
+        }
+    }
+
+    @Override
+    public void setMemSampleInterval(int sample) {
+        for (PageDB<V> shard : shards) {
+            shard.setMemSampleInterval(sample);
+        }
+    }
+
+    /**
+     * Write the image of each shard into the corresponding shard
+     * directory of {@code target}.
+     */
+    @Override
+    public List<String> checkpoint(File target) throws IOException {
+        Files.initDirectory(target);
+        Files.write(new File(target, SHARDS_FILE), Bytes.toBytes(Integer.toString(shards.length)), false);
+        List<String> names = new ArrayList<>();
+        names.add(SHARDS_FILE);
+        for (int i = 0; i < shards.length; i++) {
+            String prefix = shardName(i) + File.separator;
+            for (String name : shards[i].checkpoint(shardDir(target, i))) {
+                names.add(prefix + name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Merges sorted ranges into a single sorted range.
+     */
+    static final class MergedRange<V> implements Range<DBKey, V>, Iterator<Entry<DBKey, V>> {
+
+        private static final class Head<V> {
+
+            final Entry<DBKey, V> entry;
+            final Range<DBKey, V> range;
+
+            Head(Entry<DBKey, V> entry, Range<DBKey, V> range) {
+                this.entry = entry;
+                this.range = range;
+            }
+        }
+
+        private final Range<DBKey, V>[] ranges;
+        private final PriorityQueue<Head<V>> heads;
+
+        MergedRange(Range<DBKey, V>[] ranges) {
+            this.ranges = ranges;
+            this.heads = new PriorityQueue<>(Math.max(1, ranges.length), new Comparator<Head<V>>() {
+                @Override
+                public int compare(Head<V> a, Head<V> b) {
+                    return a.entry.getKey().compareTo(b.entry.getKey());
+                }
+            });
+            for (Range<DBKey, V> range : ranges) {
+                advance(range);
+            }
+        }
+
+        private void advance(Range<DBKey, V> range) {
+            if (range.hasNext()) {
+                heads.add(new Head<>(range.next(), range));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Entry<DBKey, V> next() {
+            Head<V> head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            advance(head.range);
+            return head.entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            heads.clear();
+            for (Range<DBKey, V> range : ranges) {
+                range.close();
+            }
+        }
+
+        @Override
+        public Iterator<Entry<DBKey, V>> iterator() {
+            return this;
+        }
+    }
+}
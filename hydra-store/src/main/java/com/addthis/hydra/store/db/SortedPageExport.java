@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.db;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.addthis.basis.util.ClosableIterator;
+
+import com.addthis.codec.Codec;
+import com.addthis.codec.CodecBin2;
+import com.addthis.hydra.store.kv.ExternalPagedStore.ByteStore;
+import com.addthis.hydra.store.kv.ExternalPagedStore.PageEntry;
+import com.addthis.hydra.store.kv.PageDictionary;
+import com.addthis.hydra.store.kv.ReadExternalPagedStore;
+import com.addthis.hydra.store.kv.SortedByteStore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rewrites the pages of a finished database into a {@link SortedByteStore}
+ * next to the original files. {@link ReadPageDB} reads from the export
+ * when it is present. The export is deleted when the database is next
+ * opened for writing by {@link PageDB}.
+ */
+public final class SortedPageExport {
+
+    private static final Logger log = LoggerFactory.getLogger(SortedPageExport.class);
+
+    private SortedPageExport() {
+    }
+
+    /**
+     * Export the database in {@code dir}. The bloom filter of each
+     * block holds the keys of every value in the pages of the block.
+     * Each shard of a {@link ShardedPageDB} is exported in its own
+     * directory.
+     *
+     * @return number of pages exported
+     */
+    public static <V extends IReadWeighable & Codec.Codable> long export(File dir,
+            Class<? extends V> clazz) throws IOException {
+        int shards = ShardedPageDB.shardCount(dir);
+        if (shards > 0) {
+            long pages = 0;
+            for (int i = 0; i < shards; i++) {
+                pages += exportStore(ShardedPageDB.shardDir(dir, i), clazz);
+            }
+            return pages;
+        }
+        return exportStore(dir, clazz);
+    }
+
+    private static <V extends IReadWeighable & Codec.Codable> long exportStore(File dir,
+            Class<? extends V> clazz) throws IOException {
+        long start = System.currentTimeMillis();
+        PageDictionary dictionary = PageDictionary.open(dir);
+        ByteStore source = ReadPageDB.openStore(dir, false);
+        ReadExternalPagedStore<DBKey, V> decoder = new ReadExternalPagedStore<>(
+                new ReadDBKeyCoder<>(new CodecBin2(), clazz), source, 1, 0, false, dictionary);
+        long pages = 0;
+        try {
+            SortedByteStore.Writer writer = new SortedByteStore.Writer(dir, ReadPageDB.defaultDbName);
+            boolean success = false;
+            try {
+                byte[] first = source.firstKey();
+                if (first != null) {
+                    ClosableIterator<PageEntry> iterator = source.iterator(first);
+                    try {
+                        while (iterator.hasNext()) {
+                            PageEntry entry = iterator.next();
+                            writer.add(entry.key(), entry.value());
+                            for (byte[] key : decoder.decodePageKeys(entry.value())) {
+                                writer.addFilterKey(key);
+                            }
+                            pages++;
+                        }
+                    } finally {
+                        iterator.close();
+                    }
+                }
+                success = true;
+            } finally {
+                if (success) {
+                    writer.close();
+                } else {
+                    writer.abort();
+                }
+            }
+        } finally {
+            source.close();
+        }
+        log.info("[export] dir=" + dir + " pages=" + pages + " in " + (System.currentTimeMillis() - start) + "ms");
+        return pages;
+    }
+}
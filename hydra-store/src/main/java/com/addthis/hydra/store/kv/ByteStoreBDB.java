@@ -14,9 +14,11 @@
 package com.addthis.hydra.store.kv;
 
 import java.io.File;
+import java.io.IOException;
 
 import java.util.AbstractMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicLong;
@@ -144,6 +146,35 @@ public class ByteStoreBDB implements ByteStore {
         puts.incrementAndGet();
     }
 
+    /**
+     * The environment is not transactional, so the batch is
+     * written through a single cursor instead of a transaction.
+     */
+    @Override
+    public void putAll(List<PageEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        final DatabaseEntry dk = new DatabaseEntry();
+        final DatabaseEntry dv = new DatabaseEntry();
+        long bytes = 0;
+        Cursor cursor = bdb.openCursor(null, CursorConfig.DEFAULT);
+        try {
+            for (PageEntry entry : entries) {
+                dk.setData(entry.key());
+                dv.setData(entry.value());
+                if (cursor.put(dk, dv) != opSuccess) {
+                    throw new RuntimeException("put fail");
+                }
+                bytes += entry.key().length + entry.value().length;
+            }
+        } finally {
+            cursor.close();
+        }
+        bytesOut.addAndGet(bytes);
+        puts.addAndGet(entries.size());
+    }
+
     @Override
     public byte[] get(byte[] key) {
         final DatabaseEntry dv = new DatabaseEntry();
@@ -500,4 +531,9 @@ public class ByteStoreBDB implements ByteStore {
     public long count() {
         return bdb.count();
     }
+
+    @Override
+    public List<String> checkpoint(File target) throws IOException {
+        return StoreCheckpoint.checkpoint(bdb_env, bdb, target);
+    }
 }
@@ -0,0 +1,915 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.addthis.basis.util.Bytes;
+import com.addthis.basis.util.ClosableIterator;
+import com.addthis.basis.util.Files;
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.hydra.store.kv.ExternalPagedStore.ByteStore;
+import com.addthis.hydra.store.kv.ExternalPagedStore.PageEntry;
+import com.addthis.hydra.store.util.NamedThreadFactory;
+
+import com.google.common.primitives.UnsignedBytes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only byte store backed by memory-mapped segment files, for use
+ * with SkipListCache as an alternative to {@link ConcurrentByteStoreBDB}.
+ * <p/>
+ * Every put or delete appends one record to the active segment. The
+ * location of the most recent value of each key is kept in an in-memory
+ * sorted index. On a clean close the index is written next to the segments
+ * so that it can be loaded on the next open; otherwise it is rebuilt by
+ * scanning the segments. Records are checksummed so that a torn write at
+ * the end of the last segment is detected and discarded.
+ * <p/>
+ * A background thread rewrites the live records of sealed segments whose
+ * fraction of overwritten or deleted bytes exceeds {@link #compactRatio}
+ * and then deletes those segments. A delete record is live as long as an
+ * older segment may still hold a put record of its key, since the put
+ * would otherwise be resurrected when the index is rebuilt. Keys are compared as unsigned bytes,
+ * which is the same ordering as the default BerkeleyDB comparator.
+ */
+public class ConcurrentByteStoreMapped implements ByteStore {
+
+    private static final Logger log = LoggerFactory.getLogger(ConcurrentByteStoreMapped.class);
+
+    private static final int defaultSegmentSize = Parameter.intValue("eps.mapped.segment.size", 128 * 1024 * 1024);
+    private static final double compactRatio = Double.parseDouble(Parameter.value("eps.mapped.compact.ratio", "0.5"));
+    private static final int compactIntervalMillis = Parameter.intValue("eps.mapped.compact.interval", 1000);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".index";
+    private static final long INDEX_MAGIC = 0x6879647261697832L;
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+
+    /**
+     * type (1 byte), key length (4 bytes), value length (4 bytes).
+     */
+    private static final int HEADER_SIZE = 9;
+
+    private static final int TRAILER_SIZE = 4;
+
+    private final File dir;
+    private final String dbname;
+    private final boolean readonly;
+    private final int segmentSize;
+
+    private final ConcurrentSkipListMap<byte[], Location> index;
+
+    /**
+     * Location of the most recent delete record of each deleted key
+     * while the record is live. Modified under the write lock.
+     */
+    private final ConcurrentSkipListMap<byte[], Location> tombstones;
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+
+    private final Object writeLock = new Object();
+
+    @GuardedBy("writeLock")
+    private Segment active;
+
+    private final ScheduledExecutorService compactionThread;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private final AtomicLong gets = new AtomicLong(0);
+    private final AtomicLong puts = new AtomicLong(0);
+    private final AtomicLong bytesIn = new AtomicLong(0);
+    private final AtomicLong bytesOut = new AtomicLong(0);
+    private final AtomicLong compactions = new AtomicLong(0);
+
+    /**
+     * A single segment file. The region [0, end) holds records.
+     */
+    private static final class Segment {
+
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        /**
+         * Written under the write lock and read without it.
+         */
+        volatile int end;
+
+        /**
+         * Bytes of records that are still referenced by the index
+         * or by {@link ConcurrentByteStoreMapped#tombstones}.
+         */
+        final AtomicLong live = new AtomicLong();
+
+        Segment(int id, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        double garbageRatio() {
+            return end == 0 ? 0.0 : 1.0 - ((double) live.get() / end);
+        }
+
+        void read(int offset, byte[] target) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.get(target);
+        }
+    }
+
+    /**
+     * Location of the most recent record of a key.
+     */
+    private static final class Location {
+
+        final Segment segment;
+        final int offset;
+        final int keyLength;
+        final int valueLength;
+
+        /**
+         * Id of the oldest segment that may hold a record of the key.
+         */
+        final int oldest;
+
+        Location(Segment segment, int offset, int keyLength, int valueLength, int oldest) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+            this.oldest = oldest;
+        }
+
+        int recordSize() {
+            return HEADER_SIZE + keyLength + valueLength + TRAILER_SIZE;
+        }
+
+        byte[] readValue() {
+            byte[] value = new byte[valueLength];
+            segment.read(offset + HEADER_SIZE + keyLength, value);
+            return value;
+        }
+    }
+
+    /**
+     * Returns true if a mapped store with the given name exists in the directory.
+     */
+    public static boolean exists(File dir, final String dbname) {
+        String[] files = dir.list(segmentFilter(dbname));
+        return files != null && files.length > 0;
+    }
+
+    public ConcurrentByteStoreMapped(File dir, String dbname, boolean ro) {
+        this(dir, dbname, ro, defaultSegmentSize, compactIntervalMillis);
+    }
+
+    /**
+     * @param compactInterval milliseconds between background compactions
+     *                        or zero to only compact on request
+     */
+    ConcurrentByteStoreMapped(File dir, String dbname, boolean ro, int segmentSize, int compactInterval) {
+        this.dir = ro ? dir : Files.initDirectory(dir);
+        this.dbname = dbname;
+        this.readonly = ro;
+        this.segmentSize = segmentSize;
+        this.index = new ConcurrentSkipListMap<>(UnsignedBytes.lexicographicalComparator());
+        this.tombstones = new ConcurrentSkipListMap<>(UnsignedBytes.lexicographicalComparator());
+        try {
+            openSegments();
+            if (!loadIndex()) {
+                rebuildIndex();
+            }
+            if (!ro) {
+                synchronized (writeLock) {
+                    active = segments.isEmpty() ? createSegment(0, segmentSize) : segments.lastEntry().getValue();
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        if (ro || compactInterval <= 0) {
+            compactionThread = null;
+        } else {
+            compactionThread = Executors.newSingleThreadScheduledExecutor(
+                    new NamedThreadFactory("ByteStoreMapped-" + dbname + "-compaction-", true));
+            compactionThread.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compactSegments(compactRatio);
+                    } catch (Exception ex) {
+                        log.warn("Uncaught exception in mapped byte store compaction thread", ex);
+                    }
+                }
+            }, compactInterval, compactInterval, TimeUnit.MILLISECONDS);
+        }
+        log.info("[init] dir=" + dir + " db=" + dbname + " ro=" + ro +
+                 " segments=" + segments.size() + " keys=" + index.size());
+    }
+
+    private static FilenameFilter segmentFilter(final String dbname) {
+        return new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(dbname + "-") && name.endsWith(SEGMENT_SUFFIX);
+            }
+        };
+    }
+
+    private File segmentFile(int id) {
+        return new File(dir, dbname + "-" + String.format("%08d", id) + SEGMENT_SUFFIX);
+    }
+
+    private File indexFile() {
+        return new File(dir, dbname + INDEX_SUFFIX);
+    }
+
+    private void openSegments() throws IOException {
+        String[] names = dir.list(segmentFilter(dbname));
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            String id = name.substring(dbname.length() + 1, name.length() - SEGMENT_SUFFIX.length());
+            Segment segment = mapSegment(Integer.parseInt(id), new File(dir, name), 0);
+            segments.put(segment.id, segment);
+        }
+    }
+
+    /**
+     * Map an existing segment file, or a new one of {@code size} bytes.
+     */
+    private Segment mapSegment(int id, File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, readonly ? "r" : "rw");
+        if (size > 0) {
+            raf.setLength(size);
+        }
+        FileChannel channel = raf.getChannel();
+        MappedByteBuffer buffer = channel.map(readonly ? FileChannel.MapMode.READ_ONLY :
+                                              FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        return new Segment(id, file, channel, buffer);
+    }
+
+    @GuardedBy("writeLock")
+    private Segment createSegment(int id, int size) throws IOException {
+        Segment segment = mapSegment(id, segmentFile(id), size);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Load the index that was written on the last clean close. The
+     * index file is removed once it has been read so that an unclean
+     * shutdown always results in the index being rebuilt.
+     *
+     * @return true if the index was loaded
+     */
+    private boolean loadIndex() {
+        File file = indexFile();
+        if (!file.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readLong() != INDEX_MAGIC) {
+                return false;
+            }
+            int numSegments = in.readInt();
+            if (numSegments != segments.size()) {
+                return false;
+            }
+            for (int i = 0; i < numSegments; i++) {
+                Segment segment = segments.get(in.readInt());
+                int end = in.readInt();
+                if (segment == null || end > segment.capacity()) {
+                    return false;
+                }
+                segment.end = end;
+            }
+            if (!readLocations(in, index) || !readLocations(in, tombstones)) {
+                return false;
+            }
+            return true;
+        } catch (IOException ex) {
+            log.warn("Unable to load index " + file + ". The index will be rebuilt.", ex);
+            return false;
+        } finally {
+            if (!readonly && !file.delete()) {
+                log.warn("Unable to delete index " + file);
+            }
+        }
+    }
+
+    private boolean readLocations(DataInputStream in, Map<byte[], Location> target) throws IOException {
+        int entries = in.readInt();
+        for (int i = 0; i < entries; i++) {
+            byte[] key = new byte[in.readInt()];
+            in.readFully(key);
+            Segment segment = segments.get(in.readInt());
+            int offset = in.readInt();
+            int valueLength = in.readInt();
+            int oldest = in.readInt();
+            if (segment == null) {
+                return false;
+            }
+            Location location = new Location(segment, offset, key.length, valueLength, oldest);
+            target.put(key, location);
+            segment.live.addAndGet(location.recordSize());
+        }
+        return true;
+    }
+
+    /**
+     * Rebuild the index by scanning all segments from oldest to newest.
+     */
+    private void rebuildIndex() {
+        index.clear();
+        tombstones.clear();
+        for (Segment segment : segments.values()) {
+            segment.live.set(0);
+        }
+        CRC32 crc = new CRC32();
+        byte[] header = new byte[HEADER_SIZE];
+        for (Segment segment : segments.values()) {
+            ByteBuffer view = segment.buffer.duplicate();
+            int offset = 0;
+            while (offset + HEADER_SIZE + TRAILER_SIZE <= segment.capacity()) {
+                view.position(offset);
+                view.get(header);
+                ByteBuffer headerView = ByteBuffer.wrap(header);
+                byte type = headerView.get();
+                int keyLength = headerView.getInt();
+                int valueLength = headerView.getInt();
+                if ((type != TYPE_PUT && type != TYPE_DELETE) || keyLength < 0 || valueLength < 0 ||
+                    (long) offset + HEADER_SIZE + keyLength + valueLength + TRAILER_SIZE > segment.capacity()) {
+                    break;
+                }
+                byte[] key = new byte[keyLength];
+                byte[] value = new byte[valueLength];
+                view.get(key);
+                view.get(value);
+                crc.reset();
+                crc.update(header, 0, HEADER_SIZE);
+                crc.update(key, 0, keyLength);
+                crc.update(value, 0, valueLength);
+                if (view.getInt() != (int) crc.getValue()) {
+                    log.warn("Checksum failure in " + segment.file + " at offset " + offset +
+                             ". Discarding the remainder of the segment.");
+                    break;
+                }
+                Location prev = index.remove(key);
+                if (prev == null) {
+                    prev = tombstones.remove(key);
+                }
+                if (prev != null) {
+                    prev.segment.live.addAndGet(-prev.recordSize());
+                }
+                Location location = new Location(segment, offset, keyLength, valueLength,
+                        prev != null ? prev.oldest : segment.id);
+                if (type == TYPE_PUT) {
+                    index.put(key, location);
+                } else {
+                    tombstones.put(key, location);
+                }
+                segment.live.addAndGet(location.recordSize());
+                offset += location.recordSize();
+            }
+            segment.end = offset;
+        }
+        releaseTombstones();
+    }
+
+    /**
+     * Returns true if a segment that is older than the segment of a delete record
+     * and not older than the oldest segment of its key still exists.
+     */
+    private boolean tombstoneNeeded(Location tombstone) {
+        return !segments.subMap(tombstone.oldest, true, tombstone.segment.id, false).isEmpty();
+    }
+
+    /**
+     * Count the delete records that no longer shadow a put record as garbage.
+     */
+    private void releaseTombstones() {
+        Iterator<Location> iterator = tombstones.values().iterator();
+        while (iterator.hasNext()) {
+            Location tombstone = iterator.next();
+            if (!tombstoneNeeded(tombstone)) {
+                iterator.remove();
+                tombstone.segment.live.addAndGet(-tombstone.recordSize());
+            }
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        File file = indexFile();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeLong(INDEX_MAGIC);
+            out.writeInt(segments.size());
+            for (Segment segment : segments.values()) {
+                out.writeInt(segment.id);
+                out.writeInt(segment.end);
+            }
+            writeLocations(out, index);
+            writeLocations(out, tombstones);
+        }
+    }
+
+    private static void writeLocations(DataOutputStream out, Map<byte[], Location> source) throws IOException {
+        out.writeInt(source.size());
+        for (Map.Entry<byte[], Location> entry : source.entrySet()) {
+            Location location = entry.getValue();
+            out.writeInt(entry.getKey().length);
+            out.write(entry.getKey());
+            out.writeInt(location.segment.id);
+            out.writeInt(location.offset);
+            out.writeInt(location.valueLength);
+            out.writeInt(location.oldest);
+        }
+    }
+
+    /**
+     * Append a put record and replace the previous record of the key.
+     */
+    @GuardedBy("writeLock")
+    private void putRecord(byte[] key, byte[] value) throws IOException {
+        Location prev = index.get(key);
+        if (prev == null) {
+            prev = tombstones.remove(key);
+        }
+        index.put(key, append(key, value, prev != null ? prev.oldest : -1));
+        if (prev != null) {
+            prev.segment.live.addAndGet(-prev.recordSize());
+        }
+    }
+
+    /**
+     * Append a record to the active segment and return its location.
+     * A null value appends a delete record.
+     *
+     * @param oldest oldest segment that may hold a record of the key
+     *               or -1 if there is no previous record
+     */
+    @GuardedBy("writeLock")
+    private Location append(byte[] key, byte[] value, int oldest) throws IOException {
+        byte type = (value == null) ? TYPE_DELETE : TYPE_PUT;
+        int valueLength = (value == null) ? 0 : value.length;
+        int recordSize = HEADER_SIZE + key.length + valueLength + TRAILER_SIZE;
+        if (active.end + recordSize > active.capacity()) {
+            active.buffer.force();
+            active = createSegment(active.id + 1, Math.max(segmentSize, recordSize));
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        ByteBuffer.wrap(header).put(type).putInt(key.length).putInt(valueLength);
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, HEADER_SIZE);
+        crc.update(key, 0, key.length);
+        ByteBuffer view = active.buffer.duplicate();
+        view.position(active.end);
+        view.put(header);
+        view.put(key);
+        if (value != null) {
+            crc.update(value, 0, valueLength);
+            view.put(value);
+        }
+        view.putInt((int) crc.getValue());
+        Location location = new Location(active, active.end, key.length, valueLength,
+                oldest < 0 ? active.id : oldest);
+        active.end += recordSize;
+        active.live.addAndGet(recordSize);
+        return location;
+    }
+
+    private void checkWritable() {
+        if (readonly) {
+            throw new IllegalStateException("cannot modify a read-only store");
+        }
+        if (closed.get()) {
+            throw new IllegalStateException("store is closed");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BSMAPPED[" + gets + "," + puts + "]";
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return readonly;
+    }
+
+    @Override
+    public boolean hasKey(byte[] key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public byte[] firstKey() {
+        Map.Entry<byte[], Location> entry = index.firstEntry();
+        return entry == null ? null : entry.getKey();
+    }
+
+    @Override
+    public byte[] lastKey() {
+        Map.Entry<byte[], Location> entry = index.lastEntry();
+        return entry == null ? null : entry.getKey();
+    }
+
+    @Override
+    public byte[] firstEntry() {
+        Map.Entry<byte[], Location> entry = index.firstEntry();
+        return entry == null ? null : entry.getValue().readValue();
+    }
+
+    @Override
+    public void put(byte[] key, byte[] val) {
+        checkWritable();
+        try {
+            synchronized (writeLock) {
+                putRecord(key, val);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        bytesOut.addAndGet(key.length + val.length);
+        puts.incrementAndGet();
+    }
+
+    /**
+     * Appends the whole batch while holding the write lock once.
+     */
+    @Override
+    public void putAll(List<PageEntry> entries) {
+        checkWritable();
+        long bytes = 0;
+        try {
+            synchronized (writeLock) {
+                for (PageEntry entry : entries) {
+                    putRecord(entry.key(), entry.value());
+                    bytes += entry.key().length + entry.value().length;
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        bytesOut.addAndGet(bytes);
+        puts.addAndGet(entries.size());
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        byte[] val = location.readValue();
+        bytesIn.addAndGet(key.length + val.length);
+        gets.incrementAndGet();
+        return val;
+    }
+
+    /**
+     * delete selected entry and return the lexicographically previous key
+     */
+    @Override
+    public byte[] delete(byte[] key) {
+        checkWritable();
+        try {
+            synchronized (writeLock) {
+                Location prev = index.remove(key);
+                if (prev == null) {
+                    return null;
+                }
+                prev.segment.live.addAndGet(-prev.recordSize());
+                Location tombstone = append(key, null, prev.oldest);
+                if (tombstoneNeeded(tombstone)) {
+                    tombstones.put(key, tombstone);
+                } else {
+                    tombstone.segment.live.addAndGet(-tombstone.recordSize());
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        return index.lowerKey(key);
+    }
+
+    @Override
+    public byte[] higherKey(byte[] key) {
+        return index.higherKey(key);
+    }
+
+    @Override
+    public byte[] lowerKey(byte[] key) {
+        return index.lowerKey(key);
+    }
+
+    @Override
+    public byte[] floorKey(byte[] key) {
+        return index.floorKey(key);
+    }
+
+    @Override
+    public Map.Entry<byte[], byte[]> floorEntry(byte[] key) {
+        while (true) {
+            Map.Entry<byte[], Location> entry = index.floorEntry(key);
+            if (entry == null) {
+                return null;
+            }
+            byte[] val = entry.getValue().readValue();
+            // the value is only consistent with the key if the location has not moved
+            if (index.get(entry.getKey()) == entry.getValue()) {
+                gets.incrementAndGet();
+                bytesIn.addAndGet(entry.getKey().length + val.length);
+                return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), val);
+            }
+        }
+    }
+
+    @Override
+    public ClosableIterator<PageEntry> iterator(byte[] start) {
+        return iterator(start, false);
+    }
+
+    @Override
+    public ClosableIterator<PageEntry> keyIterator(byte[] start) {
+        return iterator(start, true);
+    }
+
+    /**
+     * Iterate from the greatest key less than or equal to {@code start}
+     * (or the first key if there is no such key) to the end of the store.
+     */
+    private ClosableIterator<PageEntry> iterator(byte[] start, final boolean keyonly) {
+        ConcurrentNavigableMap<byte[], Location> tail = index;
+        if (start != null && start.length > 0) {
+            byte[] floor = index.floorKey(start);
+            tail = index.tailMap(floor != null ? floor : start, true);
+        }
+        final Iterator<Map.Entry<byte[], Location>> iterator = tail.entrySet().iterator();
+        return new ClosableIterator<PageEntry>() {
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public PageEntry next() {
+                if (!iterator.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<byte[], Location> entry = iterator.next();
+                final byte[] key = entry.getKey();
+                final byte[] val = keyonly ? null : entry.getValue().readValue();
+                return new PageEntry() {
+                    @Override
+                    public byte[] key() {
+                        return key;
+                    }
+
+                    @Override
+                    public byte[] value() {
+                        return val;
+                    }
+
+                    @Override
+                    public String toString() {
+                        return "PE:" + Bytes.toString(key) + "=" + Bytes.toString(val);
+                    }
+                };
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Rewrite the live records of every sealed segment whose garbage
+     * ratio is at least {@code ratio} and delete those segments.
+     *
+     * @return number of segments that were compacted
+     */
+    int compactSegments(double ratio) throws IOException {
+        int count = 0;
+        for (Segment segment : segments.values()) {
+            if (closed.get()) {
+                break;
+            }
+            boolean sealed;
+            synchronized (writeLock) {
+                sealed = (segment != active);
+            }
+            if (sealed && segment.garbageRatio() >= ratio) {
+                compact(segment);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copy the records of a sealed segment that are still referenced
+     * by the index into the active segment. Delete records are copied
+     * while an older segment may hold a put of the key, so that the put
+     * is not resurrected when the index is rebuilt.
+     */
+    private void compact(Segment segment) throws IOException {
+        ByteBuffer view = segment.buffer.duplicate();
+        byte[] header = new byte[HEADER_SIZE];
+        int offset = 0;
+        while (offset < segment.end) {
+            view.position(offset);
+            view.get(header);
+            ByteBuffer headerView = ByteBuffer.wrap(header);
+            byte type = headerView.get();
+            int keyLength = headerView.getInt();
+            int valueLength = headerView.getInt();
+            byte[] key = new byte[keyLength];
+            view.get(key);
+            synchronized (writeLock) {
+                if (type == TYPE_PUT) {
+                    Location current = index.get(key);
+                    if (current != null && current.segment == segment && current.offset == offset) {
+                        byte[] value = new byte[valueLength];
+                        view.get(value);
+                        index.put(key, append(key, value, current.oldest));
+                    }
+                } else {
+                    Location current = tombstones.get(key);
+                    if (current != null && current.segment == segment && current.offset == offset) {
+                        if (tombstoneNeeded(current)) {
+                            tombstones.put(key, append(key, null, current.oldest));
+                        } else {
+                            tombstones.remove(key);
+                        }
+                    }
+                }
+            }
+            offset += HEADER_SIZE + keyLength + valueLength + TRAILER_SIZE;
+        }
+        synchronized (writeLock) {
+            active.buffer.force();
+            segments.remove(segment.id);
+            releaseTombstones();
+        }
+        segment.channel.close();
+        if (!segment.file.delete()) {
+            log.warn("Unable to delete compacted segment " + segment.file);
+        }
+        compactions.incrementAndGet();
+    }
+
+    @Override
+    public void close() {
+        close(false);
+    }
+
+    /**
+     * Close the store.
+     *
+     * @param cleanLog if true then compact every sealed segment that contains garbage.
+     */
+    @Override
+    public void close(boolean cleanLog) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        log.info("Closing mapped store for: " + dir.getAbsolutePath());
+        try {
+            if (compactionThread != null) {
+                compactionThread.shutdown();
+                compactionThread.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            if (!readonly) {
+                if (cleanLog) {
+                    int compacted = 0;
+                    for (Segment segment : segments.values()) {
+                        if (segment != active && segment.garbageRatio() > 0) {
+                            compact(segment);
+                            compacted++;
+                        }
+                    }
+                    log.warn("Total of " + compacted + " segments compacted.");
+                }
+                synchronized (writeLock) {
+                    for (Segment segment : segments.values()) {
+                        segment.buffer.force();
+                    }
+                    writeIndex();
+                }
+            }
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("pages:gets=" + gets + " puts=" + puts + " in=" + bytesIn + " out=" + bytesOut +
+                 " compactions=" + compactions);
+    }
+
+    /**
+     * Sealed segments are linked into the image. The records of the active
+     * segment up to its current end are copied from a temporary link, so the
+     * write lock is only held while the links are created. The image has no
+     * index file and the index is rebuilt when the image is opened.
+     */
+    @Override
+    public List<String> checkpoint(File target) throws IOException {
+        List<String> names = new ArrayList<>();
+        File partial = null;
+        String activeName = null;
+        int activeEnd = 0;
+        synchronized (writeLock) {
+            if (closed.get()) {
+                throw new IllegalStateException("store is closed");
+            }
+            for (Segment segment : segments.values()) {
+                String name = segment.file.getName();
+                if (segment == active) {
+                    activeName = name;
+                    activeEnd = segment.end;
+                    partial = new File(target, name + ".partial");
+                    StoreCheckpoint.link(segment.file, partial);
+                } else {
+                    StoreCheckpoint.link(segment.file, new File(target, name));
+                }
+                names.add(name);
+            }
+        }
+        if (partial != null) {
+            // records before the end of the active segment are never modified
+            StoreCheckpoint.copy(partial, new File(target, activeName), activeEnd);
+            if (!partial.delete()) {
+                throw new IOException("unable to delete " + partial);
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public long count() {
+        return index.size();
+    }
+}
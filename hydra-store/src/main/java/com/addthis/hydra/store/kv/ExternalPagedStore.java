@@ -15,11 +15,14 @@ package com.addthis.hydra.store.kv;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.SortedMap;
@@ -146,6 +149,14 @@ public class ExternalPagedStore<K extends Comparable<K>, V> extends CachedPagedS
 
         public void put(byte[] key, byte[] val);
 
+        /**
+         * Store a batch of entries. Entries are written in the order of
+         * the list, so a later entry replaces an earlier entry with the
+         * same key. Stores write a batch with less overhead than the same
+         * number of calls to {@link #put(byte[], byte[])}.
+         */
+        public void putAll(List<PageEntry> entries);
+
         public byte[] get(byte[] key);
 
         /**
@@ -187,6 +198,16 @@ public class ExternalPagedStore<K extends Comparable<K>, V> extends CachedPagedS
         public void close(boolean cleanLog);
 
         long count();
+
+        /**
+         * Write a consistent image of the store into the existing directory
+         * {@code target}. Files that the store no longer modifies are linked
+         * rather than copied where the file system allows it. The image
+         * can be opened as a read-only store with the same name.
+         *
+         * @return names of the files of the image relative to {@code target}
+         */
+        public List<String> checkpoint(File target) throws IOException;
     }
 
     /** */
@@ -197,6 +218,30 @@ public class ExternalPagedStore<K extends Comparable<K>, V> extends CachedPagedS
         public byte[] value();
     }
 
+    /**
+     * Holds a key and value for {@link ByteStore#putAll(List)}.
+     */
+    public static final class SimplePageEntry implements PageEntry {
+
+        private final byte[] key;
+        private final byte[] value;
+
+        public SimplePageEntry(byte[] key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public byte[] key() {
+            return key;
+        }
+
+        @Override
+        public byte[] value() {
+            return value;
+        }
+    }
+
     public static void setKeyDebugging(boolean debug) {
         System.setProperty("eps.keys.debug", debug ? "1" : "0");
     }
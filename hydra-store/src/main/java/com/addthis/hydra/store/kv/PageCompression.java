@@ -0,0 +1,360 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import com.addthis.basis.util.Bytes;
+import com.addthis.basis.util.Parameter;
+
+import com.ning.compress.lzf.LZFDecoder;
+import com.ning.compress.lzf.LZFEncoder;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * Block codec for encoded pages. The first byte of every encoded page
+ * stores the compression type in the low four bits and the
+ * {@link #FLAGS_HAS_ESTIMATES} and {@link #FLAGS_BLOCK_ENCODED} flags
+ * in the high bits. Pages without {@link #FLAGS_BLOCK_ENCODED} are
+ * compressed with a stream per page and must be read through the legacy
+ * stream decoders.
+ * <p/>
+ * A block encoded page has the layout
+ * <pre>
+ *     [flags][length of uncompressed body][compressed body]
+ * </pre>
+ * where the uncompressed body is written into a reusable per-thread
+ * {@link PageBuffer} and then compressed with a single call. The body
+ * format is identical to the body of a stream encoded page so the
+ * decoders only differ in how they obtain the uncompressed bytes.
+ */
+public final class PageCompression {
+
+    public static final int FLAGS_HAS_ESTIMATES = 1 << 4;
+
+    public static final int FLAGS_BLOCK_ENCODED = 1 << 5;
+
+    /**
+     * Per-thread buffers that grow beyond this size are discarded after
+     * use so that one unusually large page does not pin memory forever.
+     */
+    private static final int maxRetainedBuffer = Parameter.intValue("eps.gz.block.retain", 4 * 1024 * 1024);
+
+    private static final int initialBuffer = Parameter.intValue("eps.gz.block.initial", 64 * 1024);
+
+    private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private PageCompression() {
+    }
+
+    /**
+     * Reusable state for a single thread.
+     */
+    private static final class Buffers {
+
+        final PageBuffer body = new PageBuffer(initialBuffer);
+        final PageBuffer output = new PageBuffer(initialBuffer);
+        final Deflater deflater = new Deflater();
+        final Inflater inflater = new Inflater();
+    }
+
+    /**
+     * An output stream that writes into a growable heap {@link ByteBuffer}.
+     * Writes never allocate unless the buffer must grow.
+     */
+    public static final class PageBuffer extends OutputStream {
+
+        private ByteBuffer buffer;
+
+        PageBuffer(int capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+
+        @Override
+        public void write(int b) {
+            ensureRemaining(1);
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureRemaining(len);
+            buffer.put(b, off, len);
+        }
+
+        public void ensureRemaining(int len) {
+            if (buffer.remaining() < len) {
+                int capacity = Math.max(buffer.capacity() * 2, buffer.position() + len);
+                ByteBuffer next = ByteBuffer.allocate(capacity);
+                buffer.flip();
+                next.put(buffer);
+                buffer = next;
+            }
+        }
+
+        public byte[] array() {
+            return buffer.array();
+        }
+
+        public int size() {
+            return buffer.position();
+        }
+
+        public int remaining() {
+            return buffer.remaining();
+        }
+
+        void advance(int len) {
+            buffer.position(buffer.position() + len);
+        }
+
+        void reset() {
+            if (buffer.capacity() > maxRetainedBuffer) {
+                buffer = ByteBuffer.allocate(initialBuffer);
+            } else {
+                buffer.clear();
+            }
+        }
+
+        public byte[] toByteArray() {
+            byte[] result = new byte[buffer.position()];
+            System.arraycopy(buffer.array(), 0, result, 0, result.length);
+            return result;
+        }
+    }
+
+    /**
+     * An input stream over the uncompressed body of a page that
+     * exposes its backing array and read position. Values can be
+     * referenced as slices of {@link #array()} rather than copied out.
+     */
+    public static final class PageInput extends ByteArrayInputStream {
+
+        PageInput(byte[] buf, int offset, int length) {
+            super(buf, offset, length);
+        }
+
+        public byte[] array() {
+            return buf;
+        }
+
+        public int position() {
+            return pos;
+        }
+
+        /**
+         * Skip over {@code length} bytes without copying them.
+         *
+         * @return offset of the first skipped byte in {@link #array()}
+         */
+        public int skipSlice(int length) throws IOException {
+            int offset = pos;
+            if (length > count - pos) {
+                throw new IOException("length " + length + " exceeds remaining " + (count - pos));
+            }
+            pos += length;
+            return offset;
+        }
+    }
+
+    /**
+     * Returns the calling thread's body buffer after clearing it.
+     * The buffer is only valid until the next call to this method
+     * on the same thread.
+     */
+    public static PageBuffer bodyBuffer() {
+        PageBuffer body = buffers.get().body;
+        body.reset();
+        return body;
+    }
+
+    public static boolean isBlockEncoded(int flags) {
+        return (flags & FLAGS_BLOCK_ENCODED) != 0;
+    }
+
+    /**
+     * Compress the contents of {@code body} with a single call to the codec
+     * selected by {@code gztype} and return the encoded page.
+     */
+    public static byte[] compress(PageBuffer body, int gztype, int gzlevel, int flags) throws IOException {
+        return compress(body, gztype, gzlevel, flags, null);
+    }
+
+    /**
+     * Compress the contents of {@code body} and return the encoded page.
+     * If {@code dictionary} is not null and {@code gztype} selects deflate
+     * then the dictionary is used as the preset dictionary of the zlib
+     * stream. The page can only be read while the dictionary is registered.
+     */
+    public static byte[] compress(PageBuffer body, int gztype, int gzlevel, int flags,
+            PageDictionary dictionary) throws IOException {
+        Buffers local = buffers.get();
+        PageBuffer output = local.output;
+        output.reset();
+        output.write((gztype & 0x0f) | flags | FLAGS_BLOCK_ENCODED);
+        Bytes.writeLength(body.size(), output);
+        switch (gztype) {
+            case 0:
+                output.write(body.array(), 0, body.size());
+                break;
+            case 1:
+                deflate(local.deflater, gzlevel, dictionary, body, output);
+                break;
+            case 2: {
+                GZIPOutputStream gz = new GZIPOutputStream(output);
+                gz.write(body.array(), 0, body.size());
+                gz.finish();
+                break;
+            }
+            case 3: {
+                byte[] compressed = LZFEncoder.encode(body.array(), 0, body.size());
+                output.write(compressed, 0, compressed.length);
+                break;
+            }
+            case 4: {
+                output.ensureRemaining(Snappy.maxCompressedLength(body.size()));
+                int length = Snappy.compress(body.array(), 0, body.size(), output.array(), output.size());
+                output.advance(length);
+                break;
+            }
+            default:
+                throw new RuntimeException("invalid gztype: " + gztype);
+        }
+        return output.toByteArray();
+    }
+
+    private static void deflate(Deflater deflater, int gzlevel, PageDictionary dictionary,
+            PageBuffer body, PageBuffer output) {
+        deflater.reset();
+        deflater.setLevel(gzlevel);
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary.bytes());
+        }
+        deflater.setInput(body.array(), 0, body.size());
+        deflater.finish();
+        while (!deflater.finished()) {
+            output.ensureRemaining(Math.max(body.size() / 2, 64));
+            int length = deflater.deflate(output.array(), output.size(), output.remaining());
+            output.advance(length);
+        }
+    }
+
+    /**
+     * Decompress a block encoded page. The returned stream is positioned
+     * at the start of the uncompressed body. Uncompressed pages are read
+     * in place without copying. Compressed pages are decompressed into
+     * a new array that is owned by the caller, so slices of it may be
+     * retained after this method returns.
+     */
+    public static PageInput decompress(byte[] page) throws IOException {
+        return decompress(page, null);
+    }
+
+    /**
+     * Decompress a block encoded page of a store that has a deflate dictionary.
+     *
+     * @param dictionary dictionary of the store or null. A page that requires
+     *                   a dictionary can only be read if its dictionary
+     *                   identifier matches this dictionary.
+     */
+    public static PageInput decompress(byte[] page, PageDictionary dictionary) throws IOException {
+        int gztype = page[0] & 0x0f;
+        PageInput header = new PageInput(page, 1, page.length - 1);
+        int length = (int) Bytes.readLength(header);
+        int offset = header.position();
+        int compressedLength = page.length - offset;
+        if (gztype == 0) {
+            return new PageInput(page, offset, length);
+        }
+        byte[] body = new byte[length];
+        switch (gztype) {
+            case 1:
+                inflate(buffers.get().inflater, page, offset, compressedLength, body, dictionary);
+                break;
+            case 2: {
+                InputStream in = new GZIPInputStream(
+                        new ByteArrayInputStream(page, offset, compressedLength));
+                readFully(in, body);
+                in.close();
+                break;
+            }
+            case 3:
+                LZFDecoder.decode(page, offset, compressedLength, body);
+                break;
+            case 4:
+                Snappy.uncompress(page, offset, compressedLength, body, 0);
+                break;
+            default:
+                throw new RuntimeException("invalid gztype: " + gztype);
+        }
+        return new PageInput(body, 0, length);
+    }
+
+    private static void inflate(Inflater inflater, byte[] page, int offset, int length,
+            byte[] body, PageDictionary dictionary) throws IOException {
+        inflater.reset();
+        inflater.setInput(page, offset, length);
+        int position = 0;
+        try {
+            while (position < body.length && !inflater.finished()) {
+                int read = inflater.inflate(body, position, body.length - position);
+                if (read == 0 && inflater.needsDictionary()) {
+                    if (dictionary == null || dictionary.id() != inflater.getAdler()) {
+                        throw new IOException("page requires dictionary " +
+                                              Integer.toHexString(inflater.getAdler()) + " but the store has " +
+                                              (dictionary != null ? Integer.toHexString(dictionary.id()) : "none"));
+                    }
+                    inflater.setDictionary(dictionary.bytes());
+                    continue;
+                }
+                if (read == 0 && inflater.needsInput()) {
+                    break;
+                }
+                position += read;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        }
+        if (position != body.length) {
+            throw new IOException("inflated " + position + " bytes but expected " + body.length);
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] body) throws IOException {
+        int position = 0;
+        while (position < body.length) {
+            int read = in.read(body, position, body.length - position);
+            if (read < 0) {
+                throw new IOException("read " + position + " bytes but expected " + body.length);
+            }
+            position += read;
+        }
+    }
+}
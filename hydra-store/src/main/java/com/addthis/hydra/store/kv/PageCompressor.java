@@ -0,0 +1,276 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.hydra.store.kv.PageCompression.PageBuffer;
+import com.addthis.hydra.store.util.NamedThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses how the pages of one store are compressed. By default every page
+ * is compressed with the configured type and level. Two optional refinements
+ * are supported:
+ * <ul>
+ * <li>A preset dictionary for deflate. The dictionary is either supplied
+ * or trained on a background thread from the first pages that are written
+ * and stored in the directory of the database, see {@link PageDictionary}.
+ * Pages are compressed without a dictionary until training is done.</li>
+ * <li>Adaptive selection. Every {@code eps.gz.adaptive.interval} pages are
+ * compressed with all candidate codecs and the codec with the lowest cost is
+ * used for the following pages. The cost of a codec is the average encoded
+ * size plus the average compression time divided by
+ * {@code eps.gz.adaptive.nanos}, the number of nanoseconds that are worth
+ * one byte of storage.</li>
+ * </ul>
+ * Pages record their codec in the page header, so a store may contain
+ * pages with different codecs and its pages are read by
+ * {@link PageCompression#decompress(byte[], PageDictionary)} with the
+ * dictionary of the store regardless of these settings.
+ */
+public final class PageCompressor {
+
+    private static final Logger log = LoggerFactory.getLogger(PageCompressor.class);
+
+    private static final int defaultType = Parameter.intValue("eps.gz.type", 1);
+    private static final int defaultLevel = Parameter.intValue("eps.gz.level", 1);
+    private static final boolean defaultAdaptive = Parameter.boolValue("eps.gz.adaptive", false);
+    private static final int adaptiveInterval = Parameter.intValue("eps.gz.adaptive.interval", 64);
+    private static final int adaptiveNanos = Parameter.intValue("eps.gz.adaptive.nanos", 20);
+    private static final int dictionarySamples = Parameter.intValue("eps.gz.dict.samples", 4 * 1024 * 1024);
+    private static final int dictionarySize = Parameter.intValue("eps.gz.dict.size", 16 * 1024);
+
+    /**
+     * Codecs that are compared by adaptive selection: none, deflate, LZF and Snappy.
+     */
+    private static final int[] CANDIDATES = {0, 1, 3, 4};
+
+    /**
+     * Trains dictionaries so that the threads that compress pages,
+     * which are usually evicting pages, are not delayed by training.
+     * The thread exits when it has been idle for a minute.
+     */
+    private static final ExecutorService trainer = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("page-dictionary-", true));
+
+    private final int gztype;
+    private final int gzlevel;
+    private final boolean adaptive;
+
+    /**
+     * If non-null then a dictionary is trained and stored in this directory.
+     */
+    private final File trainDir;
+
+    private volatile PageDictionary dictionary;
+
+    private volatile int currentType;
+
+    private final AtomicLong counter = new AtomicLong();
+
+    private final AtomicBoolean training = new AtomicBoolean();
+
+    private final List<byte[]> samples = new ArrayList<>();
+
+    private int sampledBytes;
+
+    /**
+     * Exponentially weighted averages of the encoded
+     * size and encoding time of each candidate.
+     */
+    private final double[] averageBytes = new double[CANDIDATES.length];
+    private final double[] averageNanos = new double[CANDIDATES.length];
+
+    private final AtomicLong[] selected = new AtomicLong[CANDIDATES.length];
+
+    public PageCompressor(int gztype, int gzlevel) {
+        this(gztype, gzlevel, null, null, defaultAdaptive);
+    }
+
+    /**
+     * Use the default codec and level.
+     *
+     * @param dictionary deflate dictionary or null
+     * @param trainDir   if non-null and {@code dictionary} is null then a
+     *                   dictionary is trained and stored in this directory
+     */
+    public PageCompressor(PageDictionary dictionary, File trainDir) {
+        this(defaultType, defaultLevel, dictionary, trainDir, defaultAdaptive);
+    }
+
+    /**
+     * @param dictionary deflate dictionary or null
+     * @param trainDir   if non-null and {@code dictionary} is null then a
+     *                   dictionary is trained and stored in this directory
+     * @param adaptive   if true then the codec is chosen by measurement
+     */
+    public PageCompressor(int gztype, int gzlevel, PageDictionary dictionary,
+            File trainDir, boolean adaptive) {
+        this.gztype = gztype;
+        this.gzlevel = gzlevel;
+        this.dictionary = dictionary;
+        this.trainDir = dictionary == null ? trainDir : null;
+        this.adaptive = adaptive;
+        this.currentType = gztype;
+        for (int i = 0; i < selected.length; i++) {
+            selected[i] = new AtomicLong();
+        }
+    }
+
+    public PageDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * The codec that is currently used for new pages.
+     */
+    public int getCurrentType() {
+        return currentType;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Number of times each of the codecs none, deflate, LZF
+     * and Snappy was chosen by adaptive selection.
+     */
+    public long[] getSelections() {
+        long[] result = new long[selected.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = selected[i].get();
+        }
+        return result;
+    }
+
+    /**
+     * Compress the page body in {@code body} and return the encoded page.
+     */
+    public byte[] compress(PageBuffer body, int flags) throws IOException {
+        if (trainDir != null && dictionary == null) {
+            sample(body);
+        }
+        if (adaptive && counter.getAndIncrement() % adaptiveInterval == 0) {
+            return compressAll(body, flags);
+        }
+        int type = currentType;
+        return PageCompression.compress(body, type, gzlevel, flags, type == 1 ? dictionary : null);
+    }
+
+    /**
+     * Compress the page with every candidate, update the averages and
+     * return the output of the candidate with the lowest cost.
+     */
+    private byte[] compressAll(PageBuffer body, int flags) throws IOException {
+        PageDictionary dict = dictionary;
+        byte[][] outputs = new byte[CANDIDATES.length][];
+        long[] nanos = new long[CANDIDATES.length];
+        for (int i = 0; i < CANDIDATES.length; i++) {
+            long start = System.nanoTime();
+            outputs[i] = PageCompression.compress(body, CANDIDATES[i], gzlevel, flags,
+                    CANDIDATES[i] == 1 ? dict : null);
+            nanos[i] = System.nanoTime() - start;
+        }
+        int best;
+        synchronized (averageBytes) {
+            best = 0;
+            double bestCost = Double.MAX_VALUE;
+            for (int i = 0; i < CANDIDATES.length; i++) {
+                if (averageBytes[i] == 0) {
+                    averageBytes[i] = outputs[i].length;
+                    averageNanos[i] = nanos[i];
+                } else {
+                    averageBytes[i] += (outputs[i].length - averageBytes[i]) / 8;
+                    averageNanos[i] += (nanos[i] - averageNanos[i]) / 8;
+                }
+                double cost = averageBytes[i] + averageNanos[i] / Math.max(1, adaptiveNanos);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = i;
+                }
+            }
+            currentType = CANDIDATES[best];
+        }
+        selected[best].getAndIncrement();
+        return outputs[best];
+    }
+
+    private void sample(PageBuffer body) {
+        List<byte[]> trainingSet = null;
+        synchronized (samples) {
+            if (sampledBytes >= dictionarySamples) {
+                return;
+            }
+            samples.add(body.toByteArray());
+            sampledBytes += body.size();
+            if (sampledBytes >= dictionarySamples && training.compareAndSet(false, true)) {
+                trainingSet = new ArrayList<>(samples);
+                samples.clear();
+            }
+        }
+        if (trainingSet != null) {
+            final List<byte[]> finalSet = trainingSet;
+            trainer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        train(finalSet);
+                    } catch (RuntimeException ex) {
+                        log.warn("[dictionary] unable to train dictionary", ex);
+                    }
+                }
+            });
+        }
+    }
+
+    private void train(List<byte[]> trainingSet) {
+        long start = System.currentTimeMillis();
+        PageDictionary trained = PageDictionary.train(trainingSet, dictionarySize);
+        if (trained == null) {
+            log.info("[dictionary] no dictionary trained from " + trainingSet.size() + " pages");
+            return;
+        }
+        try {
+            // the dictionary must be durable before any page refers to it
+            trained.write(trainDir);
+            dictionary = trained;
+            log.info("[dictionary] trained " + trained.bytes().length + " bytes from " +
+                     trainingSet.size() + " pages in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (IOException ex) {
+            log.warn("[dictionary] unable to store dictionary in " + trainDir, ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PageCompressor{gztype=" + gztype + ", gzlevel=" + gzlevel + ", adaptive=" + adaptive +
+               ", dictionary=" + (dictionary != null ? Integer.toHexString(dictionary.id()) : "none") + "}";
+    }
+}
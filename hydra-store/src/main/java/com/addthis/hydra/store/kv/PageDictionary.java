@@ -0,0 +1,234 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Adler32;
+
+import com.addthis.basis.util.Files;
+import com.addthis.basis.util.Parameter;
+
+/**
+ * A preset dictionary for deflate compressed pages. A store has at most
+ * one dictionary, which is stored next to the database and loaded with
+ * {@link #open(File)}. The store hands its dictionary to
+ * {@link PageCompression#decompress(byte[], PageDictionary)}. Pages that
+ * are compressed with a dictionary carry the Adler-32 checksum of the
+ * dictionary in their zlib header, which is only used to check that the
+ * page was compressed with the dictionary of the store.
+ * <p/>
+ * Dictionaries are trained from sample page bodies by choosing, in
+ * each range of the samples, the segment whose eight byte substrings
+ * occur in the most samples. Segments with the highest scores are
+ * placed at the end of the dictionary where matches are cheapest.
+ */
+public final class PageDictionary {
+
+    public static final String FILE_NAME = "pages.dict";
+
+    /**
+     * Deflate can not refer back further than 32K bytes.
+     */
+    public static final int MAX_SIZE = 32 * 1024;
+
+    private static final int segmentSize = Parameter.intValue("eps.gz.dict.segment", 64);
+
+    private static final int DMER = 8;
+
+    private static final int HASH_BITS = 20;
+
+    private final byte[] bytes;
+
+    private final int id;
+
+    public PageDictionary(byte[] bytes) {
+        if (bytes.length == 0 || bytes.length > MAX_SIZE) {
+            throw new IllegalArgumentException("dictionary length " + bytes.length +
+                                               " is not in (0, " + MAX_SIZE + "]");
+        }
+        Adler32 adler = new Adler32();
+        adler.update(bytes, 0, bytes.length);
+        this.bytes = bytes;
+        this.id = (int) adler.getValue();
+    }
+
+    /**
+     * The dictionary contents. The array must not be modified.
+     */
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * The Adler-32 checksum of the dictionary, which is the dictionary
+     * identifier of the zlib format.
+     */
+    public int id() {
+        return id;
+    }
+
+    public static File file(File dir) {
+        return new File(dir, FILE_NAME);
+    }
+
+    /**
+     * Load the dictionary of the database in {@code dir}.
+     *
+     * @return the dictionary or null if the database does not have one
+     */
+    public static PageDictionary open(File dir) throws IOException {
+        File file = file(dir);
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] bytes = Files.read(file);
+        if (bytes == null) {
+            throw new IOException("unable to read " + file);
+        }
+        return new PageDictionary(bytes);
+    }
+
+    /**
+     * Durably store the dictionary of the database in {@code dir}.
+     * The file is written completely before it becomes visible.
+     */
+    public void write(File dir) throws IOException {
+        File file = file(dir);
+        File temp = new File(dir, FILE_NAME + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(bytes);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("unable to rename " + temp + " to " + file);
+        }
+    }
+
+    private static final class Segment {
+
+        final int offset;
+        final long score;
+
+        Segment(int offset, long score) {
+            this.offset = offset;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Train a dictionary of at most {@code size} bytes from sample page bodies.
+     *
+     * @return the dictionary or null if the samples have no repeated content
+     */
+    public static PageDictionary train(List<byte[]> samples, int size) {
+        size = Math.min(size, MAX_SIZE);
+        int total = 0;
+        for (byte[] sample : samples) {
+            total += sample.length;
+        }
+        if (total < segmentSize || size < segmentSize) {
+            return null;
+        }
+        byte[] all = new byte[total];
+        int position = 0;
+        for (byte[] sample : samples) {
+            System.arraycopy(sample, 0, all, position, sample.length);
+            position += sample.length;
+        }
+
+        // number of samples that contain each substring
+        int[] frequency = new int[1 << HASH_BITS];
+        int[] lastSample = new int[1 << HASH_BITS];
+        position = 0;
+        for (int i = 0; i < samples.size(); i++) {
+            int end = position + samples.get(i).length;
+            for (int p = position; p + DMER <= end; p++) {
+                int hash = hash(all, p);
+                if (lastSample[hash] != i + 1) {
+                    lastSample[hash] = i + 1;
+                    frequency[hash]++;
+                }
+            }
+            position = end;
+        }
+        int[] hashes = new int[Math.max(0, total - DMER + 1)];
+        for (int p = 0; p < hashes.length; p++) {
+            hashes[p] = hash(all, p);
+        }
+
+        int numSegments = size / segmentSize;
+        int epochSize = Math.max(segmentSize, total / numSegments);
+        int window = segmentSize - DMER + 1;
+        List<Segment> chosen = new ArrayList<>();
+        for (int start = 0; start + segmentSize <= total && chosen.size() < numSegments; start += epochSize) {
+            int end = Math.min(start + epochSize, total);
+            long score = 0;
+            for (int p = start; p < start + window; p++) {
+                score += frequency[hashes[p]];
+            }
+            long bestScore = score;
+            int best = start;
+            for (int p = start + 1; p + segmentSize <= end; p++) {
+                score += frequency[hashes[p + window - 1]] - frequency[hashes[p - 1]];
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = p;
+                }
+            }
+            // a substring that occurs in a single sample is not worth storing
+            if (bestScore <= window) {
+                continue;
+            }
+            chosen.add(new Segment(best, bestScore));
+            // content that is already in the dictionary does not score again
+            for (int p = best; p < best + window; p++) {
+                frequency[hashes[p]] = 0;
+            }
+        }
+        if (chosen.isEmpty()) {
+            return null;
+        }
+        Collections.sort(chosen, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return a.score < b.score ? -1 : (a.score > b.score ? 1 : 0);
+            }
+        });
+        byte[] dictionary = new byte[chosen.size() * segmentSize];
+        position = 0;
+        for (Segment segment : chosen) {
+            System.arraycopy(all, segment.offset, dictionary, position, segmentSize);
+            position += segmentSize;
+        }
+        return new PageDictionary(dictionary);
+    }
+
+    private static int hash(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < DMER; i++) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return (int) ((value * 0x9e3779b97f4a7c15L) >>> (64 - HASH_BITS));
+    }
+}
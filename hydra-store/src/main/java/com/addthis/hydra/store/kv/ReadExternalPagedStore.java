@@ -14,10 +14,14 @@
 package com.addthis.hydra.store.kv;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.SortedMap;
@@ -33,6 +37,7 @@ import com.addthis.codec.Codec;
 import com.addthis.hydra.store.db.IReadWeighable;
 import com.addthis.hydra.store.db.ReadDBKeyCoder;
 import com.addthis.hydra.store.kv.ExternalPagedStore.ByteStore;
+import com.addthis.hydra.store.kv.PageCompression.PageInput;
 import com.addthis.hydra.store.kv.metrics.ExternalPagedStoreMetrics;
 
 import com.google.common.cache.CacheBuilder;
@@ -87,6 +92,9 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
     //backing byte store
     private final ByteStore pages;
 
+    // deflate dictionary of the store or null
+    private final PageDictionary dictionary;
+
     final KeyCoder<K, V> keyCoder;
 
     public ReadExternalPagedStore(KeyCoder<K, V> keyCoder, final ByteStore pages, int maxSize, int maxWeight) {
@@ -94,8 +102,17 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
     }
 
     public ReadExternalPagedStore(final KeyCoder<K, V> keyCoder, final ByteStore pages, int maxSize, int maxWeight, boolean collect) {
+        this(keyCoder, pages, maxSize, maxWeight, collect, null);
+    }
+
+    /**
+     * @param dictionary deflate dictionary of the store or null
+     */
+    public ReadExternalPagedStore(final KeyCoder<K, V> keyCoder, final ByteStore pages, int maxSize, int maxWeight,
+            boolean collect, PageDictionary dictionary) {
         this.keyCoder = keyCoder;
         this.pages = pages;
+        this.dictionary = dictionary;
         log.info("[init] maxSize=" + maxSize + " maxWeight=" + maxWeight);
 
         collectMetrics = collectMetricsParameter || collect;
@@ -168,6 +185,9 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
      * TODO: Might as well store TreePage keys as undecoded bytes if we only use this method?
      */
     public V getValue(K key) {
+        if (pages instanceof SortedByteStore && !((SortedByteStore) pages).mightContain(keyCoder.keyEncode(key))) {
+            return null;
+        }
         KeyValuePage<K, V> page = getOrLoadPageForKey(key);
         V value = page.getValue(key);
         if (collectMetrics) {
@@ -180,11 +200,26 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
         pages.close();
     }
 
+    /**
+     * Returns the encoded keys of the values in an encoded page.
+     */
+    public List<byte[]> decodePageKeys(byte[] page) {
+        TreePage decoded = pageDecode(page);
+        List<byte[]> keys = new ArrayList<>(decoded.map.size());
+        for (K key : decoded.map.keySet()) {
+            keys.add(keyCoder.keyEncode(key));
+        }
+        return keys;
+    }
+
     //decode pages. Called on the bytes returned by store.get()
     private TreePage pageDecode(byte[] page) {
         try {
-            InputStream in = new ByteArrayInputStream(page);
-            int flags = in.read() & 0xff;
+            int flags = page[0] & 0xff;
+            if (PageCompression.isBlockEncoded(flags)) {
+                return blockPageDecode(page);
+            }
+            InputStream in = new ByteArrayInputStream(page, 1, page.length - 1);
             int gztype = flags & 0x0f;
             switch (gztype) {
                 case 1:
@@ -227,6 +262,35 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
         }
     }
 
+    /**
+     * decode a page in the block format of {@link PageCompression}. Values are
+     * kept as slices of the decompressed page and copied out when first decoded.
+     */
+    private TreePage blockPageDecode(byte[] page) throws IOException {
+        PageInput in = PageCompression.decompress(page, dictionary);
+        int entries = (int) Bytes.readLength(in);
+        if (collectMetrics) {
+            metrics.updatePageSize(entries);
+        }
+        K firstKey = keyCoder.keyDecode(Bytes.readBytes(in));
+        K nextFirstKey = keyCoder.keyDecode(Bytes.readBytes(in));
+        TreePage decode = new TreePage(firstKey).setNextFirstKey(nextFirstKey);
+        byte[] body = in.array();
+        while (entries-- > 0) {
+            byte kb[] = Bytes.readBytes(in);
+            int length = (int) Bytes.readLength(in);
+            int offset = in.skipSlice(length);
+            K key = keyCoder.keyDecode(kb);
+            decode.map.put(key, new PageValue(body, offset, length));
+        }
+        //ignoring memory data
+        if (log.isDebugEnabled()) {
+            log.debug("decoded " + decode);
+        }
+        decode.originalByteSize = page.length;
+        return decode;
+    }
+
     /**
      * wrapper around an individual (non-paged) value V that allows for selective
      * decoding of tree nodes from a page. Pages start off with a bunch of these.
@@ -237,15 +301,26 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
 
         private V value;
         private byte[] raw;
+        private final int offset;
+        private final int length;
         private volatile V realValue;
 
         PageValue(byte[] raw) {
+            this(raw, 0, raw.length);
+        }
+
+        /**
+         * The value is the slice [offset, offset + length) of {@code raw}.
+         */
+        PageValue(byte[] raw, int offset, int length) {
             this.raw = raw;
+            this.offset = offset;
+            this.length = length;
         }
 
         @Override
         public String toString() {
-            return "PV:" + (value != null ? value : raw != null ? "{raw:" + raw.length + "}" : "null");
+            return "PV:" + (value != null ? value : raw != null ? "{raw:" + length + "}" : "null");
         }
 
         public V value() {
@@ -254,6 +329,9 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
                 if (realValue != null) {
                     value = realValue;
                 } else if (r != null) {
+                    if (offset != 0 || length != r.length) {
+                        r = Arrays.copyOfRange(r, offset, offset + length);
+                    }
                     realValue = keyCoder.valueDecode(r);
                     value = realValue;
                     raw = null;
@@ -0,0 +1,695 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.addthis.basis.util.Bytes;
+import com.addthis.basis.util.ClosableIterator;
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.hydra.store.kv.ExternalPagedStore.ByteStore;
+import com.addthis.hydra.store.kv.ExternalPagedStore.PageEntry;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.UnsignedBytes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable, sorted, block-indexed byte store that is read through
+ * memory-mapped regions of a single file. Instances are created from an
+ * existing store with {@link Writer} once the store will no longer be
+ * modified, and are always read-only.
+ * <p/>
+ * The file is a sequence of blocks followed by a sparse index and a
+ * fixed-size footer:
+ * <pre>
+ *     block:  ([int key length][key][int value length][value])* [long bloom word]*
+ *     index:  [int bloom hashes][int blocks] ([int key length][first key][long offset][int length][int entries][int bloom words])*
+ *     footer: [long index offset][long entries][long magic]
+ * </pre>
+ * Blocks are filled up to {@link #blockSize} bytes. An entry is never
+ * split across blocks so a block holding a single large entry may exceed
+ * the target size. Each block can carry a bloom filter over keys supplied
+ * with {@link Writer#addFilterKey(byte[])}. When the store holds pages of
+ * a paged store these are the keys of the values inside the pages, so
+ * {@link #mightContain(byte[])} can reject a lookup without reading or
+ * decoding a page. Keys are compared as unsigned bytes.
+ */
+public class SortedByteStore implements ByteStore {
+
+    private static final Logger log = LoggerFactory.getLogger(SortedByteStore.class);
+
+    private static final int blockSize = Parameter.intValue("eps.sorted.block.size", 64 * 1024);
+    private static final int bloomBitsPerKey = Parameter.intValue("eps.sorted.bloom.bits", 10);
+    private static final int regionSize = Parameter.intValue("eps.sorted.region.size", 1024 * 1024 * 1024);
+
+    private static final String SUFFIX = ".sst";
+    private static final long MAGIC = 0x6879647261737374L;
+    private static final int FOOTER_SIZE = 24;
+
+    private static final Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+    private static final HashFunction hashFunction = Hashing.murmur3_128();
+
+    private final File file;
+    private final long entries;
+
+    private final byte[][] firstKeys;
+    private final int[] blockRegion;
+    private final int[] blockOffset;
+    private final int[] blockLength;
+    private final int[] blockEntries;
+    private final int[] bloomWords;
+    private final int bloomHashes;
+
+    private final MappedByteBuffer[] regions;
+
+    public static File file(File dir, String dbname) {
+        return new File(dir, dbname + SUFFIX);
+    }
+
+    public static boolean exists(File dir, String dbname) {
+        return file(dir, dbname).isFile();
+    }
+
+    public SortedByteStore(File dir, String dbname) throws IOException {
+        this.file = file(dir, dbname);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < FOOTER_SIZE) {
+                throw new IOException("truncated sorted store " + file);
+            }
+            ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, size - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            entries = footer.getLong();
+            if (footer.getLong() != MAGIC) {
+                throw new IOException("invalid sorted store " + file);
+            }
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+                                           size - FOOTER_SIZE - indexOffset);
+            bloomHashes = index.getInt();
+            int blocks = index.getInt();
+            firstKeys = new byte[blocks][];
+            blockRegion = new int[blocks];
+            blockOffset = new int[blocks];
+            blockLength = new int[blocks];
+            blockEntries = new int[blocks];
+            bloomWords = new int[blocks];
+            long[] offsets = new long[blocks];
+            for (int i = 0; i < blocks; i++) {
+                firstKeys[i] = new byte[index.getInt()];
+                index.get(firstKeys[i]);
+                offsets[i] = index.getLong();
+                blockLength[i] = index.getInt();
+                blockEntries[i] = index.getInt();
+                bloomWords[i] = index.getInt();
+            }
+            regions = mapRegions(channel, offsets);
+        }
+        log.info("[init] file=" + file + " blocks=" + firstKeys.length + " regions=" + regions.length +
+                 " entries=" + entries);
+    }
+
+    /**
+     * Map consecutive blocks into regions of at most {@link #regionSize}
+     * bytes. A mapping can not exceed 2GB so a large file is mapped as
+     * several regions, and a block never spans two regions.
+     */
+    private MappedByteBuffer[] mapRegions(FileChannel channel, long[] offsets) throws IOException {
+        List<MappedByteBuffer> result = new ArrayList<>();
+        int i = 0;
+        while (i < offsets.length) {
+            long start = offsets[i];
+            long end = start;
+            int first = i;
+            while (i < offsets.length) {
+                long blockEnd = offsets[i] + blockSpan(i);
+                if (i > first && blockEnd - start > regionSize) {
+                    break;
+                }
+                blockRegion[i] = result.size();
+                blockOffset[i] = (int) (offsets[i] - start);
+                end = blockEnd;
+                i++;
+            }
+            result.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+        }
+        return result.toArray(new MappedByteBuffer[result.size()]);
+    }
+
+    /**
+     * Length of a block including its bloom filter.
+     */
+    private long blockSpan(int block) {
+        return blockLength[block] + 8L * bloomWords[block];
+    }
+
+    /**
+     * A decoded view of one block.
+     */
+    private final class Block {
+
+        final int id;
+        final ByteBuffer buffer;
+        final int[] keyOffsets;
+
+        Block(int id) {
+            this.id = id;
+            this.buffer = regions[blockRegion[id]].duplicate();
+            this.keyOffsets = new int[blockEntries[id]];
+            int offset = blockOffset[id];
+            for (int i = 0; i < keyOffsets.length; i++) {
+                keyOffsets[i] = offset;
+                int keyLength = buffer.getInt(offset);
+                int valueLength = buffer.getInt(offset + 4 + keyLength);
+                offset += 8 + keyLength + valueLength;
+            }
+        }
+
+        int size() {
+            return keyOffsets.length;
+        }
+
+        byte[] key(int index) {
+            int offset = keyOffsets[index];
+            byte[] key = new byte[buffer.getInt(offset)];
+            buffer.position(offset + 4);
+            buffer.get(key);
+            return key;
+        }
+
+        byte[] value(int index) {
+            int offset = keyOffsets[index];
+            int keyLength = buffer.getInt(offset);
+            byte[] value = new byte[buffer.getInt(offset + 4 + keyLength)];
+            buffer.position(offset + 8 + keyLength);
+            buffer.get(value);
+            return value;
+        }
+
+        /**
+         * Returns the position of the greatest key less than or equal to
+         * the given key, or -1 if all keys are greater.
+         */
+        int floor(byte[] key) {
+            int low = 0;
+            int high = keyOffsets.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = comparator.compare(key(mid), key);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return high;
+        }
+    }
+
+    /**
+     * Position of an entry in the store.
+     */
+    private final class Cursor {
+
+        Block block;
+        int index;
+
+        Cursor(Block block, int index) {
+            this.block = block;
+            this.index = index;
+        }
+
+        byte[] key() {
+            return block.key(index);
+        }
+
+        byte[] value() {
+            return block.value(index);
+        }
+
+        boolean next() {
+            if (index + 1 < block.size()) {
+                index++;
+                return true;
+            } else if (block.id + 1 < firstKeys.length) {
+                block = new Block(block.id + 1);
+                index = 0;
+                return true;
+            }
+            return false;
+        }
+
+        boolean previous() {
+            if (index > 0) {
+                index--;
+                return true;
+            } else if (block.id > 0) {
+                block = new Block(block.id - 1);
+                index = block.size() - 1;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns the index of the last block whose first key is less
+     * than or equal to the given key, or -1 if there is none.
+     */
+    private int floorBlock(byte[] key) {
+        int low = 0;
+        int high = firstKeys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = comparator.compare(firstKeys[mid], key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return high;
+    }
+
+    private Cursor floor(byte[] key) {
+        int block = floorBlock(key);
+        if (block < 0) {
+            return null;
+        }
+        Block target = new Block(block);
+        return new Cursor(target, target.floor(key));
+    }
+
+    private Cursor first() {
+        return firstKeys.length == 0 ? null : new Cursor(new Block(0), 0);
+    }
+
+    private Cursor last() {
+        if (firstKeys.length == 0) {
+            return null;
+        }
+        Block block = new Block(firstKeys.length - 1);
+        return new Cursor(block, block.size() - 1);
+    }
+
+    /**
+     * Returns false if the key was not supplied to the bloom filter of the
+     * block that may hold it. Returns true if there is no filter for the block.
+     */
+    public boolean mightContain(byte[] key) {
+        int block = floorBlock(key);
+        if (block < 0) {
+            return false;
+        }
+        int words = bloomWords[block];
+        if (words == 0) {
+            return true;
+        }
+        ByteBuffer buffer = regions[blockRegion[block]];
+        int base = blockOffset[block] + blockLength[block];
+        long bits = 64L * words;
+        long[] hash = hash(key);
+        for (int i = 0; i < bloomHashes; i++) {
+            long bit = ((hash[0] + i * hash[1]) & Long.MAX_VALUE) % bits;
+            if ((buffer.getLong(base + (int) (bit >>> 6) * 8) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long[] hash(byte[] key) {
+        ByteBuffer hash = ByteBuffer.wrap(hashFunction.hashBytes(key).asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        return new long[]{hash.getLong(0), hash.getLong(8)};
+    }
+
+    @Override
+    public boolean hasKey(byte[] key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public byte[] firstKey() {
+        return firstKeys.length == 0 ? null : firstKeys[0];
+    }
+
+    @Override
+    public byte[] lastKey() {
+        Cursor cursor = last();
+        return cursor == null ? null : cursor.key();
+    }
+
+    @Override
+    public byte[] delete(byte[] key) {
+        throw new UnsupportedOperationException("sorted store is read-only");
+    }
+
+    @Override
+    public void put(byte[] key, byte[] val) {
+        throw new UnsupportedOperationException("sorted store is read-only");
+    }
+
+    @Override
+    public void putAll(List<PageEntry> entries) {
+        throw new UnsupportedOperationException("sorted store is read-only");
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        Cursor cursor = floor(key);
+        if (cursor == null || cursor.index < 0 || !Arrays.equals(cursor.key(), key)) {
+            return null;
+        }
+        return cursor.value();
+    }
+
+    @Override
+    public byte[] higherKey(byte[] key) {
+        Cursor cursor = floor(key);
+        if (cursor == null) {
+            return firstKey();
+        }
+        return cursor.next() ? cursor.key() : null;
+    }
+
+    @Override
+    public byte[] lowerKey(byte[] key) {
+        Cursor cursor = floor(key);
+        if (cursor == null) {
+            return null;
+        }
+        if (comparator.compare(cursor.key(), key) < 0 || cursor.previous()) {
+            return cursor.key();
+        }
+        return null;
+    }
+
+    @Override
+    public byte[] floorKey(byte[] key) {
+        Cursor cursor = floor(key);
+        return cursor == null ? null : cursor.key();
+    }
+
+    @Override
+    public Map.Entry<byte[], byte[]> floorEntry(byte[] key) {
+        Cursor cursor = floor(key);
+        if (cursor == null) {
+            return null;
+        }
+        return new AbstractMap.SimpleImmutableEntry<>(cursor.key(), cursor.value());
+    }
+
+    @Override
+    public byte[] firstEntry() {
+        Cursor cursor = first();
+        return cursor == null ? null : cursor.value();
+    }
+
+    @Override
+    public ClosableIterator<PageEntry> iterator(byte[] start) {
+        return iterator(start, false);
+    }
+
+    @Override
+    public ClosableIterator<PageEntry> keyIterator(byte[] start) {
+        return iterator(start, true);
+    }
+
+    /**
+     * Iterate from the greatest key less than or equal to {@code start}
+     * (or the first key if there is no such key) to the end of the store.
+     */
+    private ClosableIterator<PageEntry> iterator(byte[] start, final boolean keyonly) {
+        Cursor cursor = (start == null || start.length == 0) ? null : floor(start);
+        final Cursor initial = (cursor == null) ? first() : cursor;
+        return new ClosableIterator<PageEntry>() {
+            private Cursor next = initial;
+
+            @Override
+            public void close() {
+                next = null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public PageEntry next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final byte[] key = next.key();
+                final byte[] val = keyonly ? null : next.value();
+                if (!next.next()) {
+                    next = null;
+                }
+                return new PageEntry() {
+                    @Override
+                    public byte[] key() {
+                        return key;
+                    }
+
+                    @Override
+                    public byte[] value() {
+                        return val;
+                    }
+
+                    @Override
+                    public String toString() {
+                        return "PE:" + Bytes.toString(key) + "=" + Bytes.toString(val);
+                    }
+                };
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        // mappings are released when they are garbage collected
+    }
+
+    @Override
+    public void close(boolean cleanLog) {
+        close();
+    }
+
+    @Override
+    public long count() {
+        return entries;
+    }
+
+    /**
+     * The sorted file is never modified so the image is a link to it.
+     */
+    @Override
+    public List<String> checkpoint(File target) throws IOException {
+        StoreCheckpoint.link(file, new File(target, file.getName()));
+        return Collections.singletonList(file.getName());
+    }
+
+    @Override
+    public String toString() {
+        return "BSSORTED[" + file + "," + entries + "]";
+    }
+
+    /**
+     * Writes a sorted store. Entries must be added in strictly increasing
+     * key order. The file is written under a temporary name and renamed
+     * into place by {@link #close()}, so a partially written store is
+     * never visible to readers.
+     */
+    public static final class Writer implements Closeable {
+
+        private final File target;
+        private final File temp;
+        private final FileOutputStream file;
+        private final DataOutputStream out;
+
+        private final List<byte[]> firstKeys = new ArrayList<>();
+        private final List<long[]> blocks = new ArrayList<>();
+        private final int bloomHashes = Math.max(1, (int) Math.round(bloomBitsPerKey * Math.log(2)));
+
+        private long position;
+        private long entries;
+        private byte[] lastKey;
+
+        private long blockStart;
+        private int blockEntries;
+        private long[] filterHashes = new long[64];
+        private int filterKeys;
+
+        public Writer(File dir, String dbname) throws IOException {
+            this.target = file(dir, dbname);
+            this.temp = new File(dir, dbname + SUFFIX + ".tmp");
+            this.file = new FileOutputStream(temp);
+            this.out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+        }
+
+        public void add(byte[] key, byte[] value) throws IOException {
+            if (lastKey != null && comparator.compare(lastKey, key) >= 0) {
+                throw new IllegalArgumentException("keys must be added in increasing order");
+            }
+            long entrySize = 8L + key.length + value.length;
+            if (blockEntries > 0 && position - blockStart + entrySize > blockSize) {
+                finishBlock();
+            }
+            if (blockEntries == 0) {
+                firstKeys.add(key);
+                blockStart = position;
+            }
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeInt(value.length);
+            out.write(value);
+            position += entrySize;
+            blockEntries++;
+            entries++;
+            lastKey = key;
+        }
+
+        /**
+         * Add a key to the bloom filter of the block that holds
+         * the entry most recently passed to {@link #add}.
+         */
+        public void addFilterKey(byte[] key) {
+            if (bloomBitsPerKey <= 0) {
+                return;
+            }
+            if (blockEntries == 0) {
+                throw new IllegalStateException("no block is open");
+            }
+            if (filterHashes.length < 2 * filterKeys + 2) {
+                filterHashes = Arrays.copyOf(filterHashes, filterHashes.length * 2);
+            }
+            long[] hash = hash(key);
+            filterHashes[2 * filterKeys] = hash[0];
+            filterHashes[2 * filterKeys + 1] = hash[1];
+            filterKeys++;
+        }
+
+        private void finishBlock() throws IOException {
+            int length = (int) (position - blockStart);
+            int words = 0;
+            if (filterKeys > 0) {
+                words = (int) ((filterKeys * (long) bloomBitsPerKey + 63) / 64);
+                long[] bloom = new long[words];
+                long bits = 64L * words;
+                for (int k = 0; k < filterKeys; k++) {
+                    long h1 = filterHashes[2 * k];
+                    long h2 = filterHashes[2 * k + 1];
+                    for (int i = 0; i < bloomHashes; i++) {
+                        long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+                        bloom[(int) (bit >>> 6)] |= (1L << bit);
+                    }
+                }
+                for (long word : bloom) {
+                    out.writeLong(word);
+                }
+                position += 8L * words;
+            }
+            blocks.add(new long[]{blockStart, length, blockEntries, words});
+            blockEntries = 0;
+            filterKeys = 0;
+        }
+
+        /**
+         * Discard the partially written file.
+         */
+        public void abort() throws IOException {
+            try {
+                out.close();
+            } finally {
+                if (temp.exists() && !temp.delete()) {
+                    log.warn("unable to delete " + temp);
+                }
+            }
+        }
+
+        /**
+         * Write the index and footer and move the file into place.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (blockEntries > 0) {
+                    finishBlock();
+                }
+                long indexOffset = position;
+                out.writeInt(bloomHashes);
+                out.writeInt(blocks.size());
+                for (int i = 0; i < blocks.size(); i++) {
+                    byte[] key = firstKeys.get(i);
+                    long[] block = blocks.get(i);
+                    out.writeInt(key.length);
+                    out.write(key);
+                    out.writeLong(block[0]);
+                    out.writeInt((int) block[1]);
+                    out.writeInt((int) block[2]);
+                    out.writeInt((int) block[3]);
+                }
+                out.writeLong(indexOffset);
+                out.writeLong(entries);
+                out.writeLong(MAGIC);
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(target)) {
+                throw new IOException("unable to rename " + temp + " to " + target);
+            }
+            log.info("[write] file=" + target + " blocks=" + blocks.size() + " entries=" + entries);
+        }
+    }
+}
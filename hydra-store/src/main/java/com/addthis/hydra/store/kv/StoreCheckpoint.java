@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sleepycat.je.Database;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.util.DbBackup;
+
+/**
+ * Helpers for writing the image of a store into a checkpoint directory.
+ * <p/>
+ * The stores only ever append to their files and never modify a file
+ * once they have moved on to the next one. Those files are hard linked
+ * into the checkpoint, so a checkpoint costs the files that have been
+ * written since the previous checkpoint rather than the size of the store.
+ */
+public final class StoreCheckpoint {
+
+    private StoreCheckpoint() {
+    }
+
+    /**
+     * Hard link {@code source} to {@code target}, or copy it when the
+     * file system does not support links between the two locations.
+     */
+    public static void link(File source, File target) throws IOException {
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+        } catch (IOException | UnsupportedOperationException ex) {
+            Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Copy the first {@code length} bytes of {@code source} to {@code target}.
+     */
+    static void copy(File source, File target, long length) throws IOException {
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new FileOutputStream(target).getChannel()) {
+            long position = 0;
+            while (position < length) {
+                long count = in.transferTo(position, length - position, out);
+                if (count <= 0) {
+                    throw new IOException("unexpected end of " + source + " at " + position);
+                }
+                position += count;
+            }
+        }
+    }
+
+    /**
+     * Write the deferred writes of {@code db} to the log and link
+     * the log files of {@code env} that hold a consistent image.
+     */
+    static List<String> checkpoint(Environment env, Database db, File target) throws IOException {
+        if (!db.getConfig().getReadOnly()) {
+            db.sync();
+        }
+        List<String> names = new ArrayList<>();
+        DbBackup backup = new DbBackup(env);
+        backup.startBackup();
+        try {
+            for (String name : backup.getLogFilesInBackupSet()) {
+                link(new File(env.getHome(), name), new File(target, name));
+                names.add(name);
+            }
+        } finally {
+            backup.endBackup();
+        }
+        return names;
+    }
+}
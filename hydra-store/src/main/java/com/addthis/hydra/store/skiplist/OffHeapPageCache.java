@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.skiplist;
+
+import java.nio.ByteBuffer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.addthis.basis.util.Parameter;
+
+/**
+ * Second level cache of encoded pages held outside of the Java heap.
+ * Pages that are evicted from the heap of a {@link SkipListCache} are
+ * stored here and are removed again when they are next loaded, so a
+ * page is never resident in both levels. Pages that no longer fit are
+ * discarded in least recently stored order. Every page is also present
+ * in the external store, so discarding a page never loses data.
+ * <p/>
+ * Memory is allocated up front as direct buffers that are divided into
+ * fixed size chunks. A page occupies as many chunks as it needs, which
+ * avoids fragmentation at the cost of the unused tail of its last chunk.
+ */
+final class OffHeapPageCache {
+
+    private static final int defaultChunkSize = Parameter.intValue("eps.cache.offheap.chunk", 4096);
+    private static final int slabSize = Parameter.intValue("eps.cache.offheap.slab", 256 * 1024 * 1024);
+
+    private final int chunkSize;
+    private final int chunksPerSlab;
+    private final ByteBuffer[] slabs;
+
+    private final int[] freeChunks;
+    private int freeCount;
+
+    /**
+     * Insertion order is the eviction order.
+     */
+    private final LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<>();
+
+    private volatile long usedBytes;
+    private volatile int numPages;
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong stores = new AtomicLong();
+    final AtomicLong evictions = new AtomicLong();
+    final AtomicLong rejections = new AtomicLong();
+
+    private static final class Entry {
+
+        final int[] chunks;
+        final int length;
+
+        Entry(int[] chunks, int length) {
+            this.chunks = chunks;
+            this.length = length;
+        }
+    }
+
+    OffHeapPageCache(long capacity) {
+        this(capacity, defaultChunkSize);
+    }
+
+    OffHeapPageCache(long capacity, int chunkSize) {
+        if (chunkSize <= 0 || capacity < chunkSize) {
+            throw new IllegalArgumentException("capacity " + capacity + " is less than chunk size " + chunkSize);
+        }
+        long totalChunks = Math.min(capacity / chunkSize, Integer.MAX_VALUE);
+        this.chunkSize = chunkSize;
+        this.chunksPerSlab = (int) Math.min(Math.max(1, slabSize / chunkSize), totalChunks);
+        int numSlabs = (int) ((totalChunks + chunksPerSlab - 1) / chunksPerSlab);
+        this.slabs = new ByteBuffer[numSlabs];
+        for (int i = 0; i < numSlabs; i++) {
+            long chunks = Math.min(chunksPerSlab, totalChunks - (long) i * chunksPerSlab);
+            slabs[i] = ByteBuffer.allocateDirect((int) (chunks * chunkSize));
+        }
+        this.freeChunks = new int[(int) totalChunks];
+        for (int i = 0; i < freeChunks.length; i++) {
+            freeChunks[i] = freeChunks.length - 1 - i;
+        }
+        this.freeCount = freeChunks.length;
+    }
+
+    long capacity() {
+        return (long) freeChunks.length * chunkSize;
+    }
+
+    long usedBytes() {
+        return usedBytes;
+    }
+
+    int numPages() {
+        return numPages;
+    }
+
+    /**
+     * Store an encoded page, replacing any previous copy.
+     *
+     * @return false if the page is larger than the cache
+     */
+    synchronized boolean put(byte[] key, byte[] page) {
+        ByteBuffer wrappedKey = ByteBuffer.wrap(key);
+        release(entries.remove(wrappedKey));
+        int needed = (page.length + chunkSize - 1) / chunkSize;
+        if (needed > freeChunks.length) {
+            rejections.incrementAndGet();
+            return false;
+        }
+        Iterator<Map.Entry<ByteBuffer, Entry>> eldest = entries.entrySet().iterator();
+        while (freeCount < needed) {
+            Entry victim = eldest.next().getValue();
+            eldest.remove();
+            release(victim);
+            evictions.incrementAndGet();
+        }
+        int[] chunks = new int[needed];
+        for (int i = 0; i < needed; i++) {
+            int chunk = freeChunks[--freeCount];
+            chunks[i] = chunk;
+            ByteBuffer target = chunk(chunk);
+            target.put(page, i * chunkSize, Math.min(chunkSize, page.length - i * chunkSize));
+        }
+        entries.put(wrappedKey, new Entry(chunks, page.length));
+        usedBytes += page.length;
+        numPages = entries.size();
+        stores.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Remove and return an encoded page, or return null if it is not cached.
+     */
+    synchronized byte[] take(byte[] key) {
+        Entry entry = entries.remove(ByteBuffer.wrap(key));
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        byte[] page = new byte[entry.length];
+        for (int i = 0; i < entry.chunks.length; i++) {
+            ByteBuffer source = chunk(entry.chunks[i]);
+            source.get(page, i * chunkSize, Math.min(chunkSize, page.length - i * chunkSize));
+        }
+        release(entry);
+        hits.incrementAndGet();
+        return page;
+    }
+
+    /**
+     * Discard the copy of a page whose stored form has been
+     * modified without going through this cache.
+     */
+    synchronized void invalidate(byte[] key) {
+        release(entries.remove(ByteBuffer.wrap(key)));
+    }
+
+    synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            release(entry);
+        }
+        entries.clear();
+        numPages = 0;
+    }
+
+    private void release(Entry entry) {
+        if (entry != null) {
+            for (int chunk : entry.chunks) {
+                freeChunks[freeCount++] = chunk;
+            }
+            usedBytes -= entry.length;
+            numPages = entries.size();
+        }
+    }
+
+    /**
+     * Returns a view positioned at the start of the chunk.
+     */
+    private ByteBuffer chunk(int chunk) {
+        ByteBuffer view = slabs[chunk / chunksPerSlab].duplicate();
+        view.position((chunk % chunksPerSlab) * chunkSize);
+        return view;
+    }
+}
@@ -19,6 +19,7 @@ import javax.annotation.concurrent.GuardedBy;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
@@ -32,6 +33,9 @@ import com.addthis.basis.util.MemoryCounter;
 import com.addthis.basis.util.Parameter;
 
 import com.addthis.hydra.store.kv.KeyCoder;
+import com.addthis.hydra.store.kv.PageCompression;
+import com.addthis.hydra.store.kv.PageCompression.PageBuffer;
+import com.addthis.hydra.store.kv.PageCompression.PageInput;
 
 import com.jcraft.jzlib.Deflater;
 import com.jcraft.jzlib.DeflaterOutputStream;
@@ -52,6 +56,11 @@ final class Page<K, V> {
     static final int gzlevel = Parameter.intValue("eps.gz.level", 1);
     static final int gztype = Parameter.intValue("eps.gz.type", 1);
     static final int gzbuf = Parameter.intValue("eps.gz.buffer", 1024);
+    /**
+     * If true then pages are written in the block format of {@link PageCompression}.
+     * Pages in either format can always be read.
+     */
+    static final boolean gzblock = Parameter.boolValue("eps.gz.block", true);
     static final int estimateMissingFactor = Parameter.intValue("eps.mem.estimate.missing.factor", 8);
     static final int memEstimationStrategy = Parameter.intValue("eps.mem.estimate.method", 1);
     static final int estimateRollMin = Parameter.intValue("eps.mem.estimate.roll.min", 1000);
@@ -92,7 +101,7 @@ final class Page<K, V> {
 
     @GuardedBy("lock")
     @Nullable
-    ArrayList<byte[]> rawValues;
+    RawValueList rawValues;
 
     @GuardedBy("lock")
     @Nonnull
@@ -104,7 +113,7 @@ final class Page<K, V> {
     @GuardedBy("lock")
     private int memoryEstimate;
 
-    private static final int FLAGS_HAS_ESTIMATES = 1 << 4;
+    private static final int FLAGS_HAS_ESTIMATES = PageCompression.FLAGS_HAS_ESTIMATES;
 
     private final KeyCoder<K, V> keyCoder;
 
@@ -120,7 +129,7 @@ final class Page<K, V> {
 
     public Page(SkipListCache<K, V> cache, K firstKey,
             K nextFirstKey, int size, ArrayList<K> keys, ArrayList<V> values,
-            ArrayList<byte[]> rawValues) {
+            RawValueList rawValues) {
         assert (keys != null);
         assert (values != null);
         assert (rawValues != null);
@@ -160,7 +169,7 @@ final class Page<K, V> {
             K firstKey, K nextFirstKey,
             int size, ArrayList<K> keys,
             ArrayList<V> values,
-            ArrayList<byte[]> rawValues) {
+            RawValueList rawValues) {
         return new Page<>(cache, firstKey, nextFirstKey, size, keys, values, rawValues);
     }
 
@@ -170,7 +179,7 @@ final class Page<K, V> {
     public void initialize() {
         keys = new ArrayList<>();
         values = new ArrayList<>();
-        rawValues = new ArrayList<>();
+        rawValues = new RawValueList();
         size = 0;
         timeStamp = SkipListCache.generateTimestamp();
     }
@@ -201,67 +210,14 @@ final class Page<K, V> {
         SkipListCacheMetrics metrics = parent.metrics;
         parent.numPagesEncoded.getAndIncrement();
         try {
-            OutputStream os = out;
-            out.write(gztype | FLAGS_HAS_ESTIMATES);
-            switch (gztype) {
-                case 0:
-                    break;
-                case 1:
-                    os = new DeflaterOutputStream(out, new Deflater(gzlevel));
-                    break;
-                case 2:
-                    os = new GZOut(out, gzbuf, gzlevel);
-                    break;
-                case 3:
-                    os = new LZFOutputStream(out);
-                    break;
-                case 4:
-                    os = new SnappyOutputStream(out);
-                    break;
-                default:
-                    throw new RuntimeException("invalid gztype: " + gztype);
-            }
-
-            byte[] firstKeyEncoded = keyCoder.keyEncode(firstKey);
-            byte[] nextFirstKeyEncoded = keyCoder.keyEncode(nextFirstKey);
-
-            updateHistogram(metrics.encodeFirstKeySize, firstKeyEncoded.length, record);
-            updateHistogram(metrics.encodeNextFirstKeySize, nextFirstKeyEncoded.length, record);
-
-            Bytes.writeLength(size, os);
-            Bytes.writeBytes(firstKeyEncoded, os);
-            Bytes.writeBytes(nextFirstKeyEncoded, os);
-            for (int i = 0; i < size; i++) {
-                byte[] keyEncoded = keyCoder.keyEncode(keys.get(i));
-                byte[] rawVal = rawValues.get(i);
-
-                if (rawVal == null) {
-                    rawVal = keyCoder.valueEncode(values.get(i));
-                }
-
-                updateHistogram(metrics.encodeKeySize, keyEncoded.length, record);
-                updateHistogram(metrics.encodeValueSize, rawVal.length, record);
-
-                Bytes.writeBytes(keyEncoded, os);
-                Bytes.writeBytes(rawVal, os);
-            }
-            Bytes.writeLength((estimateTotal > 0 ? estimateTotal : 1), os);
-            Bytes.writeLength((estimates > 0 ? estimates : 1), os);
-            switch (gztype) {
-                case 1:
-                    ((DeflaterOutputStream) os).finish();
-                    break;
-                case 2:
-                    ((GZOut) os).finish();
-                    break;
-                case 4:
-                    os.flush();
-                    break;
+            byte[] returnValue;
+            if (gzblock) {
+                PageBuffer body = PageCompression.bodyBuffer();
+                encodeBody(body, record);
+                returnValue = parent.compressor.compress(body, FLAGS_HAS_ESTIMATES);
+            } else {
+                returnValue = encodeStream(out, gztype, record);
             }
-            os.flush();
-            os.close();
-            byte[] returnValue = out.toByteArray();
-            out.reset();
             updateHistogram(metrics.numberKeysPerPage, size, record);
             updateHistogram(metrics.encodePageSize, returnValue.length, record);
             return returnValue;
@@ -272,66 +228,113 @@ final class Page<K, V> {
         }
     }
 
+    /**
+     * Legacy encoding that wraps the output in a new compression stream.
+     */
+    byte[] encodeStream(ByteArrayOutputStream out, int gztype, boolean record) throws Exception {
+        OutputStream os = out;
+        out.write(gztype | FLAGS_HAS_ESTIMATES);
+        switch (gztype) {
+            case 0:
+                break;
+            case 1:
+                os = new DeflaterOutputStream(out, new Deflater(gzlevel));
+                break;
+            case 2:
+                os = new GZOut(out, gzbuf, gzlevel);
+                break;
+            case 3:
+                os = new LZFOutputStream(out);
+                break;
+            case 4:
+                os = new SnappyOutputStream(out);
+                break;
+            default:
+                throw new RuntimeException("invalid gztype: " + gztype);
+        }
+        encodeBody(os, record);
+        switch (gztype) {
+            case 1:
+                ((DeflaterOutputStream) os).finish();
+                break;
+            case 2:
+                ((GZOut) os).finish();
+                break;
+            case 4:
+                os.flush();
+                break;
+        }
+        os.flush();
+        os.close();
+        byte[] returnValue = out.toByteArray();
+        out.reset();
+        return returnValue;
+    }
 
-    public void decode(byte[] page) {
-        parent.numPagesDecoded.getAndIncrement();
-        try {
-            InputStream in = new ByteArrayInputStream(page);
-            int flags = in.read() & 0xff;
-            int gztype = flags & 0x0f;
-            boolean hasEstimates = (flags & FLAGS_HAS_ESTIMATES) != 0;
-            int readEstimateTotal, readEstimates;
-            switch (gztype) {
-                case 1:
-                    in = new InflaterInputStream(in);
-                    break;
-                case 2:
-                    in = new GZIPInputStream(in);
-                    break;
-                case 3:
-                    in = new LZFInputStream(in);
-                    break;
-                case 4:
-                    in = new SnappyInputStream(in);
-                    break;
-            }
-            int entries = (int) Bytes.readLength(in);
+    /**
+     * Write the uncompressed contents of the page. Values that have not
+     * been modified since the page was decoded are copied directly from
+     * the decoded page body.
+     */
+    private void encodeBody(OutputStream os, boolean record) throws IOException {
+        SkipListCacheMetrics metrics = parent.metrics;
 
-            K firstKey = keyCoder.keyDecode(Bytes.readBytes(in));
-            byte[] nextFirstKey = Bytes.readBytes(in);
+        byte[] firstKeyEncoded = keyCoder.keyEncode(firstKey);
+        byte[] nextFirstKeyEncoded = keyCoder.keyEncode(nextFirstKey);
 
-            int bytes = 0;
+        updateHistogram(metrics.encodeFirstKeySize, firstKeyEncoded.length, record);
+        updateHistogram(metrics.encodeNextFirstKeySize, nextFirstKeyEncoded.length, record);
 
-            size = entries;
-            keys = new ArrayList<>(size);
-            values = new ArrayList<>(size);
-            rawValues = new ArrayList<>(size);
+        Bytes.writeLength(size, os);
+        Bytes.writeBytes(firstKeyEncoded, os);
+        Bytes.writeBytes(nextFirstKeyEncoded, os);
+        for (int i = 0; i < size; i++) {
+            byte[] keyEncoded = keyCoder.keyEncode(keys.get(i));
 
-            for (int i = 0; i < entries; i++) {
-                byte kb[] = Bytes.readBytes(in);
-                byte vb[] = Bytes.readBytes(in);
-                bytes += kb.length + vb.length;
-                keys.add(keyCoder.keyDecode(kb));
-                values.add(null);
-                rawValues.add(vb);
-            }
+            updateHistogram(metrics.encodeKeySize, keyEncoded.length, record);
+
+            Bytes.writeBytes(keyEncoded, os);
 
-            if (hasEstimates) {
-                readEstimateTotal = (int) Bytes.readLength(in);
-                readEstimates = (int) Bytes.readLength(in);
-                setAverage(readEstimateTotal, readEstimates);
+            if (rawValues.isNull(i)) {
+                byte[] rawVal = keyCoder.valueEncode(values.get(i));
+                updateHistogram(metrics.encodeValueSize, rawVal.length, record);
+                Bytes.writeBytes(rawVal, os);
             } else {
-                /** use a pessimistic/conservative byte/entry estimate */
-                setAverage(bytes * estimateMissingFactor, entries);
+                updateHistogram(metrics.encodeValueSize, rawValues.length(i), record);
+                rawValues.writeTo(i, os);
             }
+        }
+        Bytes.writeLength((estimateTotal > 0 ? estimateTotal : 1), os);
+        Bytes.writeLength((estimates > 0 ? estimates : 1), os);
+    }
 
-            updateMemoryEstimate();
-
-            assert (this.firstKey.equals(firstKey));
-
-            this.nextFirstKey = keyCoder.keyDecode(nextFirstKey);
-
-            in.close();
+    public void decode(byte[] page) {
+        parent.numPagesDecoded.getAndIncrement();
+        try {
+            int flags = page[0] & 0xff;
+            if (PageCompression.isBlockEncoded(flags)) {
+                PageInput in = PageCompression.decompress(page, parent.compressor.getDictionary());
+                decodeBody(in, in, flags);
+            } else {
+                InputStream in = new ByteArrayInputStream(page, 1, page.length - 1);
+                int gztype = flags & 0x0f;
+                switch (gztype) {
+                    case 1:
+                        in = new InflaterInputStream(in);
+                        break;
+                    case 2:
+                        in = new GZIPInputStream(in);
+                        break;
+                    case 3:
+                        in = new LZFInputStream(in);
+                        break;
+                    case 4:
+                        in = new SnappyInputStream(in);
+                        break;
+                }
+                decodeBody(in, null, flags);
+                in.close();
+            }
         } catch (RuntimeException ex) {
             throw ex;
         } catch (Exception ex) {
@@ -339,6 +342,58 @@ final class Page<K, V> {
         }
     }
 
+    /**
+     * Read the uncompressed contents of the page. If {@code slices}
+     * is non-null then values are recorded as slices of its backing
+     * array instead of being copied out.
+     */
+    private void decodeBody(InputStream in, @Nullable PageInput slices, int flags) throws IOException {
+        boolean hasEstimates = (flags & FLAGS_HAS_ESTIMATES) != 0;
+        int readEstimateTotal, readEstimates;
+
+        int entries = (int) Bytes.readLength(in);
+
+        K firstKey = keyCoder.keyDecode(Bytes.readBytes(in));
+        byte[] nextFirstKey = Bytes.readBytes(in);
+
+        int bytes = 0;
+
+        size = entries;
+        keys = new ArrayList<>(size);
+        values = new ArrayList<>(size);
+        rawValues = (slices != null) ? new RawValueList(slices.array(), size) : new RawValueList(size);
+
+        for (int i = 0; i < entries; i++) {
+            byte kb[] = Bytes.readBytes(in);
+            keys.add(keyCoder.keyDecode(kb));
+            values.add(null);
+            if (slices != null) {
+                int length = (int) Bytes.readLength(in);
+                rawValues.addSlice(slices.skipSlice(length), length);
+                bytes += kb.length + length;
+            } else {
+                byte vb[] = Bytes.readBytes(in);
+                rawValues.add(vb);
+                bytes += kb.length + vb.length;
+            }
+        }
+
+        if (hasEstimates) {
+            readEstimateTotal = (int) Bytes.readLength(in);
+            readEstimates = (int) Bytes.readLength(in);
+            setAverage(readEstimateTotal, readEstimates);
+        } else {
+            /** use a pessimistic/conservative byte/entry estimate */
+            setAverage(bytes * estimateMissingFactor, entries);
+        }
+
+        updateMemoryEstimate();
+
+        assert (this.firstKey.equals(firstKey));
+
+        this.nextFirstKey = keyCoder.keyDecode(nextFirstKey);
+    }
+
     private int estimatedMem() {
         /**
          * We want to account for the three pointers that point
@@ -492,9 +547,11 @@ final class Page<K, V> {
      */
     public void fetchValue(int position) {
         V value = values.get(position);
-        byte[] rawValue = rawValues.get(position);
-        if (value == null && !parent.nullRawValue(rawValue)) {
-            values.set(position, keyCoder.valueDecode(rawValue));
+        if (value == null && !rawValues.isNull(position)) {
+            byte[] rawValue = rawValues.get(position);
+            if (!parent.nullRawValue(rawValue)) {
+                values.set(position, keyCoder.valueDecode(rawValue));
+            }
         }
     }
 
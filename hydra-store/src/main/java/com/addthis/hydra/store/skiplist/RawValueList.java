@@ -0,0 +1,231 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.skiplist;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.Arrays;
+
+import com.addthis.basis.util.Bytes;
+
+/**
+ * The encoded values of a {@link Page}. An entry is either a
+ * materialized byte array, a slice of the decoded page body, or null.
+ * Slices are created by {@link Page#decode(byte[])} and are only copied
+ * into their own array when they are first read with {@link #get(int)}.
+ * Entries that are never read are written back out by
+ * {@link #writeTo(int, OutputStream)} directly from the page body.
+ * <p/>
+ * Instances are guarded by the lock of the page that owns them.
+ */
+final class RawValueList {
+
+    private static final int defaultCapacity = 10;
+
+    /**
+     * Decoded page body that slices refer to. Shared (read-only) between
+     * the lists of a page and its siblings after a split.
+     */
+    private byte[] body;
+
+    private byte[][] values;
+
+    /**
+     * Offset of each slice in {@link #body} or -1 if the entry is not a slice.
+     */
+    private int[] offsets;
+
+    private int[] lengths;
+
+    private int size;
+
+    RawValueList() {
+        this(defaultCapacity);
+    }
+
+    RawValueList(int capacity) {
+        capacity = Math.max(capacity, 1);
+        values = new byte[capacity][];
+        offsets = new int[capacity];
+        lengths = new int[capacity];
+    }
+
+    /**
+     * Create a list whose slices refer to the given page body.
+     */
+    RawValueList(byte[] body, int capacity) {
+        this(capacity);
+        this.body = body;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the encoded value at the given position. If the value
+     * is a slice of the page body then it is copied out and retained.
+     */
+    byte[] get(int index) {
+        checkIndex(index);
+        byte[] value = values[index];
+        if (value == null && offsets[index] >= 0) {
+            int offset = offsets[index];
+            value = Arrays.copyOfRange(body, offset, offset + lengths[index]);
+            values[index] = value;
+            offsets[index] = -1;
+        }
+        return value;
+    }
+
+    /**
+     * Returns true if the entry at the given position is null. Does
+     * not materialize slices.
+     */
+    boolean isNull(int index) {
+        checkIndex(index);
+        return values[index] == null && offsets[index] < 0;
+    }
+
+    /**
+     * Returns the length of the encoded value at the given
+     * position or 0 if the entry is null.
+     */
+    int length(int index) {
+        checkIndex(index);
+        if (values[index] != null) {
+            return values[index].length;
+        } else if (offsets[index] >= 0) {
+            return lengths[index];
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Write the length-prefixed encoded value at the given position.
+     * The caller must ensure the entry is non-null.
+     */
+    void writeTo(int index, OutputStream out) throws IOException {
+        checkIndex(index);
+        byte[] value = values[index];
+        if (value != null) {
+            Bytes.writeBytes(value, out);
+        } else {
+            assert (offsets[index] >= 0);
+            Bytes.writeLength(lengths[index], out);
+            out.write(body, offsets[index], lengths[index]);
+        }
+    }
+
+    void add(byte[] value) {
+        add(size, value);
+    }
+
+    void add(int index, byte[] value) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        ensureCapacity(size + 1);
+        shift(index, index + 1, size - index);
+        values[index] = value;
+        offsets[index] = -1;
+        lengths[index] = 0;
+        size++;
+    }
+
+    /**
+     * Append a slice of the page body. Used when decoding a page.
+     */
+    void addSlice(int offset, int length) {
+        ensureCapacity(size + 1);
+        values[size] = null;
+        offsets[size] = offset;
+        lengths[size] = length;
+        size++;
+    }
+
+    void set(int index, byte[] value) {
+        checkIndex(index);
+        values[index] = value;
+        offsets[index] = -1;
+    }
+
+    void remove(int index) {
+        checkIndex(index);
+        shift(index + 1, index, size - index - 1);
+        size--;
+        values[size] = null;
+    }
+
+    /**
+     * Remove the entries in positions [from, to).
+     */
+    void removeRange(int from, int to) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("From: " + from + ", To: " + to + ", Size: " + size);
+        }
+        int length = to - from;
+        shift(to, from, size - to);
+        Arrays.fill(values, size - length, size, null);
+        size -= length;
+    }
+
+    /**
+     * Returns a new list that holds the entries in positions [from, to).
+     * Slices are not copied; the new list shares the page body.
+     */
+    RawValueList copyRange(int from, int to) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("From: " + from + ", To: " + to + ", Size: " + size);
+        }
+        int length = to - from;
+        RawValueList copy = new RawValueList(body, length);
+        System.arraycopy(values, from, copy.values, 0, length);
+        System.arraycopy(offsets, from, copy.offsets, 0, length);
+        System.arraycopy(lengths, from, copy.lengths, 0, length);
+        copy.size = length;
+        return copy;
+    }
+
+    void clear() {
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        body = null;
+    }
+
+    private void shift(int from, int to, int length) {
+        if (length > 0) {
+            System.arraycopy(values, from, values, to, length);
+            System.arraycopy(offsets, from, offsets, to, length);
+            System.arraycopy(lengths, from, lengths, to, length);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            int newCapacity = Math.max(capacity, values.length + (values.length >> 1));
+            values = Arrays.copyOf(values, newCapacity);
+            offsets = Arrays.copyOf(offsets, newCapacity);
+            lengths = Arrays.copyOf(lengths, newCapacity);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
@@ -14,6 +14,8 @@
 package com.addthis.hydra.store.skiplist;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
@@ -24,24 +26,33 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import com.addthis.basis.util.ClosableIterator;
 import com.addthis.basis.util.MemoryCounter;
 import com.addthis.basis.util.Parameter;
 
 import com.addthis.hydra.store.db.CloseOperation;
 import com.addthis.hydra.store.kv.ExternalPagedStore.ByteStore;
+import com.addthis.hydra.store.kv.ExternalPagedStore.PageEntry;
+import com.addthis.hydra.store.kv.ExternalPagedStore.SimplePageEntry;
 import com.addthis.hydra.store.kv.KeyCoder;
+import com.addthis.hydra.store.kv.PageCompressor;
 import com.addthis.hydra.store.kv.PagedKeyValueStore;
+import com.addthis.hydra.store.util.EvictionPolicy;
 import com.addthis.hydra.store.util.MetricsUtil;
 import com.addthis.hydra.store.util.NamedThreadFactory;
 
@@ -90,6 +101,32 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
     static final int expirationDelta = Parameter.intValue("cache.expire.delta", 1000);
     private static final int defaultEvictionThreads = Parameter.intValue("cache.threadcount.eviction", 1);
     private static final int fixedNumberEvictions = Parameter.intValue("cache.batch.evictions", 10);
+
+    /**
+     * Maximum number of dirty pages that an eviction task writes to the
+     * external store at once. A value of one writes every page separately.
+     */
+    private static final int evictionBatchSize = Parameter.intValue("eps.cache.evict.batch", 16);
+
+    /**
+     * Number of pages that a sequential iterator loads ahead of its
+     * current page. A value of zero disables prefetching.
+     */
+    private static final int defaultPrefetchPages = Parameter.intValue("eps.cache.prefetch.pages", 4);
+    private static final int prefetchThreads = Parameter.intValue("eps.cache.prefetch.threads", 1);
+
+    /**
+     * Number of consecutive pages an iterator must move
+     * through before it is considered sequential.
+     */
+    private static final int prefetchSequentialPages = Parameter.intValue("eps.cache.prefetch.sequential", 2);
+
+    /**
+     * Size in bytes of the off-heap cache of each store. Databases
+     * that are split into several stores divide it between them.
+     */
+    public static final long defaultOffHeapBytes = Parameter.longValue("eps.cache.offheap.bytes", 0);
+    private static final String defaultEvictionPolicy = Parameter.value("eps.cache.eviction.policy", EvictionPolicy.LRU);
     static final boolean trackEncodingByteUsage = Parameter.boolValue("eps.cache.track.encoding", false);
 
     /**
@@ -120,9 +157,17 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
     final AtomicInteger cacheSize = new AtomicInteger();
     final AtomicInteger numPagesInMemory = new AtomicInteger();
     final AtomicLong numPagesDeleted = new AtomicLong();
+
+    /**
+     * Pages deleted by range deletion without being loaded.
+     */
+    final AtomicLong numPagesDropped = new AtomicLong();
     final AtomicLong numPagesEncoded = new AtomicLong();
     final AtomicLong numPagesDecoded = new AtomicLong();
     final AtomicLong numPagesSplit = new AtomicLong();
+    final AtomicLong numPagesPrefetched = new AtomicLong();
+    final AtomicLong numPrefetchUsed = new AtomicLong();
+    final AtomicLong numPrefetchWasted = new AtomicLong();
 
     final int mem_page;
 
@@ -140,10 +185,27 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
 
     private final ScheduledExecutorService evictionThreadPool, purgeThreadPool;
 
+    private final ExecutorService prefetchThreadPool;
+
     private final Comparator comparator;
 
     final KeyCoder<K, V> keyCoder;
 
+    /**
+     * Optional second level cache of evicted pages. Null if disabled.
+     */
+    final OffHeapPageCache offHeapCache;
+
+    /**
+     * Selects the pages that are evicted first and counts page hits and loads.
+     */
+    final EvictionPolicy evictionPolicy;
+
+    /**
+     * Selects the codec and optional dictionary of encoded pages.
+     */
+    final PageCompressor compressor;
+
     long softTotalMem;
     long maxTotalMem;
     long maxPageMem;
@@ -151,6 +213,7 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
     int estimateInterval;
     int maxPageSize;
     int maxPages;
+    volatile int prefetchPages = defaultPrefetchPages;
 
     private static long globalMaxTotalMem;
     private static long globalSoftTotalMem;
@@ -174,6 +237,9 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
         // Optional parameters - initialized to default values;
         protected int numEvictionThreads = defaultEvictionThreads;
         protected int maxPages = defaultMaxPages;
+        protected long offHeapBytes = defaultOffHeapBytes;
+        protected EvictionPolicy evictionPolicy;
+        protected PageCompressor compressor;
 
         public Builder(KeyCoder<K, V> keyCoder, ByteStore store, int maxPageSize) {
             this.externalStore = store;
@@ -200,9 +266,38 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
             return this;
         }
 
+        /**
+         * Size in bytes of the off-heap cache of evicted pages.
+         * A value of zero disables the off-heap cache.
+         */
+        public Builder<K, V> offHeapBytes(long val) {
+            offHeapBytes = val;
+            return this;
+        }
+
+        /**
+         * Policy that selects the pages to evict. Defaults
+         * to the policy named by eps.cache.eviction.policy.
+         */
+        @SuppressWarnings("unused")
+        public Builder<K, V> evictionPolicy(EvictionPolicy val) {
+            evictionPolicy = val;
+            return this;
+        }
+
+        /**
+         * Compression of encoded pages. Defaults to the
+         * codec named by eps.gz.type without a dictionary.
+         */
+        @SuppressWarnings("unused")
+        public Builder<K, V> compressor(PageCompressor val) {
+            compressor = val;
+            return this;
+        }
+
         public SkipListCache<K, V> build() {
             return new SkipListCache<>(keyCoder, externalStore, maxPageSize,
-                    maxPages, numEvictionThreads);
+                    maxPages, numEvictionThreads, offHeapBytes, evictionPolicy, compressor);
         }
 
     }
@@ -216,6 +311,27 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
 
     public SkipListCache(KeyCoder<K, V> keyCoder, ByteStore externalStore, int maxPageSize,
             int maxPages, int numEvictionThreads) {
+        this(keyCoder, externalStore, maxPageSize, maxPages, numEvictionThreads, defaultOffHeapBytes);
+    }
+
+    public SkipListCache(KeyCoder<K, V> keyCoder, ByteStore externalStore, int maxPageSize,
+            int maxPages, int numEvictionThreads, long offHeapBytes) {
+        this(keyCoder, externalStore, maxPageSize, maxPages, numEvictionThreads, offHeapBytes, null);
+    }
+
+    public SkipListCache(KeyCoder<K, V> keyCoder, ByteStore externalStore, int maxPageSize,
+            int maxPages, int numEvictionThreads, long offHeapBytes, EvictionPolicy evictionPolicy) {
+        this(keyCoder, externalStore, maxPageSize, maxPages, numEvictionThreads, offHeapBytes,
+                evictionPolicy, null);
+    }
+
+    /**
+     * @param evictionPolicy if null then the policy named by eps.cache.eviction.policy is used
+     * @param compressor     if null then pages are compressed with eps.gz.type and eps.gz.level
+     */
+    public SkipListCache(KeyCoder<K, V> keyCoder, ByteStore externalStore, int maxPageSize,
+            int maxPages, int numEvictionThreads, long offHeapBytes, EvictionPolicy evictionPolicy,
+            PageCompressor compressor) {
         if (externalStore == null) {
             throw new NullPointerException("externalStore must be non-null");
         }
@@ -236,6 +352,10 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
         this.evictionTaskQueue = new LinkedBlockingQueue<>();
         this.purgeSet = new ConcurrentSkipListSet<>();
         this.evictionQueue = new LinkedBlockingQueue<>();
+        this.offHeapCache = offHeapBytes > 0 ? new OffHeapPageCache(offHeapBytes) : null;
+        this.evictionPolicy = evictionPolicy != null ? evictionPolicy :
+                              EvictionPolicy.create(defaultEvictionPolicy, maxPages > 0 ? maxPages : defaultMaxPages);
+        this.compressor = compressor != null ? compressor : new PageCompressor(Page.gztype, Page.gzlevel);
 
         loadFromExternalStore();
 
@@ -247,6 +367,10 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
         purgeThreadPool = Executors.newScheduledThreadPool(numEvictionThreads,
                 new NamedThreadFactory(scope + "-purge-", true));
 
+        // threads are not started until the first prefetch
+        prefetchThreadPool = Executors.newFixedThreadPool(Math.max(1, prefetchThreads),
+                new NamedThreadFactory(scope + "-prefetch-", true));
+
         for (int i = 0; i < numEvictionThreads; i++) {
             purgeThreadPool.scheduleAtFixedRate(new BackgroundPurgeTask(),
                     i,
@@ -261,7 +385,9 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
 
         log.info("[init] ro=" + isReadOnly() + " maxPageSize=" + maxPageSize +
                  " maxPages=" + maxPages + " gztype=" + Page.gztype + " gzlevel=" +
-                 Page.gzlevel + " gzbuf=" + Page.gzbuf + " mem[page=" + mem_page + "]");
+                 Page.gzlevel + " gzbuf=" + Page.gzbuf + " mem[page=" + mem_page + "]" +
+                 " offHeap=" + offHeapBytes + " eviction=" + this.evictionPolicy +
+                 " compressor=" + this.compressor);
 
     }
 
@@ -275,6 +401,15 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
         this.maxPageSize = maxPageSize;
     }
 
+    /**
+     * Number of pages that sequential iterators load ahead of
+     * their current page. Zero disables prefetching.
+     */
+    @SuppressWarnings("unused")
+    public void setPrefetchPages(int prefetchPages) {
+        this.prefetchPages = prefetchPages;
+    }
+
     final K negInf;
 
     public final boolean nullRawValue(byte[] value) {
@@ -434,6 +569,17 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
         @SuppressWarnings("unused")
         private final Gauge<Long> timeoutGauge;
 
+        /**
+         * Encoded dirty pages that have not been written to the external
+         * store yet. Each page stays write-locked by this task until the
+         * batch is written, so the stored copy of a page can not be read
+         * before it is up to date. While the batch is not empty the task
+         * only acquires page locks without blocking.
+         */
+        private final List<Page<K, V>> batchPages = new ArrayList<>();
+
+        private final List<PageEntry> batchEntries = new ArrayList<>();
+
         BackgroundEvictionTask(int evictions) {
             byteStream = new ByteArrayOutputStream();
             id = evictionId.getAndIncrement();
@@ -462,6 +608,43 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
                 }
             } catch (Exception ex) {
                 logException("Uncaught exception in skiplist concurrent cache eviction thread", ex);
+            } finally {
+                writeEvictionBatch();
+            }
+        }
+
+        /**
+         * Write the batch of dirty pages to the external store and finish
+         * their eviction. If the write fails then the pages remain in memory
+         * and are returned to the eviction queue.
+         */
+        private void writeEvictionBatch() {
+            if (batchPages.isEmpty()) {
+                return;
+            }
+            boolean success = false;
+            try {
+                externalStore.putAll(batchEntries);
+                success = true;
+            } catch (Exception ex) {
+                logException("Failed to write a batch of evicted pages", ex);
+            } finally {
+                for (int i = 0; i < batchPages.size(); i++) {
+                    Page<K, V> page = batchPages.get(i);
+                    try {
+                        if (success) {
+                            page.state = ExternalMode.DISK_MEMORY_IDENTICAL;
+                            releasePageContents(page, batchEntries.get(i).value());
+                            addToPurgeSet(page);
+                        } else {
+                            evictionQueue.offer(page);
+                        }
+                    } finally {
+                        page.writeUnlock();
+                    }
+                }
+                batchPages.clear();
+                batchEntries.clear();
             }
         }
 
@@ -481,14 +664,22 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
                     return EvictionStatus.TRYLOCK_FAIL;
                 }
             } else {
+                // never block while holding the locks of a batch
+                writeEvictionBatch();
                 page.writeLock();
             }
 
+            boolean batched = false;
+
             try {
                 if (page.inTransientState()) {
                     return EvictionStatus.TRANSIENT_PAGE;
                 }
 
+                if (batchPages.contains(page)) {
+                    return EvictionStatus.EVICTED_PAGE;
+                }
+
                 assert (!page.splitCondition());
 
                 if (page.size == 0 && !page.firstKey.equals(negInf)) {
@@ -500,9 +691,16 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
                     return EvictionStatus.EVICTED_PAGE;
                 }
 
-                pushPageToDisk(page, byteStream);
-
-                addToPurgeSet(page);
+                if (iteration == IterationMode.OPTIMISTIC && evictionBatchSize > 1 &&
+                    page.state == ExternalMode.DISK_MEMORY_DIRTY) {
+                    batchEntries.add(new SimplePageEntry(keyCoder.keyEncode(page.firstKey),
+                            page.encode(byteStream)));
+                    batchPages.add(page);
+                    batched = true;
+                } else {
+                    pushPageToDisk(page, byteStream);
+                    addToPurgeSet(page);
+                }
 
                 if (iteration == IterationMode.OPTIMISTIC) {
                     timeout = timeout + expirationDelta;
@@ -510,7 +708,13 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
 
                 return EvictionStatus.SUCCESS;
             } finally {
-                writeUnlockAndNull(page);
+                if (batched) {
+                    if (batchPages.size() >= evictionBatchSize) {
+                        writeEvictionBatch();
+                    }
+                } else {
+                    writeUnlockAndNull(page);
+                }
             }
         }
 
@@ -534,8 +738,9 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
 
             Page<K, V> oldestPage = current;
 
-            // keeps track of the timestamp with the smallest value
-            long oldestTimeStamp = (current != null) ? current.timeStamp : 0;
+            // keeps track of the page that the eviction policy would have evicted first
+            long oldestDeadline = (current != null) ?
+                                  current.timeStamp + evictionPolicy.evictionDelay(current.firstKey, timeout) : 0;
 
             int counter = 0;
 
@@ -554,10 +759,12 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
 
                 long timestamp = current.timeStamp;
 
+                long delay = evictionPolicy.evictionDelay(current.firstKey, timeout);
+
                 status = EvictionStatus.NO_STATUS;
 
                 if (((iteration == IterationMode.OPTIMISTIC) &&
-                     ((referenceTime - timestamp) >= timeout)) ||
+                     ((referenceTime - timestamp) >= delay)) ||
                     (iteration == IterationMode.PESSIMISTIC)) {
                     status = attemptPageEviction(current, iteration);
 
@@ -566,8 +773,8 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
                     }
                 }
 
-                if (timestamp < oldestTimeStamp) {
-                    oldestTimeStamp = timestamp;
+                if (timestamp + delay < oldestDeadline) {
+                    oldestDeadline = timestamp + delay;
                     oldestPage = current;
                 }
 
@@ -653,6 +860,7 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
         K floorKey = keyCoder.keyDecode(entry.getKey());
         if (floorKey.equals(prevPage.firstKey)) {
             if (prevPage.keys == null) {
+                invalidateOffHeap(entry.getKey());
                 pullPageHelper(prevPage, entry.getValue());
             }
             assert (prevPage.nextFirstKey.equals(targetKey));
@@ -667,6 +875,7 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
             assert (compareKeys(prevPage.firstKey, diskPage.firstKey) <= 0);
             diskPage.nextFirstKey = newNextFirstKey;
             externalStore.put(entry.getKey(), diskPage.encode());
+            invalidateOffHeap(entry.getKey());
         }
     }
 
@@ -717,6 +926,7 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
                         continue;
                     }
                     externalStore.delete(encodedTargetKey);
+                    invalidateOffHeap(encodedTargetKey);
                     Page<K, V> prev = cache.remove(targetKey);
                     assert (prev != null);
                     currentPage.state = ExternalMode.DELETED;
@@ -774,11 +984,10 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
 
         List<K> keyRange = target.keys.subList(newSize, target.size);
         List<V> valueRange = target.values.subList(newSize, target.size);
-        List<byte[]> rawValueRange = target.rawValues.subList(newSize, target.size);
 
         ArrayList<K> sibKeys = new ArrayList<>(keyRange);
         ArrayList<V> sibValues = new ArrayList<>(valueRange);
-        ArrayList<byte[]> sibRawValues = new ArrayList<>(rawValueRange);
+        RawValueList sibRawValues = target.rawValues.copyRange(newSize, target.size);
         K sibMinKey = sibKeys.get(0);
 
         Page<K, V> sibling = Page.generateSiblingPage(SkipListCache.this,
@@ -823,13 +1032,14 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
                 sibling.firstKey, sibling.nextFirstKey).encode(false);
 
         externalStore.put(encodeKey, placeHolder);
+        invalidateOffHeap(encodeKey);
 
         evictionQueue.offer(sibling);
         numPagesSplit.getAndIncrement();
 
         keyRange.clear();
         valueRange.clear();
-        rawValueRange.clear();
+        target.rawValues.removeRange(newSize, target.rawValues.size());
 
         return sibling;
     }
@@ -1153,6 +1363,7 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
                     continue;
                 } else if (endOffset == pageSize) {
                     byte[] higherKeyEncoded = externalStore.higherKey(keyCoder.keyEncode(page.firstKey));
+                    higherKeyEncoded = dropPages(page, higherKeyEncoded, end);
                     if (higherKeyEncoded != null) {
                         start = keyCoder.keyDecode(higherKeyEncoded);
                         continue;
@@ -1166,6 +1377,52 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
         }
     }
 
+    /**
+     * Fast path for range deletion. Deletes the pages that follow
+     * <code>page</code> directly from the external storage without
+     * loading them when they are not in memory and every key of the
+     * page is within the deletion range. The page that is loaded must
+     * be write-locked. It is the cache floor page of the deleted pages
+     * so they cannot be loaded concurrently.
+     *
+     * @param page        write-locked page that precedes the deleted pages
+     * @param nextEncoded encoded first key of the page after <code>page</code>
+     * @param end         upper bound of range deletion
+     * @return encoded first key of the first page that was not deleted
+     */
+    private byte[] dropPages(Page<K, V> page, byte[] nextEncoded, K end) {
+        assert (page.isWriteLockedByCurrentThread());
+
+        K nextKey = null;
+        int dropped = 0;
+        while (nextEncoded != null) {
+            nextKey = keyCoder.keyDecode(nextEncoded);
+            if (cache.containsKey(nextKey)) {
+                break;
+            }
+            byte[] afterEncoded = externalStore.higherKey(nextEncoded);
+            if (afterEncoded == null) {
+                break;
+            }
+            K afterKey = keyCoder.keyDecode(afterEncoded);
+            // the keys of the next page are less than afterKey
+            if (compareKeys(afterKey, end) > 0) {
+                break;
+            }
+            externalStore.delete(nextEncoded);
+            invalidateOffHeap(nextEncoded);
+            numPagesDeleted.getAndIncrement();
+            dropped++;
+            nextEncoded = afterEncoded;
+        }
+        if (dropped > 0) {
+            page.nextFirstKey = nextKey;
+            page.state = ExternalMode.DISK_MEMORY_DIRTY;
+            numPagesDropped.addAndGet(dropped);
+        }
+        return nextEncoded;
+    }
+
     V doRemove(K key) {
         if (mustEvictPage()) {
             BackgroundEvictionTask task = getEvictionTask();
@@ -1291,6 +1548,8 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
         Page<K, V> oldPage = cache.putIfAbsent(externalKey, newPage);
         assert (oldPage == null);
 
+        evictionPolicy.recordMiss(externalKey);
+
         updateMemoryEstimate(newPage.getMemoryEstimate());
         cacheSize.getAndIncrement();
         numPagesInMemory.getAndIncrement();
@@ -1336,7 +1595,7 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
                 cachePage = loadPageCacheFloorEntry(currentCopy, externalKey);
 
                 if (cachePage.firstKey.equals(externalKey)) {
-                    cachePage.timeStamp = generateTimestamp();
+                    touchPage(cachePage);
                     return cachePage;
                 } else {
                     current = cachePage;
@@ -1369,11 +1628,11 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
                     current = writeUnlockAndNull(current);
                     cachePage = next;
                     next = null;
-                    cachePage.timeStamp = generateTimestamp();
+                    touchPage(cachePage);
                     return cachePage;
                 }
 
-                byte[] floorPageEncoded = externalStore.get(externalKeyEncoded);
+                byte[] floorPageEncoded = fetchPage(externalKeyEncoded);
 
                 if (floorPageEncoded == null) {
                     current = writeUnlockAndNull(current);
@@ -1459,7 +1718,7 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
                     }
                 }
                 if (returnPage) {
-                    current.timeStamp = generateTimestamp();
+                    touchPage(current);
 
                     /**
                      *  Fancy way of asserting that we do not
@@ -1682,7 +1941,119 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
         }
     }
 
-    private class SkipListCacheIterator implements Iterator<Map.Entry<K, V>> {
+    /**
+     * Loads the pages that follow the current page of an iterator
+     * on the prefetch threads. The pages are loaded through the same
+     * path as any other reader, so a prefetched page is an ordinary
+     * page in memory that may be evicted before the iterator reaches it.
+     * Methods other than {@link #run()} are called by the iterator thread.
+     */
+    private class PagePrefetcher implements Runnable {
+
+        private final int window;
+
+        /**
+         * Pages loaded by this prefetcher that the iterator has not reached.
+         */
+        private final ConcurrentSkipListSet<K> prefetched = new ConcurrentSkipListSet<>();
+
+        private volatile boolean closed;
+
+        private volatile K lastKey;
+
+        private Future<?> pending;
+
+        private K start;
+
+        private int count;
+
+        PagePrefetcher(int window) {
+            this.window = window;
+        }
+
+        /**
+         * Called when the iterator moves to the page with the first key {@code key}.
+         *
+         * @param resident   true if the page was in memory before the iterator reached it
+         * @param sequential true if the iterator has been moving through consecutive pages
+         */
+        void advance(K key, boolean resident, boolean sequential) {
+            if (closed) {
+                return;
+            }
+            if (prefetched.remove(key)) {
+                if (resident) {
+                    numPrefetchUsed.getAndIncrement();
+                } else {
+                    numPrefetchWasted.getAndIncrement();
+                }
+            }
+            discard(prefetched.headSet(key));
+            if (!sequential || (pending != null && !pending.isDone())) {
+                return;
+            }
+            int remaining = prefetched.size();
+            if (remaining > window / 2) {
+                return;
+            }
+            K last = lastKey;
+            start = (last != null && compareKeys(last, key) > 0) ? last : key;
+            count = window - remaining;
+            try {
+                pending = prefetchThreadPool.submit(this);
+            } catch (RejectedExecutionException ignored) {
+                // the cache is closing
+            }
+        }
+
+        @Override
+        public void run() {
+            K from = start;
+            try {
+                for (int i = 0; i < count && !closed && !shutdownGuard.get(); i++) {
+                    byte[] nextKeyEncoded = externalStore.higherKey(keyCoder.keyEncode(from));
+                    if (nextKeyEncoded == null) {
+                        break;
+                    }
+                    K key = keyCoder.keyDecode(nextKeyEncoded);
+                    Page<K, V> page = cache.get(key);
+                    if (page == null || page.keys == null) {
+                        page = locatePage(key, LockMode.READMODE, true);
+                        if (page != null) {
+                            page.readUnlock();
+                            prefetched.add(key);
+                            numPagesPrefetched.getAndIncrement();
+                        }
+                    }
+                    from = key;
+                    lastKey = key;
+                }
+            } catch (Exception ex) {
+                log.warn("page prefetch failed from key " + from, ex);
+            }
+        }
+
+        void close() {
+            if (!closed) {
+                closed = true;
+                if (pending != null) {
+                    pending.cancel(false);
+                }
+                discard(prefetched);
+            }
+        }
+
+        private void discard(Set<K> keys) {
+            Iterator<K> iterator = keys.iterator();
+            while (iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+                numPrefetchWasted.getAndIncrement();
+            }
+        }
+    }
+
+    private class SkipListCacheIterator implements ClosableIterator<Map.Entry<K, V>> {
 
         Page<K, V> page;
         int position;
@@ -1691,7 +2062,19 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
         K nextKey;
         V nextValue;
 
+        /**
+         * Number of consecutive pages reached by moving forward.
+         */
+        int sequentialPages;
+
+        /**
+         * Null if prefetching is disabled.
+         */
+        final PagePrefetcher prefetcher;
+
         SkipListCacheIterator(K from, boolean inclusive) {
+            int window = prefetchPages;
+            this.prefetcher = window > 0 ? new PagePrefetcher(window) : null;
             this.page = locatePage(from, LockMode.READMODE);
             this.prevKey = null;
             this.stamp = -1;
@@ -1700,6 +2083,16 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
 
         }
 
+        /**
+         * Stop prefetching pages for this iterator.
+         */
+        @Override
+        public void close() {
+            if (prefetcher != null) {
+                prefetcher.close();
+            }
+        }
+
         @Override
         public boolean hasNext() {
             return nextKey != null;
@@ -1799,6 +2192,7 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
                 if (higherKeyEncoded == null) {
                     nextKey = null;
                     nextValue = null;
+                    close();
                     return false;
                 }
 
@@ -1806,6 +2200,9 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
 
                 page.readUnlock();
 
+                Page<K, V> residentPage = cache.get(higherKey);
+                boolean resident = residentPage != null && residentPage.keys != null;
+
                 Page<K, V> higherPage = locatePage(higherKey, LockMode.READMODE, true);
 
                 if (higherPage == null) {
@@ -1813,6 +2210,12 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
                     continue;
                 }
 
+                sequentialPages++;
+
+                if (prefetcher != null) {
+                    prefetcher.advance(higherKey, resident, sequentialPages >= prefetchSequentialPages);
+                }
+
                 assert (!higherPage.inTransientState());
                 assert (higherPage.keys != null);
 
@@ -1905,17 +2308,39 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
         assert (!current.inTransientState());
         assert (current.keys != null);
 
+        byte[] encodePage = null;
+
         if (current.state == ExternalMode.DISK_MEMORY_DIRTY) {
 
             // flush to external storage
             byte[] encodeKey = keyCoder.keyEncode(current.firstKey);
-            byte[] encodePage = current.encode(byteStream);
+            encodePage = current.encode(byteStream);
 
             externalStore.put(encodeKey, encodePage);
 
             current.state = ExternalMode.DISK_MEMORY_IDENTICAL;
         }
 
+        releasePageContents(current, encodePage);
+    }
+
+    /**
+     * Remove the contents of a page whose stored copy is up to date
+     * from the heap.
+     *
+     * @param encodePage the encoded page or null if it has not been encoded
+     */
+    private void releasePageContents(Page<K, V> current, byte[] encodePage) {
+
+        assert (current.isWriteLockedByCurrentThread());
+
+        if (offHeapCache != null && !shutdownGuard.get()) {
+            if (encodePage == null) {
+                encodePage = current.encode(false);
+            }
+            offHeapCache.put(keyCoder.keyEncode(current.firstKey), encodePage);
+        }
+
         updateMemoryEstimate(-current.getMemoryEstimate());
         current.keys.clear();
         current.values.clear();
@@ -1926,11 +2351,45 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
         numPagesInMemory.getAndDecrement();
     }
 
+    /**
+     * Update the access time of a page that is returned to a caller.
+     */
+    private void touchPage(Page<K, V> page) {
+        page.timeStamp = generateTimestamp();
+        evictionPolicy.recordAccess(page.firstKey);
+    }
+
+    /**
+     * Returns an encoded page from the off-heap cache if it is present
+     * there and otherwise from the external store. A page that is found
+     * in the off-heap cache is removed from it.
+     */
+    private byte[] fetchPage(byte[] encodeKey) {
+        if (offHeapCache != null) {
+            byte[] page = offHeapCache.take(encodeKey);
+            if (page != null) {
+                return page;
+            }
+        }
+        return externalStore.get(encodeKey);
+    }
+
+    /**
+     * Discard any off-heap copy of a page that is
+     * modified directly in the external store.
+     */
+    private void invalidateOffHeap(byte[] encodeKey) {
+        if (offHeapCache != null) {
+            offHeapCache.invalidate(encodeKey);
+        }
+    }
+
     private void pullPageHelper(Page<K, V> current, byte[] page) {
         assert (current.isWriteLockedByCurrentThread());
 
         current.decode(page);
 
+        evictionPolicy.recordMiss(current.firstKey);
         updateMemoryEstimate(current.getMemoryEstimate());
         evictionQueue.offer(current);
         numPagesInMemory.getAndIncrement();
@@ -1953,7 +2412,7 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
             if (current.keys == null) {
 
                 byte[] encodeKey = keyCoder.keyEncode(current.firstKey);
-                byte[] page = externalStore.get(encodeKey);
+                byte[] page = fetchPage(encodeKey);
 
                 pullPageHelper(current, page);
             }
@@ -2015,10 +2474,16 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
                 status = (failedPages > 0) ? 1 : 0;
             }
             closeExternalStore(cleanLog);
+            if (offHeapCache != null) {
+                offHeapCache.clear();
+            }
             assert(status == 0);
             log.info("pages: encoded=" + numPagesEncoded.get() +
                      " decoded=" + numPagesDecoded.get() +
-                     " split=" + numPagesSplit.get());
+                     " split=" + numPagesSplit.get() +
+                     " prefetched=" + numPagesPrefetched.get() +
+                     " prefetchUsed=" + numPrefetchUsed.get() +
+                     " prefetchWasted=" + numPrefetchWasted.get());
             if (trackEncodingByteUsage) {
                 log.info(MetricsUtil.histogramToString("encodeFirstKeySize", metrics.encodeFirstKeySize));
                 log.info(MetricsUtil.histogramToString("encodeNextFirstKeySize", metrics.encodeNextFirstKeySize));
@@ -2059,10 +2524,14 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
     private void waitForEvictionThreads() {
         purgeThreadPool.shutdown();
         evictionThreadPool.shutdown();
+        // never interrupt a prefetch that may be reading from the external store,
+        // it exits on its own once the shutdown guard is set
+        prefetchThreadPool.shutdown();
 
         try {
             purgeThreadPool.awaitTermination(threadPoolWaitShutdownSeconds, TimeUnit.SECONDS);
             evictionThreadPool.awaitTermination(threadPoolWaitShutdownSeconds, TimeUnit.SECONDS);
+            prefetchThreadPool.awaitTermination(threadPoolWaitShutdownSeconds, TimeUnit.SECONDS);
         } catch (InterruptedException ignored) {
         }
     }
@@ -2090,6 +2559,49 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
         assert (pushAllPagesToDiskAssertion());
     }
 
+    /**
+     * Write every page that has changed since it was last written
+     * to the external store. Unlike eviction the pages remain in memory.
+     *
+     * @return number of pages that were written
+     */
+    public int flushDirtyPages() {
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        int count = 0;
+
+        for (Page<K, V> page : cache.values()) {
+
+            page.writeLock();
+
+            try {
+                if (!page.inTransientState() && page.keys != null &&
+                    page.state == ExternalMode.DISK_MEMORY_DIRTY) {
+                    externalStore.put(keyCoder.keyEncode(page.firstKey), page.encode(byteStream));
+                    page.state = ExternalMode.DISK_MEMORY_IDENTICAL;
+                    count++;
+                }
+            } finally {
+                page.writeUnlock();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Write the changed pages to the external store and then write
+     * an image of the external store into {@code target}.
+     * Changes that are made concurrently may or may not be included.
+     *
+     * @return names of the files of the image relative to {@code target}
+     */
+    public List<String> checkpoint(File target) throws IOException {
+        int pages = flushDirtyPages();
+        List<String> names = externalStore.checkpoint(target);
+        log.info("[checkpoint] target={} pages={} files={}", target, pages, names.size());
+        return names;
+    }
+
     /**
      * This method is intended for internal use and unit testing purposes only.
      */
@@ -2144,6 +2656,11 @@ public class SkipListCache<K, V> implements PagedKeyValueStore<K, V> {
         return numPagesDeleted.get();
     }
 
+    @SuppressWarnings("unused")
+    public long getNumPagesDropped() {
+        return numPagesDropped.get();
+    }
+
     /**
      * Returns timestamps that are applied whenever a page is accessed.
      * <p/>
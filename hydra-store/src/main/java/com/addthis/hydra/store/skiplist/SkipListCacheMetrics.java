@@ -13,6 +13,8 @@
  */
 package com.addthis.hydra.store.skiplist;
 
+import com.addthis.hydra.store.util.EvictionPolicy;
+
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.Histogram;
@@ -33,6 +35,45 @@ public class SkipListCacheMetrics {
     @SuppressWarnings("unused")
     final Gauge<Long> pagesDeletedGauge;
 
+    @SuppressWarnings("unused")
+    final Gauge<Long> pagesPrefetchedGauge;
+
+    @SuppressWarnings("unused")
+    final Gauge<Long> prefetchUsedGauge;
+
+    @SuppressWarnings("unused")
+    final Gauge<Long> prefetchWastedGauge;
+
+    @SuppressWarnings("unused")
+    final Gauge<Long> offHeapBytesGauge;
+
+    @SuppressWarnings("unused")
+    final Gauge<Integer> offHeapPagesGauge;
+
+    @SuppressWarnings("unused")
+    final Gauge<Long> offHeapHitsGauge;
+
+    @SuppressWarnings("unused")
+    final Gauge<Long> offHeapMissesGauge;
+
+    @SuppressWarnings("unused")
+    final Gauge<Long> offHeapEvictionsGauge;
+
+    @SuppressWarnings("unused")
+    final Gauge<Double> offHeapHitRateGauge;
+
+    @SuppressWarnings("unused")
+    final Gauge<String> evictionPolicyGauge;
+
+    @SuppressWarnings("unused")
+    final Gauge<Long> pageAccessesGauge;
+
+    @SuppressWarnings("unused")
+    final Gauge<Long> pageLoadsGauge;
+
+    @SuppressWarnings("unused")
+    final Gauge<Double> pageHitRateGauge;
+
     final Histogram encodeFirstKeySize;
 
     final Histogram encodeNextFirstKeySize;
@@ -85,6 +126,140 @@ public class SkipListCacheMetrics {
                     }
                 });
 
+        pagesPrefetchedGauge = Metrics.newGauge(SkipListCache.class,
+                "pagesPrefetched", parent.scope,
+                new Gauge<Long>() {
+                    @Override
+                    public Long value() {
+                        return parent.numPagesPrefetched.get();
+                    }
+                });
+
+        prefetchUsedGauge = Metrics.newGauge(SkipListCache.class,
+                "prefetchUsed", parent.scope,
+                new Gauge<Long>() {
+                    @Override
+                    public Long value() {
+                        return parent.numPrefetchUsed.get();
+                    }
+                });
+
+        prefetchWastedGauge = Metrics.newGauge(SkipListCache.class,
+                "prefetchWasted", parent.scope,
+                new Gauge<Long>() {
+                    @Override
+                    public Long value() {
+                        return parent.numPrefetchWasted.get();
+                    }
+                });
+
+        // The off-heap cache is created after the metrics so it is looked up on every read.
+        offHeapBytesGauge = Metrics.newGauge(SkipListCache.class,
+                "offHeapBytes", parent.scope,
+                new Gauge<Long>() {
+                    @Override
+                    public Long value() {
+                        OffHeapPageCache offHeap = parent.offHeapCache;
+                        return offHeap == null ? 0L : offHeap.usedBytes();
+                    }
+                });
+
+        offHeapPagesGauge = Metrics.newGauge(SkipListCache.class,
+                "offHeapPages", parent.scope,
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer value() {
+                        OffHeapPageCache offHeap = parent.offHeapCache;
+                        return offHeap == null ? 0 : offHeap.numPages();
+                    }
+                });
+
+        offHeapHitsGauge = Metrics.newGauge(SkipListCache.class,
+                "offHeapHits", parent.scope,
+                new Gauge<Long>() {
+                    @Override
+                    public Long value() {
+                        OffHeapPageCache offHeap = parent.offHeapCache;
+                        return offHeap == null ? 0L : offHeap.hits.get();
+                    }
+                });
+
+        offHeapMissesGauge = Metrics.newGauge(SkipListCache.class,
+                "offHeapMisses", parent.scope,
+                new Gauge<Long>() {
+                    @Override
+                    public Long value() {
+                        OffHeapPageCache offHeap = parent.offHeapCache;
+                        return offHeap == null ? 0L : offHeap.misses.get();
+                    }
+                });
+
+        offHeapEvictionsGauge = Metrics.newGauge(SkipListCache.class,
+                "offHeapEvictions", parent.scope,
+                new Gauge<Long>() {
+                    @Override
+                    public Long value() {
+                        OffHeapPageCache offHeap = parent.offHeapCache;
+                        return offHeap == null ? 0L : offHeap.evictions.get();
+                    }
+                });
+
+        offHeapHitRateGauge = Metrics.newGauge(SkipListCache.class,
+                "offHeapHitRate", parent.scope,
+                new Gauge<Double>() {
+                    @Override
+                    public Double value() {
+                        OffHeapPageCache offHeap = parent.offHeapCache;
+                        if (offHeap == null) {
+                            return 0.0;
+                        }
+                        long hits = offHeap.hits.get();
+                        long total = hits + offHeap.misses.get();
+                        return total == 0 ? 0.0 : ((double) hits) / total;
+                    }
+                });
+
+        // The eviction policy is also created after the metrics.
+        evictionPolicyGauge = Metrics.newGauge(SkipListCache.class,
+                "evictionPolicy", parent.scope,
+                new Gauge<String>() {
+                    @Override
+                    public String value() {
+                        EvictionPolicy policy = parent.evictionPolicy;
+                        return policy == null ? "" : policy.name();
+                    }
+                });
+
+        pageAccessesGauge = Metrics.newGauge(SkipListCache.class,
+                "pageAccesses", parent.scope,
+                new Gauge<Long>() {
+                    @Override
+                    public Long value() {
+                        EvictionPolicy policy = parent.evictionPolicy;
+                        return policy == null ? 0L : policy.accesses();
+                    }
+                });
+
+        pageLoadsGauge = Metrics.newGauge(SkipListCache.class,
+                "pageLoads", parent.scope,
+                new Gauge<Long>() {
+                    @Override
+                    public Long value() {
+                        EvictionPolicy policy = parent.evictionPolicy;
+                        return policy == null ? 0L : policy.misses();
+                    }
+                });
+
+        pageHitRateGauge = Metrics.newGauge(SkipListCache.class,
+                "pageHitRate", parent.scope,
+                new Gauge<Double>() {
+                    @Override
+                    public Double value() {
+                        EvictionPolicy policy = parent.evictionPolicy;
+                        return policy == null ? 0.0 : policy.hitRate();
+                    }
+                });
+
         encodeFirstKeySize = SkipListCache.trackEncodingByteUsage ?
                              Metrics.newHistogram(SkipListCache.class, "encodeFirstKeySize", parent.scope) :
                              null;
@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which entries of a cache are evicted first. A cache reports
+ * every access to a resident entry and every load of an entry from
+ * its backing storage, and consults the policy when it selects victims.
+ * <p/>
+ * Caches that select their own candidates by recency ask the policy
+ * how long an entry must be idle before it may be evicted with
+ * {@link #evictionDelay(Object, long)}. Caches that cannot choose their
+ * candidates ask the policy to confirm each eviction with
+ * {@link #confirmEviction(Object)}.
+ * <p/>
+ * Every policy counts accesses and loads so the hit rates
+ * of different policies can be compared on the same workload.
+ */
+public abstract class EvictionPolicy {
+
+    public static final String LRU = "lru";
+    public static final String TINYLFU = "tinylfu";
+
+    private final AtomicLong accesses = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create a policy by name.
+     *
+     * @param name         either {@link #LRU} or {@link #TINYLFU}
+     * @param expectedSize expected number of resident entries
+     */
+    public static EvictionPolicy create(String name, int expectedSize) {
+        if (LRU.equalsIgnoreCase(name)) {
+            return new RecencyEvictionPolicy();
+        } else if (TINYLFU.equalsIgnoreCase(name)) {
+            return new TinyLFUEvictionPolicy(expectedSize);
+        } else {
+            throw new IllegalArgumentException("unknown eviction policy " + name);
+        }
+    }
+
+    public abstract String name();
+
+    /**
+     * Record an access to an entry that is resident in the cache.
+     */
+    public void recordAccess(Object key) {
+        accesses.incrementAndGet();
+        onAccess(key);
+    }
+
+    /**
+     * Record the load of an entry from the backing storage.
+     */
+    public void recordMiss(Object key) {
+        misses.incrementAndGet();
+        onAccess(key);
+    }
+
+    protected abstract void onAccess(Object key);
+
+    /**
+     * Returns the time an entry must be idle before it may be evicted.
+     * Entries with a smaller sum of last access time and eviction delay
+     * are better victims.
+     *
+     * @param timeout the idle time after which the cache would evict
+     *                an entry based on recency alone
+     */
+    public abstract long evictionDelay(Object key, long timeout);
+
+    /**
+     * Returns false if the cache should keep an entry that it has selected
+     * for eviction. The cache may select the same entry again later.
+     */
+    public boolean confirmEviction(Object key) {
+        return true;
+    }
+
+    public long accesses() {
+        return accesses.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the fraction of lookups that found the entry resident.
+     * Hits are recorded with {@link #recordAccess(Object)} and misses
+     * with {@link #recordMiss(Object)}, so each lookup is one or the other.
+     */
+    public double hitRate() {
+        long hits = accesses.get();
+        long total = hits + misses.get();
+        if (total == 0) {
+            return 0.0;
+        }
+        return ((double) hits) / total;
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+}
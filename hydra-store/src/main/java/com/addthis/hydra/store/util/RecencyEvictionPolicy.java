@@ -0,0 +1,35 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.util;
+
+/**
+ * Evicts the least recently used entries first. This is
+ * the behavior of the caches without an explicit policy.
+ */
+public final class RecencyEvictionPolicy extends EvictionPolicy {
+
+    @Override
+    public String name() {
+        return LRU;
+    }
+
+    @Override
+    protected void onAccess(Object key) {
+    }
+
+    @Override
+    public long evictionDelay(Object key, long timeout) {
+        return timeout;
+    }
+}
@@ -16,9 +16,12 @@ package com.addthis.hydra.store.util;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 import com.addthis.basis.util.Bytes;
 
 import com.addthis.codec.Codec;
+import com.addthis.hydra.common.hash.MurmurHash3;
 import com.addthis.hydra.common.hash.PluggableHashFunction;
 
 /**
@@ -29,6 +32,10 @@ import com.addthis.hydra.common.hash.PluggableHashFunction;
  * "inside set (may be wrong)" or "definitely not in set". Elements can be added to
  * the set, but not removed. The more elements that are added to the set,
  * the larger the probability of false positives.
+ * <p>The {@link #HASH_BLOCKED_MURMUR} type is a blocked Bloom filter. It hashes
+ * each key once and sets all the bits of the key within one 512 bit block, so
+ * that a lookup touches at most two cache lines instead of one per bit. Its bits
+ * are set with compare and swap so that keys can be added from several threads.
  *
  * @user-reference
  */
@@ -39,6 +46,12 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
     public static final int HASH_HASHCODE_LONG_REV = 2; /* mostly bad */
     public static final int HASH_MD5 = 3; /* marginally better accuracy, much slower */
     public static final int HASH_PLUGGABLE_SHIFT = 4; /* default, best blend if speed and accuracy */
+    public static final int HASH_BLOCKED_MURMUR = 5; /* fastest, slightly more false positives */
+
+    /**
+     * bits in each block of the blocked filter
+     */
+    private static final int BLOCK_BITS = 512;
 
     /**
      * for one of the hash types
@@ -61,6 +74,12 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
     @Codec.Set(codable = true)
     private int[] bitset;
 
+    /**
+     * The bits of the filter. {@link #bitset} only holds
+     * a copy of them while the filter is encoded or decoded.
+     */
+    private AtomicIntegerArray words;
+
     /**
      * Cardinality of the bloom filter
      * (total number of bits allocated to the filter).
@@ -84,7 +103,11 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
      * <p>2 - HASH_HASHCODE_LONG_REV : mostly bad
      * <p>3 - HASH_MD5 :  marginally better accuracy, much slower
      * <p>4 - HASH_PLUGGABLE_SHIFT : best blend of speed and accuracy
-     * <p>This field is required. It is strongly recommended that you use "4".
+     * <p>5 - HASH_BLOCKED_MURMUR : one hash per key and all bits of a key in one
+     * 512 bit block. Much faster and a slightly higher false positive rate than
+     * "4" for the same number of bits. The number of bits is rounded up to a
+     * multiple of 512.
+     * <p>This field is required. It is strongly recommended that you use "4" or "5".
      */
     @Codec.Set(codable = true, required = true)
     private int hash;
@@ -92,6 +115,7 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
     /**
      * If {@link #bitset} is specified the you must populate
      * this field with the number of 0 bits in the initial bloom filter.
+     * Only approximate when keys are added from several threads.
      */
     @Codec.Set(codable = true)
     private int bitsfree;
@@ -107,11 +131,14 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
         if (bits < 32) {
             throw new RuntimeException("invalid bits @ " + bits);
         }
+        if (hash == HASH_BLOCKED_MURMUR) {
+            bits = ((bits + BLOCK_BITS - 1) / BLOCK_BITS) * BLOCK_BITS;
+        }
         this.hash = hash;
         this.bits = (bits / 32) * 32;
         this.bitsfree = bits;
         this.bitsper = bitsper;
-        this.bitset = new int[bits / 32];
+        this.words = new AtomicIntegerArray(bits / 32);
     }
 
     public SeenFilterBasic<K> newInstance() {
@@ -124,7 +151,7 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
 
     @Override
     public String toString() {
-        return "SeenFilterBasic[" + bits + "," + bitset.length + "," + hash + "]";
+        return "SeenFilterBasic[" + bits + "," + words.length() + "," + hash + "]";
     }
 
     /**
@@ -172,6 +199,64 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
                     r2[r2.length - i - 1] = (byte) (r1[i] ^ index);
                 }
                 return (((long) PluggableHashFunction.hash(r1)) << 32) | ((long) PluggableHashFunction.hash(r2));
+            case HASH_BLOCKED_MURMUR:
+                long mh = murmurHash(o);
+                return mh + index * ((mh >>> 32) | 1);
+        }
+    }
+
+    /**
+     * single hash of a key for the blocked filter. does not
+     * allocate for Raw, String and Long keys.
+     */
+    public static long murmurHash(Object o) {
+        Class<?> clazz = o.getClass();
+        if (clazz == Raw.class) {
+            return MurmurHash3.hash64(((Raw) o).toBytes(), 0);
+        }
+        if (clazz == String.class) {
+            return MurmurHash3.hash64((String) o, 0);
+        }
+        if (clazz == Long.class) {
+            return MurmurHash3.hash64((Long) o, 0);
+        }
+        return MurmurHash3.hash64(o.toString(), 0);
+    }
+
+    /**
+     * first bit of the block of a blocked filter hash
+     */
+    private int blockOffset(long hash) {
+        int blocks = words.length() / (BLOCK_BITS / 32);
+        return (int) (((hash >>> 32) * blocks) >>> 32) * BLOCK_BITS;
+    }
+
+    /**
+     * offset within its block of one of the bits of a blocked filter hash.
+     * the step is odd so the first 512 offsets of a hash are distinct.
+     */
+    private static int blockBit(long hash, int index) {
+        int start = (int) hash & 0xffff;
+        int step = ((int) (hash >>> 16) & 0xffff) | 1;
+        return (start + index * step) & (BLOCK_BITS - 1);
+    }
+
+    /**
+     * atomically sets this offset bit
+     *
+     * @return true if the bit was not already set
+     */
+    private boolean casBit(int offset) {
+        int index = offset >>> 5;
+        int val = 1 << (offset & 31);
+        while (true) {
+            int current = words.get(index);
+            if ((current & val) != 0) {
+                return false;
+            }
+            if (words.compareAndSet(index, current, current | val)) {
+                return true;
+            }
         }
     }
 
@@ -179,11 +264,14 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
      * return number of bits backing this filter
      */
     public int getBits() {
-        return bitset.length * 32;
+        return words.length() * 32;
     }
 
+    /**
+     * return a copy of the bits backing this filter
+     */
     public int[] getBitStore() {
-        return bitset;
+        return toArray(words);
     }
 
     public int getBitCount() {
@@ -203,9 +291,9 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
      */
     public int getSaturation() {
         try {
-            return 100 - (int) ((bitsfree * 100L) / (bitset.length * 32L));
+            return 100 - (int) ((bitsfree * 100L) / (words.length() * 32L));
         } catch (Exception ex) {
-            System.out.println(hashCode() + " >> " + ex + " >> " + bits + " , " + bitsper + " , " + hash + " , " + bitsfree + " , " + bitset);
+            System.out.println(hashCode() + " >> " + ex + " >> " + bits + " , " + bitsper + " , " + hash + " , " + bitsfree + " , " + words);
             return 0;
         }
     }
@@ -226,6 +314,14 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
      */
     public long[] getHashSet(K o) {
         long bs[] = new long[bitsper];
+        if (hash == HASH_BLOCKED_MURMUR) {
+            long mh = murmurHash(o);
+            int block = blockOffset(mh);
+            for (int i = 0; i < bitsper; i++) {
+                bs[i] = block + blockBit(mh, i);
+            }
+            return bs;
+        }
         for (int i = 0; i < bitsper; i++) {
             bs[i] = Math.abs(generateHash(o, i));
         }
@@ -250,10 +346,7 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
     public void updateHashSet(long bs[]) {
         for (int i = 0; i < bitsper; i++) {
             long hash = bs[i];
-            int offset = (int) (hash % bits);
-            int byteoff = offset / 32;
-            long val = (1 << (offset % 32));
-            bitset[byteoff] |= val;
+            casBit((int) (hash % bits));
         }
     }
 
@@ -270,21 +363,17 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
      * sets this offset bit
      */
     public void setBit(int offset) {
-        int byteoff = offset / 32;
-        long val = (1 << (offset % 32));
-        if ((bitset[byteoff] & val) == 0 && bitsfree > 0) {
+        if (casBit(offset) && bitsfree > 0) {
             bitsfree--;
         }
-        bitset[byteoff] |= val;
     }
 
     /**
      * returns true of this offset bit is set
      */
     public boolean getBit(int offset) {
-        int byteoff = offset / 32;
-        long val = (1 << (offset % 32));
-        return (bitset[byteoff] & val) == val;
+        int val = 1 << (offset % 32);
+        return (words.get(offset / 32) & val) == val;
     }
 
     /**
@@ -292,13 +381,17 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
      */
     public boolean updateSeen(K o) {
         boolean allset = true;
+        if (hash == HASH_BLOCKED_MURMUR) {
+            long mh = murmurHash(o);
+            int block = blockOffset(mh);
+            for (int i = 0; i < bitsper; i++) {
+                allset = casBit(block + blockBit(mh, i)) & allset;
+            }
+            return allset;
+        }
         for (int i = 0; i < bitsper; i++) {
             long hash = Math.abs(generateHash(o, i));
-            int offset = (int) (hash % bits);
-            int byteoff = offset / 32;
-            long val = (1 << (offset % 32));
-            allset = allset & ((bitset[byteoff] & val) == 0);
-            bitset[byteoff] |= val;
+            allset = casBit((int) (hash % bits)) & allset;
         }
         return allset;
     }
@@ -317,34 +410,41 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
             throw new IllegalArgumentException(merge + " settings differ from " + this);
         }
         SeenFilterBasic<K> filterNew = new SeenFilterBasic<K>();
-        if (filterMerge.bits != bits || filterMerge.bitsper != bitsper || filterMerge.bitset.length != bitset.length) {
+        if (filterMerge.bits != bits || filterMerge.bitsper != bitsper || filterMerge.words.length() != words.length()) {
             throw new IllegalArgumentException("cannot merge dissimilar blooms");
         }
         filterNew.hash = hash;
         filterNew.bits = bits;
         filterNew.bitsfree = bits;
         filterNew.bitsper = bitsper;
-        filterNew.bitset = new int[bitset.length];
-        for (int i = 0; i < bitset.length; i++) {
-            filterNew.bitset[i] = bitset[i] | filterMerge.bitset[i];
-            long v = filterNew.bitset[i];
-            for (int j = 0; j < 32; j++) {
-                if ((v & 1) == 1) {
-                    filterNew.bitsfree--;
-                }
-                v >>= 1;
-            }
+        filterNew.words = new AtomicIntegerArray(words.length());
+        for (int i = 0; i < words.length(); i++) {
+            int v = words.get(i) | filterMerge.words.get(i);
+            filterNew.words.set(i, v);
+            filterNew.bitsfree -= Integer.bitCount(v);
         }
         return filterNew;
     }
 
     @Override
     public void clear() {
-        bitset = new int[bitset.length];
+        words = new AtomicIntegerArray(words.length());
     }
 
     @Override
     public void setSeen(K o) {
+        if (hash == HASH_BLOCKED_MURMUR) {
+            long mh = murmurHash(o);
+            int block = blockOffset(mh);
+            int set = 0;
+            for (int i = 0; i < bitsper; i++) {
+                if (casBit(block + blockBit(mh, i))) {
+                    set++;
+                }
+            }
+            bitsfree = Math.max(bitsfree - set, 0);
+            return;
+        }
         for (int i = 0; i < bitsper; i++) {
             long hash = Math.abs(generateHash(o, i));
             setBit((int) (hash % bits));
@@ -353,6 +453,16 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
 
     @Override
     public boolean getSeen(K o) {
+        if (hash == HASH_BLOCKED_MURMUR) {
+            long mh = murmurHash(o);
+            int block = blockOffset(mh);
+            for (int i = 0; i < bitsper; i++) {
+                if (!getBit(block + blockBit(mh, i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
         for (int i = 0; i < bitsper; i++) {
             long hash = Math.abs(generateHash(o, i));
             if (!getBit((int) (hash % bits))) {
@@ -365,6 +475,18 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
     @Override
     public boolean getSetSeen(K o) {
         boolean seen = true;
+        if (hash == HASH_BLOCKED_MURMUR) {
+            long mh = murmurHash(o);
+            int block = blockOffset(mh);
+            int set = 0;
+            for (int i = 0; i < bitsper; i++) {
+                if (casBit(block + blockBit(mh, i))) {
+                    set++;
+                }
+            }
+            bitsfree = Math.max(bitsfree - set, 0);
+            return set == 0;
+        }
         for (int i = 0; i < bitsper; i++) {
             long hash = Math.abs(generateHash(o, i));
             int bit = (int) (hash % bits);
@@ -383,13 +505,30 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
             throw new RuntimeException("invalid bits @ 0");
         }
         if (bitset == null) {
-            this.bitset = new int[bits / 32];
+            if (hash == HASH_BLOCKED_MURMUR) {
+                bits = ((bits + BLOCK_BITS - 1) / BLOCK_BITS) * BLOCK_BITS;
+            }
+            this.words = new AtomicIntegerArray(bits / 32);
             this.bitsfree = bits;
+        } else if (hash == HASH_BLOCKED_MURMUR && bitset.length % (BLOCK_BITS / 32) != 0) {
+            throw new RuntimeException("blocked filter bitset length " + bitset.length + " is not a multiple of 16");
+        } else {
+            this.words = new AtomicIntegerArray(bitset);
+            this.bitset = null;
         }
     }
 
     @Override
     public void preEncode() {
+        bitset = toArray(words);
+    }
+
+    private static int[] toArray(AtomicIntegerArray words) {
+        int[] array = new int[words.length()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = words.get(i);
+        }
+        return array;
     }
 
 }
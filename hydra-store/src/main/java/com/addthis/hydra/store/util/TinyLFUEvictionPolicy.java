@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.util;
+
+import com.addthis.basis.util.Parameter;
+
+/**
+ * Protects frequently used entries from eviction using the recent access
+ * frequencies of a {@link FrequencySketch}. An entry that is read once,
+ * for example by a scan over the whole cache, keeps a frequency of one
+ * and is evicted as soon as it is idle. Entries that are used often must
+ * be idle for a multiple of the timeout before they are evicted.
+ * <p/>
+ * When the cache chooses the victims the policy compares each victim with
+ * the most recently loaded entry and keeps the victim if it was used more
+ * often. A bounded number of consecutive victims may be kept so that the
+ * cache always makes progress.
+ */
+public final class TinyLFUEvictionPolicy extends EvictionPolicy {
+
+    private static final int defaultMaxWeight = Parameter.intValue("eps.cache.tinylfu.weight", 8);
+    private static final int defaultMaxRefusals = Parameter.intValue("eps.cache.tinylfu.refusals", 16);
+
+    private final FrequencySketch sketch;
+    private final int maxWeight;
+    private final int maxRefusals;
+
+    private volatile Object candidate;
+    private int refusals;
+
+    public TinyLFUEvictionPolicy(int expectedSize) {
+        this(expectedSize, defaultMaxWeight, defaultMaxRefusals);
+    }
+
+    public TinyLFUEvictionPolicy(int expectedSize, int maxWeight, int maxRefusals) {
+        this.sketch = new FrequencySketch(expectedSize);
+        this.maxWeight = Math.max(1, Math.min(maxWeight, FrequencySketch.MAX_FREQUENCY));
+        this.maxRefusals = maxRefusals;
+    }
+
+    @Override
+    public String name() {
+        return TINYLFU;
+    }
+
+    @Override
+    protected void onAccess(Object key) {
+        sketch.increment(key);
+    }
+
+    @Override
+    public void recordMiss(Object key) {
+        super.recordMiss(key);
+        candidate = key;
+    }
+
+    public int frequency(Object key) {
+        return sketch.frequency(key);
+    }
+
+    @Override
+    public long evictionDelay(Object key, long timeout) {
+        int weight = Math.max(1, Math.min(sketch.frequency(key), maxWeight));
+        return timeout * weight;
+    }
+
+    @Override
+    public synchronized boolean confirmEviction(Object key) {
+        Object current = candidate;
+        if (current != null && refusals < maxRefusals &&
+            sketch.frequency(key) > sketch.frequency(current)) {
+            refusals++;
+            return false;
+        }
+        refusals = 0;
+        return true;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.db;
+
+import java.io.File;
+
+import java.util.Map;
+
+import com.addthis.basis.test.SlowTest;
+import com.addthis.basis.util.Files;
+
+import com.addthis.codec.Codec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@Category(SlowTest.class)
+public class ShardedPageDBTest {
+
+    private File dir;
+
+    @Before
+    public void before() throws Exception {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void after() throws Exception {
+        Files.deleteDir(dir);
+    }
+
+    @Test
+    public void testSingleId() {
+        assertTrue(ShardedPageDB.singleId(new DBKey(3, "a"), new DBKey(3, "b")));
+        assertTrue(ShardedPageDB.singleId(new DBKey(3), new DBKey(4)));
+        assertFalse(ShardedPageDB.singleId(new DBKey(3), new DBKey(4, "a")));
+        assertFalse(ShardedPageDB.singleId(new DBKey(3), null));
+    }
+
+    @Test
+    public void testPutGetRange() throws Exception {
+        ShardedPageDB<TestRecord> db = new ShardedPageDB<>(dir, TestRecord.class, 100, 100,
+                PageDB.defaultKeyValueStoreType, false, false, 4);
+        for (int id = 0; id < 20; id++) {
+            for (int i = 0; i < 10; i++) {
+                assertNull(db.put(new DBKey(id, Integer.toString(i)), new TestRecord(id + ":" + i)));
+            }
+        }
+        assertEquals("7:3", db.get(new DBKey(7, "3")).value);
+        int count = 0;
+        IPageDB.Range<DBKey, TestRecord> range = db.range(new DBKey(7), new DBKey(8));
+        for (Map.Entry<DBKey, TestRecord> entry : range) {
+            assertEquals(7, entry.getKey().id());
+            count++;
+        }
+        range.close();
+        assertEquals(10, count);
+        count = 0;
+        DBKey last = null;
+        range = db.range(new DBKey(0), null);
+        for (Map.Entry<DBKey, TestRecord> entry : range) {
+            assertTrue(last == null || last.compareTo(entry.getKey()) < 0);
+            last = entry.getKey();
+            count++;
+        }
+        range.close();
+        assertEquals(200, count);
+        db.close();
+
+        // the shard count of an existing database wins
+        db = new ShardedPageDB<>(dir, TestRecord.class, 100, 100,
+                PageDB.defaultKeyValueStoreType, false, false, 2);
+        assertEquals(4, db.getShardCount());
+        assertNotNull(db.get(new DBKey(19, "9")));
+        db.close();
+
+        ReadPageDB<TestRecord> read = new ReadPageDB<>(dir, TestRecord.class, 100, 100);
+        assertEquals(4, read.getShardCount());
+        assertEquals("12:5", read.get(new DBKey(12, "5")).value);
+        count = 0;
+        range = read.range(new DBKey(0), null);
+        for (Map.Entry<DBKey, TestRecord> entry : range) {
+            count++;
+        }
+        range.close();
+        assertEquals(200, count);
+        read.close();
+    }
+
+    public static final class TestRecord implements Codec.Codable {
+
+        @Codec.Set(codable = true)
+        private String value;
+
+        public TestRecord() {
+        }
+
+        TestRecord(String value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.db;
+
+import com.addthis.basis.util.Bytes;
+
+import com.addthis.codec.Codec;
+import com.addthis.codec.CodecBin2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestColumnarKeyCoder {
+
+    public static class Value implements ColumnarValue {
+
+        long count;
+        long parent;
+        byte[] attachments;
+
+        public Value() {
+        }
+
+        Value(long count, long parent, byte[] attachments) {
+            this.count = count;
+            this.parent = parent;
+            this.attachments = attachments;
+        }
+
+        @Override
+        public int columnCount() {
+            return 2;
+        }
+
+        @Override
+        public byte[] encodeColumns(long[] columns, Codec codec) {
+            columns[0] = count;
+            columns[1] = parent;
+            return attachments;
+        }
+
+        @Override
+        public void decodeColumns(long[] columns, byte[] attachments, Codec codec) {
+            this.count = columns[0];
+            this.parent = columns[1];
+            this.attachments = attachments;
+        }
+    }
+
+    private final DBKeyCoder<Value> coder = new DBKeyCoder<>(new CodecBin2(), Value.class, true);
+
+    @Test
+    public void roundTrip() {
+        byte[] encoded = coder.valueEncode(new Value(Long.MAX_VALUE, -1, Bytes.toBytes("attachments")));
+        Value value = coder.valueDecode(encoded);
+        assertEquals(Long.MAX_VALUE, value.count);
+        assertEquals(-1, value.parent);
+        assertArrayEquals(Bytes.toBytes("attachments"), value.attachments);
+    }
+
+    @Test
+    public void noAttachments() {
+        byte[] encoded = coder.valueEncode(new Value(3, 0, null));
+        assertEquals(4, encoded.length);
+        Value value = coder.valueDecode(encoded);
+        assertEquals(3, value.count);
+        assertNull(value.attachments);
+    }
+
+    @Test
+    public void nullValue() {
+        byte[] encoded = coder.valueEncode(null);
+        assertTrue(coder.nullRawValueInternal(encoded));
+        assertNull(coder.valueDecode(encoded));
+        assertTrue(!coder.nullRawValueInternal(coder.valueEncode(new Value())));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import com.addthis.hydra.store.util.Raw;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestDBKey {
+
+    @Test
+    public void packing() throws Exception {
+        DBKey key = new DBKey(258, "abc");
+        assertEquals(258, key.id());
+        assertArrayEquals("abc".getBytes(), key.key());
+        assertArrayEquals(new byte[]{0, 0, 1, 2, 'a', 'b', 'c'}, key.toBytes());
+        assertEquals(key, new DBKey(258, Raw.get("abc")));
+        assertEquals(key.hashCode(), new DBKey(258, "abc".getBytes()).hashCode());
+
+        byte[] encoded = key.toBytes();
+        DBKey decoded = new DBKey(encoded);
+        assertSame(encoded, decoded.toBytes());
+        assertEquals(key, decoded);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        key.writeOut(out);
+        assertEquals(key, new DBKey(new ByteArrayInputStream(out.toByteArray())));
+
+        assertEquals(0, new DBKey(7).key().length);
+        assertEquals(new DBKey(7), new DBKey(7, (Raw) null));
+    }
+
+    @Test
+    public void ordering() {
+        DBKey[] ordered = {
+                new DBKey(-1, "z"),
+                new DBKey(0),
+                new DBKey(1),
+                new DBKey(1, "a"),
+                new DBKey(1, "ab"),
+                new DBKey(1, "b"),
+                new DBKey(1, new byte[]{(byte) 0x80}),
+                new DBKey(1, new byte[]{(byte) 0xff}),
+                new DBKey(2),
+                new DBKey(256, "a"),
+                new DBKey(Integer.MAX_VALUE)
+        };
+        for (int i = 0; i < ordered.length; i++) {
+            for (int j = 0; j < ordered.length; j++) {
+                int expected = Integer.signum(Integer.compare(i, j));
+                assertEquals(expected, Integer.signum(ordered[i].compareTo(ordered[j])));
+                assertEquals(expected, Integer.signum(DBKey.PACKED_ORDER.compare(
+                        ordered[i].toBytes(), ordered[j].toBytes())));
+            }
+        }
+        assertTrue(new DBKey(1, "a").compareTo(new DBKey(1, "a")) == 0);
+    }
+}
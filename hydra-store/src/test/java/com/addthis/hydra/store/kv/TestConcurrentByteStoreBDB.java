@@ -16,6 +16,9 @@ package com.addthis.hydra.store.kv;
 import java.io.File;
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.addthis.basis.util.Files;
 
 import org.junit.Test;
@@ -60,6 +63,35 @@ public class TestConcurrentByteStoreBDB {
     }
 
 
+    @Test
+    public void testPutAll() {
+        File tempDir = null;
+        try {
+            tempDir = Files.createTempDir();
+            ConcurrentByteStoreBDB store = new ConcurrentByteStoreBDB(tempDir, "test", false);
+            List<ExternalPagedStore.PageEntry> batch = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                batch.add(new ExternalPagedStore.SimplePageEntry(createBytes(i), createBytes(10 - i)));
+            }
+            batch.add(new ExternalPagedStore.SimplePageEntry(createBytes(0), createBytes(100)));
+            store.putAll(batch);
+            assertArrayEquals(createBytes(100), store.get(createBytes(0)));
+            for (int i = 1; i < 10; i++) {
+                byte[] key = createBytes(i);
+                byte[] expected = createBytes(10 - i);
+                byte[] observed = store.get(key);
+                assertArrayEquals(expected, observed);
+            }
+            assertNull(store.get(createBytes(10)));
+        } catch (IOException ex) {
+            fail(ex.getMessage());
+        } finally {
+            if (tempDir != null) {
+                Files.deleteDir(tempDir);
+            }
+        }
+    }
+
     @Test
     public void testNextHigherValue() {
         File tempDir = null;
@@ -0,0 +1,258 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.addthis.basis.util.Files;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestConcurrentByteStoreMapped {
+
+    private static byte[] createBytes(int input) {
+        return String.format("%05d", input).getBytes();
+    }
+
+    private static void populate(ConcurrentByteStoreMapped store) {
+        for (int i = 0; i < 100; i++) {
+            store.put(createBytes(i), createBytes(i));
+        }
+        for (int i = 0; i < 100; i += 2) {
+            store.put(createBytes(i), createBytes(1000 + i));
+        }
+        for (int i = 0; i < 100; i += 3) {
+            store.delete(createBytes(i));
+        }
+    }
+
+    private static void verify(ConcurrentByteStoreMapped store) {
+        int count = 0;
+        for (int i = 0; i < 100; i++) {
+            byte[] observed = store.get(createBytes(i));
+            if (i % 3 == 0) {
+                assertNull(observed);
+            } else {
+                count++;
+                assertArrayEquals(createBytes(i % 2 == 0 ? 1000 + i : i), observed);
+            }
+        }
+        assertEquals(count, store.count());
+        assertArrayEquals(createBytes(1), store.firstKey());
+        assertArrayEquals(createBytes(98), store.lastKey());
+    }
+
+    @Test
+    public void testPutAll() {
+        File tempDir = Files.createTempDir();
+        try {
+            ConcurrentByteStoreMapped store = new ConcurrentByteStoreMapped(tempDir, "test", false);
+            List<ExternalPagedStore.PageEntry> batch = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                batch.add(new ExternalPagedStore.SimplePageEntry(createBytes(i), createBytes(10 - i)));
+            }
+            batch.add(new ExternalPagedStore.SimplePageEntry(createBytes(0), createBytes(100)));
+            store.putAll(batch);
+            assertArrayEquals(createBytes(100), store.get(createBytes(0)));
+            for (int i = 1; i < 10; i++) {
+                assertArrayEquals(createBytes(10 - i), store.get(createBytes(i)));
+            }
+            assertEquals(10, store.count());
+            store.close();
+        } finally {
+            Files.deleteDir(tempDir);
+        }
+    }
+
+    @Test
+    public void testGetPut() {
+        File tempDir = Files.createTempDir();
+        try {
+            ConcurrentByteStoreMapped store = new ConcurrentByteStoreMapped(tempDir, "test", false);
+            for (int i = 0; i < 10; i++) {
+                store.put(createBytes(i), createBytes(10 - i));
+            }
+            for (int i = 0; i < 10; i++) {
+                assertArrayEquals(createBytes(10 - i), store.get(createBytes(i)));
+            }
+            assertNull(store.get(createBytes(-1)));
+            assertNull(store.get(createBytes(10)));
+            assertArrayEquals(createBytes(2), store.higherKey(createBytes(1)));
+            assertArrayEquals(createBytes(0), store.lowerKey(createBytes(1)));
+            assertArrayEquals(createBytes(9), store.floorKey(createBytes(10)));
+            assertArrayEquals(createBytes(8), store.delete(createBytes(9)));
+            assertNull(store.get(createBytes(9)));
+            store.close();
+        } finally {
+            Files.deleteDir(tempDir);
+        }
+    }
+
+    @Test
+    public void testReopen() {
+        File tempDir = Files.createTempDir();
+        try {
+            ConcurrentByteStoreMapped store = new ConcurrentByteStoreMapped(tempDir, "test", false);
+            populate(store);
+            verify(store);
+            store.close();
+            assertTrue(ConcurrentByteStoreMapped.exists(tempDir, "test"));
+            assertTrue(new File(tempDir, "test.index").isFile());
+            store = new ConcurrentByteStoreMapped(tempDir, "test", false);
+            verify(store);
+            store.close();
+            store = new ConcurrentByteStoreMapped(tempDir, "test", true);
+            verify(store);
+            store.close();
+        } finally {
+            Files.deleteDir(tempDir);
+        }
+    }
+
+    @Test
+    public void testRecoverWithoutIndex() {
+        File tempDir = Files.createTempDir();
+        try {
+            ConcurrentByteStoreMapped store = new ConcurrentByteStoreMapped(tempDir, "test", false);
+            populate(store);
+            store.close();
+            assertTrue(new File(tempDir, "test.index").delete());
+            store = new ConcurrentByteStoreMapped(tempDir, "test", false);
+            verify(store);
+            store.close();
+        } finally {
+            Files.deleteDir(tempDir);
+        }
+    }
+
+    private static List<String> segmentFiles(File dir) {
+        List<String> names = new ArrayList<>();
+        for (String name : dir.list()) {
+            if (name.startsWith("test-") && name.endsWith(".seg")) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            ConcurrentByteStoreMapped store = new ConcurrentByteStoreMapped(tempDir, "test", false, 1024, 0);
+            populate(store);
+            List<String> before = segmentFiles(tempDir);
+            Collections.sort(before);
+            assertTrue(before.size() > 2);
+            String active = before.get(before.size() - 1);
+            assertTrue(store.compactSegments(0.01) >= before.size() - 1);
+            // the active segment may be sealed and compacted as the records are copied
+            List<String> after = segmentFiles(tempDir);
+            for (String name : before) {
+                assertTrue(name.equals(active) || !after.contains(name));
+            }
+            verify(store);
+            store.close();
+            store = new ConcurrentByteStoreMapped(tempDir, "test", false, 1024, 0);
+            verify(store);
+            store.close();
+            // deleted keys must not be resurrected from the remaining segments
+            assertTrue(new File(tempDir, "test.index").delete());
+            store = new ConcurrentByteStoreMapped(tempDir, "test", false, 1024, 0);
+            verify(store);
+            store.close(true);
+            store = new ConcurrentByteStoreMapped(tempDir, "test", false, 1024, 0);
+            verify(store);
+            store.close();
+        } finally {
+            Files.deleteDir(tempDir);
+        }
+    }
+
+    @Test
+    public void testDeleteRecordsAreGarbage() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            ConcurrentByteStoreMapped store = new ConcurrentByteStoreMapped(tempDir, "test", false, 1024, 0);
+            for (int i = 0; i < 10; i++) {
+                store.put(createBytes(i), createBytes(i));
+            }
+            // the puts are in the same segment so the delete records shadow nothing once it is sealed
+            for (int i = 0; i < 10; i++) {
+                store.delete(createBytes(i));
+            }
+            store.put(createBytes(100), new byte[900]);
+            assertEquals(2, segmentFiles(tempDir).size());
+            assertEquals(1, store.compactSegments(1.0));
+            assertEquals(1, segmentFiles(tempDir).size());
+            assertEquals(1, store.count());
+            store.close();
+            assertTrue(new File(tempDir, "test.index").delete());
+            store = new ConcurrentByteStoreMapped(tempDir, "test", false, 1024, 0);
+            assertEquals(1, store.count());
+            for (int i = 0; i < 10; i++) {
+                assertNull(store.get(createBytes(i)));
+            }
+            store.close();
+        } finally {
+            Files.deleteDir(tempDir);
+        }
+    }
+
+    @Test
+    public void testDeleteRecordsShadowOlderSegments() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            ConcurrentByteStoreMapped store = new ConcurrentByteStoreMapped(tempDir, "test", false, 1024, 0);
+            for (int i = 0; i < 10; i++) {
+                store.put(createBytes(i), createBytes(i));
+            }
+            store.put(createBytes(100), new byte[900]);
+            // the puts of the deleted keys are in the first segment
+            for (int i = 0; i < 10; i += 2) {
+                store.delete(createBytes(i));
+            }
+            store.put(createBytes(100), new byte[900]);
+            assertEquals(3, segmentFiles(tempDir).size());
+            // only the second segment is compacted and its delete records are copied
+            assertEquals(1, store.compactSegments(0.9));
+            assertFalse(segmentFiles(tempDir).contains("test-00000001.seg"));
+            assertTrue(segmentFiles(tempDir).contains("test-00000000.seg"));
+            store.close();
+            assertTrue(new File(tempDir, "test.index").delete());
+            store = new ConcurrentByteStoreMapped(tempDir, "test", false, 1024, 0);
+            for (int i = 0; i < 10; i++) {
+                if (i % 2 == 0) {
+                    assertNull(store.get(createBytes(i)));
+                } else {
+                    assertArrayEquals(createBytes(i), store.get(createBytes(i)));
+                }
+            }
+            assertEquals(6, store.count());
+            store.close();
+        } finally {
+            Files.deleteDir(tempDir);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.addthis.basis.util.Bytes;
+
+import com.addthis.hydra.store.kv.PageCompression.PageBuffer;
+import com.addthis.hydra.store.kv.PageCompression.PageInput;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestPageCompression {
+
+    private static byte[] sampleBody(int entries) throws Exception {
+        PageBuffer body = PageCompression.bodyBuffer();
+        Bytes.writeLength(entries, body);
+        for (int i = 0; i < entries; i++) {
+            Bytes.writeBytes(Bytes.toBytes("key" + i), body);
+            Bytes.writeBytes(Bytes.toBytes("value" + (i % 7)), body);
+        }
+        return body.toByteArray();
+    }
+
+    private void roundTrip(int gztype) throws Exception {
+        byte[] expected = sampleBody(1000);
+        PageBuffer body = PageCompression.bodyBuffer();
+        body.write(expected, 0, expected.length);
+        byte[] page = PageCompression.compress(body, gztype, 1, PageCompression.FLAGS_HAS_ESTIMATES);
+
+        int flags = page[0] & 0xff;
+        assertEquals(gztype, flags & 0x0f);
+        assertTrue(PageCompression.isBlockEncoded(flags));
+        assertTrue((flags & PageCompression.FLAGS_HAS_ESTIMATES) != 0);
+
+        PageInput in = PageCompression.decompress(page);
+        int start = in.position();
+        byte[] actual = Arrays.copyOfRange(in.array(), start, start + expected.length);
+        assertArrayEquals(expected, actual);
+
+        assertEquals(1000, Bytes.readLength(in));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("key" + i, Bytes.toString(Bytes.readBytes(in)));
+            int length = (int) Bytes.readLength(in);
+            int offset = in.skipSlice(length);
+            byte[] value = Arrays.copyOfRange(in.array(), offset, offset + length);
+            assertEquals("value" + (i % 7), Bytes.toString(value));
+        }
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void uncompressed() throws Exception {
+        roundTrip(0);
+    }
+
+    @Test
+    public void deflate() throws Exception {
+        roundTrip(1);
+    }
+
+    @Test
+    public void gzip() throws Exception {
+        roundTrip(2);
+    }
+
+    @Test
+    public void lzf() throws Exception {
+        roundTrip(3);
+    }
+
+    @Test
+    public void snappy() throws Exception {
+        roundTrip(4);
+    }
+
+    @Test
+    public void dictionary() throws Exception {
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            samples.add(Bytes.toBytes("{\"type\":\"event\",\"url\":\"http://www.example.com/page/" + i +
+                                      "\",\"agent\":\"Mozilla/5.0 (X11; Linux x86_64)\",\"id\":" + (i * 31) + "}"));
+        }
+        PageDictionary dictionary = PageDictionary.train(samples, 4096);
+        assertNotNull(dictionary);
+        assertTrue(dictionary.bytes().length <= 4096);
+
+        byte[] expected = Bytes.toBytes("{\"type\":\"event\",\"url\":\"http://www.example.com/page/x" +
+                                        "\",\"agent\":\"Mozilla/5.0 (X11; Linux x86_64)\",\"id\":7}");
+        PageBuffer body = PageCompression.bodyBuffer();
+        body.write(expected, 0, expected.length);
+        byte[] plain = PageCompression.compress(body, 1, 1, 0);
+        byte[] page = PageCompression.compress(body, 1, 1, 0, dictionary);
+        assertTrue(page.length < plain.length);
+
+        PageInput in = PageCompression.decompress(page, dictionary);
+        int start = in.position();
+        assertArrayEquals(expected, Arrays.copyOfRange(in.array(), start, start + expected.length));
+
+        try {
+            PageCompression.decompress(page);
+            fail();
+        } catch (IOException ex) {
+            // expected
+        }
+        PageDictionary other = new PageDictionary(Bytes.toBytes("an unrelated dictionary"));
+        assertTrue(other.id() != dictionary.id());
+        try {
+            PageCompression.decompress(page, other);
+            fail();
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void adaptive() throws Exception {
+        PageCompressor compressor = new PageCompressor(1, 1, null, null, true);
+        byte[] expected = sampleBody(1000);
+        for (int i = 0; i < 200; i++) {
+            PageBuffer body = PageCompression.bodyBuffer();
+            body.write(expected, 0, expected.length);
+            byte[] page = compressor.compress(body, 0);
+            PageInput in = PageCompression.decompress(page);
+            int start = in.position();
+            assertArrayEquals(expected, Arrays.copyOfRange(in.array(), start, start + expected.length));
+        }
+        long total = 0;
+        for (long count : compressor.getSelections()) {
+            total += count;
+        }
+        assertTrue(total > 0);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.io.File;
+
+import java.util.Arrays;
+
+import com.addthis.basis.util.ClosableIterator;
+import com.addthis.basis.util.Files;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestSortedByteStore {
+
+    private static byte[] createBytes(int input) {
+        return String.format("%05d", input).getBytes();
+    }
+
+    /**
+     * Keys are the even numbers in [0, 2 * count). Values are large enough
+     * that the store is split into several blocks.
+     */
+    private static SortedByteStore create(File dir, int count) throws Exception {
+        SortedByteStore.Writer writer = new SortedByteStore.Writer(dir, "test");
+        byte[] padding = new byte[1000];
+        for (int i = 0; i < count; i++) {
+            byte[] value = new byte[padding.length + 5];
+            System.arraycopy(createBytes(i), 0, value, 0, 5);
+            writer.add(createBytes(2 * i), value);
+            writer.addFilterKey(createBytes(2 * i));
+        }
+        writer.close();
+        assertTrue(SortedByteStore.exists(dir, "test"));
+        return new SortedByteStore(dir, "test");
+    }
+
+    @Test
+    public void testLookups() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            SortedByteStore store = create(tempDir, 500);
+            assertEquals(500, store.count());
+            assertArrayEquals(createBytes(0), store.firstKey());
+            assertArrayEquals(createBytes(998), store.lastKey());
+            for (int i = 0; i < 500; i++) {
+                byte[] key = createBytes(2 * i);
+                byte[] value = store.get(key);
+                assertArrayEquals(createBytes(i), Arrays.copyOf(value, 5));
+                assertTrue(store.mightContain(key));
+                assertNull(store.get(createBytes(2 * i + 1)));
+                assertArrayEquals(key, store.floorKey(createBytes(2 * i + 1)));
+                assertArrayEquals(key, store.floorKey(key));
+                if (i > 0) {
+                    assertArrayEquals(createBytes(2 * i - 2), store.lowerKey(key));
+                }
+                if (i < 499) {
+                    assertArrayEquals(createBytes(2 * i + 2), store.higherKey(key));
+                }
+            }
+            assertNull(store.lowerKey(createBytes(0)));
+            assertNull(store.higherKey(createBytes(998)));
+            assertFalse(store.mightContain(new byte[0]));
+            store.close();
+        } finally {
+            Files.deleteDir(tempDir);
+        }
+    }
+
+    @Test
+    public void testIterator() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            SortedByteStore store = create(tempDir, 500);
+            ClosableIterator<ExternalPagedStore.PageEntry> iterator = store.iterator(createBytes(101));
+            int expected = 50;
+            while (iterator.hasNext()) {
+                assertArrayEquals(createBytes(2 * expected), iterator.next().key());
+                expected++;
+            }
+            iterator.close();
+            assertEquals(500, expected);
+            store.close();
+        } finally {
+            Files.deleteDir(tempDir);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.skiplist;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestOffHeapPageCache {
+
+    private static byte[] page(int seed, int length) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = (byte) (seed + i);
+        }
+        return result;
+    }
+
+    private static byte[] key(int id) {
+        return new byte[]{0, 0, 0, (byte) id};
+    }
+
+    @Test
+    public void storeAndTake() {
+        OffHeapPageCache cache = new OffHeapPageCache(64 * 1024, 1024);
+        assertTrue(cache.put(key(1), page(1, 3000)));
+        assertTrue(cache.put(key(2), page(2, 10)));
+        assertEquals(3010, cache.usedBytes());
+        assertEquals(2, cache.numPages());
+        assertArrayEquals(page(1, 3000), cache.take(key(1)));
+        assertNull(cache.take(key(1)));
+        assertEquals(1, cache.hits.get());
+        assertEquals(1, cache.misses.get());
+        cache.invalidate(key(2));
+        assertNull(cache.take(key(2)));
+        assertEquals(0, cache.usedBytes());
+        assertFalse(cache.put(key(3), page(3, 64 * 1024 + 1)));
+    }
+
+    @Test
+    public void eviction() {
+        OffHeapPageCache cache = new OffHeapPageCache(8 * 1024, 1024);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(cache.put(key(i), page(i, 1024)));
+        }
+        assertEquals(0, cache.evictions.get());
+        assertTrue(cache.put(key(8), page(8, 2048)));
+        assertEquals(2, cache.evictions.get());
+        assertNull(cache.take(key(0)));
+        assertNull(cache.take(key(1)));
+        for (int i = 2; i < 8; i++) {
+            assertArrayEquals(page(i, 1024), cache.take(key(i)));
+        }
+        assertArrayEquals(page(8, 2048), cache.take(key(8)));
+        assertEquals(0, cache.numPages());
+    }
+}
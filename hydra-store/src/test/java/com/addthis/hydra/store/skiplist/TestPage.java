@@ -0,0 +1,289 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.skiplist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.addthis.basis.util.Bytes;
+import com.addthis.basis.util.Files;
+
+import com.addthis.codec.Codec;
+import com.addthis.hydra.store.db.IReadWeighable;
+import com.addthis.hydra.store.kv.ConcurrentByteStoreBDB;
+import com.addthis.hydra.store.kv.ExternalPagedStore.ByteStore;
+import com.addthis.hydra.store.kv.KeyCoder;
+import com.addthis.hydra.store.kv.PageCompression;
+import com.addthis.hydra.store.kv.PageCompressor;
+import com.addthis.hydra.store.kv.ReadExternalPagedStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestPage {
+
+    private static final int ENTRIES = 100;
+
+    private static final int[] GZTYPES = {0, 1, 2, 3, 4};
+
+    public static final class Value implements IReadWeighable, Codec.Codable {
+
+        final int value;
+        int weight;
+
+        Value(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public void setWeight(int weight) {
+            this.weight = weight;
+        }
+
+        @Override
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    static final class ValueKeyCoder implements KeyCoder<Integer, Value> {
+
+        private final SimpleIntKeyCoder ints = new SimpleIntKeyCoder();
+
+        @Override
+        public Integer negInfinity() {
+            return ints.negInfinity();
+        }
+
+        @Override
+        public byte[] keyEncode(Integer key) {
+            return ints.keyEncode(key);
+        }
+
+        @Override
+        public byte[] valueEncode(Value value) {
+            return Bytes.toBytes(value.value);
+        }
+
+        @Override
+        public Integer keyDecode(byte[] key) {
+            return ints.keyDecode(key);
+        }
+
+        @Override
+        public Value valueDecode(byte[] value) {
+            return new Value(Bytes.toInt(value));
+        }
+
+        @Override
+        public boolean nullRawValueInternal(byte[] value) {
+            return value.length == 0;
+        }
+    }
+
+    private static final ValueKeyCoder coder = new ValueKeyCoder();
+
+    private File directory;
+
+    private final List<SkipListCache<Integer, Value>> caches = new ArrayList<>();
+
+    private File makeTemporaryDirectory() throws IOException {
+        final File temp;
+
+        temp = File.createTempFile("temp", Long.toString(System.nanoTime()));
+
+        if (!(temp.delete())) {
+            throw new IOException("Could not delete temp file: " + temp.getAbsolutePath());
+        }
+
+        if (!(temp.mkdir())) {
+            throw new IOException("Could not create temp directory: " + temp.getAbsolutePath());
+        }
+
+        return temp;
+    }
+
+    @Before
+    public void before() throws IOException {
+        directory = makeTemporaryDirectory();
+    }
+
+    @After
+    public void after() {
+        for (SkipListCache<Integer, Value> cache : caches) {
+            cache.close();
+        }
+        Files.deleteDir(directory);
+    }
+
+    /**
+     * Returns a cache whose pages are compressed with {@code gztype}.
+     */
+    private SkipListCache<Integer, Value> cache(int gztype) {
+        ByteStore store = new ConcurrentByteStoreBDB(new File(directory, "cache" + caches.size()), "db", false);
+        SkipListCache<Integer, Value> cache = new SkipListCache.Builder<>(coder, store, 1000, 10)
+                .compressor(new PageCompressor(gztype, 1)).build();
+        caches.add(cache);
+        return cache;
+    }
+
+    /**
+     * Returns a page with the keys [first, first + count) whose values have never been encoded.
+     */
+    private static Page<Integer, Value> fill(SkipListCache<Integer, Value> cache, int first, int count) {
+        Page<Integer, Value> page = Page.generateEmptyPage(cache, first, first + count);
+        page.initialize();
+        for (int i = first; i < first + count; i++) {
+            page.keys.add(i);
+            page.values.add(new Value(i * 31));
+            page.rawValues.add(null);
+        }
+        page.size = count;
+        return page;
+    }
+
+    private static Page<Integer, Value> decode(SkipListCache<Integer, Value> cache, int first, byte[] encoded) {
+        Page<Integer, Value> page = Page.generateEmptyPage(cache, first);
+        page.decode(encoded);
+        return page;
+    }
+
+    private static void assertEntries(Page<Integer, Value> page, int first, int count) {
+        assertEquals(count, page.size);
+        assertEquals(count, page.rawValues.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(first + i, page.keys.get(i).intValue());
+            assertEquals((first + i) * 31, coder.valueDecode(page.rawValues.get(i)).value);
+        }
+    }
+
+    /**
+     * Read an encoded page back through the read only store of the query system.
+     */
+    private void assertReadable(byte[] encoded, int first, int count) {
+        ByteStore store = new ConcurrentByteStoreBDB(new File(directory, "read"), "db", false);
+        try {
+            store.put(coder.keyEncode(first), encoded);
+            ReadExternalPagedStore<Integer, Value> reader = new ReadExternalPagedStore<>(coder, store, 10, 0);
+            List<byte[]> keys = reader.decodePageKeys(encoded);
+            assertEquals(count, keys.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals(first + i, coder.keyDecode(keys.get(i)).intValue());
+                assertEquals((first + i) * 31, reader.getValue(first + i).value);
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void blockFormat() throws Exception {
+        for (int gztype : GZTYPES) {
+            SkipListCache<Integer, Value> cache = cache(gztype);
+            byte[] encoded = fill(cache, 0, ENTRIES).encode(false);
+            int flags = encoded[0] & 0xff;
+            assertEquals(gztype, flags & 0x0f);
+            assertTrue(PageCompression.isBlockEncoded(flags));
+            assertEntries(decode(cache, 0, encoded), 0, ENTRIES);
+            assertReadable(encoded, 0, ENTRIES);
+        }
+    }
+
+    /**
+     * Pages written with eps.gz.block=false must stay readable.
+     */
+    @Test
+    public void streamFormat() throws Exception {
+        for (int gztype : GZTYPES) {
+            SkipListCache<Integer, Value> cache = cache(gztype);
+            byte[] encoded = fill(cache, 0, ENTRIES).encodeStream(new ByteArrayOutputStream(), gztype, false);
+            int flags = encoded[0] & 0xff;
+            assertEquals(gztype, flags & 0x0f);
+            assertFalse(PageCompression.isBlockEncoded(flags));
+            assertEntries(decode(cache, 0, encoded), 0, ENTRIES);
+            assertReadable(encoded, 0, ENTRIES);
+        }
+    }
+
+    @Test
+    public void slices() throws Exception {
+        for (int gztype : GZTYPES) {
+            SkipListCache<Integer, Value> cache = cache(gztype);
+            Page<Integer, Value> page = decode(cache, 0, fill(cache, 0, ENTRIES).encode(false));
+            for (int i = 0; i < ENTRIES; i++) {
+                assertFalse(page.rawValues.isNull(i));
+                assertEquals(4, page.rawValues.length(i));
+            }
+            // values that were read or replaced are encoded alongside untouched slices
+            assertEquals(31, coder.valueDecode(page.rawValues.get(1)).value);
+            page.values.set(5, new Value(-5));
+            page.rawValues.set(5, null);
+            assertTrue(page.rawValues.isNull(5));
+            page.rawValues.remove(7);
+            page.keys.remove(7);
+            page.values.remove(7);
+            page.size--;
+
+            Page<Integer, Value> decoded = decode(cache, 0, page.encode(false));
+            assertEquals(ENTRIES - 1, decoded.size);
+            for (int i = 0; i < decoded.size; i++) {
+                int key = (i < 7) ? i : i + 1;
+                assertEquals(key, decoded.keys.get(i).intValue());
+                int expected = (key == 5) ? -5 : key * 31;
+                assertEquals(expected, coder.valueDecode(decoded.rawValues.get(i)).value);
+            }
+        }
+    }
+
+    /**
+     * Split a decoded page the way {@link SkipListCache} does.
+     * Both halves share the page body.
+     */
+    @Test
+    public void splitSharesBody() throws Exception {
+        for (int gztype : GZTYPES) {
+            SkipListCache<Integer, Value> cache = cache(gztype);
+            Page<Integer, Value> target = decode(cache, 0, fill(cache, 0, ENTRIES).encode(false));
+            int newSize = ENTRIES / 2;
+
+            List<Integer> keyRange = target.keys.subList(newSize, ENTRIES);
+            List<Value> valueRange = target.values.subList(newSize, ENTRIES);
+            RawValueList sibRawValues = target.rawValues.copyRange(newSize, ENTRIES);
+            Page<Integer, Value> sibling = Page.generateSiblingPage(cache, newSize, target.nextFirstKey,
+                    ENTRIES - newSize, new ArrayList<>(keyRange), new ArrayList<>(valueRange), sibRawValues);
+            keyRange.clear();
+            valueRange.clear();
+            target.rawValues.removeRange(newSize, ENTRIES);
+            target.nextFirstKey = newSize;
+            target.size = newSize;
+
+            byte[] first = target.encode(false);
+            // the sibling keeps its own reference to the body
+            target.rawValues.clear();
+            byte[] second = sibling.encode(false);
+
+            assertEntries(decode(cache, 0, first), 0, newSize);
+            assertEntries(decode(cache, newSize, second), newSize, ENTRIES - newSize);
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.util.Random;
 import java.util.concurrent.CyclicBarrier;
 
 import com.addthis.basis.test.SlowTest;
+import com.addthis.basis.util.ClosableIterator;
 import com.addthis.basis.util.Files;
 
 import com.addthis.hydra.store.kv.ConcurrentByteStoreBDB;
@@ -177,6 +178,94 @@ public class TestSkipListCache {
     private static final int rangeDeletionFastIterations = 3;
     private static final int rangeDeletionFastElements = 100;
 
+    @Test
+    public void testOffHeapPut() {
+        File directory = null;
+
+        try {
+            directory = makeTemporaryDirectory();
+            ByteStore externalStore = new ConcurrentByteStoreBDB(directory, "db", false);
+            SkipListCache<Integer, Integer> cache =
+                    new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 25, 10)
+                            .offHeapBytes(1024 * 1024).build();
+
+            for (int i = 0; i < 10000; i++) {
+                assertEquals(null, cache.put(i, 10000 - i));
+            }
+
+            for (int i = 0; i < 10000; i++) {
+                assertEquals(new Integer(10000 - i), cache.get(i));
+            }
+
+            for (int i = 0; i < 10000; i += 2) {
+                assertEquals(new Integer(10000 - i), cache.remove(i));
+            }
+
+            for (int i = 0; i < 10000; i++) {
+                assertEquals(i % 2 == 0 ? null : new Integer(10000 - i), cache.get(i));
+            }
+
+            assertTrue(cache.offHeapCache.hits.get() + cache.offHeapCache.misses.get() > 0);
+
+            consistentWaitShutdown(cache);
+
+            assertEquals(0, cache.getMemoryEstimate());
+
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            fail();
+        } finally {
+            if (directory != null) {
+                if (!Files.deleteDir(directory)) {
+                    fail();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPrefetchIterator() {
+        File directory = null;
+
+        try {
+            directory = makeTemporaryDirectory();
+            ByteStore externalStore = new ConcurrentByteStoreBDB(directory, "db", false);
+            SkipListCache<Integer, Integer> cache =
+                    new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 25, 10).build();
+            cache.setPrefetchPages(8);
+
+            for (int i = 0; i < 10000; i++) {
+                assertEquals(null, cache.put(i, 10000 - i));
+            }
+
+            Iterator<Map.Entry<Integer, Integer>> iterator = cache.range(0, true);
+            for (int i = 0; i < 10000; i++) {
+                assertTrue(iterator.hasNext());
+                Map.Entry<Integer, Integer> entry = iterator.next();
+                assertEquals(new Integer(i), entry.getKey());
+                assertEquals(new Integer(10000 - i), entry.getValue());
+            }
+            assertFalse(iterator.hasNext());
+            ((ClosableIterator<?>) iterator).close();
+
+            assertTrue(cache.numPagesPrefetched.get() > 0);
+            assertTrue(cache.numPrefetchUsed.get() + cache.numPrefetchWasted.get() <=
+                       cache.numPagesPrefetched.get());
+
+            consistentWaitShutdown(cache);
+
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            fail();
+        } finally {
+            if (directory != null) {
+                if (!Files.deleteDir(directory)) {
+                    fail();
+                }
+            }
+        }
+    }
+
     @Test
     @Category(SlowTest.class)
     public void testRangeDeletionSlow() {
@@ -188,6 +277,73 @@ public class TestSkipListCache {
         rangeDeletionIterations(rangeDeletionFastIterations, rangeDeletionFastElements);
     }
 
+    @Test
+    public void testRangeDeletionDropPages() {
+        File directory = null;
+        int elements = 10000;
+
+        try {
+            directory = makeTemporaryDirectory();
+            ByteStore externalStore = new ConcurrentByteStoreBDB(directory, "db", false);
+            SkipListCache<Integer, Integer> cache =
+                    new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 25, 0).build();
+
+            for (int i = 0; i < elements; i++) {
+                assertEquals(null, cache.put(i, elements - i));
+            }
+
+            consistentWaitShutdown(cache);
+
+            externalStore = new ConcurrentByteStoreBDB(directory, "db", false);
+            cache = new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 25, 0).build();
+
+            // the pages between the end points are not in memory
+            cache.removeValues(1000, 9000, false);
+
+            assertTrue(cache.getNumPagesDropped() > 0);
+
+            for (int i = 0; i < elements; i++) {
+                if (i >= 1000 && i < 9000) {
+                    assertNull(cache.get(i));
+                } else {
+                    assertEquals(new Integer(elements - i), cache.get(i));
+                }
+            }
+
+            int count = 0;
+            Iterator<Map.Entry<Integer, Integer>> iterator = cache.range(0, true);
+            while (iterator.hasNext()) {
+                iterator.next();
+                count++;
+            }
+            assertEquals(2000, count);
+
+            consistentWaitShutdown(cache);
+
+            externalStore = new ConcurrentByteStoreBDB(directory, "db", false);
+            cache = new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 25, 0).build();
+
+            for (int i = 0; i < elements; i++) {
+                if (i >= 1000 && i < 9000) {
+                    assertNull(cache.get(i));
+                } else {
+                    assertEquals(new Integer(elements - i), cache.get(i));
+                }
+            }
+
+            consistentWaitShutdown(cache);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            fail();
+        } finally {
+            if (directory != null) {
+                if (!Files.deleteDir(directory)) {
+                    fail();
+                }
+            }
+        }
+    }
+
     private void rangeDeletionIterations(int iterations, int elements) {
         Random generator = new Random();
         for (int i = 0; i < iterations; i++) {
@@ -783,6 +939,61 @@ public class TestSkipListCache {
 
     }
 
+    @Test
+    public void testCheckpoint() {
+        File directory = null;
+        File checkpoint = null;
+        int elements = 10000;
+
+        try {
+            directory = makeTemporaryDirectory();
+            checkpoint = makeTemporaryDirectory();
+            ByteStore externalStore = new ConcurrentByteStoreBDB(directory, "db", false);
+            SkipListCache<Integer, Integer> cache =
+                    new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 25, 0).build();
+
+            for (int i = 0; i < elements; i++) {
+                assertEquals(null, cache.put(i, elements - i));
+            }
+
+            assertTrue(cache.checkpoint(checkpoint).size() > 0);
+
+            // changes after the checkpoint are not part of the image
+            for (int i = 0; i < elements; i++) {
+                assertEquals(new Integer(elements - i), cache.put(i, i));
+            }
+
+            assertTrue(cache.flushDirtyPages() > 0);
+            assertEquals(0, cache.flushDirtyPages());
+
+            consistentWaitShutdown(cache);
+
+            externalStore = new ConcurrentByteStoreBDB(checkpoint, "db", false);
+            cache = new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 25, 0).build();
+
+            for (int i = 0; i < elements; i++) {
+                assertEquals(new Integer(elements - i), cache.get(i));
+            }
+
+            consistentWaitShutdown(cache);
+
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            fail();
+        } finally {
+            if (directory != null) {
+                if (!Files.deleteDir(directory)) {
+                    fail();
+                }
+            }
+            if (checkpoint != null) {
+                if (!Files.deleteDir(checkpoint)) {
+                    fail();
+                }
+            }
+        }
+    }
+
     @Test
     public void testExternalStorePersistance() {
         doTestExternalStorePersistance(fastNumElements);
@@ -20,6 +20,7 @@ import com.addthis.codec.CodecJSON;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 @Category(SlowTest.class)
@@ -27,17 +28,48 @@ public class SeenFilterBasicTest {
 
     @Test
     public void basicTest() throws Exception {
-        checkSeenFilter(genFilter());
+        checkSeenFilter(genFilter(SeenFilterBasic.HASH_PLUGGABLE_SHIFT));
     }
 
     @Test
     public void encodeTest() throws Exception {
-        String encoded = CodecJSON.encodeString(genFilter());
+        String encoded = CodecJSON.encodeString(genFilter(SeenFilterBasic.HASH_PLUGGABLE_SHIFT));
         checkSeenFilter(CodecJSON.decodeString(new SeenFilterBasic<String>(), encoded));
     }
 
-    private SeenFilterBasic<String> genFilter() {
-        SeenFilterBasic<String> filter = new SeenFilterBasic<String>(20000, 4, 4);
+    @Test
+    public void blockedTest() throws Exception {
+        SeenFilterBasic<String> filter = genFilter(SeenFilterBasic.HASH_BLOCKED_MURMUR);
+        assertEquals(20480, filter.getBits());
+        checkSeenFilter(filter);
+        String encoded = CodecJSON.encodeString(filter);
+        checkSeenFilter(CodecJSON.decodeString(new SeenFilterBasic<String>(), encoded));
+    }
+
+    @Test
+    public void blockedConcurrentTest() throws Exception {
+        final SeenFilterBasic<String> filter = new SeenFilterBasic<>(20000, 4, SeenFilterBasic.HASH_BLOCKED_MURMUR);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = offset; i < 1000; i += 4) {
+                        filter.setSeen(i + "=" + i);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        checkSeenFilter(filter);
+    }
+
+    private SeenFilterBasic<String> genFilter(int hash) {
+        SeenFilterBasic<String> filter = new SeenFilterBasic<String>(20000, 4, hash);
         for (int i = 0; i < 1000; i++) {
             filter.setSeen(i + "=" + i);
         }
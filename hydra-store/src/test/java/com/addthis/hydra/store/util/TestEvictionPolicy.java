@@ -0,0 +1,68 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestEvictionPolicy {
+
+    @Test
+    public void testSketchAging() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 10; i++) {
+            sketch.increment("hot");
+        }
+        sketch.increment("cold");
+        assertTrue(sketch.frequency("hot") >= 10);
+        assertTrue(sketch.frequency("cold") >= 1);
+        assertTrue(sketch.frequency("hot") > sketch.frequency("cold"));
+        for (int i = 0; i < 640; i++) {
+            sketch.increment(i);
+        }
+        assertTrue(sketch.frequency("hot") < 10);
+    }
+
+    @Test
+    public void testScanResistance() {
+        TinyLFUEvictionPolicy policy = new TinyLFUEvictionPolicy(1000, 8, 2);
+        for (int i = 0; i < 8; i++) {
+            policy.recordAccess("hot");
+        }
+        policy.recordMiss("scan");
+        assertEquals(100, policy.evictionDelay("scan", 100));
+        assertEquals(800, policy.evictionDelay("hot", 100));
+        assertFalse(policy.confirmEviction("hot"));
+        assertFalse(policy.confirmEviction("hot"));
+        // the number of consecutive refusals is bounded
+        assertTrue(policy.confirmEviction("hot"));
+        assertTrue(policy.confirmEviction("scan"));
+    }
+
+    @Test
+    public void testHitRate() {
+        EvictionPolicy policy = EvictionPolicy.create(EvictionPolicy.LRU, 10);
+        assertEquals(0.0, policy.hitRate(), 0.0);
+        policy.recordMiss("a");
+        for (int i = 0; i < 4; i++) {
+            policy.recordAccess("a");
+        }
+        assertEquals(0.8, policy.hitRate(), 0.0001);
+        assertEquals(100, policy.evictionDelay("a", 100));
+        assertTrue(policy.confirmEviction("a"));
+    }
+}
@@ -15,6 +15,7 @@ package com.addthis.hydra.store.util;
 
 import java.util.HashSet;
 import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
 
 import java.text.DecimalFormat;
 
@@ -38,6 +39,85 @@ public class TestSeenFilter {
         testSeenFilter(new SeenFilterBasic<Long>(40000, 3, 2), 10000);
         testSeenFilter(new SeenFilterBasic<Long>(40000, 3, 3), 10000);
         testSeenFilter(new SeenFilterBasic<Long>(40000, 3, 4), 10000);
+        testSeenFilter(new SeenFilterBasic<Long>(40000, 3, 5), 10000);
+    }
+
+    /**
+     * The blocked filter has no false negatives, a false positive rate close to
+     * that of the standard filter, and sets the bits of a key within one block.
+     */
+    @Test
+    public void testBlockedFilter() {
+        SeenFilterBasic<Long> filter = new SeenFilterBasic<>(40000, 3, SeenFilterBasic.HASH_BLOCKED_MURMUR);
+        Assert.assertEquals(40448, filter.getBits());
+        HashSet<Long> incSet = new HashSet<>();
+        for (int i = 0; i < 5000; i++) {
+            Long next = rand.nextLong();
+            incSet.add(next);
+            filter.setSeen(next);
+        }
+        for (Long l : incSet) {
+            Assert.assertTrue(filter.getSeen(l));
+            long[] offsets = filter.getHashSet(l);
+            Assert.assertTrue(filter.checkHashSet(offsets));
+            for (long offset : offsets) {
+                Assert.assertTrue(offset >= 0 && offset < filter.getBits());
+                Assert.assertEquals(offsets[0] / 512, offset / 512);
+            }
+        }
+        int error = 0;
+        int probes = 100000;
+        for (int i = 0; i < probes; i++) {
+            Long next = rand.nextLong();
+            if (!incSet.contains(next) && filter.getSeen(next)) {
+                error++;
+            }
+        }
+        // about 3% for a standard filter with 8 bits per key and 3 hashes
+        double errRate = ((error * 1.0d) / (probes * 1.0d));
+        Assert.assertTrue("false positive rate " + errRate, errRate < 0.06);
+    }
+
+    /**
+     * Keys added from several threads set exactly the
+     * bits that they set when added from one thread.
+     */
+    @Test
+    public void testBlockedConcurrentSetSeen() throws Exception {
+        final SeenFilterBasic<Long> filter = new SeenFilterBasic<>(16384, 3, SeenFilterBasic.HASH_BLOCKED_MURMUR);
+        SeenFilterBasic<Long> expected = filter.newInstance();
+        final long[] keys = new long[4000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = rand.nextLong();
+            expected.setSeen(keys[i]);
+        }
+        final int numThreads = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(numThreads);
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        barrier.await();
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    for (int i = offset; i < keys.length; i += numThreads) {
+                        filter.setSeen(keys[i]);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertArrayEquals(expected.getBitStore(), filter.getBitStore());
+        for (long key : keys) {
+            Assert.assertTrue(filter.getSeen(key));
+        }
     }
 
     private void testSeenFilter(SeenFilter<Long> filter, int capacity) {
@@ -53,8 +53,19 @@ public final class PathBranch extends PathElement {
     @Codec.Set(codable = true)
     private ArrayList<PathElement[]> list;
 
+    /**
+     * If true then the siblings are processed in parallel when
+     * the tree output has "branchThreads" greater than zero.
+     * The siblings must not modify the bundle. Default is false.
+     */
+    @Codec.Set(codable = true)
+    private boolean parallel;
+
     private int count;
 
+    // siblings of "each" and "list" in order. only used when parallel
+    private PathElement[][] branches;
+
     public PathBranch() {
     }
 
@@ -98,11 +109,29 @@ public final class PathBranch extends PathElement {
             }
             count += list.size();
         }
+        if (parallel) {
+            branches = new PathElement[count][];
+            int i = 0;
+            if (each != null) {
+                for (PathElement pe : each) {
+                    branches[i++] = new PathElement[]{pe};
+                }
+            }
+            if (list != null) {
+                for (PathElement pe[] : list) {
+                    branches[i++] = pe;
+                }
+            }
+        }
     }
 
     @Override
     public TreeNodeList getNextNodeList(TreeMapState state) {
         TreeNodeList res = new TreeNodeList(count);
+        if (branches != null) {
+            state.processBranches(branches, res);
+            return res.size() > 0 || op ? res : null;
+        }
         if (each != null) {
             for (int i = 0, ps = each.length; i < ps; i++) {
                 res.addAll(state.processPathElement(each[i]));
@@ -13,7 +13,12 @@
  */
 package com.addthis.hydra.task.output.tree;
 
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.addthis.basis.util.ClosableIterator;
 import com.addthis.basis.util.JitterClock;
@@ -35,6 +40,20 @@ import org.slf4j.LoggerFactory;
  * {@link #timePropKey timePropKey}. Nodes with time stamps that are older than {@link #ttl ttl}
  * milliseconds are removed.</p>
  * <p/>
+ * <p>If {@link #threads threads} is greater than one then the children of a node
+ * are pruned in parallel. Each task visits up to {@link #batch batch} children
+ * and then splits the remaining key range in half between two new tasks.
+ * Parallel pruning requires a concurrent tree.</p>
+ * <p/>
+ * <p>If {@link #rescan rescan} is positive then the earliest time stamp
+ * of the children that were kept is remembered for each pruned node,
+ * and a node is not visited again until that time stamp has expired
+ * or the rescan interval has elapsed. Children that are created with
+ * a time stamp earlier than the remembered time stamp are pruned
+ * at the next rescan. A remembered node that has not been visited
+ * for a rescan interval is forgotten, so nodes that were deleted
+ * do not stay in memory.</p>
+ * <p/>
  * <p>Example:</p>
  * <pre>{type : "prune",
  *  ttl : 2592000000, // 30 days
@@ -47,6 +66,13 @@ public class PathPrune extends PathElement {
 
     private static final Logger logger = LoggerFactory.getLogger(PathPrune.class);
 
+    /**
+     * Upper bound of the child key range for the purpose of splitting the range.
+     * Characters above this value are surrogates or are encoded in a different
+     * order than they are compared.
+     */
+    private static final char MAX_SPLIT_CHAR = '\ud7ff';
+
     /**
      * Maximum age in milliseconds.
      */
@@ -68,6 +94,40 @@ public class PathPrune extends PathElement {
     @Codec.Set(codable = true)
     private int relativeDown = 0;
 
+    /**
+     * Number of threads that prune the children of a node.
+     * Default is one, which prunes on the calling thread.
+     */
+    @Codec.Set(codable = true)
+    private int threads = 1;
+
+    /**
+     * Number of children visited by a parallel prune task
+     * before it splits the remaining children. Default is 10000.
+     */
+    @Codec.Set(codable = true)
+    private int batch = 10000;
+
+    /**
+     * If positive then skip nodes whose children cannot have expired
+     * since the last visit, and visit every node at least once in
+     * this many milliseconds. Default is zero, which visits
+     * every node on each prune.
+     */
+    @Codec.Set(codable = true)
+    private long rescan = 0;
+
+    /**
+     * Earliest time stamp of the kept children and the time of
+     * the last visit for each node that has been pruned.
+     */
+    private final Map<String, long[]> timeIndex = new ConcurrentHashMap<>();
+
+    /**
+     * Time of the last removal of stale entries from {@link #timeIndex}.
+     */
+    private final AtomicLong lastSweep = new AtomicLong();
+
 
     // Is it better to try to do the pruning in this method or
     // whatever is getting the TreeNodeList back?
@@ -76,47 +136,259 @@ public class PathPrune extends PathElement {
         long now = JitterClock.globalTime();
         DataTreeNode root = state.current();
 
-        findAndPruneChildren(root, now, relativeDown);
+        findAndPruneChildren(root, now, relativeDown, rescan > 0 ? indexKey(state) : null);
         return TreeMapState.empty();
     }
 
     public void findAndPruneChildren(final DataTreeNode root, long now, int depth) {
+        findAndPruneChildren(root, now, depth, null);
+    }
+
+    void findAndPruneChildren(final DataTreeNode root, long now, int depth, String key) {
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        try {
+            findAndPruneChildren(root, now, depth, key, pool);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        if (key != null) {
+            sweepTimeIndex(now);
+        }
+    }
+
+    private void findAndPruneChildren(final DataTreeNode root, long now, int depth, String key,
+            ForkJoinPool pool) {
         if (depth == 0) {
-            pruneChildren(root, now);
+            if (key == null) {
+                pruneChildren(root, now, pool);
+            } else {
+                long[] entry = timeIndex.get(key);
+                if (entry != null && now - entry[0] <= ttl && now - entry[1] < rescan) {
+                    return;
+                }
+                long earliest = pruneChildren(root, now, pool).earliest.get();
+                timeIndex.put(key, new long[]{earliest, now});
+            }
         } else {
             ClosableIterator<DataTreeNode> keyNodeItr = root.getIterator();
             while (keyNodeItr.hasNext()) {
-                findAndPruneChildren(keyNodeItr.next(), now, depth - 1);
+                DataTreeNode next = keyNodeItr.next();
+                findAndPruneChildren(next, now, depth - 1, key == null ? null : key + "/" + next.getName(), pool);
             }
             keyNodeItr.close();
         }
     }
 
-    public void pruneChildren(final DataTreeNode root, long now) {
-        ClosableIterator<DataTreeNode> keyNodeItr = root.getIterator();
-        int deleted = 0;
-        int kept = 0;
-        int total = 0;
-        while (keyNodeItr.hasNext()) {
-            DataTreeNode treeNode = keyNodeItr.next();
-            Map<String, TreeNodeData> dataMap = treeNode.getDataMap();
-            if (dataMap != null) {
-                TreeNodeData timeNodeData = dataMap.get(timePropKey);
-                DataTime dt = (DataTime) timeNodeData;
-                if (dt != null && now - dt.last() > ttl) {
-                    root.deleteNode(treeNode.getName());
-                    deleted++;
-                } else {
-                    kept++;
+    /**
+     * Forget the nodes that have not been visited for a rescan interval.
+     * Their entries can no longer skip a visit, and the nodes may have
+     * been deleted. Runs at most once per rescan interval.
+     */
+    private void sweepTimeIndex(long now) {
+        long last = lastSweep.get();
+        if (now - last < rescan || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        Iterator<long[]> entries = timeIndex.values().iterator();
+        while (entries.hasNext()) {
+            if (now - entries.next()[1] >= rescan) {
+                entries.remove();
+            }
+        }
+    }
+
+    int timeIndexSize() {
+        return timeIndex.size();
+    }
+
+    /**
+     * Delete the expired children of a node.
+     *
+     * @return earliest time stamp of the children that were kept
+     */
+    public long pruneChildren(final DataTreeNode root, long now) {
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        try {
+            return pruneChildren(root, now, pool).earliest.get();
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Delete the expired children of a node on {@code pool} if
+     * it is not null, otherwise on the calling thread.
+     */
+    PruneCounts pruneChildren(final DataTreeNode root, long now, ForkJoinPool pool) {
+        PruneCounts counts = new PruneCounts();
+        if (pool != null) {
+            pool.invoke(new PruneTask(root, now, null, null, counts));
+        } else {
+            ClosableIterator<DataTreeNode> keyNodeItr = root.getIterator();
+            try {
+                while (keyNodeItr.hasNext()) {
+                    pruneChild(root, keyNodeItr.next(), now, counts);
                 }
-                total++;
-                if (total % 100000 == 0) {
-                    logger.info("Iterating through children of {}, deleted: {} kept: {}", new Object[]{root.getName(), deleted, kept});
+            } finally {
+                keyNodeItr.close();
+            }
+        }
+        logger.info("Iterated through children of {}, deleted: {} kept: {}",
+                new Object[]{root.getName(), counts.deleted, counts.kept});
+        return counts;
+    }
+
+    private void pruneChild(DataTreeNode root, DataTreeNode treeNode, long now, PruneCounts counts) {
+        Map<String, TreeNodeData> dataMap = treeNode.getDataMap();
+        if (dataMap != null) {
+            TreeNodeData timeNodeData = dataMap.get(timePropKey);
+            DataTime dt = (DataTime) timeNodeData;
+            if (dt != null && now - dt.last() > ttl) {
+                root.deleteNode(treeNode.getName());
+                counts.deleted.incrementAndGet();
+            } else {
+                counts.kept.incrementAndGet();
+                if (dt != null) {
+                    counts.keep(dt.last());
                 }
             }
+            long total = counts.total.incrementAndGet();
+            if (total % 100000 == 0) {
+                logger.info("Iterating through children of {}, deleted: {} kept: {}",
+                        new Object[]{root.getName(), counts.deleted, counts.kept});
+            }
+        }
+    }
+
+    /**
+     * Names of the nodes on the path to the current node.
+     */
+    private static String indexKey(TreeMapState state) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; state.peek(i) != null; i++) {
+            builder.insert(0, state.peek(i).getName()).insert(0, '/');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns a string that is approximately halfway between
+     * {@code from} and {@code to} in lexicographic order,
+     * or null if no string between them can be found.
+     *
+     * @param from lower bound (inclusive)
+     * @param to   upper bound (exclusive) or null for no upper bound
+     */
+    static String midpoint(String from, String to) {
+        int length = Math.max(from.length(), to == null ? 1 : to.length()) + 1;
+        int[] sum = new int[length];
+        for (int i = 0; i < length; i++) {
+            int low = i < from.length() ? Math.min(from.charAt(i), MAX_SPLIT_CHAR) : 0;
+            int high;
+            if (to == null) {
+                high = (i == 0) ? MAX_SPLIT_CHAR : 0;
+            } else {
+                high = i < to.length() ? Math.min(to.charAt(i), MAX_SPLIT_CHAR) : 0;
+            }
+            sum[i] = low + high;
+        }
+        // normalize the sum into base (MAX_SPLIT_CHAR + 1) digits with a leading carry digit
+        int base = MAX_SPLIT_CHAR + 1;
+        int[] digits = new int[length + 1];
+        int carry = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            int value = sum[i] + carry;
+            digits[i + 1] = value % base;
+            carry = value / base;
+        }
+        digits[0] = carry;
+        // divide the sum by two from the most significant digit
+        char[] mid = new char[length];
+        int remainder = digits[0];
+        for (int i = 0; i < length; i++) {
+            int value = remainder * base + digits[i + 1];
+            mid[i] = (char) (value / 2);
+            remainder = value % 2;
+        }
+        int end = length;
+        while (end > 0 && mid[end - 1] == 0) {
+            end--;
+        }
+        String result = new String(mid, 0, end);
+        if (result.compareTo(from) > 0 && (to == null || result.compareTo(to) < 0)) {
+            return result;
+        } else {
+            return null;
+        }
+    }
+
+    static final class PruneCounts {
+
+        final AtomicLong deleted = new AtomicLong();
+        final AtomicLong kept = new AtomicLong();
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong earliest = new AtomicLong(Long.MAX_VALUE);
+
+        void keep(long time) {
+            long current = earliest.get();
+            while (time < current && !earliest.compareAndSet(current, time)) {
+                current = earliest.get();
+            }
         }
-        logger.info("Iterated through children of {}, deleted: {} kept: {}", new Object[]{root.getName(), deleted, kept});
-        keyNodeItr.close();
     }
 
+    /**
+     * Prunes the children in the key range [from, to) of a node.
+     * A null bound is unbounded.
+     */
+    private final class PruneTask extends RecursiveAction {
+
+        private final DataTreeNode root;
+        private final long now;
+        private final String from;
+        private final String to;
+        private final PruneCounts counts;
+
+        PruneTask(DataTreeNode root, long now, String from, String to, PruneCounts counts) {
+            this.root = root;
+            this.now = now;
+            this.from = from;
+            this.to = to;
+            this.counts = counts;
+        }
+
+        @Override
+        protected void compute() {
+            ClosableIterator<DataTreeNode> keyNodeItr = (from == null && to == null) ?
+                    root.getIterator() : root.getIterator(from == null ? "" : from, to);
+            PruneTask left = null, right = null;
+            try {
+                int visited = 0;
+                while (keyNodeItr.hasNext()) {
+                    DataTreeNode treeNode = keyNodeItr.next();
+                    pruneChild(root, treeNode, now, counts);
+                    if (++visited >= batch) {
+                        // the smallest name that is greater than the current name
+                        String next = treeNode.getName() + '\u0000';
+                        String mid = midpoint(next, to);
+                        if (mid != null) {
+                            left = new PruneTask(root, now, next, mid, counts);
+                            right = new PruneTask(root, now, mid, to, counts);
+                            break;
+                        }
+                        visited = 0;
+                    }
+                }
+            } finally {
+                keyNodeItr.close();
+            }
+            if (left != null) {
+                invokeAll(left, right);
+            }
+        }
+    }
 }
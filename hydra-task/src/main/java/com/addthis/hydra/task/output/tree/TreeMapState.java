@@ -13,7 +13,11 @@
  */
 package com.addthis.hydra.task.output.tree;
 
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 import com.addthis.basis.util.Strings;
 
@@ -55,6 +59,7 @@ public final class TreeMapState implements DataTreeNodeUpdater, DataTreeNodeInit
         this.bundle = p;
         this.path = null;
         this.processor = null;
+        this.branchPool = null;
         this.stack = null;
         this.thread = null;
         this.profiling = false;
@@ -62,10 +67,28 @@ public final class TreeMapState implements DataTreeNodeUpdater, DataTreeNodeInit
 
     /** */
     public TreeMapState(TreeMapper processor, DataTreeNode rootNode, PathElement path[], Bundle bundle) {
+        this(processor, rootNode, path, bundle, 1);
+    }
+
+    /**
+     * @param countValue number of identical bundles that {@code bundle} represents
+     */
+    public TreeMapState(TreeMapper processor, DataTreeNode rootNode, PathElement path[], Bundle bundle,
+            int countValue) {
+        this(processor, processor != null ? processor.getBranchPool() : null, rootNode, path, bundle, countValue);
+    }
+
+    /**
+     * @param branchPool pool for the branches of parallel {@link PathBranch} elements,
+     *                   or null to process the branches on the calling thread
+     */
+    TreeMapState(TreeMapper processor, ForkJoinPool branchPool, DataTreeNode rootNode, PathElement path[],
+            Bundle bundle, int countValue) {
         this.path = path;
         this.bundle = bundle;
         this.processor = processor;
-        this.countValue = 1;
+        this.branchPool = branchPool;
+        this.countValue = countValue;
         this.stack = new LinkedList<DataTreeNode>();
         this.thread = Thread.currentThread();
         this.profiling = processor != null ? processor.isProfiling() : false;
@@ -73,14 +96,31 @@ public final class TreeMapState implements DataTreeNodeUpdater, DataTreeNodeInit
         process();
     }
 
-    private final LinkedList<DataTreeNode> leases = debuglist ? new DebugList() : new LinkedList<DataTreeNode>();
+    /**
+     * State of one branch of a parallel {@link PathBranch}. Starts at
+     * a copy of the node stack of {@code parent} and shares its bundle.
+     */
+    private TreeMapState(TreeMapState parent) {
+        this.path = null;
+        this.bundle = parent.bundle;
+        this.processor = parent.processor;
+        this.branchPool = parent.branchPool;
+        this.countValue = parent.countValue;
+        this.stack = new LinkedList<>(parent.stack);
+        this.profiling = parent.profiling;
+    }
+
+    private final Leases leases = debuglist ? new DebugLeases() : new Leases();
     private final LinkedList<DataTreeNode> stack;
     private final TreeMapper processor;
+    private final ForkJoinPool branchPool;
     private final PathElement[] path;
     private final Bundle bundle;
-    private final Thread thread;
     private final boolean profiling;
 
+    // thread that owns the node stack. checked when debugthread is enabled
+    private Thread thread;
+
     private boolean lastWasNew;
     private int touched;
     private int countValue;
@@ -96,7 +136,7 @@ public final class TreeMapState implements DataTreeNodeUpdater, DataTreeNodeInit
     }
 
     public void addLeasedNode(DataTreeNode tn) {
-        leases.push(tn);
+        leases.add(tn);
     }
 
     @Override
@@ -188,7 +228,7 @@ public final class TreeMapState implements DataTreeNodeUpdater, DataTreeNodeInit
      */
     public void dispatchRule(TreeMapperPathReference t) {
         if (t != null && bundle != null && processor != null) {
-            processor.processBundle(bundle, t);
+            processor.processBundle(bundle, t, countValue);
         } else if (debug > 0) {
             log.warn("Proc Rule Dispatch DROP " + t + " b/c p=" + bundle + " rp=" + processor);
         }
@@ -205,14 +245,9 @@ public final class TreeMapState implements DataTreeNodeUpdater, DataTreeNodeInit
                 log.warn(".... PATH " + Strings.join(path, " // "));
                 log.warn(".... PACK " + bundle);
             }
-            // release lease list
-            while (leases.size() > 0) {
-                leases.pop().release();
-            }
         } finally {
-            // there's something odd going on with leases getting new
-            // objects inserted after process() exits
-            leases.clear();
+            // release lease list, also when a path element throws
+            leases.releaseAll();
         }
     }
 
@@ -250,6 +285,60 @@ public final class TreeMapState implements DataTreeNodeUpdater, DataTreeNodeInit
         return ret;
     }
 
+    /**
+     * Process each of {@code paths} from the current node and append the
+     * results to {@code result} in the order of {@code paths}. If the
+     * mapper has a branch pool then the paths are processed in parallel,
+     * each with its own copy of the node stack, and the nodes leased by
+     * the branches are released together with the nodes of this state.
+     * Path elements that are processed in parallel must not modify the
+     * bundle. Called from PathBranch.getNextNodeList().
+     */
+    public TreeNodeList processBranches(PathElement[][] paths, TreeNodeList result) {
+        ForkJoinPool pool = branchPool;
+        if (pool == null || paths.length < 2) {
+            for (PathElement[] p : paths) {
+                result.addAll(processPath(p));
+            }
+            return result;
+        }
+        Branch[] branches = new Branch[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            branches[i] = new Branch(new TreeMapState(this), paths[i]);
+        }
+        boolean worker = ForkJoinTask.getPool() == pool;
+        for (int i = 1; i < branches.length; i++) {
+            if (worker) {
+                branches[i].fork();
+            } else {
+                pool.execute(branches[i]);
+            }
+        }
+        branches[0].quietlyInvoke();
+        Throwable error = null;
+        // wait for every branch so that all of the leased nodes are released
+        for (Branch branch : branches) {
+            branch.quietlyJoin();
+            leases.addAll(branch.state.leases);
+            touched += branch.state.touched;
+            if (branch.isCompletedAbnormally()) {
+                if (error == null) {
+                    error = branch.getException();
+                }
+            } else {
+                result.addAll(branch.getRawResult());
+            }
+        }
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        } else if (error != null) {
+            throw new RuntimeException(error);
+        }
+        return result;
+    }
+
     /**
      * called from this.processPath(), PathEach.processNode() and
      * PathSplit.processNode()
@@ -279,10 +368,82 @@ public final class TreeMapState implements DataTreeNodeUpdater, DataTreeNodeInit
         return list;
     }
 
+    /**
+     * One branch of a parallel {@link PathBranch}.
+     */
+    private static final class Branch extends RecursiveTask<TreeNodeList> {
+
+        final TreeMapState state;
+        final PathElement[] path;
+
+        Branch(TreeMapState state, PathElement[] path) {
+            this.state = state;
+            this.path = path;
+        }
+
+        @Override
+        protected TreeNodeList compute() {
+            state.thread = Thread.currentThread();
+            return state.processPath(path);
+        }
+    }
+
+    /**
+     * Nodes leased while processing a bundle. The nodes are kept in an
+     * array and released in a single pass once the bundle has been
+     * processed, most recently leased first.
+     */
+    static class Leases {
+
+        private DataTreeNode[] nodes = new DataTreeNode[16];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        void add(DataTreeNode node) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+            nodes[size++] = node;
+        }
+
+        /**
+         * Take over the leases of {@code other}.
+         */
+        void addAll(Leases other) {
+            if (size + other.size > nodes.length) {
+                nodes = Arrays.copyOf(nodes, Math.max(size * 2, size + other.size));
+            }
+            System.arraycopy(other.nodes, 0, nodes, size, other.size);
+            size += other.size;
+            other.clear();
+        }
+
+        void releaseAll() {
+            while (size > 0) {
+                DataTreeNode node = nodes[--size];
+                nodes[size] = null;
+                node.release();
+            }
+        }
+
+        void clear() {
+            Arrays.fill(nodes, 0, size, null);
+            size = 0;
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(Arrays.copyOf(nodes, size));
+        }
+    }
+
     /**
      * for debugging
      */
-    class DebugList extends LinkedList<DataTreeNode> {
+    static final class DebugLeases extends Leases {
 
         @Override
         public void finalize() {
@@ -35,7 +35,9 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -70,10 +72,12 @@ import com.addthis.hydra.data.query.source.QueryHandle;
 import com.addthis.hydra.data.query.source.QuerySource;
 import com.addthis.hydra.data.tree.ConcurrentTree;
 import com.addthis.hydra.data.tree.DataTree;
+import com.addthis.hydra.data.tree.ReadTreeNode;
 import com.addthis.hydra.data.tree.Tree;
 import com.addthis.hydra.data.tree.TreeCommonParameters;
 import com.addthis.hydra.data.util.TimeField;
 import com.addthis.hydra.store.db.CloseOperation;
+import com.addthis.hydra.store.db.SortedPageExport;
 import com.addthis.hydra.task.output.DataOutputTypeList;
 import com.addthis.hydra.task.output.tree.TreeMapperStats.Snapshot;
 import com.addthis.hydra.task.run.TaskRunConfig;
@@ -246,6 +250,16 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
     @Codec.Set(codable = true)
     private boolean repairTree = false;
 
+    /**
+     * If true then after the tree is closed its pages are rewritten
+     * into an immutable sorted file that is read by query nodes
+     * in place of the original database. The file is removed
+     * the next time the tree is opened for writing.
+     * Default is either "mapper.tree.export" configuration value or false.
+     */
+    @Codec.Set(codable = true)
+    private boolean exportTree = Parameter.boolValue("mapper.tree.export", false);
+
     /**
      * Optional sample rate for applying
      * the {@link #post post} paths. If greater
@@ -262,6 +276,37 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
     @Codec.Set(codable = true)
     private PathOutput outputs[];
 
+    /**
+     * If greater than one then up to this many bundles for the
+     * {@link #root root} paths are buffered per thread and bundles
+     * with identical values are applied to the tree once with a
+     * count of the identical bundles. Node counters and data
+     * attachments receive the same updates as without combining
+     * but bundles may be applied out of order. Default is either
+     * "mapper.combine" configuration value or zero.
+     */
+    @Codec.Set(codable = true)
+    private int combine = Parameter.intValue("mapper.combine", 0);
+
+    /**
+     * Optional fields that identify identical bundles when
+     * {@link #combine combine} is enabled. Bundles that only differ
+     * in other fields are combined, so this must include every field
+     * that is read by the paths. Default is all fields.
+     */
+    @Codec.Set(codable = true)
+    private String[] combineFields;
+
+    /**
+     * Number of threads that process the branches of
+     * {@link PathBranch branch} elements with "parallel" enabled.
+     * Zero processes every branch on the thread that processes
+     * the bundle. Default is either "mapper.branch.threads"
+     * configuration value or zero.
+     */
+    @Codec.Set(codable = true)
+    private int branchThreads = Parameter.intValue("mapper.branch.threads", 0);
+
     @Codec.Set(codable = true)
     private boolean live = Parameter.boolValue("mapper.live", false);
 
@@ -302,6 +347,7 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
     private final IndexHash<PathElement[]> pathIndex = new IndexHash<>();
 
     private DataTree tree;
+    private ForkJoinPool branchPool;
     private Bench bench;
     private Server jetty;
     private long startTime;
@@ -315,6 +361,17 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
     private TreeMapperStats mapstats;
     private TaskRunConfig config;
 
+    private final ConcurrentLinkedQueue<TreeMapperCombiner> combiners = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<TreeMapperCombiner> threadCombiner = new ThreadLocal<TreeMapperCombiner>() {
+        @Override
+        protected TreeMapperCombiner initialValue() {
+            TreeMapperCombiner combiner = new TreeMapperCombiner(TreeMapper.this, root, combine, combineFields);
+            combiners.add(combiner);
+            return combiner;
+        }
+    };
+    private final AtomicLong combinedBundles = new AtomicLong(0);
+
     private final AtomicLong lastHeaderTime = new AtomicLong(JitterClock.globalTime());
     private final AtomicLong benchCalls = new AtomicLong(0);
     private final AtomicLong streamWaitime = new AtomicLong(0);
@@ -457,6 +514,9 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
                 throw new IllegalStateException("Illegal value " + treeType +
                                                 " for configuration parameter \"treeType\"");
         }
+        if (branchThreads > 0) {
+            branchPool = new ForkJoinPool(branchThreads);
+        }
         bench = new Bench(EnumSet.allOf(BENCH.class), 1000);
 
         if (enableHttp) {
@@ -531,6 +591,13 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
         return calledExit.get();
     }
 
+    /**
+     * Returns the pool for parallel branches or null if branches are not processed in parallel.
+     */
+    ForkJoinPool getBranchPool() {
+        return branchPool;
+    }
+
     public boolean isProfiling() {
         return profiling.get();
     }
@@ -561,6 +628,13 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
      * router for delivery to another hydra node.
      */
     public void processBundle(Bundle bundle, TreeMapperPathReference target) {
+        processBundle(bundle, target, 1);
+    }
+
+    /**
+     * Process a bundle that represents {@code count} identical bundles.
+     */
+    void processBundle(Bundle bundle, TreeMapperPathReference target, int count) {
         try {
             Integer unit = target.getTargetUnit();
             if (unit == null) {
@@ -581,16 +655,16 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
                     throw new RuntimeException("Invalid bundle: " + bundle + " unable to read TimeField due to NumberFormatException");
                 }
             }
-            bench.addEvents(BENCH.UNITS, 1);
+            bench.addEvents(BENCH.UNITS, count);
             bench.addEvents(BENCH.TIME, bundleTime >> 8);
-            processPath(bundle, pathIndex.getValueByIndex(unit));
+            processPath(bundle, pathIndex.getValueByIndex(unit), count);
         } catch (RuntimeException ex) {
             throw ex;
         } catch (Exception ex)  {
             log.warn("", ex);
         }
-        processed.incrementAndGet();
-        bench.addEvents(BENCH.LOCAL, 1);
+        processed.addAndGet(count);
+        bench.addEvents(BENCH.LOCAL, count);
         checkBench();
     }
 
@@ -613,9 +687,9 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
      * Processor interface this is where packets and rules are finally executed
      * locally.
      */
-    private void processPath(Bundle bundle, PathElement path[]) {
+    private void processPath(Bundle bundle, PathElement path[], int count) {
         try {
-            TreeMapState ps = new TreeMapState(this, tree, path, bundle);
+            TreeMapState ps = new TreeMapState(this, tree, path, bundle, count);
             processNodes.addAndGet(ps.touched());
         } catch (RuntimeException ex) {
             throw ex;
@@ -860,7 +934,11 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
     public void send(Bundle bundle) {
         long markBefore = System.nanoTime();
         streamWaitime.addAndGet(markBefore - lastBundleTime.getAndSet(markBefore));
-        processBundle(bundle, root);
+        if (combine > 1) {
+            threadCombiner.get().add(bundle);
+        } else {
+            processBundle(bundle, root);
+        }
         long markAfter = System.nanoTime();
         mapWriteTime.addAndGet(markAfter - markBefore);
         streamReadCount.incrementAndGet();
@@ -880,6 +958,13 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
     @Override
     public void sendComplete() {
         try {
+            for (TreeMapperCombiner combiner : combiners) {
+                combinedBundles.addAndGet(combiner.flush());
+            }
+            if (combine > 1) {
+                log.info("[combine] " + combinedBundles.get() + " of " + processed.get() +
+                         " bundles were combined with an identical bundle");
+            }
             boolean doPost = false;
             if (post != null) {
                 int sample = 0;
@@ -918,7 +1003,9 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
                 liveQueryServer.close();
             }
             // disable web interface
-            jetty.stop();
+            if (jetty != null) {
+                jetty.stop();
+            }
             if (queryServer != null) {
                 // cancel running queries
                 queryEngine.cancelActiveThreads();
@@ -937,6 +1024,9 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
                 default:
                     doValidate = false;
             }
+            if (branchPool != null) {
+                branchPool.shutdown();
+            }
             // close storage
             log.info("[close] closing tree storage");
             CloseOperation closeOperation = CloseOperation.NONE;
@@ -944,6 +1034,10 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
                 closeOperation = repairTree ? CloseOperation.REPAIR : CloseOperation.TEST;
             }
             tree.close(false, closeOperation);
+            if (exportTree) {
+                log.info("[close] exporting tree storage");
+                SortedPageExport.export(Paths.get(config.dir, "data").toFile(), ReadTreeNode.class);
+            }
             if (jmxname != null) {
                 log.info("[close] unregistering JMX");
                 ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxname);
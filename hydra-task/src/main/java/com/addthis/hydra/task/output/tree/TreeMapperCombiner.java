@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.output.tree;
+
+import java.util.LinkedHashMap;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.value.ValueObject;
+
+/**
+ * Collects up to {@code maxBundles} bundles for one path reference and
+ * groups the bundles that have the same values. Each group is delivered
+ * to the tree once with a count of the bundles in the group, so
+ * the path is walked and the nodes are leased and locked once per
+ * group instead of once per bundle. Node counters are incremented by the
+ * count and data attachments apply the bundle count times, see
+ * {@link com.addthis.hydra.data.tree.TreeNodeData#updateChildData(
+ * com.addthis.hydra.data.tree.DataTreeNodeUpdater, com.addthis.hydra.data.tree.DataTreeNode,
+ * com.addthis.hydra.data.tree.TreeDataParameters, int)}.
+ * <p/>
+ * Groups are delivered in the order of their first bundle.
+ * A combiner is used by a single thread at a time.
+ */
+final class TreeMapperCombiner {
+
+    /**
+     * Receives each group of bundles.
+     */
+    interface Receiver {
+
+        void deliver(Bundle bundle, int count);
+    }
+
+    private static final class Group {
+
+        final Bundle bundle;
+        int count = 1;
+
+        Group(Bundle bundle) {
+            this.bundle = bundle;
+        }
+    }
+
+    private final Receiver receiver;
+    private final int maxBundles;
+
+    /**
+     * Names of the fields that identify a group or null to use every field.
+     */
+    private final String[] fields;
+
+    private final LinkedHashMap<String, Group> groups = new LinkedHashMap<>();
+
+    private final StringBuilder key = new StringBuilder();
+
+    private int pending;
+
+    TreeMapperCombiner(final TreeMapper mapper, final TreeMapperPathReference target, int maxBundles,
+            String[] fields) {
+        this(new Receiver() {
+            @Override
+            public void deliver(Bundle bundle, int count) {
+                mapper.processBundle(bundle, target, count);
+            }
+        }, maxBundles, fields);
+    }
+
+    TreeMapperCombiner(Receiver receiver, int maxBundles, String[] fields) {
+        this.receiver = receiver;
+        this.maxBundles = maxBundles;
+        this.fields = fields;
+    }
+
+    synchronized void add(Bundle bundle) {
+        String groupKey = groupKey(bundle);
+        Group group = groups.get(groupKey);
+        if (group == null) {
+            groups.put(groupKey, new Group(bundle));
+        } else {
+            group.count++;
+        }
+        if (++pending >= maxBundles) {
+            flush();
+        }
+    }
+
+    /**
+     * Deliver every pending group to the tree.
+     *
+     * @return number of bundles that were combined into another bundle
+     */
+    synchronized int flush() {
+        int combined = pending - groups.size();
+        try {
+            for (Group group : groups.values()) {
+                receiver.deliver(group.bundle, group.count);
+            }
+        } finally {
+            groups.clear();
+            pending = 0;
+        }
+        return combined;
+    }
+
+    private String groupKey(Bundle bundle) {
+        key.setLength(0);
+        if (fields == null) {
+            for (BundleField field : bundle) {
+                appendValue(field.getName(), bundle.getValue(field));
+            }
+        } else {
+            for (String name : fields) {
+                appendValue(name, bundle.getValue(bundle.getFormat().getField(name)));
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Values are length prefixed so that distinct bundles never have the same key.
+     */
+    private void appendValue(String name, ValueObject value) {
+        key.append(name.length()).append(':').append(name);
+        if (value == null) {
+            key.append('-');
+        } else {
+            String string = value.toString();
+            key.append(value.getObjectType().ordinal()).append(':');
+            key.append(string.length()).append(':').append(string);
+        }
+    }
+}
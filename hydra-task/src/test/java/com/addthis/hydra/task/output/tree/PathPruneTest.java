@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.output.tree;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import com.addthis.basis.util.ClosableIterator;
+import com.addthis.basis.util.Files;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.codec.CodecJSON;
+import com.addthis.hydra.data.tree.ConcurrentTree;
+import com.addthis.hydra.data.tree.DataTreeNode;
+import com.addthis.hydra.data.tree.TreeDataParameters;
+import com.addthis.hydra.data.tree.prop.DataTime;
+import com.addthis.hydra.store.db.CloseOperation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class PathPruneTest {
+
+    private final ListBundleFormat format = new ListBundleFormat();
+
+    @Test
+    public void testMidpoint() throws Exception {
+        assertEquals("b", PathPrune.midpoint("a", "c"));
+        assertNull(PathPrune.midpoint("a", "a\u0000"));
+        String mid = PathPrune.midpoint("abc", "abd");
+        assertTrue(mid.compareTo("abc") > 0 && mid.compareTo("abd") < 0);
+        mid = PathPrune.midpoint("zzz", null);
+        assertTrue(mid.compareTo("zzz") > 0);
+    }
+
+    @Test
+    public void testMidpointRandom() throws Exception {
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            String from = randomName(random);
+            String to = random.nextInt(10) == 0 ? null : randomName(random);
+            if (to != null && from.compareTo(to) >= 0) {
+                continue;
+            }
+            String mid = PathPrune.midpoint(from, to);
+            if (mid != null) {
+                assertTrue(mid.compareTo(from) > 0);
+                assertTrue(to == null || mid.compareTo(to) < 0);
+                for (int j = 0; j < mid.length(); j++) {
+                    assertTrue(!Character.isSurrogate(mid.charAt(j)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testParallelPrune() throws Exception {
+        File dir = makeTemporaryDirectory();
+        try {
+            ConcurrentTree tree = new ConcurrentTree.Builder(dir, false).kvStoreType(1).build();
+            PathElement[] path = path();
+            for (int i = 0; i < 200; i++) {
+                add(tree, path, "p0", "c" + i, i % 3 == 0 ? 0 : 4500);
+            }
+            PathPrune prune = CodecJSON.decodeString(new PathPrune(), "{ttl:1000, threads:4, batch:5}");
+            DataTreeNode parent = tree.getRootNode().getLeasedNode("p0");
+            ForkJoinPool pool = new ForkJoinPool(4);
+            PathPrune.PruneCounts counts;
+            try {
+                counts = prune.pruneChildren(parent, 5000, pool);
+            } finally {
+                pool.shutdown();
+            }
+            assertEquals(200, counts.total.get());
+            assertEquals(67, counts.deleted.get());
+            assertEquals(133, counts.kept.get());
+            assertEquals(4500, counts.earliest.get());
+            Set<String> remaining = new HashSet<>();
+            ClosableIterator<DataTreeNode> iterator = parent.getIterator();
+            try {
+                while (iterator.hasNext()) {
+                    assertTrue(remaining.add(iterator.next().getName()));
+                }
+            } finally {
+                iterator.close();
+            }
+            assertEquals(133, remaining.size());
+            for (int i = 0; i < 200; i++) {
+                assertEquals(i % 3 != 0, remaining.contains("c" + i));
+            }
+            parent.release();
+            tree.close(false, CloseOperation.TEST);
+        } finally {
+            Files.deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void testRescan() throws Exception {
+        File dir = makeTemporaryDirectory();
+        try {
+            ConcurrentTree tree = new ConcurrentTree.Builder(dir, false).kvStoreType(1).build();
+            PathElement[] path = path();
+            for (int i = 0; i < 10; i++) {
+                add(tree, path, "p0", "c" + i, i < 5 ? 0 : 4500);
+                add(tree, path, "p1", "c" + i, 4500);
+            }
+            PathPrune prune = CodecJSON.decodeString(new PathPrune(),
+                    "{ttl:1000, relativeDown:1, rescan:10000}");
+            DataTreeNode root = tree.getRootNode();
+            prune.findAndPruneChildren(root, 5000, 1, "/root");
+            assertEquals(5, root.getNode("p0").getNodeCount());
+            assertEquals(2, prune.timeIndexSize());
+            // the kept children of p0 expire at 5500 so p0 is not visited before then
+            add(tree, path, "p0", "late", 0);
+            prune.findAndPruneChildren(root, 5100, 1, "/root");
+            assertNotNull(root.getNode("p0").getNode("late"));
+            prune.findAndPruneChildren(root, 5600, 1, "/root");
+            assertNull(root.getNode("p0").getNode("late"));
+            assertEquals(0, root.getNode("p0").getNodeCount());
+            assertEquals(0, root.getNode("p1").getNodeCount());
+            // deleted nodes are forgotten once they have not been visited for a rescan interval
+            assertTrue(root.deleteNode("p1"));
+            prune.findAndPruneChildren(root, 20000, 1, "/root");
+            assertEquals(1, prune.timeIndexSize());
+            assertNotNull(root.getNode("p0"));
+            tree.close(false, CloseOperation.TEST);
+        } finally {
+            Files.deleteDir(dir);
+        }
+    }
+
+    private PathElement[] path() throws Exception {
+        HashMap<String, TreeDataParameters> data = new HashMap<>();
+        data.put("time", CodecJSON.decodeString(new DataTime.Config(), "{key:\"t\"}"));
+        PathKeyValue parent = new PathKeyValue("p");
+        parent.setKeyAccessor(format.getField("p"));
+        PathKeyValue child = new PathKeyValue("k");
+        child.setKeyAccessor(format.getField("k"));
+        child.setData(data);
+        return new PathElement[]{parent, child};
+    }
+
+    private void add(ConcurrentTree tree, PathElement[] path, String parent, String child, long time) {
+        Bundle bundle = new ListBundle(format);
+        bundle.setValue(format.getField("p"), ValueFactory.create(parent));
+        bundle.setValue(format.getField("k"), ValueFactory.create(child));
+        bundle.setValue(format.getField("t"), ValueFactory.create(time));
+        new TreeMapState(null, tree.getRootNode(), path, bundle);
+    }
+
+    private File makeTemporaryDirectory() throws IOException {
+        final File temp;
+
+        temp = File.createTempFile("temp", Long.toString(System.nanoTime()));
+
+        if (!(temp.delete())) {
+            throw new IOException("Could not delete temp file: " + temp.getAbsolutePath());
+        }
+
+        if (!(temp.mkdir())) {
+            throw new IOException("Could not create temp directory: " + temp.getAbsolutePath());
+        }
+
+        return temp;
+    }
+
+    private static String randomName(Random random) {
+        int length = random.nextInt(6);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            builder.append(random.nextInt(4) == 0 ? (char) random.nextInt(65536) : (char) ('a' + random.nextInt(3)));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.output.tree;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import com.addthis.basis.util.Files;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.codec.CodecJSON;
+import com.addthis.hydra.data.tree.ConcurrentTree;
+import com.addthis.hydra.data.tree.ConcurrentTreeNode;
+import com.addthis.hydra.data.tree.DataTreeNode;
+import com.addthis.hydra.data.tree.TreeDataParameters;
+import com.addthis.hydra.data.tree.prop.DataSum;
+import com.addthis.hydra.store.db.CloseOperation;
+
+import org.easymock.EasyMock;
+import org.easymock.IMocksControl;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+public class TreeMapStateTest {
+
+    @Test
+    public void testLeases() {
+        IMocksControl control = EasyMock.createStrictControl();
+        DataTreeNode[] nodes = new DataTreeNode[40];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = control.createMock(DataTreeNode.class);
+        }
+        // most recently leased first
+        for (int i = nodes.length - 1; i >= 0; i--) {
+            nodes[i].release();
+        }
+        control.replay();
+        TreeMapState.Leases leases = new TreeMapState.Leases();
+        TreeMapState.Leases branch = new TreeMapState.Leases();
+        for (int i = 0; i < 10; i++) {
+            leases.add(nodes[i]);
+        }
+        for (int i = 10; i < nodes.length; i++) {
+            branch.add(nodes[i]);
+        }
+        leases.addAll(branch);
+        assertEquals(0, branch.size());
+        assertEquals(nodes.length, leases.size());
+        leases.releaseAll();
+        assertEquals(0, leases.size());
+        control.verify();
+    }
+
+    private static final int BRANCHES = 4;
+
+    private final ListBundleFormat format = new ListBundleFormat();
+
+    @Test
+    public void testParallelBranches() throws Exception {
+        PathElement[] path = path(false);
+        File serialDir = makeTemporaryDirectory();
+        File parallelDir = makeTemporaryDirectory();
+        ForkJoinPool pool = new ForkJoinPool(BRANCHES);
+        try {
+            ConcurrentTree serial = new ConcurrentTree.Builder(serialDir, false).kvStoreType(1).build();
+            ConcurrentTree parallel = new ConcurrentTree.Builder(parallelDir, false).kvStoreType(1).build();
+            for (int i = 0; i < 100; i++) {
+                Bundle bundle = bundle("k" + (i % 5), i);
+                new TreeMapState(null, null, serial.getRootNode(), path, bundle, 1);
+                new TreeMapState(null, pool, parallel.getRootNode(), path, bundle, 1);
+            }
+            for (int i = 0; i < 5; i++) {
+                ConcurrentTreeNode expected = serial.getRootNode().getNode("k" + i);
+                ConcurrentTreeNode actual = parallel.getRootNode().getNode("k" + i);
+                assertEquals(20, actual.getCounter());
+                assertEquals(expected.getCounter(), actual.getCounter());
+                assertEquals(BRANCHES, actual.getNodeCount());
+                for (int j = 0; j < BRANCHES; j++) {
+                    ConcurrentTreeNode expectedLeaf = expected.getNode("b" + j).getNode("leaf");
+                    ConcurrentTreeNode actualLeaf = actual.getNode("b" + j).getNode("leaf");
+                    assertEquals(expectedLeaf.getCounter(), actualLeaf.getCounter());
+                    assertEquals(sum(expectedLeaf), sum(actualLeaf));
+                    assertEquals(0, actualLeaf.getLeaseCount());
+                }
+            }
+            assertEquals(0, parallel.getRootNode().getNode("k0").getLeaseCount());
+            serial.close(false, CloseOperation.TEST);
+            parallel.close(false, CloseOperation.TEST);
+        } finally {
+            pool.shutdown();
+            Files.deleteDir(serialDir);
+            Files.deleteDir(parallelDir);
+        }
+    }
+
+    @Test
+    public void testParallelBranchFailure() throws Exception {
+        PathElement[] path = path(true);
+        File dir = makeTemporaryDirectory();
+        ForkJoinPool pool = new ForkJoinPool(BRANCHES);
+        try {
+            ConcurrentTree tree = new ConcurrentTree.Builder(dir, false).kvStoreType(1).build();
+            try {
+                new TreeMapState(null, pool, tree.getRootNode(), path, bundle("k0", 1), 1);
+                fail();
+            } catch (IllegalStateException ex) {
+                // expected
+            }
+            ConcurrentTreeNode node = tree.getRootNode().getNode("k0");
+            assertNotNull(node);
+            assertEquals(0, node.getLeaseCount());
+            for (int j = 0; j < BRANCHES; j++) {
+                ConcurrentTreeNode branch = node.getNode("b" + j);
+                assertEquals(0, branch.getLeaseCount());
+                assertEquals(0, branch.getNode("leaf").getLeaseCount());
+            }
+            tree.close(false, CloseOperation.TEST);
+        } finally {
+            pool.shutdown();
+            Files.deleteDir(dir);
+        }
+    }
+
+    /**
+     * A key element followed by a parallel branch with a sum attachment
+     * at the end of every branch, and optionally a branch that throws.
+     */
+    private PathElement[] path(boolean fail) throws Exception {
+        HashMap<String, TreeDataParameters> data = new HashMap<>();
+        data.put("sum", CodecJSON.decodeString(new DataSum.Config(), "{key:\"v\"}"));
+        ArrayList<PathElement[]> list = new ArrayList<>();
+        for (int i = 0; i < BRANCHES; i++) {
+            PathValue leaf = new PathValue("leaf");
+            leaf.setData(data);
+            list.add(new PathElement[]{new PathValue("b" + i), leaf});
+        }
+        if (fail) {
+            list.add(new PathElement[]{new PathValue() {
+                @Override
+                public ValueObject getPathValue(TreeMapState state) {
+                    throw new IllegalStateException("boom");
+                }
+            }});
+        }
+        PathBranch branch = CodecJSON.decodeString(new PathBranch(), "{parallel:true}");
+        branch.setList(list);
+        branch.resolve(null);
+        PathKeyValue key = new PathKeyValue("k");
+        key.setKeyAccessor(format.getField("k"));
+        return new PathElement[]{key, branch};
+    }
+
+    private Bundle bundle(String key, long value) {
+        Bundle bundle = new ListBundle(format);
+        bundle.setValue(format.getField("k"), ValueFactory.create(key));
+        bundle.setValue(format.getField("v"), ValueFactory.create(value));
+        return bundle;
+    }
+
+    private static String sum(DataTreeNode node) {
+        return node.getDataMap().get("sum").getValue("sum").toString();
+    }
+
+    private File makeTemporaryDirectory() throws IOException {
+        final File temp;
+
+        temp = File.createTempFile("temp", Long.toString(System.nanoTime()));
+
+        if (!(temp.delete())) {
+            throw new IOException("Could not delete temp file: " + temp.getAbsolutePath());
+        }
+
+        if (!(temp.mkdir())) {
+            throw new IOException("Could not create temp directory: " + temp.getAbsolutePath());
+        }
+
+        return temp;
+    }
+}
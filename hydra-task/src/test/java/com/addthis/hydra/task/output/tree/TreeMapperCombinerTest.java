@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.output.tree;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.HashMap;
+
+import com.addthis.basis.util.Files;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.codec.CodecJSON;
+import com.addthis.hydra.data.tree.ConcurrentTree;
+import com.addthis.hydra.data.tree.DataTreeNode;
+import com.addthis.hydra.data.tree.TreeDataParameters;
+import com.addthis.hydra.data.tree.prop.DataSum;
+import com.addthis.hydra.data.tree.prop.DataSumFloat;
+import com.addthis.hydra.store.db.CloseOperation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class TreeMapperCombinerTest {
+
+    private static final String[][] INPUT = {
+            {"a", "1"}, {"a", "1"}, {"b", "2"}, {"a", "1"}, {"a", "5"},
+            {"b", "2"}, {"a", "1"}, {"c", "3"}, {"a", "5"}, {"a", "1"},
+    };
+
+    private final ListBundleFormat format = new ListBundleFormat();
+
+    private File makeTemporaryDirectory() throws IOException {
+        final File temp;
+
+        temp = File.createTempFile("temp", Long.toString(System.nanoTime()));
+
+        if (!(temp.delete())) {
+            throw new IOException("Could not delete temp file: " + temp.getAbsolutePath());
+        }
+
+        if (!(temp.mkdir())) {
+            throw new IOException("Could not create temp directory: " + temp.getAbsolutePath());
+        }
+
+        return temp;
+    }
+
+    private Bundle bundle(String key, String value) {
+        Bundle bundle = new ListBundle(format);
+        bundle.setValue(format.getField("k"), ValueFactory.create(key));
+        bundle.setValue(format.getField("v"), ValueFactory.create(value));
+        return bundle;
+    }
+
+    /**
+     * The sum attachment updates in one step for any count and
+     * the float sum attachment repeats its update count times.
+     */
+    private PathElement[] path() throws Exception {
+        HashMap<String, TreeDataParameters> data = new HashMap<>();
+        data.put("sum", CodecJSON.decodeString(new DataSum.Config(), "{key:\"v\"}"));
+        data.put("fsum", CodecJSON.decodeString(new DataSumFloat.Config(), "{key:\"v\"}"));
+        PathKeyValue element = new PathKeyValue("k");
+        element.setKeyAccessor(format.getField("k"));
+        element.setData(data);
+        return new PathElement[]{element};
+    }
+
+    @Test
+    public void testCombinedMatchesSeparate() throws Exception {
+        final PathElement[] path = path();
+        File separateDir = makeTemporaryDirectory();
+        File combinedDir = makeTemporaryDirectory();
+        try {
+            ConcurrentTree separate = new ConcurrentTree.Builder(separateDir, false).kvStoreType(1).build();
+            for (String[] row : INPUT) {
+                new TreeMapState(null, separate.getRootNode(), path, bundle(row[0], row[1]));
+            }
+            final ConcurrentTree combined = new ConcurrentTree.Builder(combinedDir, false).kvStoreType(1).build();
+            TreeMapperCombiner combiner = new TreeMapperCombiner(new TreeMapperCombiner.Receiver() {
+                @Override
+                public void deliver(Bundle bundle, int count) {
+                    new TreeMapState(null, combined.getRootNode(), path, bundle, count);
+                }
+            }, INPUT.length + 1, null);
+            for (String[] row : INPUT) {
+                combiner.add(bundle(row[0], row[1]));
+            }
+            assertEquals(6, combiner.flush());
+            for (String key : new String[]{"a", "b", "c"}) {
+                DataTreeNode expected = separate.getRootNode().getNode(key);
+                DataTreeNode actual = combined.getRootNode().getNode(key);
+                assertNotNull(expected);
+                assertNotNull(actual);
+                assertEquals(expected.getCounter(), actual.getCounter());
+                assertEquals(value(expected, "sum", "sum"), value(actual, "sum", "sum"));
+                assertEquals(value(expected, "sum", "num"), value(actual, "sum", "num"));
+                assertEquals(value(expected, "fsum", "sum"), value(actual, "fsum", "sum"));
+                assertEquals(value(expected, "fsum", "count"), value(actual, "fsum", "count"));
+            }
+            DataTreeNode node = combined.getRootNode().getNode("a");
+            assertEquals(7, node.getCounter());
+            assertEquals("15", value(node, "sum", "sum"));
+            assertEquals("7", value(node, "sum", "num"));
+            assertEquals("7", value(node, "fsum", "count"));
+            separate.close(false, CloseOperation.TEST);
+            combined.close(false, CloseOperation.TEST);
+        } finally {
+            Files.deleteDir(separateDir);
+            Files.deleteDir(combinedDir);
+        }
+    }
+
+    @Test
+    public void testFlushAtMaxBundles() throws Exception {
+        final int[] delivered = new int[2];
+        TreeMapperCombiner combiner = new TreeMapperCombiner(new TreeMapperCombiner.Receiver() {
+            @Override
+            public void deliver(Bundle bundle, int count) {
+                delivered[0]++;
+                delivered[1] += count;
+            }
+        }, 4, new String[]{"k"});
+        combiner.add(bundle("a", "1"));
+        combiner.add(bundle("a", "2"));
+        combiner.add(bundle("b", "1"));
+        assertEquals(0, delivered[0]);
+        combiner.add(bundle("a", "3"));
+        assertEquals(2, delivered[0]);
+        assertEquals(4, delivered[1]);
+        assertEquals(0, combiner.flush());
+        assertEquals(2, delivered[0]);
+    }
+
+    private static String value(DataTreeNode node, String name, String key) {
+        return node.getDataMap().get(name).getValue(key).toString();
+    }
+}